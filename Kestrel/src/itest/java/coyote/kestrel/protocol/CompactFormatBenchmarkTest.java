@@ -0,0 +1,50 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataFrame;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reports the size and decode time of a profile response in the binary
+ * frame and compact encodings.
+ *
+ * <p>These are disabled so they do not run as part of the build; run them
+ * in the IDE to generate numbers.</p>
+ */
+public class CompactFormatBenchmarkTest {
+
+  private static final String GROUP_NAME = "SVC.COMPACT.BENCHMARK";
+  private static final int ITERATIONS = 200000;
+
+
+  @Test
+  @Disabled("Compact encoding size and decode time")
+  void decode() {
+    MessageSchema.register(new MessageSchema(GROUP_NAME, KestrelProtocol.COMMAND_FIELD, "id", "theme", "logging", "name"));
+    DataFrame frame = new DataFrame();
+    frame.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    frame.put(KestrelProtocol.GROUP_FIELD, GROUP_NAME);
+    frame.put(KestrelProtocol.TYPE_FIELD, "ACK");
+    frame.put(KestrelProtocol.REPLY_ID_FIELD, "7c9e6679-7425-40de-944b-e07fc1f90ae7");
+    frame.put(KestrelProtocol.EXPIRY_FIELD, 1546300800L);
+    frame.put(KestrelProtocol.PRIORITY_FIELD, 4);
+    frame.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("id", "123").set("theme", "dark").set("logging", "error,fatal,warn,notice").set("name", "Bob"));
+
+    byte[] binary = MessageCodec.encode(frame);
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.COMPACT_ENCODING);
+    byte[] compact = MessageCodec.encode(frame);
+
+    System.out.println("Encoding  Bytes  Decode(ns)");
+    for (int round = 0; round < 3; round++) {
+      for (byte[] body : new byte[][]{binary, compact}) {
+        long start = System.nanoTime();
+        for (int x = 0; x < ITERATIONS; x++) {
+          MessageCodec.decode(body);
+        }
+        long elapsed = (System.nanoTime() - start) / ITERATIONS;
+        System.out.println((body == binary ? "FRAM" : "CMPT") + "      " + body.length + "    " + elapsed);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+package coyote.kestrel.protocol;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the time taken by 32 threads generating identifiers with UUIDs
+ * and with the compact generator.
+ *
+ * <p>These are disabled so they do not run as part of the build; run them
+ * in the IDE to generate numbers.</p>
+ */
+public class CompactIdBenchmarkTest {
+
+  private static final int THREADS = 32;
+  private static final int ITERATIONS = 100000;
+
+
+  @Test
+  @Disabled("Identifier generation under contention")
+  void contention() throws InterruptedException {
+    IdGenerator uuid = () -> UUID.randomUUID().toString();
+    IdGenerator compact = new CompactIdGenerator();
+
+    System.out.println("Generator  Length  ns/id");
+    for (int round = 0; round < 3; round++) {
+      for (IdGenerator generator : new IdGenerator[]{uuid, compact}) {
+        long elapsed = generate(generator);
+        System.out.println((generator == uuid ? "UUID     " : "Compact  ") + "  " + generator.nextId().length() + "      " + elapsed / ((long) THREADS * ITERATIONS));
+      }
+    }
+  }
+
+
+  /**
+   * Call the generator from all the threads started together.
+   *
+   * @return the elapsed nanoseconds
+   */
+  private static long generate(IdGenerator generator) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(THREADS);
+    AtomicLong length = new AtomicLong();
+    for (int t = 0; t < THREADS; t++) {
+      new Thread(() -> {
+        long chars = 0;
+        try {
+          start.await();
+          for (int x = 0; x < ITERATIONS; x++) {
+            chars += generator.nextId().length(); // keep the identifier from being optimized away
+          }
+        } catch (InterruptedException ignore) {
+          // finish
+        } finally {
+          length.addAndGet(chars);
+          done.countDown();
+        }
+      }).start();
+    }
+    long started = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - started;
+  }
+
+}
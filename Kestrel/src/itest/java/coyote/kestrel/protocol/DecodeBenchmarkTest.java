@@ -0,0 +1,93 @@
+package coyote.kestrel.protocol;
+
+import coyote.commons.StringUtil;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DecodeException;
+import coyote.dataframe.marshal.JSONMarshaler;
+import coyote.dataframe.marshal.json.JsonFrameParser;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compares the cost of decoding each encoding with the exception-driven
+ * decoding the message codec used to perform.
+ *
+ * <p>These are disabled so they do not run as part of the build; run them
+ * in the IDE to generate numbers.</p>
+ */
+public class DecodeBenchmarkTest {
+
+  private static final int ITERATIONS = 200000;
+
+
+  @Test
+  @Disabled("Decode cost per encoding")
+  void decode() {
+    DataFrame frame = new DataFrame();
+    frame.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    frame.put(KestrelProtocol.GROUP_FIELD, "SVC.PROFILE");
+    frame.put(KestrelProtocol.TYPE_FIELD, "RQS");
+    frame.put(KestrelProtocol.REPLY_GROUP_FIELD, "INBOX.1234");
+    frame.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("Id", "1234").set("Count", 12));
+
+    byte[] binary = MessageCodec.encode(frame);
+    byte[] json = StringUtil.getBytes(JSONMarshaler.marshal(frame));
+    byte[] text = StringUtil.getBytes("The quick brown fox jumps over the lazy dog");
+
+    System.out.println("Encoding  Legacy(ns)  Sniffing(ns)");
+    for (int round = 0; round < 3; round++) {
+      report("FRAM", binary);
+      report("JSON", json);
+      report("STR ", text);
+    }
+  }
+
+
+  private void report(String label, byte[] body) {
+    long start = System.nanoTime();
+    for (int x = 0; x < ITERATIONS; x++) {
+      legacyDecode(body);
+    }
+    long legacy = (System.nanoTime() - start) / ITERATIONS;
+
+    start = System.nanoTime();
+    for (int x = 0; x < ITERATIONS; x++) {
+      MessageCodec.decode(body);
+    }
+    long sniffing = (System.nanoTime() - start) / ITERATIONS;
+    System.out.println(label + "      " + legacy + "         " + sniffing);
+  }
+
+
+  /**
+   * The decoding logic prior to format detection; binary first, then JSON
+   * and finally a string, each attempt relying on an exception to fail.
+   */
+  private static DataFrame legacyDecode(byte[] body) {
+    DataFrame retval;
+    try {
+      retval = new DataFrame(body);
+      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.FRAME_ENCODING);
+    } catch (DecodeException e) {
+      String data = StandardCharsets.ISO_8859_1.decode(ByteBuffer.wrap(body)).toString();
+      try {
+        List<DataFrame> frames = new JsonFrameParser(data).parse();
+        if (frames.size() == 1) {
+          retval = frames.get(0);
+          retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
+        } else {
+          retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, data);
+        }
+      } catch (Throwable ball) {
+        retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, data);
+        retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.STRING_ENCODING);
+      }
+    }
+    return retval;
+  }
+
+}
@@ -0,0 +1,64 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataFrame;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reports the bytes allocated per encoded message for the array and pooled
+ * encoding paths.
+ *
+ * <p>These are disabled so they do not run as part of the build; run them
+ * in the IDE to generate numbers.</p>
+ */
+public class EncodeAllocationTest {
+
+  private static final int ITERATIONS = 100000;
+
+
+  @Test
+  @Disabled("Bytes allocated per encoded message")
+  void allocation() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    BufferPool pool = new BufferPool(true, BufferPool.DEFAULT_BUFFER_SIZE, 4);
+    DataFrame binary = sample();
+    DataFrame json = sample();
+    json.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
+
+    System.out.println("Encoding  Array(bytes/msg)  Pooled(bytes/msg)");
+    for (int round = 0; round < 3; round++) {
+      for (DataFrame frame : new DataFrame[]{binary, json}) {
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int x = 0; x < ITERATIONS; x++) {
+          MessageCodec.encode(frame);
+        }
+        long array = (threads.getThreadAllocatedBytes(thread) - start) / ITERATIONS;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        for (int x = 0; x < ITERATIONS; x++) {
+          pool.release(MessageCodec.encode(frame, pool, 0));
+        }
+        long pooled = (threads.getThreadAllocatedBytes(thread) - start) / ITERATIONS;
+        System.out.println((frame == json ? "JSON" : "FRAM") + "      " + array + "              " + pooled);
+      }
+    }
+  }
+
+
+  private static DataFrame sample() {
+    DataFrame retval = new DataFrame();
+    retval.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.put(KestrelProtocol.GROUP_FIELD, "SVC.PROFILE");
+    retval.put(KestrelProtocol.TYPE_FIELD, "RQS");
+    retval.put(KestrelProtocol.EXPIRY_FIELD, 1546300800L);
+    DataFrame list = new DataFrame();
+    list.add("one");
+    list.add(-2);
+    retval.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("Name", "Quote \" and \\ and \u20ac").set("Count", 12).set("Ratio", 0.5).set("Active", true).set("List", list));
+    return retval;
+  }
+
+}
@@ -0,0 +1,57 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataFrame;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reports the size and the encode and decode throughput of a profile
+ * response as a binary data frame and as MessagePack.
+ *
+ * <p>These are disabled so they do not run as part of the build; run them
+ * in the IDE to generate numbers.</p>
+ */
+public class MessagePackBenchmarkTest {
+
+  private static final int ITERATIONS = 200000;
+
+
+  @Test
+  @Disabled("MessagePack size and throughput")
+  void throughput() {
+    DataFrame msgpack = sample();
+    DataFrame binary = sample();
+    binary.remove(KestrelProtocol.ENCODING_FIELD);
+
+    System.out.println("Encoding  Bytes  Encode(msg/s)  Decode(msg/s)");
+    for (int round = 0; round < 3; round++) {
+      for (DataFrame frame : new DataFrame[]{binary, msgpack}) {
+        byte[] body = MessageCodec.encode(frame);
+        long start = System.nanoTime();
+        for (int x = 0; x < ITERATIONS; x++) {
+          MessageCodec.encode(frame);
+        }
+        long encode = ITERATIONS * 1000000000L / (System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int x = 0; x < ITERATIONS; x++) {
+          MessageCodec.decode(body);
+        }
+        long decode = ITERATIONS * 1000000000L / (System.nanoTime() - start);
+        System.out.println((frame == binary ? "FRAM" : "MSGP") + "      " + body.length + "    " + encode + "        " + decode);
+      }
+    }
+  }
+
+
+  private static DataFrame sample() {
+    DataFrame retval = new DataFrame();
+    retval.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.put(KestrelProtocol.GROUP_FIELD, "SVC.PROFILE");
+    retval.put(KestrelProtocol.TYPE_FIELD, "ACK");
+    retval.put(KestrelProtocol.EXPIRY_FIELD, 1546300800L);
+    retval.put(KestrelProtocol.ENCODING_FIELD, MessagePackCodec.ENCODING);
+    retval.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("id", "123").set("theme", "dark").set("logging", "error,fatal,warn,notice").set("name", "Bob"));
+    return retval;
+  }
+
+}
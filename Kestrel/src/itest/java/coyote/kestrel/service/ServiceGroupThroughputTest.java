@@ -0,0 +1,70 @@
+package coyote.kestrel.service;
+
+import coyote.dataframe.DataFrame;
+import coyote.kestrel.KestrelTestBase;
+import coyote.kestrel.protocol.MessageGroup;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.Transport;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the throughput and latency of the polling service group with the
+ * push service group.
+ *
+ * <p>These are disabled so they do not run as part of the build; run them
+ * in the IDE against a local broker to generate numbers.</p>
+ */
+public class ServiceGroupThroughputTest extends KestrelTestBase {
+
+  private static final String GROUP_NAME = "SVC.THROUGHPUT";
+  private static final String SENT_FIELD = "Sent";
+  private static final int COUNT = 10000;
+
+
+  @Test
+  @Disabled("Pull mode throughput")
+  void pullThroughput() throws Exception {
+    measure("pull", new ServiceGroup(GROUP_NAME));
+  }
+
+
+  @Test
+  @Disabled("Push mode throughput")
+  void pushThroughput() throws Exception {
+    measure("push", new PushServiceGroup(GROUP_NAME, 256));
+  }
+
+
+  private void measure(String mode, MessageGroup group) throws Exception {
+    Transport transport = createTestTransport();
+    transport.open();
+    group.setTransport(transport);
+    group.initialize();
+
+    for (int x = 0; x < COUNT; x++) {
+      Message message = new Message();
+      message.setGroup(GROUP_NAME);
+      message.setPayload(new DataFrame().set(SENT_FIELD, System.nanoTime()));
+      transport.sendDirect(message);
+    }
+
+    long latency = 0;
+    int received = 0;
+    long start = System.nanoTime();
+    while (received < COUNT) {
+      Message message = group.getNextMessage(1000);
+      if (message == null) {
+        break;
+      }
+      latency += System.nanoTime() - message.getPayload().getAsLong(SENT_FIELD);
+      group.ackDelivery(message);
+      received++;
+    }
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println(mode + ": received " + received + " messages in " + (elapsed / 1000000) + "ms (" + (received * 1000000000L / Math.max(elapsed, 1)) + " msg/s) mean latency " + (received > 0 ? latency / received / 1000 : 0) + "us");
+    transport.close();
+  }
+
+}
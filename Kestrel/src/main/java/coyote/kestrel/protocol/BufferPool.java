@@ -0,0 +1,141 @@
+package coyote.kestrel.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable byte buffers for encoding messages.
+ *
+ * <p>Buffers are taken from the pool, filled by the encoder, handed to the
+ * transport and returned to the pool once the transport is finished with
+ * them, so encoding a message does not allocate a new array for every
+ * message. Buffers which had to grow to fit a large message are kept at
+ * their larger size up to a limit, so the pool settles at the size of the
+ * messages actually sent.</p>
+ *
+ * <p>Direct buffers avoid a copy when writing to sockets and can be copied
+ * straight to native memory; heap buffers are cheaper to create.</p>
+ */
+public class BufferPool {
+
+  public static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+  public static final int DEFAULT_POOL_SIZE = 64;
+  /**
+   * Buffers larger than this are not returned to the pool
+   */
+  public static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+  private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final boolean direct;
+  private final int bufferSize;
+  private final int poolSize;
+
+
+  /**
+   * Create a pool of heap buffers of the default size.
+   */
+  public BufferPool() {
+    this(false, DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE);
+  }
+
+
+  /**
+   * @param direct     true to pool direct buffers, false for heap buffers
+   * @param bufferSize the initial size of each buffer
+   * @param poolSize   the maximum number of idle buffers to keep
+   */
+  public BufferPool(boolean direct, int bufferSize, int poolSize) {
+    this.direct = direct;
+    this.bufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+    this.poolSize = poolSize;
+  }
+
+
+  /**
+   * Take a cleared buffer from the pool, creating one if the pool is empty.
+   *
+   * @return a buffer ready to be written
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer retval = buffers.poll();
+    if (retval != null) {
+      pooled.decrementAndGet();
+      retval.clear();
+    } else {
+      retval = allocate(bufferSize);
+    }
+    return retval;
+  }
+
+
+  /**
+   * Replace the buffer with a larger one with at least the given number of
+   * bytes remaining.
+   *
+   * <p>The contents up to the position of the given buffer are copied into
+   * the new buffer and the given buffer is returned to the pool.</p>
+   *
+   * @param buffer    the buffer being written
+   * @param remaining the number of bytes which must fit after the current position
+   * @return a buffer with the same contents and position and room for the given number of bytes
+   */
+  public ByteBuffer grow(ByteBuffer buffer, int remaining) {
+    if (buffer.remaining() >= remaining) {
+      return buffer;
+    }
+    int capacity = buffer.capacity();
+    int required = buffer.position() + remaining;
+    while (capacity < required) {
+      capacity = capacity * 2;
+    }
+    ByteBuffer retval = allocate(capacity);
+    buffer.flip();
+    retval.put(buffer);
+    release(buffer);
+    return retval;
+  }
+
+
+  /**
+   * Return a buffer to the pool.
+   *
+   * <p>The buffer must not be used by the caller after it is released.
+   * Buffers of the wrong kind, oversized buffers and buffers beyond the size
+   * of the pool are left for the garbage collector.</p>
+   *
+   * @param buffer the buffer to return, may be null
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer != null && buffer.isDirect() == direct && buffer.capacity() <= MAX_POOLED_BUFFER_SIZE) {
+      if (pooled.incrementAndGet() <= poolSize) {
+        buffers.offer(buffer);
+      } else {
+        pooled.decrementAndGet();
+      }
+    }
+  }
+
+
+  /**
+   * @return the number of idle buffers in the pool
+   */
+  public int size() {
+    return pooled.get();
+  }
+
+
+  /**
+   * @return true if this pool holds direct buffers
+   */
+  public boolean isDirect() {
+    return direct;
+  }
+
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+}
@@ -0,0 +1,58 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An additional encoding of messages on the transport.
+ *
+ * <p>Codecs are found with the {@link java.util.ServiceLoader} by listing
+ * their class names in
+ * {@code META-INF/services/coyote.kestrel.protocol.Codec}, or registered
+ * with {@link MessageCodec#register(Codec)}. A message is encoded with a
+ * codec when its encoding field holds the encoding name of the codec. The
+ * message codec marks the body with the encoding name so any receiver with
+ * the same codec decodes it, whatever the transport. Bodies from other
+ * clients may be unmarked if the transport supplies the content type of the
+ * codec as a hint.</p>
+ *
+ * <p>Codecs are shared by all threads and must be stateless or thread
+ * safe.</p>
+ */
+public interface Codec {
+
+  /**
+   * @return the value of the encoding field selecting this codec; at most 255 ASCII characters
+   */
+  String getEncoding();
+
+
+  /**
+   * @return the MIME content type of the bytes this codec produces
+   */
+  String getContentType();
+
+
+  /**
+   * Write the frame into the buffer, growing it from the pool as needed.
+   *
+   * @param frame  the frame to write
+   * @param buffer the buffer to write into at its current position
+   * @param pool   the pool from which larger buffers are taken
+   * @return the buffer containing the encoded frame; not necessarily the one passed in
+   */
+  ByteBuffer encode(DataFrame frame, ByteBuffer buffer, BufferPool pool);
+
+
+  /**
+   * Decode a frame from part of an array.
+   *
+   * @param data   the array holding the encoded frame
+   * @param offset the position of the encoded frame in the array
+   * @param length the number of bytes in the encoded frame
+   * @return the decoded frame or null if the bytes could not be decoded
+   */
+  DataFrame decode(byte[] data, int offset, int length);
+
+}
@@ -0,0 +1,326 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes and reads data frames in the compact encoding.
+ *
+ * <p>The compact encoding replaces field names with small numbers. Envelope
+ * field names are numbered by a fixed dictionary and payload field names by
+ * the {@link MessageSchema} registered for the group of the message. Names
+ * missing from both are written as text. Values are written with a one byte
+ * type followed by variable length integers, raw floating point numbers or
+ * UTF-8 text. Values of any other type are wrapped in a single field binary
+ * data frame so they survive unchanged.</p>
+ *
+ * <p>A compact body is a four byte marker, the identifier of the payload
+ * schema (zero for none) and the fields of the message. Each frame is the
+ * number of its fields followed by the fields. Each field is a key, its type
+ * and its value. A key of zero is a field with no name, a key of one is
+ * followed by the name as text, and any other key is the position of the
+ * name in the dictionary plus two.</p>
+ */
+final class CompactFormat {
+
+  private static final byte[] MARKER = {0x1F, 'K', 'C', 0x01};
+
+  /**
+   * Envelope field names in the order they are numbered; only ever append
+   */
+  private static final MessageSchema ENVELOPE = new MessageSchema(null, KestrelProtocol.IDENTIFIER_FIELD, KestrelProtocol.REPLY_ID_FIELD, KestrelProtocol.GROUP_FIELD, KestrelProtocol.REPLY_GROUP_FIELD, KestrelProtocol.TYPE_FIELD, KestrelProtocol.ENCODING_FIELD, KestrelProtocol.EXPIRY_FIELD, KestrelProtocol.PRIORITY_FIELD, KestrelProtocol.PAYLOAD_FIELD, KestrelProtocol.SOURCE_FIELD, KestrelProtocol.TARGET_FIELD, KestrelProtocol.FLAGS_FIELD, KestrelProtocol.MESSAGE_FIELD, KestrelProtocol.RESULT_CODE_FIELD, KestrelProtocol.ID_FIELD, KestrelProtocol.GENERIC_DATA_FIELD, KestrelProtocol.COMMAND_FIELD);
+
+  private static final int UNNAMED_KEY = 0;
+  private static final int NAMED_KEY = 1;
+  private static final int FIRST_KEY = 2;
+
+  private static final byte NULL_TYPE = 0;
+  private static final byte STRING_TYPE = 1;
+  private static final byte INT_TYPE = 2;
+  private static final byte LONG_TYPE = 3;
+  private static final byte DOUBLE_TYPE = 4;
+  private static final byte FLOAT_TYPE = 5;
+  private static final byte TRUE_TYPE = 6;
+  private static final byte FALSE_TYPE = 7;
+  private static final byte BYTES_TYPE = 8;
+  private static final byte FRAME_TYPE = 9;
+  private static final byte OTHER_TYPE = 10;
+
+
+  private CompactFormat() {
+  }
+
+
+  /**
+   * @param body the body of a message
+   * @return true if the body starts with the compact encoding marker
+   */
+  static boolean isCompact(byte[] body) {
+    if (body == null || body.length < MARKER.length + 4) {
+      return false;
+    }
+    for (int x = 0; x < MARKER.length; x++) {
+      if (body[x] != MARKER[x]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Write the message into the buffer, growing it from the pool as needed.
+   *
+   * @param frame  the message to write
+   * @param buffer the buffer to write into at its current position
+   * @param pool   the pool from which larger buffers are taken
+   * @return the buffer containing the message; not necessarily the one passed in
+   */
+  static ByteBuffer write(DataFrame frame, ByteBuffer buffer, BufferPool pool) {
+    MessageSchema schema = MessageSchema.forGroup(frame.getAsString(KestrelProtocol.GROUP_FIELD));
+    buffer = pool.grow(buffer, MARKER.length + 4);
+    buffer.put(MARKER);
+    buffer.putInt(schema != null ? schema.getId() : 0);
+    return writeFrame(frame, ENVELOPE, schema, buffer, pool);
+  }
+
+
+  /**
+   * Read a message written by {@link #write(DataFrame, ByteBuffer, BufferPool)}.
+   *
+   * @param body the compact body
+   * @return the message or null if the body is malformed or uses a schema which is not registered
+   */
+  static DataFrame read(byte[] body) {
+    return read(body, new DataFrame());
+  }
+
+
+  /**
+   * Read a message into the given frame.
+   *
+   * @param body   the compact body
+   * @param target the empty frame to fill; left partly filled if the body is malformed
+   * @return the target or null if the body is malformed or uses a schema which is not registered
+   */
+  static <T extends DataFrame> T read(byte[] body, T target) {
+    ByteBuffer buffer = ByteBuffer.wrap(body);
+    buffer.position(MARKER.length);
+    int id = buffer.getInt();
+    MessageSchema schema = null;
+    if (id != 0) {
+      schema = MessageSchema.forId(id);
+      if (schema == null) {
+        return null;
+      }
+    }
+    try {
+      return readFrame(buffer, ENVELOPE, schema, target);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * @param dictionary the names numbered in this frame
+   * @param payload    the names numbered in the payload field of this frame, null if this frame is not the envelope
+   */
+  private static ByteBuffer writeFrame(DataFrame frame, MessageSchema dictionary, MessageSchema payload, ByteBuffer buffer, BufferPool pool) {
+    buffer = writeNumber(frame.getFieldCount(), buffer, pool);
+    for (int x = 0; x < frame.getFieldCount(); x++) {
+      DataField field = frame.getField(x);
+      String name = field.getName();
+      MessageSchema names = dictionary;
+      if (name == null) {
+        buffer = writeNumber(UNNAMED_KEY, buffer, pool);
+      } else {
+        int position = dictionary != null ? dictionary.indexOf(name) : -1;
+        if (position >= 0) {
+          buffer = writeNumber(position + FIRST_KEY, buffer, pool);
+        } else {
+          buffer = writeNumber(NAMED_KEY, buffer, pool);
+          buffer = writeText(name, buffer, pool);
+        }
+        if (dictionary == ENVELOPE && KestrelProtocol.PAYLOAD_FIELD.equals(name)) {
+          names = payload;
+        }
+      }
+      buffer = writeValue(field.getObjectValue(), names, buffer, pool);
+    }
+    return buffer;
+  }
+
+
+  private static ByteBuffer writeValue(Object value, MessageSchema names, ByteBuffer buffer, BufferPool pool) {
+    buffer = pool.grow(buffer, 9);
+    if (value == null) {
+      buffer.put(NULL_TYPE);
+    } else if (value instanceof String) {
+      buffer.put(STRING_TYPE);
+      buffer = writeText((String) value, buffer, pool);
+    } else if (value instanceof Integer) {
+      buffer.put(INT_TYPE);
+      buffer = writeNumber(zigzag((Integer) value), buffer, pool);
+    } else if (value instanceof Long) {
+      buffer.put(LONG_TYPE);
+      buffer = writeNumber(zigzag((Long) value), buffer, pool);
+    } else if (value instanceof Double) {
+      buffer.put(DOUBLE_TYPE);
+      buffer.putDouble((Double) value);
+    } else if (value instanceof Float) {
+      buffer.put(FLOAT_TYPE);
+      buffer.putFloat((Float) value);
+    } else if (value instanceof Boolean) {
+      buffer.put((Boolean) value ? TRUE_TYPE : FALSE_TYPE);
+    } else if (value instanceof byte[]) {
+      buffer.put(BYTES_TYPE);
+      buffer = writeBytes((byte[]) value, buffer, pool);
+    } else if (value instanceof DataFrame) {
+      buffer.put(FRAME_TYPE);
+      buffer = writeFrame((DataFrame) value, names, null, buffer, pool);
+    } else {
+      DataFrame wrapper = new DataFrame();
+      wrapper.add(value);
+      buffer.put(OTHER_TYPE);
+      buffer = writeBytes(wrapper.getBytes(), buffer, pool);
+    }
+    return buffer;
+  }
+
+
+  private static ByteBuffer writeText(String text, ByteBuffer buffer, BufferPool pool) {
+    return writeBytes(text.getBytes(StandardCharsets.UTF_8), buffer, pool);
+  }
+
+
+  private static ByteBuffer writeBytes(byte[] data, ByteBuffer buffer, BufferPool pool) {
+    buffer = writeNumber(data.length, buffer, pool);
+    buffer = pool.grow(buffer, data.length);
+    buffer.put(data);
+    return buffer;
+  }
+
+
+  /**
+   * Write an unsigned variable length integer, seven bits per byte.
+   */
+  private static ByteBuffer writeNumber(long value, ByteBuffer buffer, BufferPool pool) {
+    buffer = pool.grow(buffer, 10);
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+    return buffer;
+  }
+
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+
+  private static <T extends DataFrame> T readFrame(ByteBuffer buffer, MessageSchema dictionary, MessageSchema payload, T retval) {
+    int count = (int) readNumber(buffer);
+    for (int x = 0; x < count; x++) {
+      int key = (int) readNumber(buffer);
+      String name;
+      if (key == UNNAMED_KEY) {
+        name = null;
+      } else if (key == NAMED_KEY) {
+        name = readText(buffer);
+      } else {
+        name = dictionary.getField(key - FIRST_KEY);
+      }
+      MessageSchema names = dictionary;
+      if (dictionary == ENVELOPE && KestrelProtocol.PAYLOAD_FIELD.equals(name)) {
+        names = payload;
+      }
+      Object value = readValue(buffer, names);
+      if (name == null) {
+        retval.add(value);
+      } else {
+        retval.add(name, value);
+      }
+    }
+    return retval;
+  }
+
+
+  private static Object readValue(ByteBuffer buffer, MessageSchema names) {
+    byte type = buffer.get();
+    switch (type) {
+      case NULL_TYPE:
+        return null;
+      case STRING_TYPE:
+        return readText(buffer);
+      case INT_TYPE:
+        return (int) unzigzag(readNumber(buffer));
+      case LONG_TYPE:
+        return unzigzag(readNumber(buffer));
+      case DOUBLE_TYPE:
+        return buffer.getDouble();
+      case FLOAT_TYPE:
+        return buffer.getFloat();
+      case TRUE_TYPE:
+        return Boolean.TRUE;
+      case FALSE_TYPE:
+        return Boolean.FALSE;
+      case BYTES_TYPE:
+        return readBytes(buffer);
+      case FRAME_TYPE:
+        return readFrame(buffer, names, null, new DataFrame());
+      case OTHER_TYPE:
+        return new DataFrame(readBytes(buffer)).getField(0).getObjectValue();
+      default:
+        throw new IllegalArgumentException("Unknown compact type " + type);
+    }
+  }
+
+
+  private static String readText(ByteBuffer buffer) {
+    int length = readLength(buffer);
+    String retval = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return retval;
+  }
+
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    byte[] retval = new byte[readLength(buffer)];
+    buffer.get(retval);
+    return retval;
+  }
+
+
+  private static int readLength(ByteBuffer buffer) {
+    long retval = readNumber(buffer);
+    if (retval > buffer.remaining()) {
+      throw new IllegalArgumentException("Compact length exceeds the body");
+    }
+    return (int) retval;
+  }
+
+
+  private static long readNumber(ByteBuffer buffer) {
+    long retval = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      retval |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return retval;
+      }
+    }
+    throw new IllegalArgumentException("Malformed compact number");
+  }
+
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+}
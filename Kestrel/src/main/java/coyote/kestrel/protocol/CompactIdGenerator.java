@@ -0,0 +1,98 @@
+package coyote.kestrel.protocol;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Generates short identifiers from a random prefix and a counter.
+ *
+ * <p>Each generator draws a 72 bit random prefix once, when it is created,
+ * and appends a counter to it. Identifiers are written with the URL safe
+ * Base64 alphabet, so the prefix is 12 characters and the counter adds 1 to
+ * 11 more; a busy process reaches 17 characters after a few million
+ * messages, against 36 for a UUID. Only the prefix comes from
+ * {@link SecureRandom}, so generating an identifier never waits on the
+ * entropy source.</p>
+ *
+ * <p>The counter is split into stripes so threads do not all increment the
+ * same value. Each thread uses the stripe chosen by its thread id, and the
+ * stripe number forms the low bits of the counter value so stripes never
+ * produce the same value. Identifiers increase within a stripe but not
+ * across stripes.</p>
+ *
+ * <p>Identifiers only collide if two generators draw the same prefix. With
+ * 72 random bits, the chance of that among a million generators is about
+ * one in ten billion.</p>
+ */
+public class CompactIdGenerator implements IdGenerator {
+
+  static final int PREFIX_LENGTH = 12;
+
+  private static final char[] DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  // each stripe is a cache line apart to keep threads from contending on the line
+  private static final int STRIDE = 8;
+
+  private final char[] prefix = new char[PREFIX_LENGTH];
+  private final AtomicLongArray counters;
+  private final int stripeBits;
+  private final int stripeMask;
+
+
+  public CompactIdGenerator() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+
+  /**
+   * @param stripes the number of counter stripes; rounded up to a power of two
+   */
+  public CompactIdGenerator(int stripes) {
+    byte[] random = new byte[PREFIX_LENGTH * 6 / 8];
+    RANDOM.nextBytes(random);
+    for (int x = 0; x < PREFIX_LENGTH; x++) {
+      int bit = x * 6;
+      int value = ((random[bit / 8] & 0xFF) << 8 | (bit / 8 + 1 < random.length ? random[bit / 8 + 1] & 0xFF : 0)) >>> (10 - bit % 8);
+      prefix[x] = DIGITS[value & 0x3F];
+    }
+    int bits = 0;
+    while ((1 << bits) < stripes && bits < 8) {
+      bits++;
+    }
+    stripeBits = bits;
+    stripeMask = (1 << bits) - 1;
+    counters = new AtomicLongArray((stripeMask + 1) * STRIDE);
+  }
+
+
+  /**
+   * @see coyote.kestrel.protocol.IdGenerator#nextId()
+   */
+  @Override
+  public String nextId() {
+    int stripe = (int) Thread.currentThread().getId() & stripeMask;
+    long value = counters.getAndIncrement(stripe * STRIDE) << stripeBits | stripe;
+
+    char[] retval = new char[PREFIX_LENGTH + 11];
+    System.arraycopy(prefix, 0, retval, 0, PREFIX_LENGTH);
+    int length = 1;
+    while (length < 11 && value >>> (length * 6) != 0) {
+      length++;
+    }
+    for (int x = PREFIX_LENGTH + length - 1; x >= PREFIX_LENGTH; x--) {
+      retval[x] = DIGITS[(int) (value & 0x3F)];
+      value >>>= 6;
+    }
+    return new String(retval, 0, PREFIX_LENGTH + length);
+  }
+
+
+  /**
+   * @return the random prefix of every identifier from this generator
+   */
+  public String getPrefix() {
+    return new String(prefix);
+  }
+
+}
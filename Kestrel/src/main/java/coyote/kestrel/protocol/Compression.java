@@ -0,0 +1,297 @@
+package coyote.kestrel.protocol;
+
+import coyote.i13n.StatBoard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of encoded messages.
+ *
+ * <p>A compressed body is a four byte marker, the length of the original
+ * body and the body compressed with the JDK deflater at its fastest setting.
+ * The marker lets any transport recognize a compressed body without a
+ * header of its own. Deflaters and inflaters hold native memory, so one of
+ * each is kept per thread and reused.</p>
+ *
+ * <p>The bytes saved and the time spent compressing and decompressing are
+ * tracked per message group. When a StatBoard is set, the
+ * {@code Compression.<group>.Ratio} state holds the compressed size as a
+ * fraction of the original size, and the {@code Compression.<group>.Nanos}
+ * and {@code Decompression.<group>.Nanos} counters hold the time spent.
+ * Replies to inboxes are tracked together under the group {@value #INBOX_GROUP},
+ * as every requester creates inboxes with a new random name and tracking
+ * each one would grow the totals and the StatBoard without limit.</p>
+ */
+public final class Compression {
+
+  static final int HEADER_SIZE = 8;
+  private static final byte[] MARKER = {0x1F, 'K', 'D', 0x01};
+  private static final int MAX_LENGTH = 64 * 1024 * 1024;
+  private static final int SCRATCH_SIZE = 8 * 1024;
+  private static final String UNKNOWN_GROUP = "";
+
+  /**
+   * The group under which messages sent to any inbox are tracked
+   */
+  public static final String INBOX_GROUP = "INBOX";
+
+  private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+  private static final Map<String, GroupStats> groups = new ConcurrentHashMap<>();
+  private static volatile StatBoard stats = null;
+
+
+  private Compression() {
+  }
+
+
+  /**
+   * @param statBoard the StatBoard in which to record compression metrics, null to stop recording
+   */
+  public static void setStatBoard(StatBoard statBoard) {
+    stats = statBoard;
+  }
+
+
+  /**
+   * Compress the encoded body of a message.
+   *
+   * @param data  the encoded message
+   * @param group the group to which the message is sent, may be null
+   * @return the compressed body
+   */
+  public static byte[] compress(byte[] data, String group) {
+    long start = System.nanoTime();
+    Deflater deflater = start(data);
+    byte[] retval = new byte[HEADER_SIZE + data.length / 2 + 64];
+    writeHeader(retval, data.length);
+    int length = HEADER_SIZE;
+    while (!deflater.finished()) {
+      if (length == retval.length) {
+        retval = Arrays.copyOf(retval, retval.length * 2);
+      }
+      length += deflater.deflate(retval, length, retval.length - length);
+    }
+    retval = Arrays.copyOf(retval, length);
+    getStats(group).compressed(data.length, length, System.nanoTime() - start);
+    return retval;
+  }
+
+
+  /**
+   * Compress the encoded body of a message into a pooled buffer.
+   *
+   * @param data   the encoded message
+   * @param group  the group to which the message is sent, may be null
+   * @param buffer the buffer to write into at its current position
+   * @param pool   the pool from which larger buffers are taken
+   * @return the buffer containing the compressed body; not necessarily the one passed in
+   */
+  public static ByteBuffer compress(byte[] data, String group, ByteBuffer buffer, BufferPool pool) {
+    long start = System.nanoTime();
+    Deflater deflater = start(data);
+    byte[] scratch = SCRATCH.get();
+    writeHeader(scratch, data.length);
+    buffer = pool.grow(buffer, HEADER_SIZE);
+    buffer.put(scratch, 0, HEADER_SIZE);
+    int length = HEADER_SIZE;
+    while (!deflater.finished()) {
+      int count = deflater.deflate(scratch);
+      buffer = pool.grow(buffer, count);
+      buffer.put(scratch, 0, count);
+      length += count;
+    }
+    getStats(group).compressed(data.length, length, System.nanoTime() - start);
+    return buffer;
+  }
+
+
+  /**
+   * @param body the body of a message
+   * @return true if the body starts with the compression marker
+   */
+  public static boolean isCompressed(byte[] body) {
+    if (body == null || body.length < HEADER_SIZE) {
+      return false;
+    }
+    for (int x = 0; x < MARKER.length; x++) {
+      if (body[x] != MARKER[x]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Restore the original body of a compressed message.
+   *
+   * @param body the compressed body
+   * @return the original body or null if the body could not be decompressed
+   */
+  public static byte[] decompress(byte[] body) {
+    int length = ((body[4] & 0xFF) << 24) | ((body[5] & 0xFF) << 16) | ((body[6] & 0xFF) << 8) | (body[7] & 0xFF);
+    if (length < 0 || length > MAX_LENGTH) {
+      return null;
+    }
+    Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(body, HEADER_SIZE, body.length - HEADER_SIZE);
+    byte[] retval = new byte[length];
+    try {
+      int count = 0;
+      while (count < length) {
+        int inflated = inflater.inflate(retval, count, length - count);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        count += inflated;
+      }
+    } catch (DataFormatException e) {
+      return null;
+    }
+    return retval;
+  }
+
+
+  /**
+   * Record the time spent decompressing a message for its group.
+   *
+   * @param group the group of the decompressed message, may be null
+   * @param nanos the time spent
+   */
+  static void decompressed(String group, long nanos) {
+    getStats(group).decompressed(nanos);
+  }
+
+
+  /**
+   * @param group the message group, or {@link #INBOX_GROUP} for replies to inboxes
+   * @return the total compressed size of messages sent to the group as a fraction of their original size, 1 if none were compressed
+   */
+  public static double getRatio(String group) {
+    GroupStats group_stats = groups.get(getKey(group));
+    return group_stats != null ? group_stats.getRatio() : 1D;
+  }
+
+
+  /**
+   * @param group the message group, or {@link #INBOX_GROUP} for replies to inboxes
+   * @return the total nanoseconds spent compressing messages sent to the group
+   */
+  public static long getCompressionTime(String group) {
+    GroupStats group_stats = groups.get(getKey(group));
+    return group_stats != null ? group_stats.compressNanos.get() : 0;
+  }
+
+
+  private static Deflater start(byte[] data) {
+    Deflater retval = DEFLATER.get();
+    retval.reset();
+    retval.setInput(data);
+    retval.finish();
+    return retval;
+  }
+
+
+  private static void writeHeader(byte[] target, int length) {
+    System.arraycopy(MARKER, 0, target, 0, MARKER.length);
+    target[4] = (byte) (length >>> 24);
+    target[5] = (byte) (length >>> 16);
+    target[6] = (byte) (length >>> 8);
+    target[7] = (byte) length;
+  }
+
+
+  private static GroupStats getStats(String group) {
+    return groups.computeIfAbsent(getKey(group), GroupStats::new);
+  }
+
+
+  /**
+   * @return the name under which the statistics of the group are kept
+   */
+  private static String getKey(String group) {
+    if (group == null) {
+      return UNKNOWN_GROUP;
+    }
+    return isInbox(group) ? INBOX_GROUP : group;
+  }
+
+
+  /**
+   * Inbox names are random UUIDs in every transport; checking the layout is
+   * enough to tell them from service group names.
+   */
+  private static boolean isInbox(String group) {
+    if (group.length() != 36) {
+      return false;
+    }
+    for (int x = 0; x < 36; x++) {
+      char c = group.charAt(x);
+      if (x == 8 || x == 13 || x == 18 || x == 23) {
+        if (c != '-') {
+          return false;
+        }
+      } else if (Character.digit(c, 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Running totals for one message group.
+   */
+  private static class GroupStats {
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final String ratioName;
+    private final String compressName;
+    private final String decompressName;
+
+
+    GroupStats(String group) {
+      ratioName = "Compression." + group + ".Ratio";
+      compressName = "Compression." + group + ".Nanos";
+      decompressName = "Decompression." + group + ".Nanos";
+    }
+
+
+    void compressed(int original, int compressed, long nanos) {
+      long in = originalBytes.addAndGet(original);
+      long out = compressedBytes.addAndGet(compressed);
+      compressNanos.addAndGet(nanos);
+      StatBoard statBoard = stats;
+      if (statBoard != null) {
+        statBoard.setState(ratioName, (double) out / in);
+        statBoard.increase(compressName, nanos);
+      }
+    }
+
+
+    void decompressed(long nanos) {
+      StatBoard statBoard = stats;
+      if (statBoard != null) {
+        statBoard.increase(decompressName, nanos);
+      }
+    }
+
+
+    double getRatio() {
+      long in = originalBytes.get();
+      return in > 0 ? (double) compressedBytes.get() / in : 1D;
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+package coyote.kestrel.protocol;
+
+/**
+ * The choices a transport makes when encoding the messages it sends.
+ *
+ * <p>Each transport holds its own options, so enabling an encoding on one
+ * transport does not change what another transport in the same process
+ * sends. Receivers recognize every encoding from the body itself and need
+ * no options to decode it.</p>
+ *
+ * <p>A packed payload is encoded separately and carried as a byte array in
+ * the payload field, so receivers only decode the envelope fields when a
+ * message arrives. The payload is decoded when
+ * {@link coyote.kestrel.transport.Message#getPayload()} is first called,
+ * and never if the receiver only routes, correlates or discards the
+ * message. Receivers built before packing was introduced cannot read packed
+ * payloads, so all receivers must be upgraded before it is enabled on any
+ * sender.</p>
+ *
+ * <p>The compact encoding sends envelope field names such as MID and GRP as
+ * single byte numbers. Payload field names listed in the
+ * {@link MessageSchema} registered for the group of the message are sent the
+ * same way, and any other name is sent as text. Messages with an encoding of
+ * {@link KestrelProtocol#COMPACT_ENCODING} are written compactly whatever
+ * the options. A receiver can only decode a payload schema it has
+ * registered itself.</p>
+ *
+ * <p>Compression trades CPU time for bandwidth, so it only pays for larger
+ * messages such as heartbeats and bulk replies. Messages with an encoding
+ * of {@link KestrelProtocol#DEFLATE_ENCODING} are compressed regardless of
+ * their size, and a compressed message which turns out no smaller is sent
+ * uncompressed.</p>
+ *
+ * <p>JSON is never packed, written compactly or compressed.</p>
+ */
+public final class EncodingOptions {
+
+  /**
+   * Inline payloads, binary data frames and compression only on request
+   */
+  public static final EncodingOptions DEFAULT = new EncodingOptions(false, false, 0);
+
+  private final boolean packedPayload;
+  private final boolean compactEncoding;
+  private final int compressionThreshold;
+
+
+  /**
+   * @param packedPayload        true to pack payloads, false to encode them inline
+   * @param compactEncoding      true to write binary data frames compactly
+   * @param compressionThreshold the size in bytes at which to compress, zero or less to only compress on request
+   */
+  public EncodingOptions(boolean packedPayload, boolean compactEncoding, int compressionThreshold) {
+    this.packedPayload = packedPayload;
+    this.compactEncoding = compactEncoding;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+
+  /**
+   * @return true if payloads are packed when encoding binary data frames
+   */
+  public boolean isPackedPayload() {
+    return packedPayload;
+  }
+
+
+  /**
+   * @return true if binary data frames are written in the compact encoding
+   */
+  public boolean isCompactEncoding() {
+    return compactEncoding;
+  }
+
+
+  /**
+   * @return the size in bytes at which binary data frames are compressed, zero or less if only compressed on request
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+}
@@ -0,0 +1,20 @@
+package coyote.kestrel.protocol;
+
+/**
+ * Generates the identifiers of messages.
+ *
+ * <p>The generator in use is set with
+ * {@link KestrelProtocol#setIdGenerator(IdGenerator)} and is called for
+ * every request and response, often from many threads at once. It must be
+ * thread safe and its identifiers must not collide with those generated in
+ * any other process on the bus, as responses are correlated by the
+ * identifier of the request.</p>
+ */
+public interface IdGenerator {
+
+  /**
+   * @return a new identifier, never null
+   */
+  String nextId();
+
+}
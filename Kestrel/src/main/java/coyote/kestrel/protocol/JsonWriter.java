@@ -0,0 +1,198 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes data frames as JSON directly into byte buffers.
+ *
+ * <p>This avoids building the intermediate string the marshaler produces and
+ * then copying it into a byte array. Characters are written in the
+ * ISO-8859-1 character set the codec decodes with; characters outside it are
+ * escaped. Frames with no named fields are written as arrays.</p>
+ *
+ * <p>Only strings, numbers, booleans, nulls and nested frames are written.
+ * Callers check {@link #supports(DataFrame)} first and use the marshaler for
+ * anything else so the output never differs in meaning.</p>
+ */
+final class JsonWriter {
+
+  private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+  private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+  private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+  private static final byte[] MIN_LONG = {'-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8'};
+
+
+  private JsonWriter() {
+  }
+
+
+  /**
+   * Check that every value in the frame can be written by this writer.
+   *
+   * @param frame the frame to check
+   * @return true if the frame can be written, false if the marshaler must be used
+   */
+  static boolean supports(DataFrame frame) {
+    boolean array = isArray(frame);
+    for (int x = 0; x < frame.getFieldCount(); x++) {
+      DataField field = frame.getField(x);
+      if (!array && field.getName() == null) {
+        return false;
+      }
+      Object value = field.getObjectValue();
+      if (value instanceof DataFrame) {
+        if (!supports((DataFrame) value)) {
+          return false;
+        }
+      } else if (value instanceof Double || value instanceof Float) {
+        double number = ((Number) value).doubleValue();
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+          return false;
+        }
+      } else if (value != null && !(value instanceof String) && !(value instanceof Number) && !(value instanceof Boolean)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Write the frame into the buffer, growing it from the pool as needed.
+   *
+   * @param frame  the frame to write
+   * @param buffer the buffer to write into at its current position
+   * @param pool   the pool from which larger buffers are taken
+   * @return the buffer containing the JSON; not necessarily the one passed in
+   */
+  static ByteBuffer write(DataFrame frame, ByteBuffer buffer, BufferPool pool) {
+    boolean array = isArray(frame);
+    buffer = put(buffer, pool, array ? '[' : '{');
+    for (int x = 0; x < frame.getFieldCount(); x++) {
+      DataField field = frame.getField(x);
+      if (x > 0) {
+        buffer = put(buffer, pool, ',');
+      }
+      if (!array) {
+        buffer = writeString(field.getName(), buffer, pool);
+        buffer = put(buffer, pool, ':');
+      }
+      buffer = writeValue(field.getObjectValue(), buffer, pool);
+    }
+    return put(buffer, pool, array ? ']' : '}');
+  }
+
+
+  private static ByteBuffer writeValue(Object value, ByteBuffer buffer, BufferPool pool) {
+    if (value == null) {
+      buffer = put(buffer, pool, NULL);
+    } else if (value instanceof String) {
+      buffer = writeString((String) value, buffer, pool);
+    } else if (value instanceof DataFrame) {
+      buffer = write((DataFrame) value, buffer, pool);
+    } else if (value instanceof Boolean) {
+      buffer = put(buffer, pool, (Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      buffer = writeLong(((Number) value).longValue(), buffer, pool);
+    } else {
+      String text = value.toString();
+      buffer = pool.grow(buffer, text.length());
+      for (int x = 0; x < text.length(); x++) {
+        buffer.put((byte) text.charAt(x));
+      }
+    }
+    return buffer;
+  }
+
+
+  private static ByteBuffer writeLong(long value, ByteBuffer buffer, BufferPool pool) {
+    if (value == Long.MIN_VALUE) {
+      return put(buffer, pool, MIN_LONG);
+    }
+    buffer = pool.grow(buffer, 20);
+    if (value < 0) {
+      buffer.put((byte) '-');
+      value = -value;
+    }
+    int digits = 1;
+    for (long remainder = value / 10; remainder > 0; remainder /= 10) {
+      digits++;
+    }
+    int end = buffer.position() + digits;
+    for (int x = end - 1; x >= buffer.position(); x--) {
+      buffer.put(x, (byte) ('0' + value % 10));
+      value /= 10;
+    }
+    buffer.position(end);
+    return buffer;
+  }
+
+
+  private static ByteBuffer writeString(String text, ByteBuffer buffer, BufferPool pool) {
+    // worst case every character is escaped as \\uXXXX
+    buffer = pool.grow(buffer, text.length() * 6 + 2);
+    buffer.put((byte) '"');
+    for (int x = 0; x < text.length(); x++) {
+      char c = text.charAt(x);
+      if (c == '"' || c == '\\') {
+        buffer.put((byte) '\\');
+        buffer.put((byte) c);
+      } else if (c == '\n') {
+        buffer.put((byte) '\\');
+        buffer.put((byte) 'n');
+      } else if (c == '\r') {
+        buffer.put((byte) '\\');
+        buffer.put((byte) 'r');
+      } else if (c == '\t') {
+        buffer.put((byte) '\\');
+        buffer.put((byte) 't');
+      } else if (c < 0x20 || c > 0xFF) {
+        buffer.put((byte) '\\');
+        buffer.put((byte) 'u');
+        buffer.put(HEX[(c >> 12) & 0xF]);
+        buffer.put(HEX[(c >> 8) & 0xF]);
+        buffer.put(HEX[(c >> 4) & 0xF]);
+        buffer.put(HEX[c & 0xF]);
+      } else {
+        buffer.put((byte) c);
+      }
+    }
+    buffer.put((byte) '"');
+    return buffer;
+  }
+
+
+  private static ByteBuffer put(ByteBuffer buffer, BufferPool pool, char c) {
+    buffer = pool.grow(buffer, 1);
+    buffer.put((byte) c);
+    return buffer;
+  }
+
+
+  private static ByteBuffer put(ByteBuffer buffer, BufferPool pool, byte[] bytes) {
+    buffer = pool.grow(buffer, bytes.length);
+    buffer.put(bytes);
+    return buffer;
+  }
+
+
+  /**
+   * Frames with fields and no field names are arrays.
+   */
+  private static boolean isArray(DataFrame frame) {
+    if (frame.getFieldCount() == 0) {
+      return false;
+    }
+    for (int x = 0; x < frame.getFieldCount(); x++) {
+      if (frame.getField(x).getName() != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -3,8 +3,6 @@ package coyote.kestrel.protocol;
 import coyote.dataframe.DataFrameException;
 import coyote.kestrel.transport.Message;
 
-import java.util.UUID;
-
 /**
  * This is a class of static methods to perform protocol related functions.
  */
@@ -43,6 +41,8 @@ public class KestrelProtocol {
   public static final String FRAME_ENCODING = "FRAM";
   public static final String JSON_ENCODING = "JSON";
   public static final String STRING_ENCODING = "STR";
+  public static final String DEFLATE_ENCODING = "DFLT"; // binary frame compressed with deflate
+  public static final String COMPACT_ENCODING = "CMPT"; // field names sent as numbers, see MessageSchema
   public static final String UNKNOWN_ENCODING = "UNKN";
 
 
@@ -50,11 +50,45 @@ public class KestrelProtocol {
 
   public static final long DEFAULT_REQUEST_TIMEOUT = 5; // number of seconds the request is considered valid
 
+  private static volatile IdGenerator idGenerator = new CompactIdGenerator();
+
 
   private KestrelProtocol() {
   }
 
 
+  /**
+   * Generate a new message identifier with the current id generator.
+   *
+   * @return a new message identifier
+   */
+  public static String createId() {
+    return idGenerator.nextId();
+  }
+
+
+  /**
+   * @return the generator of message identifiers
+   */
+  public static IdGenerator getIdGenerator() {
+    return idGenerator;
+  }
+
+
+  /**
+   * Replace the generator of message identifiers.
+   *
+   * <p>The default is a {@link CompactIdGenerator}. A generator returning
+   * {@code UUID.randomUUID().toString()} restores the identifiers of earlier
+   * releases.</p>
+   *
+   * @param generator the generator to use, null restores the default
+   */
+  public static void setIdGenerator(IdGenerator generator) {
+    idGenerator = generator != null ? generator : new CompactIdGenerator();
+  }
+
+
   public static Message createResponse(Message request) {
     if (request != null) {
       Message retval = new Message();
@@ -109,7 +143,7 @@ public class KestrelProtocol {
       retval.put(RESULT_CODE_FIELD, errorCode);
     }
 
-    retval.put(ID_FIELD, UUID.randomUUID().toString());
+    retval.put(ID_FIELD, createId());
     return retval;
   }
 
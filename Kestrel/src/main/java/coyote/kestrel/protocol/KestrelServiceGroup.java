@@ -4,6 +4,8 @@ import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.MessageQueue;
 import coyote.kestrel.transport.Transport;
 
+import java.util.List;
+
 /**
  * Represents a base class for message groups to provide uniformity to message exchanges.
  *
@@ -13,7 +15,10 @@ public abstract class KestrelServiceGroup implements MessageGroup {
 
   protected String groupName;
   protected Transport transport = null;
-  MessageQueue messageQueue = null;
+  protected MessageQueue messageQueue = null;
+  private int prefetch = 0;
+  private int ackBatchSize = 1;
+  private long ackBatchDelay = 0;
 
   @Override
   public Message getNextMessage() {
@@ -72,6 +77,10 @@ public abstract class KestrelServiceGroup implements MessageGroup {
 
       // get a shared queue with the name of this group
       messageQueue = transport.getServiceQueue(getGroupName());
+      if (messageQueue != null) {
+        if (prefetch > 0) messageQueue.setPrefetch(prefetch);
+        if (ackBatchSize > 1) messageQueue.setAckBatch(ackBatchSize, ackBatchDelay);
+      }
 
     } else {
       throw new IllegalStateException("Service group has no transport set.");
@@ -79,6 +88,17 @@ public abstract class KestrelServiceGroup implements MessageGroup {
 
   }
 
+  @Override
+  public void setPrefetch(int count) {
+    prefetch = count;
+  }
+
+  @Override
+  public void setAckBatch(int size, long delay) {
+    ackBatchSize = size;
+    ackBatchDelay = delay;
+  }
+
   protected String getGroupName() {
     return groupName;
   }
@@ -97,5 +117,10 @@ public abstract class KestrelServiceGroup implements MessageGroup {
     messageQueue.nakDelivery(message);
   }
 
+  @Override
+  public void ackDeliveries(List<Message> messages) {
+    messageQueue.ackDeliveries(messages);
+  }
+
 
 }
@@ -1,94 +1,700 @@
 package coyote.kestrel.protocol;
 
 import coyote.commons.StringUtil;
+import coyote.dataframe.DataField;
 import coyote.dataframe.DataFrame;
 import coyote.dataframe.DecodeException;
 import coyote.dataframe.marshal.JSONMarshaler;
 import coyote.dataframe.marshal.json.JsonFrameParser;
+import coyote.kestrel.transport.Message;
+import coyote.loader.log.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class for encoding and decoding messages to and from data frames.
  *
  * <p>The DataFrame is the primary data transfer object in the Kestrel
- * framework. Only data frames are expected on the transport. This will try to
+ * framework. Only data frames are expected on the transport. This will also
  * parse JSON data into data frames and if that fails, will just assume the
- * data is a string.</p>
+ * data is a string. The encoding is detected up front from a hint supplied
+ * by the transport or from the leading bytes of the data, so each message is
+ * only parsed once in the common case.</p>
  *
  * <p>This will also try to serialize a message into JSON if it contains an
  * encoding field with a value of JSON or STR. The resulting strings will be
  * ISO-5589-1 encoded.</p>
+ *
+ * <p>Binary data frames are compressed when their encoded size reaches the
+ * compression threshold of the {@link EncodingOptions} they are encoded
+ * with or when their encoding field has a value of DFLT. Compressed bodies
+ * are recognized and decompressed before any other decoding, so receivers
+ * need no configuration to read them.</p>
+ *
+ * <p>Binary data frames may also be written in a compact encoding which
+ * sends field names as numbers. Further encodings are added as
+ * {@link Codec}s, found with the ServiceLoader when this class is loaded or
+ * registered later.</p>
  */
 public class MessageCodec {
 
+  /**
+   * The content type of messages encoded as binary data frames
+   */
+  public static final String FRAME_CONTENT_TYPE = "application/x-dataframe";
+  /**
+   * The content type of messages encoded as JSON
+   */
+  public static final String JSON_CONTENT_TYPE = "application/json";
+  /**
+   * The content type of messages which are plain strings
+   */
+  public static final String TEXT_CONTENT_TYPE = "text/plain";
+  /**
+   * The content type of messages in the compact encoding
+   */
+  public static final String COMPACT_CONTENT_TYPE = "application/x-dataframe-compact";
+
   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+  private static final BufferPool arrayBuffers = new BufferPool();
+  private static final byte[] CODEC_MARKER = {0x1F, 'K', 'E', 0x01};
+  private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+
+  static {
+    try {
+      for (Codec codec : ServiceLoader.load(Codec.class)) {
+        register(codec);
+      }
+    } catch (ServiceConfigurationError | IllegalArgumentException e) {
+      Log.error("Could not load message codecs: " + e.getMessage());
+    }
+  }
+
 
   /**
    * Decode a series of bytes into a Data Frame.
    *
-   * <p>If the bytes are an encoded data frame, standard decoding is performed.
-   * If an error is encountered parsing the bytes into a data frame, then the
-   * data is turned into a string using ISO-8859-1 character set and placed in
-   * a data frame with a generic field name. If that fails (unlikely) then it
-   * is placed in a data frame as a byte array with a generic field name.</p>
+   * <p>The encoding is detected from the leading bytes of the body; see
+   * {@link #decode(byte[], String)}.</p>
    *
    * @param body the data representing the body of the message.
    * @return a data frame suitable for use as a payload.
    */
   public static DataFrame decode(byte[] body) {
+    return decode(body, null);
+  }
+
+
+  /**
+   * Decode a series of bytes into a Data Frame using the given hint as to
+   * how the bytes were encoded.
+   *
+   * <p>The hint may be a content type (e.g. {@link #JSON_CONTENT_TYPE}) or
+   * an encoding name (e.g. {@link KestrelProtocol#JSON_ENCODING}) as carried
+   * by the transport. Without a usable hint, the encoding is detected from
+   * the leading bytes: a body starting with a JSON object or array is parsed
+   * as JSON, anything else as a binary data frame. This goes straight to the
+   * right parser rather than attempting each in turn. Bodies marked by a
+   * {@link Codec} are decoded by that codec, and a hint naming the encoding
+   * or content type of a registered codec has the codec decode an unmarked
+   * body.</p>
+   *
+   * <p>If the bytes cannot be parsed as detected, the other parser is tried
+   * and if that fails too, the data is turned into a string using the
+   * ISO-8859-1 character set and placed in a data frame with a generic field
+   * name. If that fails (unlikely) then it is placed in a data frame as a
+   * byte array with a generic field name.</p>
+   *
+   * @param body the data representing the body of the message.
+   * @param hint the content type or encoding of the body, may be null
+   * @return a data frame suitable for use as a payload.
+   */
+  public static DataFrame decode(byte[] body, String hint) {
+    if (Compression.isCompressed(body)) {
+      DataFrame retval = decompress(body, hint);
+      if (retval != null) {
+        return retval;
+      }
+    }
+    if (CompactFormat.isCompact(body)) {
+      return decodeCompact(body);
+    }
+    if (isCodecEncoded(body)) {
+      return decodeCodec(body);
+    }
+    String encoding = getEncoding(hint);
+    if (encoding == null && hint != null) {
+      Codec codec = getCodec(hint);
+      if (codec != null) {
+        DataFrame retval = codec.decode(body, 0, body.length);
+        if (retval != null) {
+          retval.set(KestrelProtocol.ENCODING_FIELD, codec.getEncoding());
+          return retval;
+        }
+      }
+    }
+    DataFrame retval;
+    boolean json = looksLikeJson(body);
+    if (KestrelProtocol.STRING_ENCODING.equals(encoding)) {
+      retval = decodeString(body);
+    } else if (KestrelProtocol.JSON_ENCODING.equals(encoding) || (encoding == null && json)) {
+      retval = decodeJson(body);
+      if (retval == null) {
+        retval = decodeFrame(body);
+      }
+    } else {
+      retval = decodeFrame(body);
+      if (retval == null && json) {
+        retval = decodeJson(body);
+      }
+    }
+    if (retval == null) {
+      retval = decodeString(body);
+    }
+    return retval;
+  }
+
+
+  /**
+   * Decode a series of bytes straight into a message.
+   *
+   * <p>This is {@link #decode(byte[], String)} without the intermediate
+   * data frame. Binary data frames are decoded directly into a new message
+   * by the data frame library, which cannot decode into an existing one, so
+   * the target is left untouched. Compact bodies are decoded directly into
+   * the target. Other encodings are decoded as usual and their fields moved
+   * into the target.</p>
+   *
+   * @param body   the data representing the body of the message.
+   * @param hint   the content type or encoding of the body, may be null
+   * @param target an empty message to decode into, null to create a new one
+   * @return the decoded message; the target unless the body is a binary data frame
+   * @see #decodesInPlace(byte[])
+   */
+  public static Message decodeMessage(byte[] body, String hint, Message target) {
+    boolean marked = Compression.isCompressed(body) || CompactFormat.isCompact(body) || isCodecEncoded(body);
+    if (!marked && !looksLikeJson(body) && (hint == null || KestrelProtocol.FRAME_ENCODING.equals(getEncoding(hint)))) {
+      try {
+        Message retval = new Message(body);
+        retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.FRAME_ENCODING);
+        return retval;
+      } catch (Throwable ball) {
+        // not a frame after all, let the full decoding sort it out
+      }
+    }
+    Message retval = target != null ? target : new Message();
+    if (CompactFormat.isCompact(body)) {
+      if (CompactFormat.read(body, retval) != null) {
+        retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.COMPACT_ENCODING);
+        return retval;
+      }
+      retval.clear();
+    }
+    DataFrame frame = decode(body, hint);
+    for (int x = 0; x < frame.getFieldCount(); x++) {
+      DataField field = frame.getField(x);
+      retval.add(field.getName(), field.getObjectValue());
+    }
+    return retval;
+  }
+
+
+  /**
+   * Check whether {@link #decodeMessage(byte[], String, Message)} decodes
+   * the body straight into a target message.
+   *
+   * <p>Consumers recycling messages only take one from their pool when this
+   * is true; other bodies are decoded as cheaply into a new message.</p>
+   *
+   * @param body the body of a delivery
+   * @return true if the body is in the compact encoding
+   */
+  public static boolean decodesInPlace(byte[] body) {
+    return body != null && CompactFormat.isCompact(body);
+  }
+
+
+  /**
+   * Determine the content type of the bytes {@link #encode(DataFrame)} will
+   * produce for the given frame.
+   *
+   * @param frame the frame to be encoded
+   * @return the content type of the encoded frame
+   */
+  public static String getContentType(DataFrame frame) {
+    return getContentType(frame, EncodingOptions.DEFAULT);
+  }
+
+
+  /**
+   * Determine the content type of the bytes
+   * {@link #encode(DataFrame, EncodingOptions)} will produce for the given
+   * frame.
+   *
+   * @param frame   the frame to be encoded
+   * @param options the options of the sending transport
+   * @return the content type of the encoded frame
+   */
+  public static String getContentType(DataFrame frame, EncodingOptions options) {
+    if (isJsonEncoded(frame)) {
+      return JSON_CONTENT_TYPE;
+    }
+    Codec codec = frame != null ? getCodec(frame.getAsString(KestrelProtocol.ENCODING_FIELD)) : null;
+    if (codec != null) {
+      return codec.getContentType();
+    }
+    return isCompactEncoded(frame, options) ? COMPACT_CONTENT_TYPE : FRAME_CONTENT_TYPE;
+  }
+
+
+  /**
+   * Register a codec for the encoding it names.
+   *
+   * <p>Codecs listed in {@code META-INF/services/coyote.kestrel.protocol.Codec}
+   * are registered when this class is loaded. A codec replaces any codec
+   * registered earlier for the same encoding.</p>
+   *
+   * @param codec the codec to register
+   * @throws IllegalArgumentException if the codec names no encoding or one of the built-in encodings
+   */
+  public static void register(Codec codec) {
+    String encoding = codec.getEncoding();
+    if (StringUtil.isBlank(encoding) || encoding.length() > 255 || getEncoding(encoding) != null || KestrelProtocol.DEFLATE_ENCODING.equalsIgnoreCase(encoding) || KestrelProtocol.COMPACT_ENCODING.equalsIgnoreCase(encoding) || KestrelProtocol.UNKNOWN_ENCODING.equalsIgnoreCase(encoding)) {
+      throw new IllegalArgumentException("Codec " + codec.getClass().getName() + " has an invalid encoding '" + encoding + "'");
+    }
+    codecs.put(encoding.toUpperCase(), codec);
+    Log.debug("Registered " + encoding + " codec " + codec.getClass().getName());
+  }
+
+
+  /**
+   * Find the codec for an encoding name or content type.
+   *
+   * @param name the encoding name or content type, may be null
+   * @return the registered codec or null if there is none
+   */
+  public static Codec getCodec(String name) {
+    if (name == null || codecs.isEmpty()) {
+      return null;
+    }
+    Codec retval = codecs.get(name);
+    if (retval == null) {
+      retval = codecs.get(name.toUpperCase());
+    }
+    if (retval == null && name.indexOf('/') > 0) {
+      for (Codec codec : codecs.values()) {
+        String contentType = codec.getContentType();
+        if (contentType != null && name.regionMatches(true, 0, contentType, 0, contentType.length())) {
+          return codec;
+        }
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Map a content type or encoding name to the encoding it represents.
+   *
+   * @param hint the content type or encoding name
+   * @return the Kestrel encoding name or null if the hint is not recognized
+   */
+  private static String getEncoding(String hint) {
+    String retval = null;
+    if (hint != null) {
+      if (hint.regionMatches(true, 0, JSON_CONTENT_TYPE, 0, JSON_CONTENT_TYPE.length()) || KestrelProtocol.JSON_ENCODING.equalsIgnoreCase(hint)) {
+        retval = KestrelProtocol.JSON_ENCODING;
+      } else if (FRAME_CONTENT_TYPE.equalsIgnoreCase(hint) || KestrelProtocol.FRAME_ENCODING.equalsIgnoreCase(hint)) {
+        retval = KestrelProtocol.FRAME_ENCODING;
+      } else if (hint.regionMatches(true, 0, TEXT_CONTENT_TYPE, 0, TEXT_CONTENT_TYPE.length()) || KestrelProtocol.STRING_ENCODING.equalsIgnoreCase(hint)) {
+        retval = KestrelProtocol.STRING_ENCODING;
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Check if the first non-whitespace byte opens a JSON object or array.
+   */
+  private static boolean looksLikeJson(byte[] body) {
+    for (int x = 0; x < body.length; x++) {
+      byte b = body[x];
+      if (b == '{' || b == '[') {
+        return true;
+      } else if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+        return false;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Decompress the body and decode the result.
+   *
+   * <p>Frames received compressed are marked with the deflate encoding so
+   * any reply is compressed as well.</p>
+   *
+   * @return the decoded frame or null if the body could not be decompressed
+   */
+  private static DataFrame decompress(byte[] body, String hint) {
+    long start = System.nanoTime();
+    byte[] data = Compression.decompress(body);
+    if (data == null) {
+      return null;
+    }
+    long elapsed = System.nanoTime() - start;
+    DataFrame retval = decode(data, hint);
+    if (KestrelProtocol.FRAME_ENCODING.equals(retval.getAsString(KestrelProtocol.ENCODING_FIELD))) {
+      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.DEFLATE_ENCODING);
+    }
+    Compression.decompressed(retval.getAsString(KestrelProtocol.GROUP_FIELD), elapsed);
+    return retval;
+  }
+
+
+  /**
+   * Decode a body in the compact encoding.
+   *
+   * <p>A body using a payload schema which has not been registered cannot
+   * be decoded and is returned as unknown binary data.</p>
+   */
+  private static DataFrame decodeCompact(byte[] body) {
+    DataFrame retval = CompactFormat.read(body);
+    if (retval != null) {
+      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.COMPACT_ENCODING);
+    } else {
+      retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, body);
+      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.UNKNOWN_ENCODING);
+    }
+    return retval;
+  }
+
+
+  private static boolean isCodecEncoded(byte[] body) {
+    if (body == null || body.length <= CODEC_MARKER.length) {
+      return false;
+    }
+    for (int x = 0; x < CODEC_MARKER.length; x++) {
+      if (body[x] != CODEC_MARKER[x]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Decode a body marked with the encoding of the codec which wrote it.
+   *
+   * <p>A body written by a codec which is not registered is returned as
+   * unknown binary data.</p>
+   */
+  private static DataFrame decodeCodec(byte[] body) {
     DataFrame retval = null;
+    int length = body[CODEC_MARKER.length] & 0xFF;
+    int offset = CODEC_MARKER.length + 1 + length;
+    if (offset <= body.length) {
+      String encoding = new String(body, CODEC_MARKER.length + 1, length, StandardCharsets.US_ASCII);
+      Codec codec = getCodec(encoding);
+      if (codec != null) {
+        retval = codec.decode(body, offset, body.length - offset);
+        if (retval != null) {
+          retval.set(KestrelProtocol.ENCODING_FIELD, codec.getEncoding());
+        }
+      }
+    }
+    if (retval == null) {
+      retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, body);
+      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.UNKNOWN_ENCODING);
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the decoded frame or null if the body is not a data frame
+   */
+  private static DataFrame decodeFrame(byte[] body) {
+    DataFrame retval;
     try {
       retval = new DataFrame(body);
       retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.FRAME_ENCODING);
     } catch (DecodeException e) {
-      String data = StandardCharsets.ISO_8859_1.decode(ByteBuffer.wrap(body)).toString();
-      try {
-        List<DataFrame> frames = new JsonFrameParser(data).parse();
-        if (frames.size() > 0) {
-          if (frames.size() == 1) {
-            retval = frames.get(0);
-            retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
-          } else {
-            retval = new DataFrame();
-            for (DataFrame frame : frames) {
-              retval.add(frame);
-            }
-          }
+      retval = null;
+    } catch (Throwable ball) {
+      retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, body); // unknown binary
+      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.UNKNOWN_ENCODING);
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the decoded frame or null if the body is not JSON
+   */
+  private static DataFrame decodeJson(byte[] body) {
+    DataFrame retval;
+    String data = new String(body, StandardCharsets.ISO_8859_1);
+    try {
+      List<DataFrame> frames = new JsonFrameParser(data).parse();
+      if (frames.size() > 0) {
+        if (frames.size() == 1) {
+          retval = frames.get(0);
+          retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
         } else {
-          retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, data);
+          retval = new DataFrame();
+          for (DataFrame frame : frames) {
+            retval.add(frame);
+          }
         }
-      } catch (Throwable ball) {
-        retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, data); // unknown string
-        retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.STRING_ENCODING);
+      } else {
+        retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, data);
       }
     } catch (Throwable ball) {
-      retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, body); // unknown binary
-      retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.UNKNOWN_ENCODING);
+      retval = null;
+    }
+    return retval;
+  }
+
+
+  private static DataFrame decodeString(byte[] body) {
+    DataFrame retval = new DataFrame().set(KestrelProtocol.GENERIC_DATA_FIELD, new String(body, StandardCharsets.ISO_8859_1)); // unknown string
+    retval.set(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.STRING_ENCODING);
+    return retval;
+  }
+
+
+  private static boolean isJsonEncoded(DataFrame frame) {
+    if (frame != null && frame.contains(KestrelProtocol.ENCODING_FIELD)) {
+      String encoding = frame.getAsString(KestrelProtocol.ENCODING_FIELD);
+      return KestrelProtocol.JSON_ENCODING.equalsIgnoreCase(encoding) || KestrelProtocol.STRING_ENCODING.equalsIgnoreCase(encoding);
+    }
+    return false;
+  }
+
+
+  private static boolean isCompactEncoded(DataFrame frame, EncodingOptions options) {
+    return options.isCompactEncoding() || (frame != null && KestrelProtocol.COMPACT_ENCODING.equalsIgnoreCase(frame.getAsString(KestrelProtocol.ENCODING_FIELD)));
+  }
+
+
+  /**
+   * Encode the frame in binary with the codec named by its encoding, the
+   * compact encoding or as a binary data frame.
+   *
+   * @param frame    the frame as given, which selects the encoding
+   * @param prepared the frame to encode
+   * @param options  the options of the sending transport
+   */
+  private static byte[] toBinary(DataFrame frame, DataFrame prepared, EncodingOptions options) {
+    Codec codec = getCodec(frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+    if (codec == null && !isCompactEncoded(frame, options)) {
+      return prepared.getBytes();
+    }
+    ByteBuffer buffer = arrayBuffers.acquire();
+    if (codec != null) {
+      buffer = writeCodec(codec, prepared, buffer, arrayBuffers);
+    } else {
+      buffer = CompactFormat.write(prepared, buffer, arrayBuffers);
     }
+    byte[] retval = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(retval);
+    arrayBuffers.release(buffer);
     return retval;
   }
 
+
+  /**
+   * Write the frame with the codec behind a marker naming its encoding.
+   */
+  private static ByteBuffer writeCodec(Codec codec, DataFrame frame, ByteBuffer buffer, BufferPool pool) {
+    String encoding = codec.getEncoding();
+    buffer = pool.grow(buffer, CODEC_MARKER.length + 1 + encoding.length());
+    buffer.put(CODEC_MARKER);
+    buffer.put((byte) encoding.length());
+    for (int x = 0; x < encoding.length(); x++) {
+      buffer.put((byte) encoding.charAt(x));
+    }
+    return codec.encode(frame, buffer, pool);
+  }
+
+
+  private static boolean isCompressible(DataFrame frame, int length, EncodingOptions options) {
+    int threshold = options.getCompressionThreshold();
+    return (threshold > 0 && length >= threshold) || KestrelProtocol.DEFLATE_ENCODING.equalsIgnoreCase(frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+  }
+
+
   /**
    * Encode the given frame into an array of bytes suitable for use as the
    * body of a message.
    *
+   * <p>The frame is encoded with the {@link EncodingOptions#DEFAULT default
+   * options}.</p>
+   *
    * @param frame the DataFrame to encode
    * @return an array of bytes representing the data frame or an empty array
    * if the data frame was null.
    */
   public static byte[] encode(DataFrame frame) {
+    return encode(frame, EncodingOptions.DEFAULT);
+  }
+
+
+  /**
+   * Encode the given frame into an array of bytes suitable for use as the
+   * body of a message sent by a transport with the given options.
+   *
+   * <p>A payload still packed from when the message was received is
+   * re-encoded as packed if the options pack payloads and unpacked
+   * otherwise, so a forwarded message never needs its payload decoded when
+   * packing is on.</p>
+   *
+   * @param frame   the DataFrame to encode
+   * @param options the options of the sending transport
+   * @return an array of bytes representing the data frame or an empty array
+   * if the data frame was null.
+   */
+  public static byte[] encode(DataFrame frame, EncodingOptions options) {
     byte[] retval = EMPTY_BYTE_ARRAY;
     if (frame != null) {
-      if (frame.contains(KestrelProtocol.ENCODING_FIELD) && (KestrelProtocol.JSON_ENCODING.equalsIgnoreCase(frame.getAsString(KestrelProtocol.ENCODING_FIELD)) || KestrelProtocol.STRING_ENCODING.equalsIgnoreCase(frame.getAsString(KestrelProtocol.ENCODING_FIELD)))) {
-        retval = StringUtil.getBytes(JSONMarshaler.marshal(frame));
+      boolean json = isJsonEncoded(frame);
+      DataFrame prepared = prepare(frame, json, options);
+      if (json) {
+        retval = StringUtil.getBytes(JSONMarshaler.marshal(prepared));
       } else {
-        retval = frame.getBytes();
+        retval = toBinary(frame, prepared, options);
+        if (isCompressible(frame, retval.length, options)) {
+          byte[] compressed = Compression.compress(retval, frame.getAsString(KestrelProtocol.GROUP_FIELD));
+          if (compressed.length < retval.length) {
+            retval = compressed;
+          }
+        }
       }
     }
     return retval;
   }
 
+
+  /**
+   * Encode the given frame into a buffer taken from the pool.
+   *
+   * <p>JSON is written straight into the buffer without building an
+   * intermediate string or array. Binary data frames are produced by the
+   * data frame library as an array which is copied into the buffer; only
+   * that array is allocated. The pooled buffer can be written to a channel
+   * or copied to native memory directly.</p>
+   *
+   * <p>The encoded bytes start after the given number of bytes of headroom,
+   * which the caller may fill with its own framing. The returned buffer is
+   * ready to be read from position zero and must be released to the pool
+   * once the transport is finished with it.</p>
+   *
+   * @param frame    the DataFrame to encode
+   * @param pool     the pool from which to take the buffer
+   * @param headroom the number of bytes to reserve before the encoded frame
+   * @return a buffer from the pool containing the headroom and the encoded frame
+   */
+  public static ByteBuffer encode(DataFrame frame, BufferPool pool, int headroom) {
+    return encode(frame, pool, headroom, EncodingOptions.DEFAULT);
+  }
+
+
+  /**
+   * Encode the given frame into a buffer taken from the pool with the
+   * options of the sending transport.
+   *
+   * @param frame    the DataFrame to encode
+   * @param pool     the pool from which to take the buffer
+   * @param headroom the number of bytes to reserve before the encoded frame
+   * @param options  the options of the sending transport
+   * @return a buffer from the pool containing the headroom and the encoded frame
+   * @see #encode(DataFrame, BufferPool, int)
+   */
+  public static ByteBuffer encode(DataFrame frame, BufferPool pool, int headroom, EncodingOptions options) {
+    ByteBuffer retval = pool.grow(pool.acquire(), headroom);
+    retval.position(headroom);
+    if (frame != null) {
+      boolean json = isJsonEncoded(frame);
+      DataFrame prepared = prepare(frame, json, options);
+      if (json && JsonWriter.supports(prepared)) {
+        retval = JsonWriter.write(prepared, retval, pool);
+      } else {
+        byte[] data;
+        if (json) {
+          data = StringUtil.getBytes(JSONMarshaler.marshal(prepared));
+        } else {
+          data = toBinary(frame, prepared, options);
+        }
+        boolean compressed = false;
+        if (!json && isCompressible(frame, data.length, options)) {
+          retval = Compression.compress(data, frame.getAsString(KestrelProtocol.GROUP_FIELD), retval, pool);
+          compressed = retval.position() - headroom < data.length;
+          if (!compressed) {
+            retval.position(headroom);
+          }
+        }
+        if (!compressed) {
+          retval = pool.grow(retval, data.length);
+          retval.put(data);
+        }
+      }
+    }
+    retval.flip();
+    return retval;
+  }
+
+
+  /**
+   * Pack or unpack the payload of the frame as it is to be encoded.
+   *
+   * @return the frame to encode; the given frame if its payload needs no change
+   */
+  private static DataFrame prepare(DataFrame frame, boolean json, EncodingOptions options) {
+    DataFrame retval = frame;
+    boolean packed = !json && options.isPackedPayload();
+    Object payload = frame.getObject(KestrelProtocol.PAYLOAD_FIELD);
+    if (payload instanceof byte[] && !packed) {
+      retval = replacePayload(frame, unpack((byte[]) payload));
+    } else if (payload instanceof DataFrame && packed) {
+      retval = replacePayload(frame, ((DataFrame) payload).getBytes());
+    }
+    return retval;
+  }
+
+
+  /**
+   * Create a shallow copy of the frame with a different payload value.
+   */
+  private static DataFrame replacePayload(DataFrame frame, Object payload) {
+    DataFrame retval = new DataFrame();
+    for (int x = 0; x < frame.getFieldCount(); x++) {
+      DataField field = frame.getField(x);
+      if (KestrelProtocol.PAYLOAD_FIELD.equals(field.getName())) {
+        retval.add(field.getName(), payload);
+      } else {
+        retval.add(field.getName(), field.getObjectValue());
+      }
+    }
+    return retval;
+  }
+
+
+  private static Object unpack(byte[] payload) {
+    try {
+      return new DataFrame(payload);
+    } catch (Exception e) {
+      return payload;
+    }
+  }
+
 }
@@ -3,6 +3,8 @@ package coyote.kestrel.protocol;
 import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.Transport;
 
+import java.util.List;
+
 /**
  * Message groups represent the concept of a grouping of messages exchanged
  * between components using some protocol.
@@ -33,7 +35,38 @@ public interface MessageGroup {
 
   void initialize();
 
+  /**
+   * Set the maximum number of unacknowledged messages the transport will push
+   * to this group. Must be called before {@link #initialize()}.
+   *
+   * @param count the prefetch window, 0 for unlimited
+   */
+  void setPrefetch(int count);
+
+  /**
+   * Coalesce delivery acknowledgements for this group. Must be called before
+   * {@link #initialize()}.
+   *
+   * @param size  the number of acknowledgements to coalesce
+   * @param delay the maximum number of microseconds to hold an acknowledgement
+   */
+  void setAckBatch(int size, long delay);
+
   void ackDelivery(Message message);
 
   void nakDelivery(Message message);
+
+  /**
+   * Acknowledge the delivery of a number of messages at once.
+   *
+   * <p>Transports which coalesce acknowledgements send this as a single
+   * acknowledgement of multiple messages.</p>
+   *
+   * @param messages the messages whose delivery is acknowledged
+   */
+  default void ackDeliveries(List<Message> messages) {
+    for (Message message : messages) {
+      ackDelivery(message);
+    }
+  }
 }
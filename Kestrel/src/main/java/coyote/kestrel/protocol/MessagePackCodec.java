@@ -0,0 +1,370 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Encodes messages as MessagePack.
+ *
+ * <p>Frames with named fields are written as maps keyed by field name and
+ * frames whose fields are all unnamed as arrays, so the output can be read
+ * by any MessagePack library. Integers are written in the smallest form
+ * which holds them and read back as an int if they fit and a long if not.
+ * Dates are written with the MessagePack timestamp extension. Values of any
+ * other type are written as application extension type 1 holding a single
+ * field binary data frame so they survive unchanged between Kestrel
+ * components.</p>
+ */
+public class MessagePackCodec implements Codec {
+
+  /**
+   * The value of the encoding field selecting this codec
+   */
+  public static final String ENCODING = "MSGP";
+  public static final String CONTENT_TYPE = "application/msgpack";
+
+  private static final byte TIMESTAMP_EXT = -1;
+  private static final byte FRAME_EXT = 1;
+
+
+  /**
+   * @see coyote.kestrel.protocol.Codec#getEncoding()
+   */
+  @Override
+  public String getEncoding() {
+    return ENCODING;
+  }
+
+
+  /**
+   * @see coyote.kestrel.protocol.Codec#getContentType()
+   */
+  @Override
+  public String getContentType() {
+    return CONTENT_TYPE;
+  }
+
+
+  /**
+   * @see coyote.kestrel.protocol.Codec#encode(DataFrame, ByteBuffer, BufferPool)
+   */
+  @Override
+  public ByteBuffer encode(DataFrame frame, ByteBuffer buffer, BufferPool pool) {
+    return writeFrame(frame, buffer, pool);
+  }
+
+
+  /**
+   * @see coyote.kestrel.protocol.Codec#decode(byte[], int, int)
+   */
+  @Override
+  public DataFrame decode(byte[] data, int offset, int length) {
+    ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+    try {
+      Object value = readValue(buffer);
+      return value instanceof DataFrame && !buffer.hasRemaining() ? (DataFrame) value : null;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+
+  private static ByteBuffer writeFrame(DataFrame frame, ByteBuffer buffer, BufferPool pool) {
+    int count = frame.getFieldCount();
+    boolean array = count > 0;
+    for (int x = 0; array && x < count; x++) {
+      array = frame.getField(x).getName() == null;
+    }
+    buffer = pool.grow(buffer, 5);
+    if (array) {
+      writeHeader(count, 0x90, 15, 0xdc, buffer);
+    } else {
+      writeHeader(count, 0x80, 15, 0xde, buffer);
+    }
+    for (int x = 0; x < count; x++) {
+      DataField field = frame.getField(x);
+      if (!array) {
+        buffer = writeValue(field.getName(), buffer, pool);
+      }
+      buffer = writeValue(field.getObjectValue(), buffer, pool);
+    }
+    return buffer;
+  }
+
+
+  private static ByteBuffer writeValue(Object value, ByteBuffer buffer, BufferPool pool) {
+    buffer = pool.grow(buffer, 15);
+    if (value == null) {
+      buffer.put((byte) 0xc0);
+    } else if (value instanceof String) {
+      byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+      if (text.length < 32) {
+        buffer.put((byte) (0xa0 | text.length));
+      } else if (text.length < 0x100) {
+        buffer.put((byte) 0xd9);
+        buffer.put((byte) text.length);
+      } else {
+        writeHeader(text.length, 0, 0, 0xda, buffer);
+      }
+      buffer = pool.grow(buffer, text.length);
+      buffer.put(text);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      writeInteger(((Number) value).longValue(), buffer);
+    } else if (value instanceof Double) {
+      buffer.put((byte) 0xcb);
+      buffer.putDouble((Double) value);
+    } else if (value instanceof Float) {
+      buffer.put((byte) 0xca);
+      buffer.putFloat((Float) value);
+    } else if (value instanceof Boolean) {
+      buffer.put((Boolean) value ? (byte) 0xc3 : (byte) 0xc2);
+    } else if (value instanceof byte[]) {
+      byte[] data = (byte[]) value;
+      if (data.length < 0x100) {
+        buffer.put((byte) 0xc4);
+        buffer.put((byte) data.length);
+      } else if (data.length < 0x10000) {
+        buffer.put((byte) 0xc5);
+        buffer.putShort((short) data.length);
+      } else {
+        buffer.put((byte) 0xc6);
+        buffer.putInt(data.length);
+      }
+      buffer = pool.grow(buffer, data.length);
+      buffer.put(data);
+    } else if (value instanceof DataFrame) {
+      buffer = writeFrame((DataFrame) value, buffer, pool);
+    } else if (value instanceof Date) {
+      long millis = ((Date) value).getTime();
+      long seconds = Math.floorDiv(millis, 1000);
+      long nanos = Math.floorMod(millis, 1000) * 1000000L;
+      buffer.put((byte) 0xc7);
+      buffer.put((byte) 12);
+      buffer.put(TIMESTAMP_EXT);
+      buffer.putInt((int) nanos);
+      buffer.putLong(seconds);
+    } else {
+      DataFrame wrapper = new DataFrame();
+      wrapper.add(value);
+      byte[] data = wrapper.getBytes();
+      buffer.put((byte) 0xc9);
+      buffer.putInt(data.length);
+      buffer.put(FRAME_EXT);
+      buffer = pool.grow(buffer, data.length);
+      buffer.put(data);
+    }
+    return buffer;
+  }
+
+
+  /**
+   * Write the header of a string, array or map.
+   *
+   * @param count    the number of elements or bytes
+   * @param fixed    the fixed format marker, zero if there is none
+   * @param fixLimit the largest count the fixed format holds
+   * @param sixteen  the marker of the 16 bit format; the 32 bit format follows it
+   * @param buffer   the buffer with room for the header
+   */
+  private static void writeHeader(int count, int fixed, int fixLimit, int sixteen, ByteBuffer buffer) {
+    if (count <= fixLimit && fixed != 0) {
+      buffer.put((byte) (fixed | count));
+    } else if (count < 0x10000) {
+      buffer.put((byte) sixteen);
+      buffer.putShort((short) count);
+    } else {
+      buffer.put((byte) (sixteen + 1));
+      buffer.putInt(count);
+    }
+  }
+
+
+  private static void writeInteger(long value, ByteBuffer buffer) {
+    if (value >= -32 && value <= 127) {
+      buffer.put((byte) value);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      buffer.put((byte) 0xd0);
+      buffer.put((byte) value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      buffer.put((byte) 0xd1);
+      buffer.putShort((short) value);
+    } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      buffer.put((byte) 0xd2);
+      buffer.putInt((int) value);
+    } else {
+      buffer.put((byte) 0xd3);
+      buffer.putLong(value);
+    }
+  }
+
+
+  private static Object readValue(ByteBuffer buffer) {
+    int type = buffer.get() & 0xFF;
+    if (type <= 0x7f) {
+      return type;
+    } else if (type <= 0x8f) {
+      return readMap(type & 0x0f, buffer);
+    } else if (type <= 0x9f) {
+      return readArray(type & 0x0f, buffer);
+    } else if (type <= 0xbf) {
+      return readText(type & 0x1f, buffer);
+    } else if (type >= 0xe0) {
+      return (int) (byte) type;
+    }
+    switch (type) {
+      case 0xc0:
+        return null;
+      case 0xc2:
+        return Boolean.FALSE;
+      case 0xc3:
+        return Boolean.TRUE;
+      case 0xc4:
+        return readBytes(buffer.get() & 0xFF, buffer);
+      case 0xc5:
+        return readBytes(buffer.getShort() & 0xFFFF, buffer);
+      case 0xc6:
+        return readBytes(buffer.getInt(), buffer);
+      case 0xc7:
+        return readExtension(buffer.get() & 0xFF, buffer);
+      case 0xc8:
+        return readExtension(buffer.getShort() & 0xFFFF, buffer);
+      case 0xc9:
+        return readExtension(buffer.getInt(), buffer);
+      case 0xca:
+        return buffer.getFloat();
+      case 0xcb:
+        return buffer.getDouble();
+      case 0xcc:
+        return buffer.get() & 0xFF;
+      case 0xcd:
+        return buffer.getShort() & 0xFFFF;
+      case 0xce:
+        return toNumber(buffer.getInt() & 0xFFFFFFFFL);
+      case 0xcf:
+        return buffer.getLong(); // values above Long.MAX_VALUE wrap negative
+      case 0xd0:
+        return (int) buffer.get();
+      case 0xd1:
+        return (int) buffer.getShort();
+      case 0xd2:
+        return buffer.getInt();
+      case 0xd3:
+        return toNumber(buffer.getLong());
+      case 0xd4:
+        return readExtension(1, buffer);
+      case 0xd5:
+        return readExtension(2, buffer);
+      case 0xd6:
+        return readExtension(4, buffer);
+      case 0xd7:
+        return readExtension(8, buffer);
+      case 0xd8:
+        return readExtension(16, buffer);
+      case 0xd9:
+        return readText(buffer.get() & 0xFF, buffer);
+      case 0xda:
+        return readText(buffer.getShort() & 0xFFFF, buffer);
+      case 0xdb:
+        return readText(buffer.getInt(), buffer);
+      case 0xdc:
+        return readArray(buffer.getShort() & 0xFFFF, buffer);
+      case 0xdd:
+        return readArray(buffer.getInt(), buffer);
+      case 0xde:
+        return readMap(buffer.getShort() & 0xFFFF, buffer);
+      case 0xdf:
+        return readMap(buffer.getInt(), buffer);
+      default:
+        throw new IllegalArgumentException("Unknown MessagePack type " + type);
+    }
+  }
+
+
+  private static Object toNumber(long value) {
+    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      return (int) value;
+    }
+    return value;
+  }
+
+
+  private static DataFrame readMap(int count, ByteBuffer buffer) {
+    checkCount(count, buffer);
+    DataFrame retval = new DataFrame();
+    for (int x = 0; x < count; x++) {
+      Object key = readValue(buffer);
+      Object value = readValue(buffer);
+      if (key == null) {
+        retval.add(value);
+      } else {
+        retval.add(key.toString(), value);
+      }
+    }
+    return retval;
+  }
+
+
+  private static DataFrame readArray(int count, ByteBuffer buffer) {
+    checkCount(count, buffer);
+    DataFrame retval = new DataFrame();
+    for (int x = 0; x < count; x++) {
+      retval.add(readValue(buffer));
+    }
+    return retval;
+  }
+
+
+  private static String readText(int length, ByteBuffer buffer) {
+    checkCount(length, buffer);
+    String retval = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return retval;
+  }
+
+
+  private static byte[] readBytes(int length, ByteBuffer buffer) {
+    checkCount(length, buffer);
+    byte[] retval = new byte[length];
+    buffer.get(retval);
+    return retval;
+  }
+
+
+  /**
+   * Timestamps become dates and wrapped values are unwrapped; the data of
+   * any other extension is returned as a byte array.
+   */
+  private static Object readExtension(int length, ByteBuffer buffer) {
+    byte type = buffer.get();
+    if (type == TIMESTAMP_EXT && length == 4) {
+      return new Date((buffer.getInt() & 0xFFFFFFFFL) * 1000);
+    } else if (type == TIMESTAMP_EXT && length == 8) {
+      long value = buffer.getLong();
+      return new Date((value & 0x3FFFFFFFFL) * 1000 + (value >>> 34) / 1000000);
+    } else if (type == TIMESTAMP_EXT && length == 12) {
+      int nanos = buffer.getInt();
+      return new Date(buffer.getLong() * 1000 + nanos / 1000000);
+    }
+    byte[] data = readBytes(length, buffer);
+    if (type == FRAME_EXT) {
+      return new DataFrame(data).getField(0).getObjectValue();
+    }
+    return data;
+  }
+
+
+  /**
+   * Every element takes at least one byte, so a count larger than what
+   * remains is malformed and must not be allocated.
+   */
+  private static void checkCount(int count, ByteBuffer buffer) {
+    if (count < 0 || count > buffer.remaining()) {
+      throw new IllegalArgumentException("MessagePack length exceeds the data");
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package coyote.kestrel.protocol;
+
+import coyote.commons.StringUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The field names used in the payloads of one message group.
+ *
+ * <p>When a message is sent with the compact encoding, payload field names
+ * found in the schema registered for the group of the message are written
+ * as their position in the schema instead of as text. Names which are not
+ * in the schema are still written as text, so a schema only needs to list
+ * the names sent most often.</p>
+ *
+ * <p>The identifier of a schema is derived from its group and field names
+ * and travels with each compact message. A receiver which has not
+ * registered a schema with the same fields cannot decode the message, so
+ * senders and receivers must register the same schema. Changing a schema
+ * therefore means registering the new schema in every receiver before any
+ * sender uses it.</p>
+ */
+public final class MessageSchema {
+
+  private static final Map<String, MessageSchema> groups = new ConcurrentHashMap<>();
+  private static final Map<Integer, MessageSchema> identifiers = new ConcurrentHashMap<>();
+
+  private final String group;
+  private final String[] fields;
+  private final Map<String, Integer> positions = new HashMap<>();
+  private final int id;
+
+
+  /**
+   * @param group  the message group whose payloads use these fields
+   * @param fields the field names in the order they are numbered; never reorder or remove names once in use
+   */
+  public MessageSchema(String group, String... fields) {
+    this.group = group;
+    this.fields = fields.clone();
+    CRC32 crc = new CRC32();
+    if (group != null) {
+      crc.update(StringUtil.getBytes(group));
+    }
+    for (int x = 0; x < fields.length; x++) {
+      crc.update(0);
+      crc.update(StringUtil.getBytes(fields[x]));
+      positions.putIfAbsent(fields[x], x);
+    }
+    int crcValue = (int) crc.getValue();
+    id = crcValue != 0 ? crcValue : 1; // zero means no schema on the wire
+  }
+
+
+  /**
+   * Register a schema so messages to its group can be encoded with it and
+   * messages encoded with it can be decoded.
+   *
+   * <p>Registering a schema replaces any schema registered for the same
+   * group when encoding; both remain available for decoding.</p>
+   *
+   * @param schema the schema to register
+   * @return the registered schema
+   */
+  public static MessageSchema register(MessageSchema schema) {
+    if (schema.group != null) {
+      groups.put(schema.group, schema);
+    }
+    identifiers.put(schema.id, schema);
+    return schema;
+  }
+
+
+  /**
+   * @param group the message group
+   * @return the schema registered for the group or null if there is none
+   */
+  public static MessageSchema forGroup(String group) {
+    return group != null ? groups.get(group) : null;
+  }
+
+
+  /**
+   * @param id the identifier of the schema
+   * @return the registered schema with that identifier or null if there is none
+   */
+  public static MessageSchema forId(int id) {
+    return identifiers.get(id);
+  }
+
+
+  /**
+   * @return the group whose payloads use this schema
+   */
+  public String getGroup() {
+    return group;
+  }
+
+
+  /**
+   * @return the identifier of this schema, derived from its group and field names
+   */
+  public int getId() {
+    return id;
+  }
+
+
+  /**
+   * @return the number of field names in this schema
+   */
+  public int size() {
+    return fields.length;
+  }
+
+
+  /**
+   * @param position the position of the field in the schema
+   * @return the name of the field at that position
+   */
+  public String getField(int position) {
+    return fields[position];
+  }
+
+
+  /**
+   * @param name the name of the field
+   * @return the position of the field in the schema or -1 if it is not in the schema
+   */
+  public int indexOf(String name) {
+    Integer retval = name != null ? positions.get(name) : null;
+    return retval != null ? retval : -1;
+  }
+
+}
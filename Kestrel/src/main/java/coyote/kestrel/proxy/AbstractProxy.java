@@ -32,6 +32,7 @@ public abstract class AbstractProxy implements KestrelProxy, MessageListener {
   private static Transport transport = null;
   protected Config configuration = null;
   protected boolean sendExpiry = false;
+  protected int priority = -1;
   private boolean initializedFlag = false;
   private Map<String, ResponseFuture> responseCache = new HashMap<>();
 
@@ -88,6 +89,13 @@ public abstract class AbstractProxy implements KestrelProxy, MessageListener {
         Log.error("Invalid boolean value in " + SEND_EXPIRY_TAG + " configuration option");
       }
     }
+    if (configuration.containsIgnoreCase(PRIORITY_TAG)) {
+      try {
+        priority = configuration.getAsInt(PRIORITY_TAG);
+      } catch (DataFrameException e) {
+        Log.error("Invalid integer value in " + PRIORITY_TAG + " configuration option");
+      }
+    }
   }
 
 
@@ -95,12 +103,16 @@ public abstract class AbstractProxy implements KestrelProxy, MessageListener {
    * Create a message suitable for publishing on the given group.
    *
    * @param messageGroup The name of the message group on which the message is to be sent.
-   * @return a message with the group and identifier set.
+   * @return a message with the group and identifier set, and the priority
+   * if one was configured.
    */
   protected Message createMessage(String messageGroup) {
     Message request = new Message();
     request.setGroup(messageGroup);
     request.generateId();
+    if (priority >= 0) {
+      request.setPriority(priority);
+    }
     return request;
   }
 
@@ -12,6 +12,7 @@ import coyote.loader.cfg.ConfigurationException;
 public interface KestrelProxy {
 
   String SEND_EXPIRY_TAG = "SendExpiry";
+  String PRIORITY_TAG = "Priority";
 
   void configure(Config cfg) throws ConfigurationException;
 
@@ -14,6 +14,8 @@ import coyote.loader.cfg.ConfigurationException;
 import coyote.loader.log.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -22,11 +24,20 @@ import java.io.IOException;
 public abstract class AbstractService extends AbstractLoader implements KestrelService, MessageListener {
 
   private static final int DEFAULT_HEARTBEAT_INTERVAL = 60000;
+  private static final int DEFAULT_ACK_BATCH_DELAY = 1000;
+  private static final int DEFAULT_BATCH_SIZE = 32;
+  private static final int DEFAULT_BATCH_DELAY = 10;
+  private static final int DEFAULT_CACHE_TTL = 60000;
   private static final String PROCESSING_TIMER = "processing";
   private static final String GROUP_NAME = "GroupName";
   private static final String SERVICE_RUNNING = "Running";
   private static final String SERVICE_TERMINATING = "Exiting";
   private static final String SERVICE_STARTED = "Started";
+  private static final String WORKERS_ACTIVE_STATE = "Workers.Active";
+  private static final String WORKERS_QUEUED_STATE = "Workers.Queued";
+  private static final String WORKERS_LIMIT_STATE = "Workers.Limit";
+  private static final String COALESCED_COUNTER = "Coalesced";
+  private static final long WORKER_SHUTDOWN_TIMEOUT = 5000;
 
   /**
    * Sentinel flag for our main run loop.
@@ -56,6 +67,34 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
    * Time of our last heartbeat
    */
   private volatile long lastHeartbeat = 0;
+  /**
+   * The pool processing service group messages, null when they are processed by the service loop
+   */
+  private WorkerPool workerPool = null;
+  private int reportedActive = -1;
+  private int reportedQueued = -1;
+  private int reportedLimit = -1;
+  /**
+   * The most messages passed to processBatch, 0 when this is not a batch service
+   */
+  private int batchSize = 0;
+  private int batchDelay = DEFAULT_BATCH_DELAY;
+  /**
+   * Responses held until the batch being processed on this thread completes
+   */
+  private final ThreadLocal<List<Message>> responseBurst = new ThreadLocal<>();
+  /**
+   * Shares processing among identical requests, see getCoalescingKey
+   */
+  private final RequestCoalescer coalescer = new RequestCoalescer();
+  /**
+   * Responses to read requests, null unless a cache size is configured
+   */
+  private ResponseCache responseCache = null;
+  /**
+   * Responses sent on this thread while processing a request to be cached
+   */
+  private final ThreadLocal<List<RequestCoalescer.Response>> responseRecording = new ThreadLocal<>();
 
 
   private boolean sendingSource = true;
@@ -116,6 +155,161 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
   }
 
 
+  /**
+   * Override this method to have identical requests which arrive while one
+   * of them is being processed share that processing.
+   *
+   * <p>Requests with the same command and the same non-null key are
+   * identical. Only the first is passed to {@link #process(Message)}; the
+   * others wait for it and are each sent a copy of its {@code sendAck()}
+   * and {@code sendNak()} responses, correlated to their own request. Other
+   * messages it sends are not copied. This only helps services configured
+   * with more than one worker, and should only be used for requests which
+   * read data, such as a GET of a popular record.</p>
+   *
+   * @param request the payload of the request
+   * @return the key identifying identical requests of its command, or null to always process the request
+   */
+  protected String getCoalescingKey(DataFrame request) {
+    return null;
+  }
+
+
+  /**
+   * Process a service group message, sharing the processing of identical
+   * requests.
+   *
+   * @param message the message to process
+   */
+  private void processMessage(Message message) {
+    DataFrame request = message.getPayload();
+    String command = ServiceUtil.getCommand(request);
+    String cacheKey = null;
+    long generation = 0;
+    if (responseCache != null && command != null) {
+      String[] fields = getCacheKeyFields(command);
+      if (fields != null) {
+        cacheKey = ResponseCache.key(getGroupName(), command, request, fields);
+        generation = responseCache.getGeneration();
+        List<RequestCoalescer.Response> cached = responseCache.get(cacheKey);
+        if (cached != null) {
+          sendResponses(message, cached);
+          return;
+        }
+      }
+    }
+
+    List<RequestCoalescer.Response> recorded = cacheKey != null ? new ArrayList<>() : null;
+    Runnable processing = () -> {
+      responseRecording.set(recorded);
+      try {
+        process(message);
+      } finally {
+        responseRecording.remove();
+      }
+    };
+    String key = getCoalescingKey(request);
+    if (key != null) {
+      List<RequestCoalescer.Response> responses = coalescer.process(command + ":" + key, processing);
+      if (responses != null) {
+        stats.increase(COALESCED_COUNTER);
+        sendResponses(message, responses);
+        return;
+      }
+    } else {
+      processing.run();
+    }
+
+    if (recorded != null && !recorded.isEmpty() && isCacheable(recorded)) {
+      // an invalidation which arrived while processing may have made the responses stale
+      responseCache.put(cacheKey, recorded, generation);
+    }
+  }
+
+
+  /**
+   * Only acknowledgements are cached; a NAK may report a passing failure.
+   */
+  private static boolean isCacheable(List<RequestCoalescer.Response> responses) {
+    for (RequestCoalescer.Response response : responses) {
+      if (!KestrelProtocol.ACK_TYPE.equals(response.getType())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Send responses produced for another request as responses to this one.
+   */
+  private void sendResponses(Message requestMessage, List<RequestCoalescer.Response> responses) {
+    for (RequestCoalescer.Response response : responses) {
+      sendResponse(response.getType(), requestMessage, response.getPayload(), response.getMessage(), response.getResultCode());
+    }
+  }
+
+
+  /**
+   * Override this method to cache the responses to a command.
+   *
+   * <p>When the service is configured with a {@code "CacheSize"}, the
+   * {@code sendAck()} responses to a command with cache key fields are held
+   * for {@code "CacheTTL"} milliseconds. Later requests with the same values
+   * in those payload fields are answered from the cache without calling
+   * {@link #process(Message)}. Use this only for commands which read data,
+   * and call {@link #invalidateCache(String, DataFrame)} when that data
+   * changes.</p>
+   *
+   * @param command the command of the request
+   * @return the names of the payload fields which identify the response, or null if responses to the command are not cached
+   */
+  protected String[] getCacheKeyFields(String command) {
+    return null;
+  }
+
+
+  /**
+   * Remove cached responses from this instance and, through the coherence
+   * group, from every other instance of the service.
+   *
+   * @param command the command whose responses are removed, null for every command
+   * @param request a request whose responses are removed, null for every response to the command
+   */
+  protected void invalidateCache(String command, DataFrame request) {
+    String prefix = ResponseCache.prefix(getGroupName(), command);
+    if (command != null && request != null) {
+      String[] fields = getCacheKeyFields(command);
+      if (fields != null) {
+        prefix = ResponseCache.key(getGroupName(), command, request, fields);
+      }
+    }
+    if (responseCache != null) {
+      responseCache.invalidate(prefix);
+    }
+    if (coherenceTopic != null) {
+      Message invalidation = new Message();
+      invalidation.setType(KestrelProtocol.EVENT_TYPE);
+      invalidation.setGroup(getCoherenceGroupName());
+      invalidation.setPayload(ResponseCache.createInvalidation(prefix));
+      try {
+        broadcast(invalidation);
+      } catch (IOException e) {
+        Log.error("Could not send cache invalidation: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+
+  private void initializeResponseCache() {
+    int size = getConfigInt(KestrelService.CACHE_SIZE_TAG, 0);
+    if (size > 0) {
+      responseCache = new ResponseCache(size, getConfigInt(KestrelService.CACHE_TTL_TAG, DEFAULT_CACHE_TTL));
+      responseCache.setStatBoard(stats);
+    }
+  }
+
+
   /**
    * Retrieve the name of the group on which the service listens for requests.
    *
@@ -139,6 +333,7 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
     stats.setState(LOADER, SERVICE_STARTED);
     getStats().setVersion(Kestrel.PRODUCT_NAME, Kestrel.VERSION);
     initializeMetrics();
+    initializeResponseCache();
     initializeMessageGroup();
     initializeInbox();
     initializeCoherence();
@@ -146,11 +341,19 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
 
     if (transport.isValid()) {
       stats.setState(LOADER, SERVICE_RUNNING);
+      initializeWorkers();
       while (running) {
         heartbeat();
-        serviceGroupProcessing();
+        if (batchSize > 0) {
+          batchProcessing();
+        } else if (workerPool != null) {
+          workerPoolProcessing();
+        } else {
+          serviceGroupProcessing();
+        }
       }
       stats.setState(LOADER, SERVICE_TERMINATING);
+      shutdownWorkers();
       sendExitEvent();
     } else {
       Log.fatal("Could not connect to transport service");
@@ -214,7 +417,7 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
     if (message != null) {
       try {
         Timer timer = stats.startTimer(PROCESSING_TIMER);
-        process(message);
+        processMessage(message);
         timer.stop();
         serviceGroup.ackDelivery(message);
       } catch (final Exception e) {
@@ -227,11 +430,171 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
     }
   }
 
+  /**
+   * Create the worker pool if the service is configured with more than one
+   * worker.
+   */
+  private void initializeWorkers() {
+    if (batchSize > 0) {
+      return; // batches are processed by the service loop
+    }
+    int workers = getConfigInt(KestrelService.WORKERS_TAG, 1);
+    if (workers > 1) {
+      AdaptiveLimit limit = null;
+      if (getConfigBoolean(KestrelService.ADAPTIVE_LIMIT_TAG, false)) {
+        limit = new AdaptiveLimit(getConfigInt(KestrelService.MIN_WORKERS_TAG, 1), workers);
+      }
+      workerPool = new WorkerPool(getGroupName(), workers, getConfigBoolean(KestrelService.VIRTUAL_THREADS_TAG, false), limit, message -> {
+        Timer timer = stats.startTimer(PROCESSING_TIMER);
+        processMessage(message);
+        timer.stop();
+      });
+      Log.notice("Processing " + getGroupName() + " messages with " + (limit != null ? limit.getMinimum() + " to " : "") + workers + (workerPool.isVirtual() ? " virtual" : "") + " workers");
+    }
+  }
+
+
+  /**
+   * @return the most messages held outside the service group buffer while they are processed
+   */
+  private int getHeldMessages() {
+    if (batchSize > 0) {
+      return batchSize;
+    }
+    int workers = getConfigInt(KestrelService.WORKERS_TAG, 1);
+    if (workers > 1) {
+      // the slots of the worker pool; an adaptive limit never exceeds the number of workers
+      return getConfigBoolean(KestrelService.ADAPTIVE_LIMIT_TAG, false) ? workers : workers * 2;
+    }
+    return 1;
+  }
+
+
+  /**
+   * Acknowledge the messages the workers have finished, then hand the next
+   * message to the workers if one is free or soon will be.
+   *
+   * <p>Only this thread takes messages from the service group and
+   * acknowledges them; the workers only process them.</p>
+   */
+  private void workerPoolProcessing() {
+    workerPool.complete(serviceGroup);
+    if (workerPool.reserve(10)) {
+      Message message = getNextUnexpiredMessage();
+      if (message != null) {
+        workerPool.submit(message);
+      } else {
+        workerPool.cancel();
+      }
+    }
+    reportWorkers();
+  }
+
+
+  private void reportWorkers() {
+    int active = workerPool.getActive();
+    if (active != reportedActive) {
+      stats.setState(WORKERS_ACTIVE_STATE, active);
+      reportedActive = active;
+    }
+    int queued = workerPool.getQueued();
+    if (queued != reportedQueued) {
+      stats.setState(WORKERS_QUEUED_STATE, queued);
+      reportedQueued = queued;
+    }
+    if (workerPool.getLimit() != null) {
+      int limit = workerPool.getLimit().getLimit();
+      if (limit != reportedLimit) {
+        stats.setState(WORKERS_LIMIT_STATE, limit);
+        reportedLimit = limit;
+      }
+    }
+  }
+
+
+  /**
+   * Let the workers finish the messages they hold and acknowledge them.
+   * Messages still unacknowledged when the transport closes are redelivered
+   * by the broker.
+   */
+  private void shutdownWorkers() {
+    if (workerPool != null) {
+      if (!workerPool.shutdown(WORKER_SHUTDOWN_TIMEOUT)) {
+        Log.warn("Workers did not finish processing within " + WORKER_SHUTDOWN_TIMEOUT + "ms");
+      }
+      workerPool.complete(serviceGroup);
+    }
+  }
+
+
+  /**
+   * Collect a batch of messages from the service group and pass it to the
+   * batch service.
+   *
+   * <p>The batch is closed when it holds the batch size or when the batch
+   * delay has passed since its first message arrived. Once the batch is
+   * processed the responses are published together and then the deliveries
+   * are acknowledged together. If an exception is thrown, every delivery in
+   * the batch is re-queued and its responses are discarded.</p>
+   */
+  private void batchProcessing() {
+    Message message = getNextUnexpiredMessage();
+    if (message != null) {
+      List<Message> batch = new ArrayList<>(batchSize);
+      batch.add(message);
+      long deadline = System.currentTimeMillis() + batchDelay;
+      long remaining = batchDelay;
+      while (batch.size() < batchSize && remaining > 0) {
+        message = getNextUnexpiredMessage((int) remaining);
+        if (message != null) {
+          batch.add(message);
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+
+      List<Message> responses = new ArrayList<>(batch.size());
+      responseBurst.set(responses);
+      try {
+        Timer timer = stats.startTimer(PROCESSING_TIMER);
+        ((BatchService) this).processBatch(batch);
+        timer.stop();
+      } catch (final Exception e) {
+        for (Message failed : batch) {
+          serviceGroup.nakDelivery(failed);
+        }
+        Log.error(ExceptionUtil.toString(e));
+        if (Log.isLogging(Log.DEBUG_EVENTS)) {
+          Log.debug(ExceptionUtil.stackTrace(e));
+        }
+        return;
+      } finally {
+        responseBurst.remove();
+      }
+
+      // as with single messages, the requests leave the queue only after they are answered
+      for (Message response : responses) {
+        try {
+          send(response);
+        } catch (IOException e) {
+          Log.error("Could not send '" + response.getType() + "' response: " + e.getMessage());
+        }
+      }
+      serviceGroup.ackDeliveries(batch);
+    }
+  }
+
+
   private Message getNextUnexpiredMessage() {
-    Message retval = serviceGroup.getNextMessage(10);
+    return getNextUnexpiredMessage(10);
+  }
+
+
+  private Message getNextUnexpiredMessage(int timeout) {
+    Message retval = serviceGroup.getNextMessage(timeout);
     while (retval != null && retval.isExpired()) {
       if (Log.isLogging(Log.NOTICE_EVENTS)) Log.notice("Ignoring message (" + retval.getId() + ") - expired");
-      retval = serviceGroup.getNextMessage(10);
+      serviceGroup.ackDelivery(retval); // remove it from the queue
+      retval = serviceGroup.getNextMessage(timeout);
     }
     return retval;
   }
@@ -266,7 +629,24 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
   protected void initializeMessageGroup() {
     try {
       // create a service message group using the standard Kestrel exchange protocol
-      serviceGroup = new ServiceGroup(getGroupName());
+      int ackBatchSize = getConfigInt(KestrelService.ACK_BATCH_SIZE_TAG, 1);
+      if (this instanceof BatchService) {
+        batchSize = Math.max(1, getConfigInt(KestrelService.BATCH_SIZE_TAG, DEFAULT_BATCH_SIZE));
+        batchDelay = Math.max(0, getConfigInt(KestrelService.BATCH_DELAY_TAG, DEFAULT_BATCH_DELAY));
+        // coalescing is what lets a batch be acknowledged with one multiple-ack
+        ackBatchSize = Math.max(ackBatchSize, batchSize);
+      }
+      int prefetch = 0;
+      if (getConfigBoolean(KestrelService.PUSH_DELIVERY_TAG, false)) {
+        PushServiceGroup group = new PushServiceGroup(getGroupName(), getConfigInt(KestrelService.BUFFER_SIZE_TAG, PushServiceGroup.DEFAULT_BUFFER_SIZE));
+        // without a limit the broker pushes the whole queue to this instance, leaving none for the others
+        prefetch = group.getBufferSize() + getHeldMessages();
+        serviceGroup = group;
+      } else {
+        serviceGroup = new ServiceGroup(getGroupName());
+      }
+      serviceGroup.setPrefetch(getConfigInt(KestrelService.PREFETCH_TAG, prefetch));
+      serviceGroup.setAckBatch(ackBatchSize, getConfigInt(KestrelService.ACK_BATCH_DELAY_TAG, DEFAULT_ACK_BATCH_DELAY));
       serviceGroup.setTransport(getTransport());
       serviceGroup.initialize();
     } catch (Exception e) {
@@ -276,6 +656,47 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
   }
 
 
+  /**
+   * Retrieve an integer value from the service configuration.
+   *
+   * @param tag          the name of the configuration element (case insensitive)
+   * @param defaultValue the value to return if the element is missing or invalid
+   * @return the configured value or the default
+   */
+  protected int getConfigInt(String tag, int defaultValue) {
+    int retval = defaultValue;
+    if (configuration != null && configuration.containsIgnoreCase(tag)) {
+      try {
+        retval = Integer.parseInt(configuration.getString(tag, true).trim());
+      } catch (NumberFormatException | NullPointerException e) {
+        Log.error("Invalid integer value in " + tag + " configuration option");
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Retrieve a boolean value from the service configuration.
+   *
+   * @param tag          the name of the configuration element (case insensitive)
+   * @param defaultValue the value to return if the element is missing or invalid
+   * @return the configured value or the default
+   */
+  protected boolean getConfigBoolean(String tag, boolean defaultValue) {
+    boolean retval = defaultValue;
+    if (configuration != null && configuration.containsIgnoreCase(tag)) {
+      String value = configuration.getString(tag, true);
+      if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+        retval = Boolean.parseBoolean(value);
+      } else {
+        Log.error("Invalid boolean value in " + tag + " configuration option");
+      }
+    }
+    return retval;
+  }
+
+
   private void initializeInbox() {
     try {
       inbox = getTransport().createInbox();
@@ -315,7 +736,7 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
     try {
       String transportUri = cfg.getString(KestrelService.URI_TAG, true);
       if (StringUtil.isNotEmpty(transportUri)) {
-        retval = new TransportBuilder().setURI(transportUri).build();
+        retval = new TransportBuilder().setURI(transportUri).setStatBoard(stats).build();
         retval.open();
       } else {
         Log.fatal("No broker URI found in transport configuration, looking for '" + KestrelService.URI_TAG + "'");
@@ -340,7 +761,14 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
       if (inbox.getName().equals(message.getGroup())) {
         processInboxMessage(message);
       } else if (StringUtil.isNotBlank(getCoherenceGroupName()) && getCoherenceGroupName().equals(message.getGroup())) {
-        processCoherenceMessage(message);
+        String invalidation = ResponseCache.getInvalidation(message.getPayload());
+        if (invalidation != null) {
+          if (responseCache != null) {
+            responseCache.invalidate(invalidation);
+          }
+        } else {
+          processCoherenceMessage(message);
+        }
       } else {
         processUncategorizedMessage(message);
       }
@@ -479,6 +907,11 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
    * @param resultCode      The optional result code for the response
    */
   private void sendResponse(String type, Message requestMessage, DataFrame responsePayload, String message, int resultCode) {
+    coalescer.record(type, responsePayload, message, resultCode);
+    List<RequestCoalescer.Response> recorded = responseRecording.get();
+    if (recorded != null) {
+      recorded.add(new RequestCoalescer.Response(type, responsePayload, message, resultCode));
+    }
     Message response = KestrelProtocol.createResponse(requestMessage);
     response.setType(type);
     if (responsePayload != null) response.setPayload(responsePayload);
@@ -487,6 +920,11 @@ public abstract class AbstractService extends AbstractLoader implements KestrelS
     if (isSendingSource()) {
       response.setSource(getSource());
     }
+    List<Message> burst = responseBurst.get();
+    if (burst != null) {
+      burst.add(response); // published when the batch completes
+      return;
+    }
     try {
       send(response);
     } catch (IOException e) {
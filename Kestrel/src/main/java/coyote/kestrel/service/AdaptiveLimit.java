@@ -0,0 +1,118 @@
+package coyote.kestrel.service;
+
+/**
+ * A limit on the number of messages in process which adapts to the time
+ * taken to process them.
+ *
+ * <p>This follows additive increase, multiplicative decrease. The limit
+ * starts at its minimum. Two moving averages of the processing time are
+ * kept: a short one over the last few messages and a long one over the
+ * last several hundred, which is the baseline. While the short average
+ * stays within the tolerance of the baseline, the limit grows by one for
+ * every limit's worth of messages completed, as long as the limit is
+ * actually in use. Once the short average exceeds the tolerance over the
+ * baseline, or processing fails, the limit is cut by a tenth. After a cut,
+ * the limit holds for a limit's worth of messages, so one overloaded burst
+ * is only counted once.</p>
+ *
+ * <p>Both averages are taken over the same mix of requests, so a service
+ * whose processing times are widely spread even when idle, such as one
+ * answering some requests from a cache and others from a database, is not
+ * mistaken for an overloaded one. Processing times rise when the service
+ * or a dependency it calls becomes saturated; the short average follows
+ * much sooner than the baseline, so the limit settles near the concurrency
+ * the dependency can sustain. The baseline catches up with a dependency
+ * which becomes permanently slower, and falls quickly once processing is
+ * fast again, in the manner of the gradient limit of Netflix's
+ * concurrency-limits library.</p>
+ */
+public class AdaptiveLimit {
+
+  public static final double DEFAULT_TOLERANCE = 2.0;
+
+  private static final double DECREASE = 0.9;
+  private static final double SMOOTHING = 0.1;
+  private static final double BASELINE_SMOOTHING = 1.0 / 500;
+  private static final double BASELINE_RECOVERY = 0.95;
+
+  private final int minimum;
+  private final int maximum;
+  private final double tolerance;
+
+  private double limit;
+  private double smoothed = 0;
+  private double baseline = 0;
+  private int cooldown = 0;
+
+
+  /**
+   * @param minimum the lowest limit
+   * @param maximum the highest limit
+   */
+  public AdaptiveLimit(int minimum, int maximum) {
+    this(minimum, maximum, DEFAULT_TOLERANCE);
+  }
+
+
+  /**
+   * @param minimum   the lowest limit
+   * @param maximum   the highest limit
+   * @param tolerance how many times the baseline processing time is accepted before the limit is cut
+   */
+  public AdaptiveLimit(int minimum, int maximum, double tolerance) {
+    this.minimum = Math.max(1, minimum);
+    this.maximum = Math.max(this.minimum, maximum);
+    this.tolerance = tolerance > 1 ? tolerance : DEFAULT_TOLERANCE;
+    limit = this.minimum;
+  }
+
+
+  /**
+   * Record the processing of a message.
+   *
+   * @param nanos    the time taken to process the message
+   * @param inFlight the number of messages in process when it completed, including this one
+   * @param failed   true if processing threw an exception
+   */
+  public synchronized void record(long nanos, int inFlight, boolean failed) {
+    nanos = Math.max(1, nanos);
+    if (smoothed == 0) {
+      smoothed = nanos;
+      baseline = nanos;
+    } else {
+      smoothed += (nanos - smoothed) * SMOOTHING;
+      baseline += (nanos - baseline) * BASELINE_SMOOTHING;
+      if (baseline > smoothed * tolerance) {
+        baseline *= BASELINE_RECOVERY; // processing is fast again
+      }
+    }
+
+    if (cooldown > 0) {
+      cooldown--;
+    } else if (failed || smoothed > baseline * tolerance) {
+      limit = Math.max(minimum, limit * DECREASE);
+      cooldown = (int) limit;
+    } else if (inFlight >= (int) limit) {
+      limit = Math.min(maximum, limit + 1 / limit);
+    }
+  }
+
+
+  /**
+   * @return the number of messages which may be in process at once
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+
+  public int getMinimum() {
+    return minimum;
+  }
+
+
+  public int getMaximum() {
+    return maximum;
+  }
+
+}
@@ -0,0 +1,34 @@
+package coyote.kestrel.service;
+
+import coyote.kestrel.transport.Message;
+
+import java.util.List;
+
+/**
+ * A service which processes service group messages in batches.
+ *
+ * <p>Services which pay a fixed cost per call to a database or cache can
+ * implement this to share that cost among several requests. An
+ * {@link AbstractService} implementing this interface collects up to
+ * {@code "BatchSize"} messages, waiting no more than {@code "BatchDelay"}
+ * milliseconds after the first, and passes them to
+ * {@link #processBatch(List)} instead of calling
+ * {@link #process(Message)} for each.</p>
+ *
+ * <p>The batch succeeds or fails as a whole. When processBatch returns, the
+ * responses sent while processing the batch are published in one burst and
+ * the deliveries are then acknowledged together, so a batch is never
+ * removed from the queue before it is answered. If it throws, every
+ * delivery is negatively acknowledged for redelivery and the responses are
+ * discarded.</p>
+ */
+public interface BatchService extends KestrelService {
+
+  /**
+   * Process a batch of messages from the service group.
+   *
+   * @param messages the unexpired messages in the order they were received; never empty
+   */
+  void processBatch(List<Message> messages);
+
+}
@@ -19,6 +19,71 @@ public interface KestrelService {
    */
   String URI_TAG = "URI";
 
+  /**
+   * Name of the configuration element which enables push delivery of service group messages
+   */
+  String PUSH_DELIVERY_TAG = "PushDelivery";
+
+  /**
+   * Name of the configuration element setting the size of the local buffer used for push delivery
+   */
+  String BUFFER_SIZE_TAG = "BufferSize";
+
+  /**
+   * Name of the configuration element limiting unacknowledged messages pushed to the service
+   */
+  String PREFETCH_TAG = "Prefetch";
+
+  /**
+   * Name of the configuration element for the number of acknowledgements to coalesce
+   */
+  String ACK_BATCH_SIZE_TAG = "AckBatchSize";
+
+  /**
+   * Name of the configuration element for the microseconds an acknowledgement may be held
+   */
+  String ACK_BATCH_DELAY_TAG = "AckBatchDelay";
+
+  /**
+   * Name of the configuration element for the number of service group messages processed at once
+   */
+  String WORKERS_TAG = "Workers";
+
+  /**
+   * Name of the configuration element which runs workers on virtual threads
+   */
+  String VIRTUAL_THREADS_TAG = "VirtualThreads";
+
+  /**
+   * Name of the configuration element which adapts the number of messages in process to their processing time
+   */
+  String ADAPTIVE_LIMIT_TAG = "AdaptiveLimit";
+
+  /**
+   * Name of the configuration element for the fewest messages in process under an adaptive limit
+   */
+  String MIN_WORKERS_TAG = "MinWorkers";
+
+  /**
+   * Name of the configuration element for the most messages passed to a {@link BatchService} at once
+   */
+  String BATCH_SIZE_TAG = "BatchSize";
+
+  /**
+   * Name of the configuration element for the milliseconds a {@link BatchService} waits to fill a batch
+   */
+  String BATCH_DELAY_TAG = "BatchDelay";
+
+  /**
+   * Name of the configuration element for the number of responses held in the response cache
+   */
+  String CACHE_SIZE_TAG = "CacheSize";
+
+  /**
+   * Name of the configuration element for the milliseconds a cached response may be used
+   */
+  String CACHE_TTL_TAG = "CacheTTL";
+
 
   /**
    * Called after the base class has been configured with the expectation the
@@ -32,7 +97,9 @@ public interface KestrelService {
   /**
    * Process received messages.
    *
-   * <p>This is where the service is implemented.</p>
+   * <p>This is where the service is implemented. When the service is
+   * configured with more than one worker, this is called from several
+   * threads at once.</p>
    *
    * @param message the data received from the transport.
    */
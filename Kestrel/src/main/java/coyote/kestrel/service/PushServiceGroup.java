@@ -0,0 +1,70 @@
+package coyote.kestrel.service;
+
+import coyote.kestrel.protocol.KestrelServiceGroup;
+import coyote.kestrel.protocol.MessageGroup;
+import coyote.kestrel.transport.Message;
+
+/**
+ * A service message group which has messages pushed to it by the transport.
+ *
+ * <p>The standard {@link ServiceGroup} polls the transport for each message
+ * and sleeps between empty polls. This group instead has the transport
+ * deliver messages into a bounded local buffer and the caller blocks on that
+ * buffer until a message arrives or the timeout expires. This removes a
+ * broker round trip per message and the idle latency of the polling loop.</p>
+ */
+public class PushServiceGroup extends KestrelServiceGroup implements MessageGroup {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64;
+
+  private final int bufferSize;
+
+
+  public PushServiceGroup(String groupName) {
+    this(groupName, DEFAULT_BUFFER_SIZE);
+  }
+
+
+  /**
+   * @param groupName  the name of the group to join
+   * @param bufferSize the number of messages to hold locally
+   */
+  public PushServiceGroup(String groupName, int bufferSize) {
+    this.groupName = groupName;
+    this.bufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+  }
+
+
+  @Override
+  public void initialize() {
+    super.initialize();
+    if (messageQueue != null) {
+      messageQueue.consume(bufferSize);
+    }
+  }
+
+
+  /**
+   * Wait for the next message to be pushed to this group.
+   *
+   * @param timeout the number of milliseconds to wait, negative values wait forever
+   * @return the next message or null if none arrived in the given time
+   */
+  @Override
+  public Message getNextMessage(int timeout) {
+    Message retval = null;
+    if (messageQueue != null) {
+      retval = messageQueue.getNextMessage(timeout < 0 ? Long.MAX_VALUE : timeout);
+      if (retval != null) {
+        retval.setGroup(groupName);
+      }
+    }
+    return retval;
+  }
+
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+}
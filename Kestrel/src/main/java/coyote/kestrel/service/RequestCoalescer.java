@@ -0,0 +1,155 @@
+package coyote.kestrel.service;
+
+import coyote.dataframe.DataFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Shares one execution among identical requests processed at the same
+ * time.
+ *
+ * <p>The first request with a given key is processed normally and the
+ * responses it sends are recorded. Requests with the same key which arrive
+ * while it is being processed wait for it to finish and are given the
+ * recorded responses to send as their own. A request arriving after
+ * processing finished is processed again, so nothing is cached beyond the
+ * request in flight.</p>
+ *
+ * <p>If processing the first request fails, the waiting requests fail too
+ * and are redelivered, when each will be processed on its own merits.</p>
+ */
+public class RequestCoalescer {
+
+  private final ConcurrentHashMap<String, Execution> executions = new ConcurrentHashMap<>();
+  private final ThreadLocal<Execution> current = new ThreadLocal<>();
+
+
+  /**
+   * Process a request unless an identical request is in process.
+   *
+   * @param key        the key identifying identical requests
+   * @param processing processes the request, sending its responses
+   * @return null if the request was processed by this call, otherwise the responses of the identical request
+   * @throws IllegalStateException if the identical request failed or the wait was interrupted
+   */
+  public List<Response> process(String key, Runnable processing) {
+    Execution execution = new Execution();
+    Execution leader = executions.putIfAbsent(key, execution);
+    if (leader != null) {
+      return leader.await();
+    }
+
+    current.set(execution);
+    boolean ok = false;
+    try {
+      processing.run();
+      ok = true;
+    } finally {
+      current.remove();
+      executions.remove(key, execution);
+      execution.finish(ok);
+    }
+    return null;
+  }
+
+
+  /**
+   * Record a response sent while processing a request on this thread so it
+   * can be sent to identical requests.
+   *
+   * <p>This does nothing if this thread is not processing a request through
+   * this coalescer.</p>
+   *
+   * @param type       the type of the response
+   * @param payload    the payload of the response, may be null
+   * @param message    the text of the response, may be null
+   * @param resultCode the result code of the response
+   */
+  public void record(String type, DataFrame payload, String message, int resultCode) {
+    Execution execution = current.get();
+    if (execution != null) {
+      execution.responses.add(new Response(type, payload, message, resultCode));
+    }
+  }
+
+
+  /**
+   * @return the number of distinct requests in process
+   */
+  public int size() {
+    return executions.size();
+  }
+
+
+  /**
+   * A response sent while processing a request.
+   */
+  public static class Response {
+    private final String type;
+    private final DataFrame payload;
+    private final String message;
+    private final int resultCode;
+
+
+    Response(String type, DataFrame payload, String message, int resultCode) {
+      this.type = type;
+      this.payload = payload;
+      this.message = message;
+      this.resultCode = resultCode;
+    }
+
+
+    public String getType() {
+      return type;
+    }
+
+
+    public DataFrame getPayload() {
+      return payload;
+    }
+
+
+    public String getMessage() {
+      return message;
+    }
+
+
+    public int getResultCode() {
+      return resultCode;
+    }
+  }
+
+
+  /**
+   * The processing of one request which others may wait on.
+   */
+  private static class Execution {
+    private final List<Response> responses = new ArrayList<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean succeeded = false;
+
+
+    void finish(boolean ok) {
+      succeeded = ok;
+      done.countDown();
+    }
+
+
+    List<Response> await() {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted waiting for an identical request");
+      }
+      if (!succeeded) {
+        throw new IllegalStateException("Identical request failed");
+      }
+      return responses;
+    }
+  }
+
+}
@@ -0,0 +1,308 @@
+package coyote.kestrel.service;
+
+import coyote.dataframe.DataFrame;
+import coyote.i13n.StatBoard;
+import coyote.kestrel.protocol.KestrelProtocol;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the responses to read requests so identical requests are answered
+ * without processing them again.
+ *
+ * <p>Responses are keyed by the group, the command and the values of
+ * selected payload fields of the request. The payloads of the responses are
+ * held encoded, so the cache holds no references to frames a service may
+ * change afterwards and every hit gets its own copy.</p>
+ *
+ * <p>The cache holds a fixed number of entries and evicts the least
+ * recently used entry to make room for another. Entries expire after a
+ * fixed time to live whether or not they are used.</p>
+ *
+ * <p>Keys are made of components which each end with a separator, so every
+ * key starts with the prefix of its group and command and entries are
+ * invalidated by prefix. Commands are not case sensitive.</p>
+ *
+ * <p>Every invalidation starts a new generation. Responses produced while
+ * an invalidation arrived may already be stale, so they are only cached if
+ * the generation taken before processing the request is still current.</p>
+ */
+public class ResponseCache {
+
+  /**
+   * The command of coherence messages which invalidate cached responses
+   */
+  public static final String INVALIDATE_COMMAND = "CACHE.INVALIDATE";
+  /**
+   * The payload field of an invalidation holding the prefix of the keys to invalidate
+   */
+  public static final String PREFIX_FIELD = "Prefix";
+
+  private static final char SEPARATOR = '\u001f';
+  private static final String HIT_COUNTER = "ResponseCache.Hits";
+  private static final String MISS_COUNTER = "ResponseCache.Misses";
+  private static final String EVICTION_COUNTER = "ResponseCache.Evictions";
+
+  private final int size;
+  private final long timeToLive;
+  private final LinkedHashMap<String, CachedResponses> entries;
+  private volatile StatBoard statBoard = null;
+  private long evictions = 0;
+  private long generation = 0;
+
+
+  /**
+   * @param size       the number of entries to hold
+   * @param timeToLive the number of milliseconds an entry may be used
+   */
+  public ResponseCache(int size, long timeToLive) {
+    this.size = Math.max(1, size);
+    this.timeToLive = timeToLive;
+    entries = new LinkedHashMap<String, CachedResponses>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResponses> eldest) {
+        if (size() > ResponseCache.this.size) {
+          evicted();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+
+  /**
+   * Build the key of a request.
+   *
+   * @param group   the group of the service
+   * @param command the command of the request
+   * @param request the payload of the request
+   * @param fields  the payload fields which identify the response
+   * @return the key of the responses to the request
+   */
+  public static String key(String group, String command, DataFrame request, String... fields) {
+    StringBuilder retval = new StringBuilder(prefix(group, command));
+    for (String field : fields) {
+      String value = request != null ? request.getAsString(field) : null;
+      if (value != null) {
+        retval.append(value);
+      }
+      retval.append(SEPARATOR);
+    }
+    return retval.toString();
+  }
+
+
+  /**
+   * Build the prefix of the keys of a group or of one command in a group.
+   *
+   * @param group   the group of the service
+   * @param command the command, null for every command of the group
+   * @return the prefix of the keys
+   */
+  public static String prefix(String group, String command) {
+    StringBuilder retval = new StringBuilder();
+    retval.append(group).append(SEPARATOR);
+    if (command != null) {
+      retval.append(command.toUpperCase()).append(SEPARATOR);
+    }
+    return retval.toString();
+  }
+
+
+  /**
+   * Retrieve the responses cached for a request.
+   *
+   * @param key the key of the request
+   * @return copies of the responses, or null if none are cached or they have expired
+   */
+  public List<RequestCoalescer.Response> get(String key) {
+    CachedResponses entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && entry.expires <= System.currentTimeMillis()) {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+    count(entry != null ? HIT_COUNTER : MISS_COUNTER);
+    return entry != null ? entry.decode() : null;
+  }
+
+
+  /**
+   * Cache the responses to a request.
+   *
+   * @param key       the key of the request
+   * @param responses the responses sent to the request
+   */
+  public void put(String key, List<RequestCoalescer.Response> responses) {
+    CachedResponses entry = new CachedResponses(responses, System.currentTimeMillis() + timeToLive);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+
+  /**
+   * Cache the responses to a request unless the cache was invalidated while
+   * they were being produced.
+   *
+   * @param key        the key of the request
+   * @param responses  the responses sent to the request
+   * @param generation the generation taken before the request was processed
+   * @return true if the responses were cached, false if they may be stale
+   */
+  public boolean put(String key, List<RequestCoalescer.Response> responses, long generation) {
+    CachedResponses entry = new CachedResponses(responses, System.currentTimeMillis() + timeToLive);
+    synchronized (entries) {
+      if (generation != this.generation) {
+        return false;
+      }
+      entries.put(key, entry);
+      return true;
+    }
+  }
+
+
+  /**
+   * @return the generation to pass to {@link #put(String, List, long)} for a request about to be processed
+   */
+  public long getGeneration() {
+    synchronized (entries) {
+      return generation;
+    }
+  }
+
+
+  /**
+   * Remove the responses to requests whose keys start with the given prefix.
+   *
+   * @param prefix a key, or a prefix from {@link #prefix(String, String)}
+   * @return the number of entries removed
+   */
+  public int invalidate(String prefix) {
+    int retval = 0;
+    synchronized (entries) {
+      generation++;
+      for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+        if (it.next().startsWith(prefix)) {
+          it.remove();
+          retval++;
+        }
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Create a message for the coherence group which has every instance of
+   * the service invalidate the responses whose keys start with the prefix.
+   *
+   * @param prefix a key, or a prefix from {@link #prefix(String, String)}
+   * @return the payload of the invalidation
+   */
+  public static DataFrame createInvalidation(String prefix) {
+    return new DataFrame().set(KestrelProtocol.COMMAND_FIELD, INVALIDATE_COMMAND).set(PREFIX_FIELD, prefix);
+  }
+
+
+  /**
+   * @param payload the payload of a coherence message
+   * @return the prefix to invalidate, or null if the payload is not an invalidation
+   */
+  public static String getInvalidation(DataFrame payload) {
+    if (payload != null && INVALIDATE_COMMAND.equals(payload.getAsString(KestrelProtocol.COMMAND_FIELD))) {
+      return payload.getAsString(PREFIX_FIELD);
+    }
+    return null;
+  }
+
+
+  /**
+   * Report hits, misses and evictions as counters.
+   *
+   * @param statBoard the board on which to count, may be null
+   */
+  public void setStatBoard(StatBoard statBoard) {
+    this.statBoard = statBoard;
+  }
+
+
+  private void evicted() {
+    evictions++;
+    count(EVICTION_COUNTER);
+  }
+
+
+  private void count(String name) {
+    StatBoard board = statBoard;
+    if (board != null) {
+      board.increase(name);
+    }
+  }
+
+
+  /**
+   * @return the number of entries held, including any which have expired but not yet been removed
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+
+  /**
+   * @return the number of entries evicted to make room for others
+   */
+  public long getEvictions() {
+    synchronized (entries) {
+      return evictions;
+    }
+  }
+
+
+  /**
+   * The responses to one request with their payloads encoded.
+   */
+  private static class CachedResponses {
+    private final long expires;
+    private final String[] types;
+    private final byte[][] payloads;
+    private final String[] messages;
+    private final int[] resultCodes;
+
+
+    CachedResponses(List<RequestCoalescer.Response> responses, long expires) {
+      this.expires = expires;
+      int count = responses.size();
+      types = new String[count];
+      payloads = new byte[count][];
+      messages = new String[count];
+      resultCodes = new int[count];
+      for (int x = 0; x < count; x++) {
+        RequestCoalescer.Response response = responses.get(x);
+        types[x] = response.getType();
+        payloads[x] = response.getPayload() != null ? response.getPayload().getBytes() : null;
+        messages[x] = response.getMessage();
+        resultCodes[x] = response.getResultCode();
+      }
+    }
+
+
+    List<RequestCoalescer.Response> decode() {
+      List<RequestCoalescer.Response> retval = new ArrayList<>(types.length);
+      for (int x = 0; x < types.length; x++) {
+        retval.add(new RequestCoalescer.Response(types[x], payloads[x] != null ? new DataFrame(payloads[x]) : null, messages[x], resultCodes[x]));
+      }
+      return retval;
+    }
+  }
+
+}
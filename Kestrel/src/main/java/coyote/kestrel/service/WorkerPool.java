@@ -0,0 +1,290 @@
+package coyote.kestrel.service;
+
+import coyote.commons.ExceptionUtil;
+import coyote.kestrel.protocol.MessageGroup;
+import coyote.kestrel.transport.Message;
+import coyote.loader.log.Log;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Processes service group messages on a pool of worker threads.
+ *
+ * <p>The service loop reserves a slot, takes the next message from its
+ * service group and submits it. There are as many slots as workers plus an
+ * equal backlog, so the next message is already waiting whenever a worker
+ * finishes and the service never holds more messages than it can soon
+ * process.</p>
+ *
+ * <p>With an {@link AdaptiveLimit}, the number of slots is the current
+ * limit instead. The limit is adjusted with the processing time of every
+ * message. While the limit is reached the service loop takes no messages,
+ * which leaves them to other instances competing for the same group.</p>
+ *
+ * <p>Workers do not acknowledge deliveries themselves. Each finished message
+ * is queued and acknowledged, or negatively acknowledged if processing threw
+ * an exception, when the service loop calls
+ * {@link #complete(MessageGroup)}. Transport channels are therefore only
+ * ever used by the service loop, as they are without a pool.</p>
+ *
+ * <p>Workers are platform threads unless virtual threads are requested and
+ * the runtime provides them. Virtual threads suit services which spend most
+ * of their time waiting on other systems, as the number of workers can then
+ * be raised far beyond the number of processors.</p>
+ */
+public class WorkerPool {
+
+  private final ExecutorService executor;
+  private final Consumer<Message> processor;
+  private final AdaptiveLimit limit;
+  private final Object slots = new Object();
+  private int reserved = 0;
+  private final int workers;
+  private final boolean virtual;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final Queue<Message> succeeded = new ConcurrentLinkedQueue<>();
+  private final Queue<Message> failed = new ConcurrentLinkedQueue<>();
+
+
+  /**
+   * @param name           the prefix of the names of the worker threads
+   * @param workers        the number of messages to process at once
+   * @param virtualThreads true to run workers on virtual threads when the runtime supports them
+   * @param processor      processes each message, throwing an exception if the delivery should be retried
+   */
+  public WorkerPool(String name, int workers, boolean virtualThreads, Consumer<Message> processor) {
+    this(name, workers, virtualThreads, null, processor);
+  }
+
+
+  /**
+   * @param name           the prefix of the names of the worker threads
+   * @param workers        the number of messages to process at once; the maximum of the limit if there is one
+   * @param virtualThreads true to run workers on virtual threads when the runtime supports them
+   * @param limit          the limit on messages in process, null for a fixed number of slots
+   * @param processor      processes each message, throwing an exception if the delivery should be retried
+   */
+  public WorkerPool(String name, int workers, boolean virtualThreads, AdaptiveLimit limit, Consumer<Message> processor) {
+    this.workers = Math.max(1, workers);
+    this.processor = processor;
+    this.limit = limit;
+    ExecutorService retval = virtualThreads ? createVirtualExecutor() : null;
+    virtual = retval != null;
+    if (retval == null) {
+      if (virtualThreads) {
+        Log.warn("Virtual threads are not supported by this runtime, using platform threads");
+      }
+      AtomicInteger count = new AtomicInteger();
+      retval = Executors.newFixedThreadPool(this.workers, runnable -> {
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    executor = retval;
+  }
+
+
+  /**
+   * Virtual threads arrived after the language level of this library, so
+   * they are created reflectively.
+   */
+  private static ExecutorService createVirtualExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Wait for a slot for another message.
+   *
+   * <p>A reserved slot must be filled with {@link #submit(Message)} or given
+   * back with {@link #cancel()}.</p>
+   *
+   * @param timeout the number of milliseconds to wait
+   * @return true if a slot was reserved, false if all slots are still in use
+   */
+  public boolean reserve(long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (slots) {
+      try {
+        long remaining = timeout;
+        while (reserved >= getCapacity()) {
+          if (remaining <= 0) {
+            return false;
+          }
+          slots.wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      reserved++;
+      return true;
+    }
+  }
+
+
+  private void release() {
+    synchronized (slots) {
+      reserved--;
+      slots.notifyAll();
+    }
+  }
+
+
+  /**
+   * @return the number of messages which may be held, whether waiting or in process
+   */
+  public int getCapacity() {
+    return limit != null ? limit.getLimit() : workers * 2;
+  }
+
+
+  /**
+   * Give back a reserved slot which was not used.
+   */
+  public void cancel() {
+    release();
+  }
+
+
+  /**
+   * Process a message in a reserved slot.
+   *
+   * @param message the message to process
+   */
+  public void submit(Message message) {
+    queued.incrementAndGet();
+    try {
+      executor.execute(() -> run(message));
+    } catch (RuntimeException e) {
+      queued.decrementAndGet();
+      failed.offer(message);
+      release();
+      Log.error("Could not submit message to a worker: " + e.getMessage());
+    }
+  }
+
+
+  private void run(Message message) {
+    queued.decrementAndGet();
+    int inFlight = active.incrementAndGet();
+    boolean ok = false;
+    long started = System.nanoTime();
+    try {
+      processor.accept(message);
+      ok = true;
+      succeeded.offer(message);
+    } catch (final Exception e) {
+      failed.offer(message);
+      Log.error(ExceptionUtil.toString(e));
+      if (Log.isLogging(Log.DEBUG_EVENTS)) {
+        Log.debug(ExceptionUtil.stackTrace(e));
+      }
+    } finally {
+      if (limit != null) {
+        limit.record(System.nanoTime() - started, Math.max(inFlight, active.get()), !ok);
+      }
+      active.decrementAndGet();
+      release();
+    }
+  }
+
+
+  /**
+   * Acknowledge the delivery of every message which has finished processing.
+   *
+   * <p>This is to be called by the thread which takes messages from the
+   * group.</p>
+   *
+   * @param group the group from which the messages were taken
+   * @return the number of deliveries acknowledged
+   */
+  public int complete(MessageGroup group) {
+    int retval = 0;
+    for (Message message = succeeded.poll(); message != null; message = succeeded.poll()) {
+      group.ackDelivery(message);
+      retval++;
+    }
+    for (Message message = failed.poll(); message != null; message = failed.poll()) {
+      group.nakDelivery(message);
+      retval++;
+    }
+    return retval;
+  }
+
+
+  /**
+   * Stop accepting messages and wait for the workers to finish.
+   *
+   * <p>Messages which finish in time still need {@link #complete(MessageGroup)}
+   * to acknowledge them.</p>
+   *
+   * @param timeout the number of milliseconds to wait for messages being processed
+   * @return true if all the workers finished, false if the timeout elapsed first
+   */
+  public boolean shutdown(long timeout) {
+    executor.shutdown();
+    try {
+      return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+
+  /**
+   * @return the number of messages being processed
+   */
+  public int getActive() {
+    return active.get();
+  }
+
+
+  /**
+   * @return the number of messages waiting for a worker
+   */
+  public int getQueued() {
+    return queued.get();
+  }
+
+
+  /**
+   * @return the adaptive limit on messages in process, null if the number of slots is fixed
+   */
+  public AdaptiveLimit getLimit() {
+    return limit;
+  }
+
+
+  /**
+   * @return the number of messages processed at once
+   */
+  public int getWorkers() {
+    return workers;
+  }
+
+
+  /**
+   * @return true if the workers run on virtual threads
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+}
@@ -1,45 +1,267 @@
 package coyote.kestrel.transport;
 
+import coyote.dataframe.DataField;
 import coyote.dataframe.DataFrame;
 import coyote.dataframe.DataFrameException;
+import coyote.dataframe.DecodeException;
 import coyote.kestrel.protocol.KestrelProtocol;
 
-import java.util.UUID;
-
+/**
+ * A data frame carrying the envelope fields of the Kestrel protocol.
+ *
+ * <p>The envelope fields are read from the frame in a single pass the first
+ * time one is needed and kept in typed slots, so header access on the hot
+ * path is a field read. Changes made through this class keep the slots
+ * current; any other change to an envelope field has the slots reloaded on
+ * the next access.</p>
+ */
 public class Message extends DataFrame {
 
+  /**
+   * The priority of messages which do not specify one
+   */
+  public static final int DEFAULT_PRIORITY = 4;
+  /**
+   * The highest priority a message may have
+   */
+  public static final int MAX_PRIORITY = 9;
+
+  // bits of the envelope fields found while loading the slots
+  private static final int ID_SLOT = 1;
+  private static final int REPLY_ID_SLOT = 1 << 1;
+  private static final int GROUP_SLOT = 1 << 2;
+  private static final int REPLY_GROUP_SLOT = 1 << 3;
+  private static final int TYPE_SLOT = 1 << 4;
+  private static final int ENCODING_SLOT = 1 << 5;
+  private static final int EXPIRY_SLOT = 1 << 6;
+  private static final int PRIORITY_SLOT = 1 << 7;
+  private static final int RESULT_CODE_SLOT = 1 << 8;
+  private static final int MESSAGE_SLOT = 1 << 9;
+
   volatile long timestamp = 0L;
-  private byte priority = 4;
-  private String cachedGroup = null;
-  private String cachedType = null;
 
+  // Envelope slots; not initialized here as the super constructor may decode fields first
+  private boolean headersLoaded;
+  private int headersFound;
+  private String id;
+  private String replyId;
+  private String group;
+  private String replyGroup;
+  private String type;
+  private String encoding;
+  private String text;
+  private long expiry;
+  private int priority;
+  private int resultCode;
 
-  public String getType() {
-    if (cachedType == null && getObject(KestrelProtocol.TYPE_FIELD) != null) {
-      cachedType = getObject(KestrelProtocol.TYPE_FIELD).toString();
+
+  public Message() {
+  }
+
+
+  /**
+   * Decode a binary data frame straight into a new message.
+   *
+   * @param data the encoded data frame
+   * @throws DecodeException if the data is not a data frame
+   */
+  public Message(byte[] data) throws DecodeException {
+    super(data);
+  }
+
+
+  /**
+   * Remove all fields so this instance can be reused for another message.
+   */
+  @Override
+  public void clear() {
+    super.clear();
+    timestamp = 0L;
+    headersLoaded = false;
+  }
+
+
+  @Override
+  public int put(String name, Object value) {
+    int retval = super.put(name, value);
+    if (headersLoaded) {
+      setHeader(name, value);
     }
-    return cachedType;
+    return retval;
+  }
+
+
+  @Override
+  public DataFrame set(String name, Object value) {
+    super.set(name, value);
+    if (headersLoaded) {
+      setHeader(name, value);
+    }
+    return this;
+  }
+
+
+  @Override
+  public int add(String name, Object value) {
+    int retval = super.add(name, value);
+    if (headersLoaded && (headersFound & slotOf(name)) == 0) {
+      setHeader(name, value); // only the first field of a name is read
+    }
+    return retval;
+  }
+
+
+  @Override
+  public DataField remove(String name) {
+    DataField retval = super.remove(name);
+    if (slotOf(name) != 0) {
+      headersLoaded = false;
+    }
+    return retval;
+  }
+
+
+  @Override
+  public void merge(DataFrame frame) {
+    super.merge(frame);
+    headersLoaded = false;
+  }
+
+
+  /**
+   * Load all the envelope slots in one pass over the fields.
+   */
+  private void loadHeaders() {
+    if (!headersLoaded) {
+      headersFound = 0;
+      id = replyId = group = replyGroup = type = encoding = text = null;
+      expiry = 0L;
+      priority = DEFAULT_PRIORITY;
+      resultCode = 0;
+      for (int x = 0; x < getFieldCount(); x++) {
+        DataField field = getField(x);
+        if ((headersFound & slotOf(field.getName())) == 0) {
+          setHeader(field.getName(), field.getObjectValue());
+        }
+      }
+      headersLoaded = true;
+    }
+  }
+
+
+  private static int slotOf(String name) {
+    if (name == null || name.length() != 3) {
+      return 0;
+    }
+    switch (name) {
+      case KestrelProtocol.IDENTIFIER_FIELD:
+        return ID_SLOT;
+      case KestrelProtocol.REPLY_ID_FIELD:
+        return REPLY_ID_SLOT;
+      case KestrelProtocol.GROUP_FIELD:
+        return GROUP_SLOT;
+      case KestrelProtocol.REPLY_GROUP_FIELD:
+        return REPLY_GROUP_SLOT;
+      case KestrelProtocol.TYPE_FIELD:
+        return TYPE_SLOT;
+      case KestrelProtocol.ENCODING_FIELD:
+        return ENCODING_SLOT;
+      case KestrelProtocol.EXPIRY_FIELD:
+        return EXPIRY_SLOT;
+      case KestrelProtocol.PRIORITY_FIELD:
+        return PRIORITY_SLOT;
+      case KestrelProtocol.RESULT_CODE_FIELD:
+        return RESULT_CODE_SLOT;
+      case KestrelProtocol.MESSAGE_FIELD:
+        return MESSAGE_SLOT;
+      default:
+        return 0;
+    }
+  }
+
+
+  /**
+   * Place the value of an envelope field in its slot.
+   */
+  private void setHeader(String name, Object value) {
+    int slot = slotOf(name);
+    if (slot == 0) {
+      return;
+    }
+    headersFound |= slot;
+    String string = value != null ? value.toString() : null;
+    switch (slot) {
+      case ID_SLOT:
+        id = string;
+        break;
+      case REPLY_ID_SLOT:
+        replyId = string;
+        break;
+      case GROUP_SLOT:
+        group = string;
+        break;
+      case REPLY_GROUP_SLOT:
+        replyGroup = string;
+        break;
+      case TYPE_SLOT:
+        type = string;
+        break;
+      case ENCODING_SLOT:
+        encoding = string;
+        break;
+      case MESSAGE_SLOT:
+        text = string;
+        break;
+      case EXPIRY_SLOT:
+        expiry = toLong(value, 0L);
+        break;
+      case PRIORITY_SLOT:
+        priority = (int) Math.max(0, Math.min(MAX_PRIORITY, toLong(value, DEFAULT_PRIORITY)));
+        break;
+      case RESULT_CODE_SLOT:
+        resultCode = (int) toLong(value, 0L);
+        break;
+      default:
+        break;
+    }
+  }
+
+
+  private static long toLong(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(value.toString().trim());
+      } catch (NumberFormatException ignore) {
+        // use the default
+      }
+    }
+    return defaultValue;
+  }
+
+
+  public String getType() {
+    loadHeaders();
+    return type;
   }
 
   public void setType(String name) {
     this.put(KestrelProtocol.TYPE_FIELD, name);
-    this.cachedType = name;
   }
 
   public String getGroup() {
-    if (cachedGroup == null && getObject(KestrelProtocol.GROUP_FIELD) != null) {
-      cachedGroup = getObject(KestrelProtocol.GROUP_FIELD).toString();
-    }
-    return cachedGroup;
+    loadHeaders();
+    return group;
   }
 
   public void setGroup(String name) {
     put(KestrelProtocol.GROUP_FIELD, name);
-    cachedGroup = name;
   }
 
   public String getReplyGroup() {
-    return this.getObject(KestrelProtocol.REPLY_GROUP_FIELD) != null ? getObject(KestrelProtocol.REPLY_GROUP_FIELD).toString() : null;
+    loadHeaders();
+    return replyGroup;
   }
 
   public void setReplyGroup(String name) {
@@ -47,7 +269,8 @@ public class Message extends DataFrame {
   }
 
   public String getId() {
-    return super.getAsString(KestrelProtocol.IDENTIFIER_FIELD);
+    loadHeaders();
+    return id;
   }
 
   public void setId(String id) {
@@ -55,7 +278,8 @@ public class Message extends DataFrame {
   }
 
   public String getReplyId() {
-    return super.getAsString(KestrelProtocol.REPLY_ID_FIELD);
+    loadHeaders();
+    return replyId;
   }
 
   public void setReplyId(String rid) {
@@ -63,7 +287,8 @@ public class Message extends DataFrame {
   }
 
   public String getEncoding() {
-    return super.getAsString(KestrelProtocol.ENCODING_FIELD);
+    loadHeaders();
+    return encoding;
   }
 
   public void setEncoding(String enc) {
@@ -78,11 +303,8 @@ public class Message extends DataFrame {
    * considered stale and should not be serviced.
    */
   public long getExpiry() {
-    try {
-      return super.getAsLong(KestrelProtocol.EXPIRY_FIELD);
-    } catch (DataFrameException e) {
-      return 0L;
-    }
+    loadHeaders();
+    return expiry;
   }
 
   /**
@@ -96,6 +318,28 @@ public class Message extends DataFrame {
     }
   }
 
+  /**
+   * The priority of this message, from 0 (lowest) to 9 (highest).
+   *
+   * <p>Higher priority messages are delivered ahead of lower priority
+   * messages waiting in the same queue.</p>
+   *
+   * @return the priority of this message or {@link #DEFAULT_PRIORITY} if none is set
+   */
+  public int getPriority() {
+    loadHeaders();
+    return priority;
+  }
+
+  /**
+   * Set the priority of this message.
+   *
+   * @param priority the priority from 0 (lowest) to 9 (highest); values outside that range are clamped
+   */
+  public void setPriority(int priority) {
+    put(KestrelProtocol.PRIORITY_FIELD, Math.max(0, Math.min(MAX_PRIORITY, priority)));
+  }
+
   /**
    * Retrieve a copy of the serialized payload.
    *
@@ -110,10 +354,25 @@ public class Message extends DataFrame {
    * not call get or set on the payload. Then whatever is placed in that field
    * will remain when sent across the bus.</p>
    *
+   * <p>A payload which arrived packed (see
+   * {@link coyote.kestrel.protocol.EncodingOptions#isPackedPayload()})
+   * is still in its encoded form; it is only decoded when this method is
+   * first called. Routing, correlation and expiry checks use the envelope
+   * fields and never pay for decoding the payload.</p>
+   *
    * @return an exact copy of the payload serialized in this message or an empty frame if no payload was found.
    */
   public DataFrame getPayload() {
     DataFrame retval;
+    Object packed = getObject(KestrelProtocol.PAYLOAD_FIELD);
+    if (packed instanceof byte[]) {
+      try {
+        put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame((byte[]) packed));
+      } catch (Exception e) {
+        super.remove(KestrelProtocol.PAYLOAD_FIELD);
+        return new DataFrame();
+      }
+    }
     try {
       retval = getAsFrame(KestrelProtocol.PAYLOAD_FIELD);
       if (retval == null) retval = new DataFrame();
@@ -138,12 +397,13 @@ public class Message extends DataFrame {
   }
 
   public String generateId() {
-    setId(UUID.randomUUID().toString());
+    setId(KestrelProtocol.createId());
     return getId();
   }
 
   public String getMessage() {
-    return super.getAsString(KestrelProtocol.MESSAGE_FIELD);
+    loadHeaders();
+    return text;
   }
 
   public void setMessage(String msg) {
@@ -151,11 +411,8 @@ public class Message extends DataFrame {
   }
 
   public int getResultCode() {
-    try {
-      return super.getAsInt(KestrelProtocol.RESULT_CODE_FIELD);
-    } catch (DataFrameException e) {
-      return 0;
-    }
+    loadHeaders();
+    return resultCode;
   }
 
   public void setResultCode(int resultCode) {
@@ -172,12 +429,8 @@ public class Message extends DataFrame {
    * if the message is still "fresh" or there is no expiry timestamp.
    */
   public boolean isExpired() {
-    boolean retval = false;
-    if (contains(KestrelProtocol.EXPIRY_FIELD) && getExpiry() > 0) {
-      long expiry = getExpiry();
-      retval = expiry > 0 && System.currentTimeMillis() / 1000 > expiry;
-    }
-    return retval;
+    long expiry = getExpiry();
+    return expiry > 0 && System.currentTimeMillis() / 1000 > expiry;
   }
 
   public void setSource(String text) {
@@ -2,6 +2,7 @@ package coyote.kestrel.transport;
 
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Channels are how messages are sent and received.
@@ -41,6 +42,21 @@ public interface MessageChannel {
   void nakDelivery(Message message);
 
 
+  /**
+   * Acknowledge the delivery of a number of messages at once.
+   *
+   * <p>Channels which coalesce acknowledgements send this as a single
+   * acknowledgement of multiple messages.</p>
+   *
+   * @param messages the messages whose delivery is acknowledged
+   */
+  default void ackDeliveries(List<Message> messages) {
+    for (Message message : messages) {
+      ackDelivery(message);
+    }
+  }
+
+
   /**
    * Send the message on this channel.
    *
@@ -17,4 +17,19 @@ public interface MessageListener {
    */
    void onMessage(Message message);
 
+
+  /**
+   * Indicates whether this listener keeps the messages it is given.
+   *
+   * <p>Listeners which are done with each message when
+   * {@link #onMessage(Message)} returns and keep no reference to it can
+   * return false. Transports may then decode the next message into the same
+   * instance instead of allocating a new one.</p>
+   *
+   * @return true if messages may be referenced after onMessage returns, false if they may be recycled
+   */
+  default boolean retainsMessages() {
+    return true;
+  }
+
 }
@@ -0,0 +1,79 @@
+package coyote.kestrel.transport;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable message instances.
+ *
+ * <p>Consumers whose listener does not retain messages (see
+ * {@link MessageListener#retainsMessages()}) take an instance from the pool
+ * for each delivery, decode into it, hand it to the listener and return it
+ * to the pool when the listener returns. At high delivery rates this keeps
+ * the message instances out of the garbage collector.</p>
+ */
+public class MessagePool {
+
+  public static final int DEFAULT_POOL_SIZE = 16;
+
+  private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooled = new AtomicInteger();
+  private final int poolSize;
+
+
+  public MessagePool() {
+    this(DEFAULT_POOL_SIZE);
+  }
+
+
+  /**
+   * @param poolSize the maximum number of idle messages to keep
+   */
+  public MessagePool(int poolSize) {
+    this.poolSize = poolSize;
+  }
+
+
+  /**
+   * Take an empty message from the pool, creating one if the pool is empty.
+   *
+   * @return an empty message
+   */
+  public Message acquire() {
+    Message retval = messages.poll();
+    if (retval != null) {
+      pooled.decrementAndGet();
+    } else {
+      retval = new Message();
+    }
+    return retval;
+  }
+
+
+  /**
+   * Clear a message and return it to the pool.
+   *
+   * <p>The message must not be used by the caller after it is released.</p>
+   *
+   * @param message the message to return, may be null
+   */
+  public void release(Message message) {
+    if (message != null) {
+      message.clear();
+      if (pooled.incrementAndGet() <= poolSize) {
+        messages.offer(message);
+      } else {
+        pooled.decrementAndGet();
+      }
+    }
+  }
+
+
+  /**
+   * @return the number of idle messages in the pool
+   */
+  public int size() {
+    return pooled.get();
+  }
+
+}
@@ -4,6 +4,53 @@ public interface MessageQueue extends MessageChannel {
 
   Message getNextMessage();
 
+  /**
+   * Retrieve the next message from the queue, waiting up to the given number
+   * of milliseconds for one to arrive.
+   *
+   * <p>Queues which are consuming (see {@link #consume(int)}) block on the
+   * arrival of a message rather than polling the broker, so the caller is
+   * released as soon as a message is available.</p>
+   *
+   * @param timeout the number of milliseconds to wait for a message
+   * @return the next message or null if none arrived in the given time
+   */
+  Message getNextMessage(long timeout);
+
+  /**
+   * Switch this queue from pull (polling) mode to push mode.
+   *
+   * <p>The transport delivers messages to a local hand-off buffer of the
+   * given capacity from which {@link #getNextMessage()} retrieves them.
+   * Delivery is suspended while the buffer is full. Messages retrieved from
+   * the buffer must still be acknowledged through this queue.</p>
+   *
+   * @param capacity the maximum number of messages to hold locally
+   */
+  void consume(int capacity);
+
+  /**
+   * Limit the number of unacknowledged messages delivered to this queue when
+   * it is consuming.
+   *
+   * <p>This must be set before {@link #consume(int)} is called.</p>
+   *
+   * @param count the maximum number of unacknowledged messages, 0 for unlimited
+   */
+  void setPrefetch(int count);
+
+  /**
+   * Coalesce delivery acknowledgements on this queue.
+   *
+   * <p>Acknowledgements are sent to the transport as a single acknowledgement
+   * of multiple messages after the given number of messages or after the
+   * given number of microseconds, whichever comes first.</p>
+   *
+   * @param size  the number of acknowledgements to coalesce, 1 or less acknowledges each message immediately
+   * @param delay the maximum number of microseconds to hold an acknowledgement
+   */
+  void setAckBatch(int size, long delay);
+
   Message peek();
   Message peek(long timeout);
 }
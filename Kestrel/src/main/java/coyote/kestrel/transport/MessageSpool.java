@@ -0,0 +1,334 @@
+package coyote.kestrel.transport;
+
+import coyote.loader.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A bounded, append-only spool of outbound messages in a memory-mapped
+ * file.
+ *
+ * <p>Transports use the spool to hold encoded messages while they cannot
+ * reach their broker and drain it in order once they can. Each entry
+ * records when it was spooled, whether it was sent direct or broadcast, the
+ * message group and the encoded message. Entries are appended at the end of
+ * the file and removed from the front; when the spool empties, both
+ * positions return to the start of the file. If the end of the file is
+ * reached while there is free space at the front, the remaining entries are
+ * moved to the front.</p>
+ *
+ * <p>The read and write positions are kept in the file header so entries
+ * spooled before a restart are drained after it. The spool must be closed
+ * to release its mapping of the file; a closed spool is empty and accepts
+ * no entries.</p>
+ */
+public class MessageSpool {
+
+  public static final byte DIRECT = 0;
+  public static final byte BROADCAST = 1;
+
+  private static final int MAGIC = 0x4B535031; // KSP1
+  private static final int MAGIC_OFFSET = 0;
+  private static final int READ_OFFSET = 8;
+  private static final int WRITE_OFFSET = 16;
+  private static final int COUNT_OFFSET = 24;
+  private static final int HEADER_SIZE = 64;
+
+  // length (int), timestamp (long), kind (byte), group length (short)
+  private static final int ENTRY_OVERHEAD = 4 + 8 + 1 + 2;
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private int readPosition;
+  private int writePosition;
+  private int count;
+  private boolean closed = false;
+
+
+  /**
+   * Open the spool file, creating it with the given size if it does not
+   * exist. An existing spool keeps its size and contents.
+   *
+   * @param file the spool file
+   * @param size the maximum size of the spool file in bytes
+   * @throws IOException if the file could not be created or mapped
+   */
+  public MessageSpool(File file, int size) throws IOException {
+    this.file = file;
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create spool directory " + parent);
+    }
+    boolean existing = file.exists() && file.length() > HEADER_SIZE;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (!existing) {
+        raf.setLength(Math.max(size, HEADER_SIZE * 2));
+      }
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+    if (existing && buffer.getInt(MAGIC_OFFSET) == MAGIC) {
+      readPosition = (int) buffer.getLong(READ_OFFSET);
+      writePosition = (int) buffer.getLong(WRITE_OFFSET);
+      count = (int) buffer.getLong(COUNT_OFFSET);
+      if (readPosition < HEADER_SIZE || writePosition < readPosition || writePosition > buffer.capacity()) {
+        throw new IOException("Spool file " + file + " is corrupt");
+      }
+    } else {
+      readPosition = HEADER_SIZE;
+      writePosition = HEADER_SIZE;
+      count = 0;
+      buffer.putInt(MAGIC_OFFSET, MAGIC);
+      updateHeader();
+    }
+  }
+
+
+  public File getFile() {
+    return file;
+  }
+
+
+  /**
+   * Append an encoded message to the spool.
+   *
+   * @param kind  {@link #DIRECT} or {@link #BROADCAST}
+   * @param group the message group to which the message is sent
+   * @param body  the encoded message
+   * @return false if the spool does not have room for the message or is closed
+   */
+  public synchronized boolean append(byte kind, String group, byte[] body) {
+    byte[] name = group.getBytes(StandardCharsets.UTF_8);
+    int length = ENTRY_OVERHEAD + name.length + body.length;
+    if (closed) {
+      return false;
+    }
+    if (writePosition + length > buffer.capacity()) {
+      compact();
+      if (writePosition + length > buffer.capacity()) {
+        return false;
+      }
+    }
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(writePosition);
+    entry.putInt(length - 4);
+    entry.putLong(System.currentTimeMillis());
+    entry.put(kind);
+    entry.putShort((short) name.length);
+    entry.put(name);
+    entry.put(body);
+    writePosition += length;
+    count++;
+    updateHeader();
+    return true;
+  }
+
+
+  /**
+   * @return the oldest entry in the spool without removing it, or null if the spool is empty
+   */
+  public synchronized Entry peek() {
+    Entry retval = null;
+    if (count > 0) {
+      ByteBuffer entry = buffer.duplicate();
+      entry.position(readPosition);
+      int length = entry.getInt();
+      long timestamp = entry.getLong();
+      byte kind = entry.get();
+      byte[] name = new byte[entry.getShort()];
+      entry.get(name);
+      byte[] body = new byte[length - (ENTRY_OVERHEAD - 4) - name.length];
+      entry.get(body);
+      retval = new Entry(timestamp, kind, new String(name, StandardCharsets.UTF_8), body);
+    }
+    return retval;
+  }
+
+
+  /**
+   * Remove the oldest entry from the spool.
+   */
+  public synchronized void remove() {
+    if (count > 0) {
+      readPosition += 4 + buffer.getInt(readPosition);
+      count--;
+      if (count == 0) {
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE;
+      }
+      updateHeader();
+    }
+  }
+
+
+  public synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+
+  /**
+   * @return the number of messages in the spool
+   */
+  public synchronized int getDepth() {
+    return count;
+  }
+
+
+  /**
+   * @return the number of bytes the spooled messages occupy
+   */
+  public synchronized int getSize() {
+    return writePosition - readPosition;
+  }
+
+
+  /**
+   * @return the number of bytes the spool may hold
+   */
+  public int getCapacity() {
+    return buffer.capacity() - HEADER_SIZE;
+  }
+
+
+  /**
+   * @return the number of milliseconds the oldest message has been in the spool, 0 if empty
+   */
+  public synchronized long getAge() {
+    return count > 0 ? System.currentTimeMillis() - buffer.getLong(readPosition + 4) : 0;
+  }
+
+
+  /**
+   * Write outstanding changes to the file.
+   */
+  public synchronized void force() {
+    if (!closed) {
+      buffer.force();
+    }
+  }
+
+
+  /**
+   * Write outstanding changes to the file and release the mapping.
+   *
+   * <p>Entries remain in the file for the next time it is opened.</p>
+   */
+  public synchronized void close() {
+    if (!closed) {
+      buffer.force();
+      count = 0;
+      readPosition = HEADER_SIZE;
+      writePosition = HEADER_SIZE;
+      closed = true;
+      unmap(buffer);
+    }
+  }
+
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+
+  /**
+   * Release the memory of a mapping now rather than when the buffer is
+   * collected, which may never happen while the file is still needed.
+   *
+   * <p>Runtimes since Java 9 do this through {@code Unsafe.invokeCleaner}
+   * and Java 8 through the cleaner of the buffer. Neither is public API, so
+   * both are reached reflectively; if neither is available the mapping is
+   * left to the garbage collector.</p>
+   */
+  private static void unmap(MappedByteBuffer mapping) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      try {
+        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field field = unsafeClass.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        invokeCleaner.invoke(field.get(null), mapping);
+      } catch (NoSuchMethodException e) {
+        Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(mapping);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (Exception e) {
+      Log.debug("Could not release spool mapping - Reason: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  private void compact() {
+    if (readPosition > HEADER_SIZE) {
+      ByteBuffer remaining = buffer.duplicate();
+      remaining.position(readPosition);
+      remaining.limit(writePosition);
+      ByteBuffer target = buffer.duplicate();
+      target.position(HEADER_SIZE);
+      target.put(remaining);
+      writePosition -= readPosition - HEADER_SIZE;
+      readPosition = HEADER_SIZE;
+      updateHeader();
+    }
+  }
+
+
+  private void updateHeader() {
+    buffer.putLong(READ_OFFSET, readPosition);
+    buffer.putLong(WRITE_OFFSET, writePosition);
+    buffer.putLong(COUNT_OFFSET, count);
+  }
+
+
+  /**
+   * A spooled message.
+   */
+  public static class Entry {
+    private final long timestamp;
+    private final byte kind;
+    private final String group;
+    private final byte[] body;
+
+
+    Entry(long timestamp, byte kind, String group, byte[] body) {
+      this.timestamp = timestamp;
+      this.kind = kind;
+      this.group = group;
+      this.body = body;
+    }
+
+
+    /**
+     * @return when the message was spooled
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+
+    public boolean isBroadcast() {
+      return kind == BROADCAST;
+    }
+
+
+    public String getGroup() {
+      return group;
+    }
+
+
+    public byte[] getBody() {
+      return body;
+    }
+  }
+
+}
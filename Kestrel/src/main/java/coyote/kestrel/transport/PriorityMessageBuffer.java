@@ -0,0 +1,290 @@
+package coyote.kestrel.transport;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue of messages which hands out the highest priority
+ * message first.
+ *
+ * <p>Each priority has its own FIFO lane, so messages of the same priority
+ * keep their arrival order and taking a message is a scan of at most ten
+ * lanes rather than a heap operation. Like an {@code ArrayBlockingQueue},
+ * producers block while the buffer is full, which stops the flow of
+ * deliveries into it.</p>
+ */
+public class PriorityMessageBuffer extends AbstractQueue<Message> implements BlockingQueue<Message> {
+
+  private final ArrayDeque<Message>[] lanes;
+  private int capacity;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private int count = 0;
+
+
+  /**
+   * @param capacity the maximum number of messages to hold
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public PriorityMessageBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Buffer capacity must be greater than zero");
+    }
+    this.capacity = capacity;
+    lanes = new ArrayDeque[Message.MAX_PRIORITY + 1];
+    for (int x = 0; x < lanes.length; x++) {
+      lanes[x] = new ArrayDeque<>();
+    }
+  }
+
+
+  /**
+   * Change the number of messages the buffer may hold.
+   *
+   * <p>Messages already held beyond a reduced capacity stay in the buffer;
+   * producers are held back until it drains below the new capacity.</p>
+   *
+   * @param capacity the maximum number of messages to hold
+   */
+  public void setCapacity(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Buffer capacity must be greater than zero");
+    }
+    lock.lock();
+    try {
+      this.capacity = capacity;
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public boolean offer(Message message) {
+    if (message == null) {
+      throw new NullPointerException();
+    }
+    lock.lock();
+    try {
+      if (count >= capacity) {
+        return false;
+      }
+      enqueue(message);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException {
+    if (message == null) {
+      throw new NullPointerException();
+    }
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count >= capacity) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      enqueue(message);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public void put(Message message) throws InterruptedException {
+    if (message == null) {
+      throw new NullPointerException();
+    }
+    lock.lockInterruptibly();
+    try {
+      while (count >= capacity) {
+        notFull.await();
+      }
+      enqueue(message);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public Message poll() {
+    lock.lock();
+    try {
+      return count > 0 ? dequeue() : null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public Message take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public Message peek() {
+    lock.lock();
+    try {
+      for (int x = lanes.length - 1; x >= 0; x--) {
+        if (!lanes[x].isEmpty()) {
+          return lanes[x].peekFirst();
+        }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return capacity - count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public int drainTo(Collection<? super Message> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+
+  @Override
+  public int drainTo(Collection<? super Message> collection, int maxElements) {
+    if (collection == this) {
+      throw new IllegalArgumentException();
+    }
+    lock.lock();
+    try {
+      int retval = 0;
+      while (retval < maxElements && count > 0) {
+        collection.add(dequeue());
+        retval++;
+      }
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  @Override
+  public boolean remove(Object object) {
+    lock.lock();
+    try {
+      for (ArrayDeque<Message> lane : lanes) {
+        if (lane.remove(object)) {
+          count--;
+          notFull.signal();
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * @return an iterator over a snapshot of the buffer in priority order
+   */
+  @Override
+  public Iterator<Message> iterator() {
+    List<Message> snapshot = new ArrayList<>();
+    lock.lock();
+    try {
+      for (int x = lanes.length - 1; x >= 0; x--) {
+        snapshot.addAll(lanes[x]);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return snapshot.iterator();
+  }
+
+
+  private void enqueue(Message message) {
+    lanes[message.getPriority()].addLast(message);
+    count++;
+    notEmpty.signal();
+  }
+
+
+  private Message dequeue() {
+    for (int x = lanes.length - 1; x >= 0; x--) {
+      Message retval = lanes[x].pollFirst();
+      if (retval != null) {
+        count--;
+        notFull.signal();
+        return retval;
+      }
+    }
+    return null;
+  }
+
+}
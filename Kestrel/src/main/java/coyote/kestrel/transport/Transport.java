@@ -13,6 +13,8 @@ public interface Transport {
   String AMQPS = "AMQPS";
   String JMS = "JMS"; // Java message service
   String TIBRV = "TRV"; // Tibco Rendezvous
+  String VM = "VM"; // in-process
+  String SHM = "SHM"; // shared memory
 
 
   /**
@@ -2,17 +2,37 @@ package coyote.kestrel.transport;
 
 import coyote.commons.StringUtil;
 import coyote.commons.UrlBuilder;
+import coyote.i13n.StatBoard;
+import coyote.kestrel.protocol.Compression;
+import coyote.kestrel.protocol.EncodingOptions;
 import coyote.kestrel.transport.amqp.AmqpTransport;
+import coyote.kestrel.transport.peer.PeerTransport;
+import coyote.kestrel.transport.shm.ShmTransport;
+import coyote.kestrel.transport.vm.VmTransport;
 import coyote.loader.log.Log;
 
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 
 public class TransportBuilder {
+  /**
+   * URI parameter enabling packed payloads on the transport
+   */
+  public static final String PACKED_PAYLOAD_PARAM = "packedPayload";
+  /**
+   * URI parameter setting the encoded size in bytes at which messages are compressed
+   */
+  public static final String COMPRESS_THRESHOLD_PARAM = "compressThreshold";
+  /**
+   * URI parameter enabling the compact encoding on the transport
+   */
+  public static final String COMPACT_ENCODING_PARAM = "compactEncoding";
   private static final Map<String, Transport> transportMap = new Hashtable<>();
   private String scheme = null;
   private String username = null;
@@ -22,6 +42,8 @@ public class TransportBuilder {
   private String path = null;
   private int connectionTimeout = 60000;
   private List<URI> failoverUri = new ArrayList<>();
+  private Map<String, String> parameters = new HashMap<>();
+  private StatBoard stats = null;
 
 
   public String getPath() {
@@ -88,15 +110,119 @@ public class TransportBuilder {
     return this;
   }
 
+  /**
+   * Retrieve a transport parameter.
+   *
+   * <p>Parameters are transport-specific options. They are usually set from
+   * the query portion of the transport URI (e.g.
+   * {@code amqp://host:5672/?confirms=true}). Names are case
+   * insensitive.</p>
+   *
+   * @param name the name of the parameter
+   * @return the value of the parameter or null if it was not set
+   */
+  public String getParameter(String name) {
+    return name != null ? parameters.get(name.toLowerCase()) : null;
+  }
+
+  public TransportBuilder setParameter(String name, String value) {
+    if (StringUtil.isNotBlank(name)) {
+      parameters.put(name.toLowerCase(), value);
+    }
+    return this;
+  }
+
+  private int getIntParameter(String name, int defaultValue) throws IllegalArgumentException {
+    String value = getParameter(name);
+    if (StringUtil.isNotBlank(value)) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("The transport parameter '" + name + "' is not a valid integer: '" + value + "'");
+      }
+    }
+    return defaultValue;
+  }
+
+  private boolean getBooleanParameter(String name) {
+    String value = getParameter(name);
+    return value != null && Boolean.parseBoolean(value.trim());
+  }
+
+  /**
+   * @return the options with which the transport being built encodes the messages it sends
+   */
+  public EncodingOptions getEncoding() {
+    return new EncodingOptions(getBooleanParameter(PACKED_PAYLOAD_PARAM), getBooleanParameter(COMPACT_ENCODING_PARAM), getIntParameter(COMPRESS_THRESHOLD_PARAM, 0));
+  }
+
+  public StatBoard getStatBoard() {
+    return stats;
+  }
+
+  // where the transport should record its metrics; may be null
+  public TransportBuilder setStatBoard(StatBoard stats) {
+    this.stats = stats;
+    return this;
+  }
+
   public Transport createJmsTransport() {
     return null;
   }
 
+  /**
+   * Create a transport to the in-process broker named by the host portion of
+   * the URI (e.g. {@code vm://localhost}).
+   *
+   * @return a transport connecting components within this JVM
+   */
+  public Transport createVmTransport() {
+    VmTransport retval = new VmTransport(getHostname());
+    retval.setEncoding(getEncoding());
+    return retval;
+  }
+
+  /**
+   * Create a transport to other processes on this host using shared memory
+   * rings in the directory given by the path portion of the URI (e.g.
+   * {@code shm:///dev/shm/kestrel}).
+   *
+   * @return a transport connecting processes on this host
+   */
+  public Transport createShmTransport() {
+    ShmTransport retval = new ShmTransport(getPath());
+    retval.setRingSize(getIntParameter(ShmTransport.RING_SIZE_PARAM, ShmTransport.DEFAULT_RING_SIZE));
+    retval.setSendTimeout(getIntParameter(ShmTransport.SEND_TIMEOUT_PARAM, (int) ShmTransport.DEFAULT_SEND_TIMEOUT));
+    retval.setEncoding(getEncoding());
+    return retval;
+  }
+
+  /**
+   * Wrap the given transport so direct messages travel between peers over
+   * TCP when a peer serving the message group is known.
+   *
+   * @param delegate the transport to use for topics, discovery and fall-back
+   * @return a peer transport decorating the delegate
+   */
+  public Transport createPeerTransport(Transport delegate) {
+    PeerTransport retval = new PeerTransport(delegate, getIntParameter(PeerTransport.PEER_PORT_PARAM, 0));
+    retval.setAdvertisedHost(getParameter(PeerTransport.PEER_HOST_PARAM));
+    retval.setBindHost(getParameter(PeerTransport.PEER_BIND_PARAM));
+    retval.setSecret(getParameter(PeerTransport.PEER_SECRET_PARAM));
+    retval.setPeerExpiry(getIntParameter(PeerTransport.PEER_EXPIRY_PARAM, (int) PeerTransport.DEFAULT_PEER_EXPIRY));
+    retval.setStatBoard(getStatBoard());
+    retval.setEncoding(getEncoding());
+    return retval;
+  }
+
   public Transport createAmqpTransport() {
     AmqpTransport retval = new AmqpTransport();
     UrlBuilder builder = UrlBuilder.empty();
     builder.setScheme(getScheme());
     builder.setHost(getHostname());
+    if (getPort() > 0) {
+      builder.setPort(getPort());
+    }
     if (StringUtil.isNotBlank(getUsername())) {
       if (StringUtil.isNotBlank(getPassword())) {
         builder.setUserInfo(getUsername() + ":" + getPassword());
@@ -110,6 +236,18 @@ public class TransportBuilder {
     for (URI uri : failoverUri) {
       retval.AddUri(uri);
     }
+
+    retval.setStatBoard(getStatBoard());
+    retval.setEncoding(getEncoding());
+    retval.setChannelCount(getIntParameter(AmqpTransport.CHANNELS_PARAM, 1));
+    retval.setMaxPriority(getIntParameter(AmqpTransport.MAX_PRIORITY_PARAM, 0));
+    if (StringUtil.isNotBlank(getParameter(AmqpTransport.SPOOL_PARAM))) {
+      retval.setSpool(new File(getParameter(AmqpTransport.SPOOL_PARAM)), getIntParameter(AmqpTransport.SPOOL_SIZE_PARAM, AmqpTransport.DEFAULT_SPOOL_SIZE));
+      retval.setSpoolRate(getIntParameter(AmqpTransport.SPOOL_RATE_PARAM, AmqpTransport.DEFAULT_SPOOL_RATE));
+    }
+    if (getBooleanParameter(AmqpTransport.CONFIRMS_PARAM)) {
+      retval.enableConfirms(getIntParameter(AmqpTransport.CONFIRM_WINDOW_PARAM, AmqpTransport.DEFAULT_CONFIRM_WINDOW), getIntParameter(AmqpTransport.CONFIRM_TIMEOUT_PARAM, (int) AmqpTransport.DEFAULT_CONFIRM_TIMEOUT));
+    }
     return retval;
   }
 
@@ -160,6 +298,11 @@ public class TransportBuilder {
       setHost(uri.getHost());
       setPort(uri.getPort());
       setPath(uri.getPath());
+      for (Map.Entry<String, List<String>> entry : UrlBuilder.fromUri(uri).queryParameters.entrySet()) {
+        if (entry.getValue() != null && entry.getValue().size() > 0) {
+          setParameter(entry.getKey(), entry.getValue().get(0));
+        }
+      }
     }
 
     return this;
@@ -172,9 +315,19 @@ public class TransportBuilder {
         retval = createAmqpTransport();
       } else if (Transport.JMS.equalsIgnoreCase(getScheme())) {
         retval = createJmsTransport();
+      } else if (Transport.VM.equalsIgnoreCase(getScheme())) {
+        retval = createVmTransport();
+      } else if (Transport.SHM.equalsIgnoreCase(getScheme())) {
+        retval = createShmTransport();
       } else {
         Log.warn("The broker scheme is not supported: '" + getScheme() + "'");
       }
+      if (getStatBoard() != null) {
+        Compression.setStatBoard(getStatBoard());
+      }
+      if (retval != null && getParameter(PeerTransport.PEER_PORT_PARAM) != null) {
+        retval = createPeerTransport(retval);
+      }
     } else {
       Log.warn("The broker scheme is blank or empty");
       retval = new InvalidTransport();
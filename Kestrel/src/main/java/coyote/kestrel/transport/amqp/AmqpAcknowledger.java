@@ -0,0 +1,214 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces delivery acknowledgements on a channel into multiple-acks.
+ *
+ * <p>Rather than sending an acknowledgement for every delivery, this records
+ * acknowledged delivery tags and periodically sends a single
+ * {@code basicAck(tag, multiple=true)} which acknowledges every delivery up
+ * to and including that tag. An acknowledgement is sent when the given
+ * number of deliveries have been acknowledged or when the oldest pending
+ * acknowledgement has waited the given number of microseconds.</p>
+ *
+ * <p>A multiple-ack covers every outstanding delivery up to the tag, so this
+ * tracks which deliveries are still being processed and never acknowledges
+ * past the oldest of them. This keeps acknowledgements correct even when
+ * messages are completed out of order. Negative acknowledgements are sent
+ * immediately.</p>
+ *
+ * <p>There is no timer thread; the thread consuming from the channel calls
+ * {@link #flushIfDue()} each time it polls for a message, so acknowledgements
+ * are only ever sent by the threads which consume and acknowledge.</p>
+ */
+public class AmqpAcknowledger {
+
+  private final Channel channel;
+  private final int batchSize;
+  private final long delay;
+
+  /**
+   * Delivery tags which have been delivered but not yet acknowledged
+   */
+  private final TreeSet<Long> outstanding = new TreeSet<>();
+
+  /**
+   * Delivery tags which have been acknowledged but not yet sent to the broker
+   */
+  private final TreeSet<Long> acknowledged = new TreeSet<>();
+
+  private int pending = 0;
+  private boolean holding = false;
+  private long due = 0;
+
+
+  /**
+   * @param channel   the channel on which the deliveries were received
+   * @param batchSize the number of acknowledgements to coalesce into one
+   * @param delay     the maximum number of microseconds to hold an acknowledgement
+   */
+  public AmqpAcknowledger(Channel channel, int batchSize, long delay) {
+    this.channel = channel;
+    this.batchSize = batchSize;
+    this.delay = delay;
+  }
+
+
+  /**
+   * Record the delivery of a message to this channel.
+   *
+   * @param deliveryTag the delivery tag of the message
+   */
+  public synchronized void delivered(long deliveryTag) {
+    outstanding.add(deliveryTag);
+  }
+
+
+  /**
+   * Acknowledge the delivery, sending the acknowledgement to the broker if
+   * the batch is full.
+   *
+   * @param deliveryTag the delivery tag of the processed message
+   * @throws IOException if the acknowledgement could not be sent
+   */
+  public synchronized void ack(long deliveryTag) throws IOException {
+    outstanding.remove(deliveryTag);
+    acknowledged.add(deliveryTag);
+    if (++pending >= batchSize || isDue()) {
+      flush();
+    } else {
+      hold();
+    }
+  }
+
+
+  /**
+   * Acknowledge the delivery without sending anything to the broker.
+   *
+   * <p>This is for threads which must not use the channel, such as the
+   * consumer discarding expired deliveries; the acknowledgement is sent
+   * with the next one or once it is due.</p>
+   *
+   * @param deliveryTag the delivery tag of the discarded message
+   */
+  public synchronized void acknowledged(long deliveryTag) {
+    outstanding.remove(deliveryTag);
+    acknowledged.add(deliveryTag);
+    pending++;
+    hold();
+  }
+
+
+  /**
+   * Acknowledge a number of deliveries and send the acknowledgement to the
+   * broker at once.
+   *
+   * <p>This sends a single multiple-ack unless an earlier delivery is still
+   * outstanding, in which case the acknowledgements are held until it
+   * completes.</p>
+   *
+   * @param deliveryTags the delivery tags of the processed messages
+   * @throws IOException if the acknowledgement could not be sent
+   */
+  public synchronized void ack(long[] deliveryTags) throws IOException {
+    for (long deliveryTag : deliveryTags) {
+      outstanding.remove(deliveryTag);
+      acknowledged.add(deliveryTag);
+    }
+    flush();
+  }
+
+
+  /**
+   * Negatively acknowledge the delivery; this is sent to the broker
+   * immediately.
+   *
+   * @param deliveryTag the delivery tag of the message
+   * @param requeue     true to have the broker re-deliver the message
+   * @throws IOException if the negative acknowledgement could not be sent
+   */
+  public synchronized void nak(long deliveryTag, boolean requeue) throws IOException {
+    outstanding.remove(deliveryTag);
+    channel.basicNack(deliveryTag, false, requeue);
+    if (!acknowledged.isEmpty()) {
+      hold();
+    }
+  }
+
+
+  /**
+   * Send the held acknowledgements if the oldest has waited the delay.
+   *
+   * @throws IOException if the acknowledgement could not be sent
+   */
+  public synchronized void flushIfDue() throws IOException {
+    if (isDue()) {
+      flush();
+    }
+  }
+
+
+  /**
+   * @return the milliseconds until held acknowledgements are due, rounded up, or -1 if none are held
+   */
+  public synchronized long getWait() {
+    if (!holding) {
+      return -1;
+    }
+    long remaining = due - System.nanoTime();
+    return remaining > 0 ? TimeUnit.NANOSECONDS.toMillis(remaining + 999999) : 0;
+  }
+
+
+  /**
+   * Send a multiple-ack for every acknowledged delivery which precedes the
+   * oldest outstanding delivery.
+   *
+   * @throws IOException if the acknowledgement could not be sent
+   */
+  public synchronized void flush() throws IOException {
+    holding = false;
+    long oldest = outstanding.isEmpty() ? Long.MAX_VALUE : outstanding.first();
+    Long highest = acknowledged.lower(oldest);
+    if (highest != null) {
+      channel.basicAck(highest, true);
+      acknowledged.headSet(highest, true).clear();
+    }
+    // anything left is waiting on an outstanding delivery; completing that
+    // delivery will trigger the next flush
+    pending = acknowledged.size();
+  }
+
+
+  /**
+   * Forget all deliveries.
+   *
+   * <p>This is called when the channel is recovered as the broker will
+   * re-deliver anything which was not acknowledged before the failure.</p>
+   */
+  public synchronized void reset() {
+    holding = false;
+    outstanding.clear();
+    acknowledged.clear();
+    pending = 0;
+  }
+
+
+  private void hold() {
+    if (!holding) {
+      holding = true;
+      due = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delay);
+    }
+  }
+
+
+  private boolean isDue() {
+    return holding && System.nanoTime() - due >= 0;
+  }
+
+}
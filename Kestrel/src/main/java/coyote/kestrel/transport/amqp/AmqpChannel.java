@@ -4,17 +4,24 @@ import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Recoverable;
 import com.rabbitmq.client.RecoveryListener;
 import coyote.dataframe.DataFrameException;
+import coyote.kestrel.protocol.EncodingOptions;
 import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.MessageChannel;
 import coyote.loader.log.Log;
 
 import java.io.IOException;
+import java.util.List;
 
 
 /**
  * Channels contain a reference to the rabbit channel to help keep channel
  * operations limited to a single thread. A worker thread can own this
  * reference and be the only one performing AMQP channel operations.
+ *
+ * <p>Coalesced acknowledgements are sent by the thread acknowledging or
+ * polling for messages, never by a timer. Expired deliveries discarded by
+ * a push consumer are only acknowledged from the consumer's dispatch
+ * thread when acknowledgements are not coalesced.</p>
  */
 public abstract class AmqpChannel implements MessageChannel, RecoveryListener {
 
@@ -22,6 +29,8 @@ public abstract class AmqpChannel implements MessageChannel, RecoveryListener {
   protected static final boolean MANUAL_ACK = false;
   private Channel channel = null;
   private String name = null;
+  private volatile AmqpAcknowledger acknowledger = null;
+  private EncodingOptions encoding = EncodingOptions.DEFAULT;
 
   @Override
   public String getName() {
@@ -41,12 +50,123 @@ public abstract class AmqpChannel implements MessageChannel, RecoveryListener {
     this.channel = channel;
   }
 
+  public EncodingOptions getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * @param options the options with which messages sent on this channel are encoded
+   */
+  public void setEncoding(EncodingOptions options) {
+    encoding = options != null ? options : EncodingOptions.DEFAULT;
+  }
+
+
+  /**
+   * Limit the number of unacknowledged messages the broker will deliver to
+   * consumers on this channel.
+   *
+   * <p>This only affects consumers (push delivery) started after this call;
+   * it has no effect on polling.</p>
+   *
+   * @param count the maximum number of unacknowledged messages, 0 for unlimited
+   */
+  public void setPrefetch(int count) {
+    try {
+      getChannel().basicQos(count);
+    } catch (IOException e) {
+      Log.error("Could not set prefetch on channel " + getName() + " - Reason: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  /**
+   * Coalesce acknowledgements on this channel into multiple-acks.
+   *
+   * @param size  the number of acknowledgements to send as one, 1 or less sends each acknowledgement immediately
+   * @param delay the maximum number of microseconds to hold an acknowledgement
+   */
+  public void setAckBatch(int size, long delay) {
+    if (size > 1) {
+      acknowledger = new AmqpAcknowledger(getChannel(), size, delay);
+    } else {
+      acknowledger = null;
+    }
+  }
+
+
+  /**
+   * Record the delivery of a message on this channel so acknowledgement
+   * coalescing never acknowledges it before it is processed.
+   *
+   * @param deliveryTag the tag of the delivery
+   */
+  protected void recordDelivery(long deliveryTag) {
+    AmqpAcknowledger ackr = acknowledger;
+    if (ackr != null) {
+      ackr.delivered(deliveryTag);
+    }
+  }
+
+
+  /**
+   * Acknowledge a delivery which will not be processed, such as one which
+   * expired before it could be consumed, so it is removed from the queue.
+   *
+   * @param deliveryTag the tag of the delivery
+   */
+  protected void discard(long deliveryTag) {
+    try {
+      AmqpAcknowledger ackr = acknowledger;
+      if (ackr != null) {
+        ackr.acknowledged(deliveryTag);
+      } else {
+        getChannel().basicAck(deliveryTag, false);
+      }
+    } catch (IOException e) {
+      Log.error("Could not discard delivery, channel error: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  /**
+   * Send any coalesced acknowledgements which have waited the batch delay.
+   *
+   * <p>Called by the consuming thread each time it polls for a message.</p>
+   */
+  protected void flushDueAcknowledgements() {
+    AmqpAcknowledger ackr = acknowledger;
+    if (ackr != null) {
+      try {
+        ackr.flushIfDue();
+      } catch (IOException e) {
+        Log.error("Could not ACK deliveries, channel error: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+
+  /**
+   * @param timeout the milliseconds the caller is prepared to wait for a message
+   * @return the timeout, or less if coalesced acknowledgements fall due before it expires
+   */
+  protected long getAcknowledgementWait(long timeout) {
+    AmqpAcknowledger ackr = acknowledger;
+    long wait = (ackr != null) ? ackr.getWait() : -1;
+    return (wait >= 0 && wait < timeout) ? wait : timeout;
+  }
+
 
   @Override
   public void ackDelivery(Message message) {
     try {
       long deliveryId = message.getAsLong(AmqpTransport.DELIVERY_ID_FIELD);
-      getChannel().basicAck(deliveryId, false);
+      AmqpAcknowledger ackr = acknowledger;
+      if (ackr != null) {
+        ackr.ack(deliveryId);
+      } else {
+        getChannel().basicAck(deliveryId, false);
+      }
     } catch (DataFrameException e) {
       Log.error("Could not ACK delivery, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
     } catch (IOException e) {
@@ -55,11 +175,45 @@ public abstract class AmqpChannel implements MessageChannel, RecoveryListener {
   }
 
 
+  /**
+   * Acknowledge the deliveries with a single multiple-ack when
+   * acknowledgements are coalesced on this channel, or one at a time when
+   * they are not, as a multiple-ack could then cover deliveries still being
+   * processed.
+   *
+   * @param messages the messages whose delivery is acknowledged
+   */
+  @Override
+  public void ackDeliveries(List<Message> messages) {
+    AmqpAcknowledger ackr = acknowledger;
+    if (ackr == null) {
+      MessageChannel.super.ackDeliveries(messages);
+      return;
+    }
+    try {
+      long[] deliveryIds = new long[messages.size()];
+      for (int x = 0; x < deliveryIds.length; x++) {
+        deliveryIds[x] = messages.get(x).getAsLong(AmqpTransport.DELIVERY_ID_FIELD);
+      }
+      ackr.ack(deliveryIds);
+    } catch (DataFrameException e) {
+      Log.error("Could not ACK deliveries, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
+    } catch (IOException e) {
+      Log.error("Could not ACK deliveries, channel error: " + e.getLocalizedMessage());
+    }
+  }
+
+
   @Override
   public void nakDelivery(Message message) {
     try {
       long deliveryId = message.getAsLong(AmqpTransport.DELIVERY_ID_FIELD);
-      getChannel().basicNack(deliveryId, false, true);
+      AmqpAcknowledger ackr = acknowledger;
+      if (ackr != null) {
+        ackr.nak(deliveryId, true);
+      } else {
+        getChannel().basicNack(deliveryId, false, true);
+      }
     } catch (DataFrameException e) {
       Log.error("Could not NCK delivery, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
     } catch (IOException e) {
@@ -70,6 +224,10 @@ public abstract class AmqpChannel implements MessageChannel, RecoveryListener {
 
   @Override
   public void handleRecovery(Recoverable recoverable) {
+    AmqpAcknowledger ackr = acknowledger;
+    if (ackr != null) {
+      ackr.reset();
+    }
     if (recoverable instanceof Channel) {
       int channelNumber = ((Channel) recoverable).getChannelNumber();
       Log.warn("Connection to channel #" + channelNumber + " was recovered.");
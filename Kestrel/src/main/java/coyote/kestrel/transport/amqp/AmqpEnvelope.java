@@ -0,0 +1,181 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.AMQP;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Maps the Kestrel envelope fields onto AMQP message properties.
+ *
+ * <p>The identifier, reply identifier, type and reply group of a message are
+ * carried in the {@code messageId}, {@code correlationId}, {@code type} and
+ * {@code replyTo} properties, and its priority in the {@code priority}
+ * property. The expiry is carried as a per-message TTL in
+ * the {@code expiration} property so the broker drops stale messages before
+ * they are delivered. Since the TTL is relative to the time of publishing,
+ * the absolute expiry is also placed in the headers so consumers can discard
+ * messages which expired while sitting in a local buffer without decoding
+ * the body.</p>
+ *
+ * <p>The content type of the body is set so consumers know how to decode
+ * it. The fields remain in the encoded body; the properties are a copy for
+ * the benefit of the broker and of consumers which are not Kestrel
+ * components.</p>
+ */
+public final class AmqpEnvelope {
+
+  /**
+   * The header containing the absolute expiry in epoch seconds.
+   */
+  public static final String EXPIRY_HEADER = KestrelProtocol.EXPIRY_FIELD;
+
+
+  private AmqpEnvelope() {
+  }
+
+
+  /**
+   * Create the AMQP properties for the given message.
+   *
+   * @param message the message being published
+   * @return the properties for the message
+   */
+  public static AMQP.BasicProperties toProperties(Message message) {
+    return toProperties(message, EncodingOptions.DEFAULT);
+  }
+
+
+  /**
+   * Create the AMQP properties for the given message encoded with the given
+   * options.
+   *
+   * @param message the message being published
+   * @param options the options the body is encoded with
+   * @return the properties for the message
+   */
+  public static AMQP.BasicProperties toProperties(Message message, EncodingOptions options) {
+    String id = message.getId();
+    String replyId = message.getReplyId();
+    String type = message.getType();
+    String replyGroup = message.getReplyGroup();
+    long expiry = message.getExpiry();
+    boolean prioritized = message.contains(KestrelProtocol.PRIORITY_FIELD);
+
+    AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
+    builder.contentType(MessageCodec.getContentType(message, options));
+    builder.messageId(id);
+    builder.correlationId(replyId);
+    builder.type(type);
+    builder.replyTo(replyGroup);
+    if (prioritized) {
+      builder.priority(message.getPriority());
+    }
+    if (expiry > 0) {
+      long ttl = Math.max(0, expiry * 1000 - System.currentTimeMillis());
+      builder.expiration(Long.toString(ttl));
+      builder.headers(Collections.singletonMap(EXPIRY_HEADER, (Object) expiry));
+    }
+    return builder.build();
+  }
+
+
+  /**
+   * Decode the body of a delivery into a message.
+   *
+   * <p>The content type of the delivery tells the codec how the body was
+   * encoded, so it does not have to detect the encoding.</p>
+   *
+   * @param props the properties of the delivery, may be null
+   * @param body  the body of the delivery
+   * @return the message with any envelope fields missing from the body taken from the properties
+   */
+  public static Message toMessage(AMQP.BasicProperties props, byte[] body) {
+    return toMessage(props, body, null);
+  }
+
+
+  /**
+   * Decode the body of a delivery into the given message.
+   *
+   * @param props  the properties of the delivery, may be null
+   * @param body   the body of the delivery
+   * @param target an empty message to decode into, typically from a {@link coyote.kestrel.transport.MessagePool}; null to create a new one
+   * @return the message with any envelope fields missing from the body taken from the properties; not the target if the body is a binary data frame
+   */
+  public static Message toMessage(AMQP.BasicProperties props, byte[] body, Message target) {
+    Message retval = MessageCodec.decodeMessage(body, props != null ? props.getContentType() : null, target);
+    apply(props, retval);
+    return retval;
+  }
+
+
+  /**
+   * Check the properties of a delivery to see if the message expired.
+   *
+   * <p>This allows a consumer to discard an expired message without decoding
+   * its body.</p>
+   *
+   * @param props the properties of the delivery, may be null
+   * @return true if the properties carry an expiry which has passed
+   */
+  public static boolean isExpired(AMQP.BasicProperties props) {
+    long expiry = getExpiry(props);
+    return expiry > 0 && System.currentTimeMillis() / 1000 > expiry;
+  }
+
+
+  /**
+   * Copy the envelope fields from the properties of a delivery into the
+   * message if the body did not already contain them.
+   *
+   * <p>This lets Kestrel components consume messages published by clients
+   * which only use AMQP properties.</p>
+   *
+   * @param props   the properties of the delivery, may be null
+   * @param message the message decoded from the body of the delivery
+   */
+  public static void apply(AMQP.BasicProperties props, Message message) {
+    if (props == null) {
+      return;
+    }
+    if (props.getMessageId() != null && !message.contains(KestrelProtocol.IDENTIFIER_FIELD)) {
+      message.setId(props.getMessageId());
+    }
+    if (props.getCorrelationId() != null && !message.contains(KestrelProtocol.REPLY_ID_FIELD)) {
+      message.setReplyId(props.getCorrelationId());
+    }
+    if (props.getType() != null && !message.contains(KestrelProtocol.TYPE_FIELD)) {
+      message.setType(props.getType());
+    }
+    if (props.getReplyTo() != null && !message.contains(KestrelProtocol.REPLY_GROUP_FIELD)) {
+      message.setReplyGroup(props.getReplyTo());
+    }
+    if (props.getPriority() != null && !message.contains(KestrelProtocol.PRIORITY_FIELD)) {
+      message.setPriority(props.getPriority());
+    }
+    long expiry = getExpiry(props);
+    if (expiry > 0 && !message.contains(KestrelProtocol.EXPIRY_FIELD)) {
+      message.setExpiry(expiry);
+    }
+  }
+
+
+  private static long getExpiry(AMQP.BasicProperties props) {
+    if (props != null) {
+      Map<String, Object> headers = props.getHeaders();
+      if (headers != null) {
+        Object value = headers.get(EXPIRY_HEADER);
+        if (value instanceof Number) {
+          return ((Number) value).longValue();
+        }
+      }
+    }
+    return 0;
+  }
+
+}
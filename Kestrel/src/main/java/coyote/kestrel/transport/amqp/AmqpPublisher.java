@@ -0,0 +1,150 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Publishes messages on a single channel, optionally tracking publisher
+ * confirms.
+ *
+ * <p>Publishing is serialized on this object so the channel is never used
+ * by more than one thread at a time. When confirms are enabled, each publish
+ * returns a future which completes when the broker confirms the message and
+ * fails if the broker rejects it or the channel closes before it is
+ * confirmed. Publishers block when the confirm window is full.</p>
+ */
+public class AmqpPublisher implements ConfirmListener {
+
+  private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+  private final Channel channel;
+  private final ConfirmWindow window;
+  private final long timeout;
+
+
+  /**
+   * Create a publisher without confirms; messages are fire-and-forget.
+   *
+   * @param channel the channel on which to publish
+   */
+  public AmqpPublisher(Channel channel) {
+    this.channel = channel;
+    this.window = null;
+    this.timeout = 0;
+  }
+
+
+  /**
+   * Create a publisher which tracks publisher confirms.
+   *
+   * @param channel    the channel on which to publish
+   * @param windowSize the maximum number of unconfirmed messages
+   * @param timeout    the number of milliseconds to wait for room in the window
+   * @throws IOException if the channel could not be placed in confirm mode
+   */
+  public AmqpPublisher(Channel channel, int windowSize, long timeout) throws IOException {
+    this.channel = channel;
+    this.window = new ConfirmWindow(windowSize);
+    this.timeout = timeout;
+    channel.confirmSelect();
+    channel.addConfirmListener(this);
+    channel.addShutdownListener(this::handleShutdown);
+  }
+
+
+  /**
+   * Publish the body to the given exchange.
+   *
+   * @param exchange   the name of the exchange
+   * @param routingKey the routing key
+   * @param props      the message properties, may be null
+   * @param body       the message body
+   * @return a future which completes when the broker confirms the message;
+   * already complete if confirms are not enabled.
+   * @throws IOException if the message could not be published or the confirm window remained full
+   */
+  public CompletableFuture<Void> publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+    if (window == null) {
+      synchronized (this) {
+        channel.basicPublish(exchange, routingKey, props, body);
+      }
+      return COMPLETED;
+    }
+
+    try {
+      if (!window.reserve(timeout)) {
+        throw new IOException("Publisher confirm window full; " + window.size() + " messages unconfirmed after " + timeout + "ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for publisher confirm window");
+    }
+
+    CompletableFuture<Void> retval = new CompletableFuture<>();
+    synchronized (this) {
+      long sequence = channel.getNextPublishSeqNo();
+      try {
+        channel.basicPublish(exchange, routingKey, props, body);
+      } catch (IOException | RuntimeException e) {
+        window.cancel();
+        throw e;
+      }
+      window.add(sequence, retval);
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return true if this publisher tracks publisher confirms
+   */
+  public boolean isConfirming() {
+    return window != null;
+  }
+
+
+  /**
+   * @return the number of messages waiting on confirmation from the broker
+   */
+  public int getUnconfirmedCount() {
+    return window != null ? window.size() : 0;
+  }
+
+
+  public Channel getChannel() {
+    return channel;
+  }
+
+
+  @Override
+  public void handleAck(long deliveryTag, boolean multiple) {
+    for (CompletableFuture<Void> future : window.remove(deliveryTag, multiple)) {
+      future.complete(null);
+    }
+  }
+
+
+  @Override
+  public void handleNack(long deliveryTag, boolean multiple) {
+    complete(window.remove(deliveryTag, multiple), new IOException("Message rejected by the broker"));
+  }
+
+
+  private void handleShutdown(ShutdownSignalException cause) {
+    complete(window.clear(), new IOException("Channel closed before message was confirmed: " + cause.getLocalizedMessage()));
+  }
+
+
+  private void complete(List<CompletableFuture<Void>> futures, Throwable cause) {
+    for (CompletableFuture<Void> future : futures) {
+      future.completeExceptionally(cause);
+    }
+  }
+
+}
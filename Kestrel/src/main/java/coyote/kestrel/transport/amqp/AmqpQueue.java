@@ -7,10 +7,13 @@ import coyote.kestrel.protocol.MessageCodec;
 import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.MessageListener;
 import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.PriorityMessageBuffer;
 import coyote.loader.log.Log;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static coyote.kestrel.transport.amqp.AmqpTransport.DIRECT_EXCHANGE;
 
@@ -20,6 +23,11 @@ import static coyote.kestrel.transport.amqp.AmqpTransport.DIRECT_EXCHANGE;
  */
 public class AmqpQueue extends AmqpChannel implements MessageQueue {
 
+  /**
+   * Local hand-off buffer used when this queue is consuming (push mode).
+   */
+  private volatile BlockingQueue<Message> buffer = null;
+
   /**
    *
    * @param channel the channel on which to declare the queue
@@ -44,15 +52,23 @@ public class AmqpQueue extends AmqpChannel implements MessageQueue {
 
   @Override
   public Message getNextMessage() {
+    flushDueAcknowledgements();
+    if (buffer != null) {
+      return buffer.poll();
+    }
+
     Message retval = null;
     try {
       GetResponse response = getChannel().basicGet(getName(), MANUAL_ACK);
+      while (response != null && AmqpEnvelope.isExpired(response.getProps())) {
+        discard(response.getEnvelope().getDeliveryTag());
+        response = getChannel().basicGet(getName(), MANUAL_ACK);
+      }
       if (response != null) {
         AMQP.BasicProperties props = response.getProps();
-        Log.debug(props);
-        retval = new Message();
-        retval.merge(MessageCodec.decode(response.getBody()));
+        retval = AmqpEnvelope.toMessage(props, response.getBody());
         retval.put(AmqpTransport.DELIVERY_ID_FIELD, response.getEnvelope().getDeliveryTag());
+        recordDelivery(response.getEnvelope().getDeliveryTag());
       }
     } catch (IOException e) {
       Log.error("Problems parsing message data: " + e.getMessage());
@@ -61,6 +77,55 @@ public class AmqpQueue extends AmqpChannel implements MessageQueue {
   }
 
 
+  @Override
+  public Message getNextMessage(long timeout) {
+    Message retval = null;
+    if (buffer != null) {
+      // wake to send coalesced acknowledgements which fall due while waiting
+      long deadline = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+      try {
+        do {
+          flushDueAcknowledgements();
+          retval = buffer.poll(getAcknowledgementWait(remaining), TimeUnit.MILLISECONDS);
+          remaining = deadline - System.currentTimeMillis();
+        } while (retval == null && remaining > 0);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else {
+      retval = getNextMessage();
+    }
+    return retval;
+  }
+
+
+  /**
+   * Start a consumer on this queue which places deliveries into a local
+   * buffer of the given size.
+   *
+   * <p>This replaces a {@code basicGet} round trip per message with a
+   * stream of deliveries from the broker. Callers block on the buffer rather
+   * than sleeping between polls.</p>
+   *
+   * @param capacity the maximum number of messages to hold locally
+   */
+  @Override
+  public synchronized void consume(int capacity) {
+    if (buffer == null) {
+      BlockingQueue<Message> handoff = new PriorityMessageBuffer(capacity > 0 ? capacity : 1);
+      BufferingConsumer consumer = new BufferingConsumer(this, handoff);
+      consumer.setName(getName());
+      try {
+        getChannel().basicConsume(getName(), MANUAL_ACK, consumer);
+        buffer = handoff;
+      } catch (IOException e) {
+        Log.error("Could not start consuming from queue " + getName() + " - Reason: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+
   @Override
   public Message peek() {
     return null;
@@ -91,7 +156,7 @@ public class AmqpQueue extends AmqpChannel implements MessageQueue {
   @Override
   public void send(Message message) throws IOException {
     if (getChannel() != null) {
-      getChannel().basicPublish(DIRECT_EXCHANGE, getName(), null, MessageCodec.encode(message));
+      getChannel().basicPublish(DIRECT_EXCHANGE, getName(), AmqpEnvelope.toProperties(message, getEncoding()), MessageCodec.encode(message, getEncoding()));
     } else {
       throw new IOException("No channel set");
     }
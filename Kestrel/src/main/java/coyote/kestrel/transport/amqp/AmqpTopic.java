@@ -5,6 +5,7 @@ import com.rabbitmq.client.DeliverCallback;
 import coyote.kestrel.protocol.MessageCodec;
 import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessagePool;
 import coyote.kestrel.transport.MessageTopic;
 import coyote.loader.log.Log;
 
@@ -13,8 +14,12 @@ import java.io.IOException;
 /**
  * AMQP messages are sent to an exchange type of "TOPIC" and the routing key
  * is used to control which queues receive messages.
+ *
+ * <p>Listeners which do not retain messages are given messages recycled
+ * from earlier deliveries.</p>
  */
 public class AmqpTopic extends AmqpChannel implements MessageTopic {
+  private final MessagePool messages = new MessagePool();
 
 
   public AmqpTopic(Channel channel, String name) {
@@ -30,13 +35,20 @@ public class AmqpTopic extends AmqpChannel implements MessageTopic {
       getChannel().queueBind(queueName, AmqpTransport.TOPIC_EXCHANGE, getName());
       DeliverCallback deliverCallback = (consumerTag, delivery) -> {
         long deliveryTag = delivery.getEnvelope().getDeliveryTag();
-        Message message = new Message();
-        message.merge(MessageCodec.decode(delivery.getBody()));
+        if (AmqpEnvelope.isExpired(delivery.getProperties())) {
+          return;
+        }
+        boolean recycle = !listener.retainsMessages() && MessageCodec.decodesInPlace(delivery.getBody());
+        Message message = AmqpEnvelope.toMessage(delivery.getProperties(), delivery.getBody(), recycle ? messages.acquire() : null);
         message.setGroup(getName());
         try {
           listener.onMessage(message);
         } catch (Exception e) {
           Log.error("Message listener threw exception handling message " + deliveryTag + " on topic " + getName() + " - Reason: " + e.getLocalizedMessage());
+        } finally {
+          if (recycle) {
+            messages.release(message);
+          }
         }
       };
       getChannel().basicConsume(queueName, true, deliverCallback, consumerTag -> {
@@ -50,7 +62,7 @@ public class AmqpTopic extends AmqpChannel implements MessageTopic {
   @Override
   public void send(Message message) throws IOException {
     if (getChannel() != null) {
-      getChannel().basicPublish(AmqpTransport.TOPIC_EXCHANGE, getName(), null, MessageCodec.encode(message));
+      getChannel().basicPublish(AmqpTransport.TOPIC_EXCHANGE, getName(), AmqpEnvelope.toProperties(message, getEncoding()), MessageCodec.encode(message, getEncoding()));
     } else {
       throw new IOException("No channel set");
     }
@@ -1,21 +1,32 @@
 package coyote.kestrel.transport.amqp;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 import coyote.commons.StringUtil;
 import coyote.commons.UriUtil;
+import coyote.i13n.StatBoard;
+import coyote.kestrel.protocol.EncodingOptions;
 import coyote.kestrel.protocol.MessageCodec;
 import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.MessageSpool;
 import coyote.kestrel.transport.MessageTopic;
 import coyote.kestrel.transport.Transport;
 import coyote.loader.log.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -24,6 +35,43 @@ import java.util.*;
 public class AmqpTransport implements Transport {
 
   public static final String DELIVERY_ID_FIELD = "AMQP_DLVRY_ID";
+
+  /**
+   * URI parameter enabling asynchronous publisher confirms
+   */
+  public static final String CONFIRMS_PARAM = "confirms";
+  /**
+   * URI parameter setting the maximum number of unconfirmed messages
+   */
+  public static final String CONFIRM_WINDOW_PARAM = "confirmWindow";
+  /**
+   * URI parameter setting the milliseconds a publisher waits for room in the confirm window
+   */
+  public static final String CONFIRM_TIMEOUT_PARAM = "confirmTimeout";
+  /**
+   * URI parameter setting the number of channels used for publishing
+   */
+  public static final String CHANNELS_PARAM = "channels";
+  /**
+   * URI parameter naming the file in which to spool outbound messages while disconnected
+   */
+  public static final String SPOOL_PARAM = "spool";
+  /**
+   * URI parameter setting the maximum size of the spool file in bytes
+   */
+  public static final String SPOOL_SIZE_PARAM = "spoolSize";
+  /**
+   * URI parameter setting the number of spooled messages sent per second once reconnected
+   */
+  public static final String SPOOL_RATE_PARAM = "spoolRate";
+  /**
+   * URI parameter setting the highest priority supported by service queues
+   */
+  public static final String MAX_PRIORITY_PARAM = "maxPriority";
+  public static final int DEFAULT_SPOOL_SIZE = 16 * 1024 * 1024;
+  public static final int DEFAULT_SPOOL_RATE = 1000;
+  public static final int DEFAULT_CONFIRM_WINDOW = 1024;
+  public static final long DEFAULT_CONFIRM_TIMEOUT = 10000;
   static final String DIRECT_EXCHANGE = "DIRECT";
   static final String TOPIC_EXCHANGE = "TOPIC";
   private static final boolean NON_DURABLE = false;
@@ -35,6 +83,17 @@ public class AmqpTransport implements Transport {
   private static final Map<String, Object> NO_ARGUMENTS = new HashMap<>();
   private static final String DIRECT = "direct";
   private static final String TOPIC = "topic";
+  private static final String MAX_PRIORITY_ARGUMENT = "x-max-priority";
+  private static final String PUBLISH_COUNTER = "Publish.Channel.";
+  private static final String SPOOL_DEPTH_STATE = "Spool.Depth";
+  private static final String SPOOL_AGE_STATE = "Spool.Age";
+  private static final String SPOOLED_COUNTER = "Spool.Spooled";
+  private static final String DRAINED_COUNTER = "Spool.Drained";
+  private static final long DRAIN_INTERVAL = 10;
+  private static final CompletableFuture<Void> SPOOLED = CompletableFuture.completedFuture(null);
+  private static final String BROKER_STATE = "Broker";
+  private static final String FAILOVER_STATE = "Broker.Failovers";
+  private static final String FAILURE_STATE = "Broker.Failures";
   private int connectionTimeout = com.rabbitmq.client.ConnectionFactory.DEFAULT_CONNECTION_TIMEOUT;
 
 
@@ -45,16 +104,70 @@ public class AmqpTransport implements Transport {
   /**
    * Currently active broker URI
    */
-  private int brokerInUse = 0;
+  private volatile int brokerInUse = 0;
+
+  /**
+   * Chooses the broker for each connection and recovery attempt
+   */
+  private BrokerResolver resolver = null;
+
+  /**
+   * The number of times the connection moved to a different broker
+   */
+  private volatile int failoverCount = 0;
 
   /**
    * The connection abstracts the socket connection, and takes care of protocol version negotiation and authentication and so on for us.
    */
   private Connection connection = null;
   /**
-   * The channel this transport uses to send messages
+   * The publishers this transport uses to send messages, each with its own channel
    */
-  private Channel outboundChannel = null;
+  private AmqpPublisher[] publishers = null;
+
+  /**
+   * The name of the StatBoard counter for each publisher
+   */
+  private String[] publishCounters = null;
+
+  /**
+   * The number of publishing channels to open
+   */
+  private int channelCount = 1;
+  /**
+   * The highest priority supported by service queues, 0 for none
+   */
+  private int maxPriority = 0;
+
+  /**
+   * Where we record publishing metrics, may be null
+   */
+  private StatBoard stats = null;
+
+  /**
+   * The options with which messages sent through this transport are encoded
+   */
+  private EncodingOptions encoding = EncodingOptions.DEFAULT;
+
+  /**
+   * Size of the publisher confirm window; zero when confirms are disabled
+   */
+  private int confirmWindow = 0;
+
+  /**
+   * Milliseconds to wait for room in the confirm window
+   */
+  private long confirmTimeout = DEFAULT_CONFIRM_TIMEOUT;
+
+  /**
+   * Where outbound messages are held while we cannot reach a broker, may be null
+   */
+  private volatile MessageSpool spool = null;
+  private File spoolFile = null;
+  private int spoolSize = DEFAULT_SPOOL_SIZE;
+  private int spoolRate = DEFAULT_SPOOL_RATE;
+  private ScheduledExecutorService drainer = null;
+  private int lastSpoolDepth = 0;
 
   private String virtualHost = null;
 
@@ -80,12 +193,20 @@ public class AmqpTransport implements Transport {
 
 
   public String getPassword() {
-    return brokers.size() > 0 ? UriUtil.getUser(brokers.get(brokerInUse)) : null;
+    return brokers.size() > 0 ? UriUtil.getPassword(brokers.get(brokerInUse)) : null;
   }
 
 
   public String getUsername() {
-    return brokers.size() > 0 ? UriUtil.getPassword(brokers.get(brokerInUse)) : null;
+    return brokers.size() > 0 ? UriUtil.getUser(brokers.get(brokerInUse)) : null;
+  }
+
+
+  /**
+   * @return the number of times the connection has moved to a different broker
+   */
+  public int getFailoverCount() {
+    return failoverCount;
   }
 
 
@@ -99,6 +220,143 @@ public class AmqpTransport implements Transport {
   }
 
 
+  /**
+   * Have the broker confirm each published message.
+   *
+   * <p>Messages are still sent asynchronously; the futures returned from
+   * {@link #sendDirectAsync(Message)} and {@link #broadcastAsync(Message)}
+   * complete when the broker confirms or rejects the message. At most
+   * {@code window} messages may be unconfirmed at once; publishers block
+   * for up to {@code timeout} milliseconds for room in the window before
+   * failing with an IOException.</p>
+   *
+   * <p>This must be called before the transport is opened.</p>
+   *
+   * @param window  the maximum number of unconfirmed messages
+   * @param timeout the milliseconds to wait for room in the window
+   */
+  public void enableConfirms(int window, long timeout) {
+    confirmWindow = window;
+    confirmTimeout = timeout;
+  }
+
+
+  /**
+   * Set the number of channels used to publish messages.
+   *
+   * <p>RabbitMQ channels must not be used for publishing by more than one
+   * thread at a time. Each publishing thread is assigned one of these
+   * channels by its thread identifier so concurrent publishers are spread
+   * across channels rather than serialized on one. This must be called
+   * before the transport is opened.</p>
+   *
+   * @param count the number of publishing channels
+   */
+  public void setChannelCount(int count) {
+    channelCount = count > 0 ? count : 1;
+  }
+
+
+  public int getChannelCount() {
+    return channelCount;
+  }
+
+
+  /**
+   * Set the highest message priority supported by service queues.
+   *
+   * <p>Service queues are declared with this as their {@code x-max-priority}
+   * argument so the broker delivers higher priority messages first. Queues
+   * already declared on the broker keep the arguments they were declared
+   * with; redeclaring one with a different maximum is refused by the broker,
+   * so an existing queue must be deleted before priorities are enabled on
+   * it.</p>
+   *
+   * @param max the highest priority, 1 to 9, or 0 for queues without priorities
+   */
+  public void setMaxPriority(int max) {
+    maxPriority = Math.max(0, Math.min(Message.MAX_PRIORITY, max));
+  }
+
+
+  public int getMaxPriority() {
+    return maxPriority;
+  }
+
+
+  /**
+   * Set the StatBoard on which this transport records its metrics.
+   *
+   * @param stats the StatBoard to use, may be null
+   */
+  public void setStatBoard(StatBoard stats) {
+    this.stats = stats;
+  }
+
+
+  /**
+   * Set the options with which messages sent through this transport and its
+   * queues and topics are encoded.
+   *
+   * <p>This must be called before queues and topics are created.</p>
+   *
+   * @param options the encoding options, null for the defaults
+   */
+  public void setEncoding(EncodingOptions options) {
+    encoding = options != null ? options : EncodingOptions.DEFAULT;
+  }
+
+
+  public EncodingOptions getEncoding() {
+    return encoding;
+  }
+
+
+  /**
+   * Spool outbound messages to the given file while no broker can be
+   * reached.
+   *
+   * <p>Messages sent while disconnected are appended to a memory-mapped
+   * spool of at most {@code size} bytes instead of failing. Once the
+   * connection is restored, spooled messages are published in order at the
+   * spool rate; messages sent meanwhile are spooled behind them to keep
+   * their order. Sends only fail when the spool is full. This must be called
+   * before the transport is opened.</p>
+   *
+   * @param file the spool file
+   * @param size the maximum size of the spool file in bytes
+   */
+  public void setSpool(File file, int size) {
+    spoolFile = file;
+    spoolSize = size;
+  }
+
+
+  /**
+   * @param messagesPerSecond the number of spooled messages to publish each second once reconnected
+   */
+  public void setSpoolRate(int messagesPerSecond) {
+    spoolRate = messagesPerSecond > 0 ? messagesPerSecond : DEFAULT_SPOOL_RATE;
+  }
+
+
+  /**
+   * @return the number of messages waiting in the spool
+   */
+  public int getSpoolDepth() {
+    MessageSpool sp = spool;
+    return sp != null ? sp.getDepth() : 0;
+  }
+
+
+  /**
+   * @return true if the broker is asked to confirm published messages
+   */
+  public boolean isConfirming() {
+    return confirmWindow > 0;
+  }
+
+
   @Override
   public boolean isValid() {
     return true;
@@ -113,6 +371,7 @@ public class AmqpTransport implements Transport {
       Channel channel = connection.createChannel();
       channel.exchangeDeclare(DIRECT_EXCHANGE, DIRECT, DURABLE);
       retval = new AmqpQueue(connection.createChannel(), identifier, NON_DURABLE, EXCLUSIVE, AUTO_DELETE, NO_ARGUMENTS);
+      retval.setEncoding(encoding);
       ((Recoverable) channel).addRecoveryListener(retval);
     } catch (IOException e) {
       Log.error(e);
@@ -121,11 +380,19 @@ public class AmqpTransport implements Transport {
   }
 
 
+  /**
+   * Connect to the healthiest of the configured brokers.
+   *
+   * <p>Each broker is tried once, healthiest first (see
+   * {@link BrokerResolver}). Each recovery attempt after a lost connection
+   * goes to the healthiest broker too, and the broker which dropped the
+   * connection counts as failed, so recovery rotates away from a failed
+   * broker rather than retrying it indefinitely. All brokers share the
+   * credentials of the first broker URI.</p>
+   */
   @Override
   public void open() {
     ConnectionFactory factory = new ConnectionFactory();
-    factory.setHost(getHostname());
-    factory.setPort(getPort());
     factory.setUsername(getUsername());
     factory.setPassword(getPassword());
     factory.setConnectionTimeout(getConnectionTimeout());
@@ -139,18 +406,116 @@ public class AmqpTransport implements Transport {
     // Exchanges and so on should be redeclared if necessary
     factory.setTopologyRecoveryEnabled(true);
 
+    if (resolver == null) {
+      resolver = new BrokerResolver(brokers);
+    }
+
+    if (spoolFile != null && spool == null) {
+      openSpool();
+    }
+
     try {
-      connection = factory.newConnection();
-      outboundChannel = connection.createChannel();
+      connection = connect(factory);
+      connected(false);
+      ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+          connected(true);
+        }
+
+        @Override
+        public void handleRecoveryStarted(Recoverable recoverable) {
+          resolver.lost();
+          Log.warn("Lost connection to broker " + describeBroker() + ", recovering");
+        }
+      });
+      AmqpPublisher[] pool = new AmqpPublisher[channelCount];
+      String[] counters = new String[channelCount];
+      for (int x = 0; x < pool.length; x++) {
+        pool[x] = createPublisher(connection.createChannel());
+        counters[x] = PUBLISH_COUNTER + x;
+      }
+      publishCounters = counters;
+      publishers = pool;
 
     } catch (Exception e) {
-      Log.fatal("Could not open AMPQ connection to broker(" + factory.getUsername() + "@" + factory.getHost() + ":" + factory.getPort() + "): " + e.getLocalizedMessage());
+      resolver.failed();
+      updateBrokerStats();
+      Log.fatal("Could not open AMPQ connection to any broker(" + factory.getUsername() + "@" + brokers + "): " + e.getLocalizedMessage());
+    }
+  }
+
+
+  /**
+   * Try each broker once, healthiest first, until one accepts a connection.
+   *
+   * @return the connection to the first broker which accepted it
+   * @throws IOException      if the last broker tried could not be reached
+   * @throws TimeoutException if the last broker tried did not respond in time
+   */
+  private Connection connect(ConnectionFactory factory) throws IOException, TimeoutException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return factory.newConnection(resolver);
+      } catch (IOException | TimeoutException e) {
+        resolver.failed();
+        if (attempt >= brokers.size()) {
+          throw e;
+        }
+        Log.debug("Could not connect to broker, trying the next - Reason: " + e.getLocalizedMessage());
+      }
     }
   }
 
 
+  /**
+   * Record which broker we are connected to after connecting or recovering.
+   *
+   * @param recovered true if this is a recovered connection
+   */
+  private void connected(boolean recovered) {
+    Connection conn = connection;
+    if (conn != null) {
+      int index = resolver.connected();
+      if (index >= 0) {
+        if (recovered && index != brokerInUse) {
+          failoverCount++;
+        }
+        brokerInUse = index;
+      }
+      Log.notice((recovered ? "Recovered" : "Opened") + " connection to broker " + describeBroker());
+      updateBrokerStats();
+    }
+  }
+
+
+  private void updateBrokerStats() {
+    if (stats != null) {
+      stats.setState(BROKER_STATE, describeBroker());
+      stats.setState(FAILOVER_STATE, failoverCount);
+      stats.setState(FAILURE_STATE, resolver != null ? resolver.getFailureCount() : 0);
+    }
+  }
+
+
+  /**
+   * @return the host and port of the broker in use, without credentials
+   */
+  private String describeBroker() {
+    return brokers.size() > 0 ? getHostname() + ":" + getPort() : "none";
+  }
+
+
   @Override
   public void close() {
+    if (drainer != null) {
+      drainer.shutdown();
+      drainer = null;
+    }
+    if (spool != null) {
+      spool.close();
+      spool = null;
+    }
     // should we close each one of our channels first?
     try {
       connection.close();
@@ -169,7 +534,13 @@ public class AmqpTransport implements Transport {
       try {
         Channel channel = connection.createChannel();
         channel.exchangeDeclare(DIRECT_EXCHANGE, DIRECT, DURABLE);
-        retval = new AmqpQueue(channel, name, DURABLE, NON_EXCLUSIVE, MANUAL_DELETE, NO_ARGUMENTS);
+        Map<String, Object> arguments = NO_ARGUMENTS;
+        if (maxPriority > 0) {
+          arguments = new HashMap<>();
+          arguments.put(MAX_PRIORITY_ARGUMENT, maxPriority);
+        }
+        retval = new AmqpQueue(channel, name, DURABLE, NON_EXCLUSIVE, MANUAL_DELETE, arguments);
+        retval.setEncoding(encoding);
         ((Recoverable) channel).addRecoveryListener(retval);
       } catch (IOException e) {
         Log.error(e);
@@ -186,6 +557,7 @@ public class AmqpTransport implements Transport {
       Channel channel = connection.createChannel();
       channel.exchangeDeclare(TOPIC_EXCHANGE, TOPIC, DURABLE);
       retval = new AmqpTopic(channel, name);
+      retval.setEncoding(encoding);
       ((Recoverable) channel).addRecoveryListener(retval);
     } catch (IOException e) {
       Log.error(e);
@@ -206,22 +578,178 @@ public class AmqpTransport implements Transport {
   }
 
 
-  private void send(String exchange, Message msg) throws IOException {
-    if (outboundChannel != null) {
-      if (StringUtil.isNotBlank(msg.getGroup())) {
-        outboundChannel.basicPublish(exchange, msg.getGroup(), null, MessageCodec.encode(msg));
-      } else {
-        throw new IOException("No message group name specified in message");
+  /**
+   * Send the message to its message group with a queue quality of service.
+   *
+   * @param msg the message to send
+   * @return a future which completes when the broker confirms the message,
+   * or immediately if confirms are not enabled.
+   * @throws IOException if the message could not be sent
+   */
+  public CompletableFuture<Void> sendDirectAsync(Message msg) throws IOException {
+    return send(DIRECT_EXCHANGE, msg);
+  }
+
+
+  /**
+   * Send the message to its message group with a topic quality of service.
+   *
+   * @param msg the message to send
+   * @return a future which completes when the broker confirms the message,
+   * or immediately if confirms are not enabled.
+   * @throws IOException if the message could not be sent
+   */
+  public CompletableFuture<Void> broadcastAsync(Message msg) throws IOException {
+    return send(TOPIC_EXCHANGE, msg);
+  }
+
+
+  private CompletableFuture<Void> send(String exchange, Message msg) throws IOException {
+    if (StringUtil.isBlank(msg.getGroup())) {
+      throw new IOException("No message group name specified in message");
+    }
+    byte[] body = MessageCodec.encode(msg, encoding);
+    MessageSpool sp = spool;
+    if (sp != null && (!isConnected() || !sp.isEmpty())) {
+      return spool(sp, exchange, msg.getGroup(), body);
+    }
+    try {
+      return publish(exchange, msg.getGroup(), AmqpEnvelope.toProperties(msg, encoding), body);
+    } catch (IOException | RuntimeException e) {
+      if (sp != null) {
+        return spool(sp, exchange, msg.getGroup(), body);
       }
+      throw e;
+    }
+  }
+
+
+  private CompletableFuture<Void> publish(String exchange, String group, AMQP.BasicProperties props, byte[] body) throws IOException {
+    AmqpPublisher[] pool = publishers;
+    if (pool != null) {
+      int index = pool.length > 1 ? (int) (Thread.currentThread().getId() % pool.length) : 0;
+      CompletableFuture<Void> retval = pool[index].publish(exchange, group, props, body);
+      if (stats != null) {
+        stats.increase(publishCounters[index]);
+      }
+      return retval;
     } else {
       throw new IOException("No outbound transport channel set");
     }
   }
 
 
+  /**
+   * @return true if we have a connection on which to publish
+   */
+  private boolean isConnected() {
+    Connection conn = connection;
+    return conn != null && conn.isOpen() && publishers != null;
+  }
+
+
+  /**
+   * Place the message in the spool to be published once we are connected.
+   *
+   * @return a completed future; spooled messages are not confirmed
+   * @throws IOException if the spool is full
+   */
+  private CompletableFuture<Void> spool(MessageSpool sp, String exchange, String group, byte[] body) throws IOException {
+    byte kind = TOPIC_EXCHANGE.equals(exchange) ? MessageSpool.BROADCAST : MessageSpool.DIRECT;
+    if (!sp.append(kind, group, body)) {
+      if (sp.isClosed()) {
+        throw new IOException("Outbound spool closed");
+      }
+      throw new IOException("Outbound spool full; " + sp.getDepth() + " messages waiting for the broker");
+    }
+    if (stats != null) {
+      stats.increase(SPOOLED_COUNTER);
+    }
+    return SPOOLED;
+  }
+
+
+  private void openSpool() {
+    try {
+      spool = new MessageSpool(spoolFile, spoolSize);
+      if (!spool.isEmpty()) {
+        Log.notice("Outbound spool " + spoolFile + " holds " + spool.getDepth() + " messages from a previous run");
+      }
+      drainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AmqpSpool");
+        thread.setDaemon(true);
+        return thread;
+      });
+      drainer.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      Log.error("Could not open outbound spool " + spoolFile + " - Reason: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  /**
+   * Publish spooled messages in order, no faster than the spool rate.
+   *
+   * <p>Runs every few milliseconds on the spool thread. A message is only
+   * removed from the spool once it has been published; if publishing fails,
+   * draining stops until the next run. Messages which expired while they
+   * were spooled are dropped rather than published.</p>
+   */
+  private void drain() {
+    MessageSpool sp = spool;
+    if (sp == null) {
+      return;
+    }
+    int budget = (int) Math.max(1, spoolRate * DRAIN_INTERVAL / 1000);
+    int drained = 0;
+    while (drained < budget && isConnected()) {
+      MessageSpool.Entry entry = sp.peek();
+      if (entry == null) {
+        break;
+      }
+      Message msg = new Message();
+      msg.merge(MessageCodec.decode(entry.getBody()));
+      if (msg.isExpired()) {
+        sp.remove();
+        continue;
+      }
+      try {
+        publish(entry.isBroadcast() ? TOPIC_EXCHANGE : DIRECT_EXCHANGE, entry.getGroup(), AmqpEnvelope.toProperties(msg, encoding), entry.getBody());
+      } catch (Exception e) {
+        Log.debug("Could not drain outbound spool - Reason: " + e.getLocalizedMessage());
+        break;
+      }
+      sp.remove();
+      drained++;
+    }
+    if (stats != null) {
+      if (drained > 0) {
+        stats.increase(DRAINED_COUNTER, drained);
+      }
+      int depth = sp.getDepth();
+      if (depth > 0 || lastSpoolDepth > 0) {
+        stats.setState(SPOOL_DEPTH_STATE, depth);
+        stats.setState(SPOOL_AGE_STATE, sp.getAge());
+      }
+      lastSpoolDepth = depth;
+    }
+  }
+
+
+
+  private AmqpPublisher createPublisher(Channel channel) throws IOException {
+    if (isConfirming()) {
+      return new AmqpPublisher(channel, confirmWindow, confirmTimeout);
+    } else {
+      return new AmqpPublisher(channel);
+    }
+  }
+
+
   public AmqpTransport AddUri(URI uri) {
     if (uri != null) {
       brokers.add(uri);
+      resolver = null;
     }
     return this;
   }
@@ -0,0 +1,212 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the healthiest of the configured brokers each time the client
+ * connects or recovers a connection.
+ *
+ * <p>The RabbitMQ client asks for the list of addresses on every connection
+ * attempt, including each automatic recovery attempt, but shuffles the list
+ * before trying it. Each call is therefore answered with the single
+ * healthiest broker, so every attempt goes to a known broker and the
+ * outcome is recorded against that broker alone. A failed attempt moves
+ * the next attempt on to the next healthiest broker.</p>
+ *
+ * <p>Brokers are scored by their average connect latency plus a penalty for
+ * recent failures which halves every minute, so a broker which has just
+ * failed is tried last and one which has been stable recently is preferred.
+ * Brokers which have never been connected to are scored as moderately slow
+ * so a known healthy broker is preferred over them.</p>
+ */
+public class BrokerResolver implements AddressResolver {
+
+  /**
+   * Score of a broker which has never been connected to
+   */
+  static final double UNKNOWN_LATENCY = 1000;
+
+  /**
+   * Score added for each recent failure
+   */
+  static final double FAILURE_PENALTY = 30000;
+
+  /**
+   * Milliseconds for the failure penalty to halve
+   */
+  static final double FAILURE_HALF_LIFE = 60000;
+
+  private final List<Broker> brokers = new ArrayList<>();
+  private Broker offered = null;
+  private Broker current = null;
+  private long attemptStarted = 0;
+  private int failureCount = 0;
+
+
+  /**
+   * @param uris the broker URIs in order of preference
+   */
+  public BrokerResolver(List<URI> uris) {
+    for (int x = 0; x < uris.size(); x++) {
+      brokers.add(new Broker(x, uris.get(x)));
+    }
+  }
+
+
+  private static int defaultPort(URI uri) {
+    return "amqps".equalsIgnoreCase(uri.getScheme()) ? ConnectionFactory.DEFAULT_AMQP_OVER_SSL_PORT : ConnectionFactory.DEFAULT_AMQP_PORT;
+  }
+
+
+  /**
+   * @return the healthiest broker, or an empty list if none are configured
+   */
+  @Override
+  public synchronized List<Address> getAddresses() {
+    long now = System.currentTimeMillis();
+    if (offered != null) {
+      // asked again without connecting; the broker we offered failed
+      offered.failed(now);
+      failureCount++;
+    }
+    if (brokers.isEmpty()) {
+      offered = null;
+      return Collections.emptyList();
+    }
+    offered = getOrder(now).get(0);
+    attemptStarted = System.currentTimeMillis();
+    return Collections.singletonList(new Address(offered.uri.getHost(), offered.getPort()));
+  }
+
+
+  /**
+   * Record a connection to the broker last offered.
+   *
+   * @return the index of the connected broker in the configured list or -1
+   * if no broker was offered since the last outcome was recorded
+   */
+  public synchronized int connected() {
+    Broker broker = offered;
+    offered = null;
+    if (broker == null) {
+      return -1;
+    }
+    broker.succeeded(System.currentTimeMillis() - attemptStarted);
+    current = broker;
+    return broker.index;
+  }
+
+
+  /**
+   * Record that the connection attempt to the broker last offered failed.
+   */
+  public synchronized void failed() {
+    if (offered != null) {
+      offered.failed(System.currentTimeMillis());
+      failureCount++;
+      offered = null;
+    }
+  }
+
+
+  /**
+   * Record that the connection to the current broker was lost, so recovery
+   * tries another broker first.
+   */
+  public synchronized void lost() {
+    if (current != null) {
+      current.failed(System.currentTimeMillis());
+      failureCount++;
+      current = null;
+    }
+  }
+
+
+  /**
+   * @return the number of failed connection attempts to any broker
+   */
+  public synchronized int getFailureCount() {
+    return failureCount;
+  }
+
+
+  /**
+   * @return the configured broker indexes, healthiest first
+   */
+  public synchronized List<Integer> getPreferredOrder() {
+    List<Integer> retval = new ArrayList<>();
+    for (Broker broker : getOrder(System.currentTimeMillis())) {
+      retval.add(broker.index);
+    }
+    return retval;
+  }
+
+
+  /**
+   * @param index the index of the broker in the configured list
+   * @return the current score of the broker; lower is healthier
+   */
+  public synchronized double getScore(int index) {
+    return brokers.get(index).score(System.currentTimeMillis());
+  }
+
+
+  private List<Broker> getOrder(long now) {
+    List<Broker> retval = new ArrayList<>(brokers);
+    Collections.sort(retval, Comparator.comparingDouble((Broker broker) -> broker.score(now)).thenComparingInt(broker -> broker.index));
+    return retval;
+  }
+
+
+  /**
+   * Health of a single broker.
+   */
+  private static class Broker {
+    private final int index;
+    private final URI uri;
+    private double latency = -1;
+    private double failures = 0;
+    private long lastFailure = 0;
+
+
+    Broker(int index, URI uri) {
+      this.index = index;
+      this.uri = uri;
+    }
+
+
+    int getPort() {
+      return uri.getPort() > 0 ? uri.getPort() : defaultPort(uri);
+    }
+
+
+    double score(long now) {
+      return (latency < 0 ? UNKNOWN_LATENCY : latency) + decayedFailures(now) * FAILURE_PENALTY;
+    }
+
+
+    void failed(long now) {
+      failures = decayedFailures(now) + 1;
+      lastFailure = now;
+    }
+
+
+    void succeeded(long elapsed) {
+      latency = (latency < 0) ? elapsed : latency * 0.7 + elapsed * 0.3;
+    }
+
+
+    private double decayedFailures(long now) {
+      return (failures == 0) ? 0 : failures * Math.pow(0.5, (now - lastFailure) / FAILURE_HALF_LIFE);
+    }
+  }
+
+}
@@ -0,0 +1,50 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import coyote.kestrel.transport.Message;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A consumer which hands deliveries off to a bounded local buffer instead of
+ * calling a listener.
+ *
+ * <p>Messages are not acknowledged by this consumer. The delivery tag is
+ * placed in the message so whoever takes the message from the buffer can
+ * acknowledge it once it has been processed. When the buffer is full, the
+ * dispatch thread blocks which stops the flow of deliveries from the
+ * broker until there is room.</p>
+ */
+public class BufferingConsumer extends SimpleConsumer {
+  private final AmqpQueue queue;
+  private final BlockingQueue<Message> buffer;
+
+
+  public BufferingConsumer(AmqpQueue queue, BlockingQueue<Message> buffer) {
+    super(queue.getChannel());
+    this.queue = queue;
+    this.buffer = buffer;
+  }
+
+
+  @Override
+  public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
+    long deliveryTag = envelope.getDeliveryTag();
+    if (AmqpEnvelope.isExpired(properties)) {
+      queue.discard(deliveryTag);
+      return;
+    }
+    Message message = AmqpEnvelope.toMessage(properties, body);
+    message.put(AmqpTransport.DELIVERY_ID_FIELD, deliveryTag);
+    queue.recordDelivery(deliveryTag);
+    try {
+      buffer.put(message);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      queue.nakDelivery(message);
+    }
+  }
+
+}
@@ -0,0 +1,211 @@
+package coyote.kestrel.transport.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A bounded window of published messages awaiting confirmation from the
+ * broker.
+ *
+ * <p>Publish sequence numbers on a channel only ever increase, so the
+ * outstanding sequence numbers are kept in a ring of primitive longs which
+ * is sorted by construction. Confirming a range ({@code multiple=true}) pops
+ * entries from the head of the ring; confirming a single sequence number is
+ * a binary search. A slot is only reclaimed once every older sequence number
+ * has been confirmed, so the window bounds the span of sequence numbers in
+ * flight.</p>
+ *
+ * <p>Publishers reserve a slot before publishing and block while the window
+ * is full, which gives them backpressure rather than letting the broker
+ * buffer an unbounded number of messages.</p>
+ */
+public class ConfirmWindow {
+
+  private final long[] sequences;
+  private final CompletableFuture<Void>[] futures;
+  private int head = 0;
+  private int size = 0;
+  private int reserved = 0;
+
+
+  /**
+   * @param capacity the maximum number of messages awaiting confirmation
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public ConfirmWindow(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Confirm window capacity must be greater than zero");
+    }
+    sequences = new long[capacity];
+    futures = new CompletableFuture[capacity];
+  }
+
+
+  /**
+   * Reserve a slot in the window, waiting for one to become available.
+   *
+   * @param timeout the number of milliseconds to wait for a slot
+   * @return true if a slot was reserved, false if the window remained full
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public synchronized boolean reserve(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (size + reserved >= sequences.length) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    reserved++;
+    return true;
+  }
+
+
+  /**
+   * Release a reserved slot without using it; for when the publish failed.
+   */
+  public synchronized void cancel() {
+    if (reserved > 0) {
+      reserved--;
+      notifyAll();
+    }
+  }
+
+
+  /**
+   * Place a published sequence number in a previously reserved slot.
+   *
+   * @param sequence the publish sequence number of the message
+   * @param future   the future to complete when the message is confirmed
+   */
+  public synchronized void add(long sequence, CompletableFuture<Void> future) {
+    if (reserved < 1) {
+      throw new IllegalStateException("No slot reserved in confirm window");
+    }
+    if (size > 0 && sequence <= sequences[index(size - 1)]) {
+      throw new IllegalArgumentException("Sequence " + sequence + " is not greater than the last sequence in the window");
+    }
+    reserved--;
+    int idx = index(size);
+    sequences[idx] = sequence;
+    futures[idx] = future;
+    size++;
+  }
+
+
+  /**
+   * Remove confirmed sequence numbers from the window.
+   *
+   * <p>The returned futures are not completed here so the caller can
+   * complete them outside of any locks.</p>
+   *
+   * @param sequence the sequence number confirmed by the broker
+   * @param multiple true if all sequence numbers up to and including the given one are confirmed
+   * @return the futures of the confirmed messages
+   */
+  public List<CompletableFuture<Void>> remove(long sequence, boolean multiple) {
+    List<CompletableFuture<Void>> retval = new ArrayList<>();
+    synchronized (this) {
+      if (multiple) {
+        while (size > 0 && sequences[head] <= sequence) {
+          if (futures[head] != null) {
+            retval.add(futures[head]);
+          }
+          pop();
+        }
+      } else {
+        int pos = search(sequence);
+        if (pos >= 0) {
+          int idx = index(pos);
+          if (futures[idx] != null) {
+            retval.add(futures[idx]);
+            futures[idx] = null;
+          }
+        }
+        // reclaim any slots at the head which have been confirmed
+        while (size > 0 && futures[head] == null) {
+          pop();
+        }
+      }
+      notifyAll();
+    }
+    return retval;
+  }
+
+
+  /**
+   * Remove every outstanding sequence number from the window.
+   *
+   * <p>Used when the channel closes and no more confirmations will
+   * arrive.</p>
+   *
+   * @return the futures of all the unconfirmed messages
+   */
+  public List<CompletableFuture<Void>> clear() {
+    List<CompletableFuture<Void>> retval = new ArrayList<>();
+    synchronized (this) {
+      while (size > 0) {
+        if (futures[head] != null) {
+          retval.add(futures[head]);
+        }
+        pop();
+      }
+      notifyAll();
+    }
+    return retval;
+  }
+
+
+  /**
+   * @return the number of messages awaiting confirmation
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+
+  /**
+   * @return the maximum number of messages which may await confirmation
+   */
+  public int capacity() {
+    return sequences.length;
+  }
+
+
+  private void pop() {
+    futures[head] = null;
+    head = (head + 1) % sequences.length;
+    size--;
+  }
+
+
+  private int index(int position) {
+    return (head + position) % sequences.length;
+  }
+
+
+  /**
+   * Binary search of the ring for the given sequence number.
+   *
+   * @return the position relative to the head or -1 if not found
+   */
+  private int search(long sequence) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long value = sequences[index(mid)];
+      if (value < sequence) {
+        low = mid + 1;
+      } else if (value > sequence) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+}
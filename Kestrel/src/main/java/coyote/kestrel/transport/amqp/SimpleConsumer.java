@@ -5,14 +5,19 @@ import com.rabbitmq.client.*;
 import coyote.kestrel.protocol.MessageCodec;
 import coyote.kestrel.transport.Message;
 import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessagePool;
 import coyote.loader.log.Log;
 
 import java.io.IOException;
 
 /**
  * This consumer implementation supports recovery.
+ *
+ * <p>If the listener does not retain messages, each delivery is decoded into
+ * a message recycled from the previous delivery.</p>
  */
 public class SimpleConsumer extends DefaultConsumer implements Consumer {
+  private final MessagePool messages = new MessagePool(1);
   private MessageListener listener = null;
   private String name = null;
 
@@ -36,15 +41,21 @@ public class SimpleConsumer extends DefaultConsumer implements Consumer {
   public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) throws IOException {
     long deliveryTag = envelope.getDeliveryTag();
 
-    if (listener != null) {
-      Message message = new Message();
-      message.merge(MessageCodec.decode(body));
+    if (AmqpEnvelope.isExpired(properties)) {
+      getChannel().basicAck(deliveryTag, false);
+    } else if (listener != null) {
+      boolean recycle = !listener.retainsMessages() && MessageCodec.decodesInPlace(body);
+      Message message = AmqpEnvelope.toMessage(properties, body, recycle ? messages.acquire() : null);
       message.setGroup(getName());
       try {
         listener.onMessage(message);
         getChannel().basicAck(deliveryTag, false);
       } catch (Exception e) {
         getChannel().basicNack(deliveryTag,false,true);
+      } finally {
+        if (recycle) {
+          messages.release(message);
+        }
       }
     } else{
       Log.warn("Consumer on '"+getName()+"' has no listener - Requeueing");
@@ -0,0 +1,413 @@
+package coyote.kestrel.transport.peer;
+
+import coyote.dataframe.DataFrame;
+import coyote.kestrel.protocol.BufferPool;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A non-blocking socket connection to another peer transport.
+ *
+ * <p>Frames are a four byte big-endian length, followed by a one byte frame
+ * type and the frame body. The length covers the type and the body. Many
+ * requests and responses are multiplexed over a single connection; they
+ * are correlated by their message and reply identifiers, exactly as they
+ * are when they travel through a broker.</p>
+ *
+ * <p>Writes are attempted directly from the sending thread. Whatever the
+ * socket will not accept is left queued and written by the selector thread
+ * when the socket becomes writable, preserving frame order.</p>
+ *
+ * <p>Reading stops while the frame handler refuses a frame, leaving it and
+ * any that follow in the read buffer, and continues from that frame when
+ * the connection is resumed.</p>
+ *
+ * <p>Outgoing connections are opened without blocking. Frames sent before
+ * the selector thread has finished connecting are queued and written once
+ * the connection is established.</p>
+ */
+public class PeerConnection {
+
+  /**
+   * Announces the names of the inboxes reachable through this connection
+   */
+  static final byte HELLO_FRAME = 1;
+
+  /**
+   * Carries a MessageCodec encoded message
+   */
+  static final byte MESSAGE_FRAME = 2;
+
+  static final int HEADER_SIZE = 5;
+  static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final SocketChannel channel;
+  private final String name;
+  private final BufferPool pool;
+  private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+  private final Set<String> inboxes = ConcurrentHashMap.newKeySet();
+  private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private final long opened = System.currentTimeMillis();
+  private volatile SelectionKey key = null;
+  private volatile boolean open = true;
+  private volatile boolean connected;
+  private volatile boolean authenticated = false;
+  private volatile boolean paused = false;
+
+
+  /**
+   * @param channel the connected channel
+   * @param name    the name of the connection for logging
+   * @param pool    the pool to which written frames are returned
+   */
+  PeerConnection(SocketChannel channel, String name, BufferPool pool) {
+    this(channel, name, pool, true);
+  }
+
+
+  /**
+   * @param channel   the channel, which may still be connecting
+   * @param name      the name of the connection for logging
+   * @param pool      the pool to which written frames are returned
+   * @param connected false if {@link #finishConnect()} must be called before frames are written
+   */
+  PeerConnection(SocketChannel channel, String name, BufferPool pool, boolean connected) {
+    this.channel = channel;
+    this.name = name;
+    this.pool = pool;
+    this.connected = connected;
+  }
+
+
+  /**
+   * Encode a message frame into a pooled buffer.
+   *
+   * <p>The message is encoded directly after the frame header. The buffer
+   * is returned to the pool once it has been written to the socket.</p>
+   *
+   * @param message  the message to encode
+   * @param pool     the pool from which to take the buffer
+   * @param encoding the options with which to encode the message
+   * @return a buffer ready to be written
+   */
+  static ByteBuffer frame(DataFrame message, BufferPool pool, EncodingOptions encoding) {
+    ByteBuffer retval = MessageCodec.encode(message, pool, HEADER_SIZE, encoding);
+    retval.putInt(0, retval.limit() - 4);
+    retval.put(4, MESSAGE_FRAME);
+    return retval;
+  }
+
+
+  /**
+   * Create a frame of the given type around the body.
+   *
+   * @param type the frame type
+   * @param body the frame body
+   * @return a buffer ready to be written
+   */
+  static ByteBuffer frame(byte type, byte[] body) {
+    ByteBuffer retval = ByteBuffer.allocate(HEADER_SIZE + body.length);
+    retval.putInt(body.length + 1);
+    retval.put(type);
+    retval.put(body);
+    retval.flip();
+    return retval;
+  }
+
+
+  public String getName() {
+    return name;
+  }
+
+
+  public boolean isOpen() {
+    return open;
+  }
+
+
+  /**
+   * @return true once the connection is established and frames are being written
+   */
+  boolean isConnected() {
+    return connected;
+  }
+
+
+  /**
+   * @return true once frames other than HELLO may be accepted from the remote end
+   */
+  boolean isAuthenticated() {
+    return authenticated;
+  }
+
+
+  void setAuthenticated() {
+    authenticated = true;
+  }
+
+
+  /**
+   * @return the time the connection was created
+   */
+  long getOpened() {
+    return opened;
+  }
+
+
+  SocketChannel getChannel() {
+    return channel;
+  }
+
+
+  SelectionKey getKey() {
+    return key;
+  }
+
+
+  void setKey(SelectionKey key) {
+    this.key = key;
+    synchronized (this) {
+      if (connected && !writeQueue.isEmpty()) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+  }
+
+
+  /**
+   * @return the names of the remote inboxes reachable through this connection
+   */
+  Set<String> getInboxes() {
+    return inboxes;
+  }
+
+
+  /**
+   * Queue the frame and write as much of the queue as the socket will take.
+   *
+   * <p>The frame belongs to the connection once this is called. It is
+   * returned to the pool even if the connection is closed.</p>
+   *
+   * @param frame the frame to send
+   * @throws IOException if the connection is closed or the write failed
+   */
+  void send(ByteBuffer frame) throws IOException {
+    synchronized (this) {
+      if (!open) {
+        pool.release(frame);
+        throw new IOException("Peer connection " + name + " is closed");
+      }
+      writeQueue.add(frame);
+      if (connected && writeQueue.size() == 1) {
+        flush();
+      }
+    }
+  }
+
+
+  /**
+   * Finish opening the connection and start writing the queued frames.
+   *
+   * <p>Called by the selector thread when the socket is ready to connect.</p>
+   *
+   * @return true if the connection is established, false if it is still connecting
+   * @throws IOException if the connection could not be established
+   */
+  synchronized boolean finishConnect() throws IOException {
+    if (!connected && channel.finishConnect()) {
+      connected = true;
+      flush();
+    }
+    return connected;
+  }
+
+
+  /**
+   * Write queued frames until the queue is empty or the socket is full.
+   *
+   * <p>Called by the selector thread when the socket becomes writable.</p>
+   *
+   * @throws IOException if the write failed
+   */
+  synchronized void flush() throws IOException {
+    if (!connected) {
+      return;
+    }
+    ByteBuffer buffer;
+    while ((buffer = writeQueue.peek()) != null) {
+      channel.write(buffer);
+      if (buffer.hasRemaining()) {
+        break;
+      }
+      pool.release(writeQueue.poll());
+    }
+    SelectionKey selectionKey = key;
+    if (selectionKey != null && selectionKey.isValid()) {
+      int ops = (paused ? 0 : SelectionKey.OP_READ) | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+      if (selectionKey.interestOps() != ops) {
+        selectionKey.interestOps(ops);
+        selectionKey.selector().wakeup();
+      }
+    }
+  }
+
+
+  /**
+   * Read what is available from the socket and pass each complete frame to
+   * the handler.
+   *
+   * @param handler receives each complete frame
+   * @return false if the remote end closed the connection
+   * @throws IOException if the read failed, a frame was malformed or the handler rejected a frame
+   */
+  boolean read(FrameHandler handler) throws IOException {
+    int count = channel.read(readBuffer);
+    if (count < 0) {
+      return false;
+    }
+    process(handler);
+    return true;
+  }
+
+
+  /**
+   * @return true while reading is stopped because the handler refused a frame
+   */
+  boolean isPaused() {
+    return paused;
+  }
+
+
+  /**
+   * Pass the frames left in the read buffer to the handler and start
+   * reading from the socket again if it takes them all.
+   *
+   * <p>Called by the selector thread once there may be room for the frame
+   * the handler refused.</p>
+   *
+   * @param handler receives each complete frame
+   * @throws IOException if a frame was malformed or the handler rejected a frame
+   */
+  void resume(FrameHandler handler) throws IOException {
+    if (paused) {
+      paused = false;
+      process(handler);
+      if (!paused) {
+        updateInterest();
+      }
+    }
+  }
+
+
+  private void process(FrameHandler handler) throws IOException {
+    readBuffer.flip();
+    while (readBuffer.remaining() >= HEADER_SIZE) {
+      int start = readBuffer.position();
+      int length = readBuffer.getInt(start);
+      if (length < 1 || length > MAX_FRAME_SIZE) {
+        throw new IOException("Invalid frame length of " + length + " from peer " + name);
+      }
+      if (readBuffer.remaining() < length + 4) {
+        if (length + 4 > readBuffer.capacity()) {
+          ByteBuffer larger = ByteBuffer.allocate(length + 4);
+          larger.put(readBuffer);
+          readBuffer = larger;
+          readBuffer.flip();
+        }
+        break;
+      }
+      readBuffer.getInt();
+      byte type = readBuffer.get();
+      byte[] body = new byte[length - 1];
+      readBuffer.get(body);
+      if (!handler.onFrame(this, type, body)) {
+        readBuffer.position(start);
+        paused = true;
+        updateInterest();
+        break;
+      }
+    }
+    readBuffer.compact();
+  }
+
+
+  private synchronized void updateInterest() {
+    SelectionKey selectionKey = key;
+    if (selectionKey != null && selectionKey.isValid()) {
+      int ops = (paused ? 0 : SelectionKey.OP_READ) | (connected && !writeQueue.isEmpty() ? SelectionKey.OP_WRITE : 0);
+      if (selectionKey.interestOps() != ops) {
+        selectionKey.interestOps(ops);
+      }
+    }
+  }
+
+
+  /**
+   * Close a connection which was never established, handing back the frames
+   * queued for it so they can be sent another way.
+   *
+   * @return the frames which were never written
+   */
+  List<ByteBuffer> abandon() {
+    List<ByteBuffer> retval = new ArrayList<>();
+    synchronized (this) {
+      open = false;
+      if (!connected) {
+        retval.addAll(writeQueue);
+        writeQueue.clear();
+      }
+    }
+    close();
+    return retval;
+  }
+
+
+  void close() {
+    open = false;
+    SelectionKey selectionKey = key;
+    if (selectionKey != null) {
+      selectionKey.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException ignore) {
+      // closing anyway
+    }
+    synchronized (this) {
+      ByteBuffer buffer;
+      while ((buffer = writeQueue.poll()) != null) {
+        pool.release(buffer);
+      }
+    }
+  }
+
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+
+  /**
+   * Receives complete frames read from a connection.
+   */
+  interface FrameHandler {
+    /**
+     * @return false to leave the frame unread and stop reading until the connection is resumed
+     */
+    boolean onFrame(PeerConnection connection, byte type, byte[] body) throws IOException;
+  }
+
+}
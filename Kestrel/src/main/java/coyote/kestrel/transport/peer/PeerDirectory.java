@@ -0,0 +1,208 @@
+package coyote.kestrel.transport.peer;
+
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageListener;
+import coyote.loader.log.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which peers serve which message groups, as advertised in service
+ * heartbeats on the OAM.SERVICES topic.
+ *
+ * <p>Heartbeats from peer-enabled services carry the host and port on which
+ * their transport accepts peer connections. Entries expire when their
+ * heartbeats stop and are removed immediately when the service announces
+ * it is terminating.</p>
+ */
+public class PeerDirectory implements MessageListener {
+
+  static final String GROUP_NAME_FIELD = "GroupName";
+  static final String INSTANCE_ID_FIELD = "InstanceId";
+  static final String IP_ADDRESS_FIELD = "IpAddress";
+  static final String EVENT_FIELD = "Event";
+  static final String TERMINATING_EVENT = "Terminating";
+
+  private final String nodeId;
+  private final long expiry;
+  private final Map<String, List<PeerAddress>> groups = new ConcurrentHashMap<>();
+  private final AtomicInteger next = new AtomicInteger();
+
+
+  /**
+   * @param nodeId the identifier of our own transport so we ignore our own heartbeats
+   * @param expiry the number of milliseconds after which an entry is considered gone
+   */
+  public PeerDirectory(String nodeId, long expiry) {
+    this.nodeId = nodeId;
+    this.expiry = expiry;
+  }
+
+
+  /**
+   * Heartbeats are read and forgotten, so they can be recycled.
+   */
+  @Override
+  public boolean retainsMessages() {
+    return false;
+  }
+
+
+  @Override
+  public void onMessage(Message message) {
+    if (KestrelProtocol.HEARTBEAT_TYPE.equals(message.getType())) {
+      DataFrame payload = message.getPayload();
+      String instanceId = payload.getAsString(INSTANCE_ID_FIELD);
+      if (TERMINATING_EVENT.equals(payload.getAsString(EVENT_FIELD))) {
+        remove(instanceId);
+      } else if (payload.contains(PeerTransport.PEER_PORT_FIELD) && !nodeId.equals(payload.getAsString(PeerTransport.PEER_NODE_FIELD))) {
+        String group = payload.getAsString(GROUP_NAME_FIELD);
+        String host = payload.getAsString(PeerTransport.PEER_HOST_FIELD);
+        if (host == null) {
+          host = payload.getAsString(IP_ADDRESS_FIELD);
+        }
+        try {
+          int port = payload.getAsInt(PeerTransport.PEER_PORT_FIELD);
+          if (group != null && host != null) {
+            update(group, instanceId, host, port);
+          }
+        } catch (DataFrameException e) {
+          Log.debug("Invalid peer port in heartbeat from " + instanceId);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Record that the given instance serves the group at the given address.
+   */
+  void update(String group, String instanceId, String host, int port) {
+    List<PeerAddress> peers = groups.computeIfAbsent(group, key -> new CopyOnWriteArrayList<>());
+    for (PeerAddress peer : peers) {
+      if (peer.getHost().equals(host) && peer.getPort() == port) {
+        peer.touch();
+        return;
+      }
+    }
+    peers.add(new PeerAddress(instanceId, host, port));
+    Log.debug("Discovered peer " + host + ":" + port + " serving " + group);
+  }
+
+
+  /**
+   * Remove every entry for the given service instance.
+   */
+  void remove(String instanceId) {
+    if (instanceId != null) {
+      for (List<PeerAddress> peers : groups.values()) {
+        peers.removeIf(peer -> instanceId.equals(peer.getInstanceId()));
+      }
+    }
+  }
+
+
+  /**
+   * Select a live peer serving the given group, spreading load across all
+   * of them in turn.
+   *
+   * @param group the name of the message group
+   * @return the address of a peer or null if no live peer serves the group
+   */
+  public PeerAddress select(String group) {
+    List<PeerAddress> peers = groups.get(group);
+    if (peers != null && !peers.isEmpty()) {
+      long now = System.currentTimeMillis();
+      int size = peers.size();
+      int start = next.getAndIncrement() & Integer.MAX_VALUE;
+      for (int x = 0; x < size; x++) {
+        PeerAddress peer;
+        try {
+          peer = peers.get((start + x) % size);
+        } catch (IndexOutOfBoundsException e) {
+          break; // the list shrank underneath us
+        }
+        if (now - peer.getLastSeen() > expiry) {
+          peers.remove(peer);
+        } else if (peer.isAvailable(now)) {
+          return peer;
+        }
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * The address on which a service instance accepts peer connections.
+   */
+  public static class PeerAddress {
+    /**
+     * How long to avoid a peer after a failed connection attempt
+     */
+    private static final long RETRY_INTERVAL = 5000;
+
+    private final String instanceId;
+    private final String host;
+    private final int port;
+    private volatile long lastSeen;
+    private volatile long failedAt = 0;
+
+
+    PeerAddress(String instanceId, String host, int port) {
+      this.instanceId = instanceId;
+      this.host = host;
+      this.port = port;
+      this.lastSeen = System.currentTimeMillis();
+    }
+
+
+    public String getInstanceId() {
+      return instanceId;
+    }
+
+
+    public String getHost() {
+      return host;
+    }
+
+
+    public int getPort() {
+      return port;
+    }
+
+
+    long getLastSeen() {
+      return lastSeen;
+    }
+
+
+    void touch() {
+      lastSeen = System.currentTimeMillis();
+    }
+
+
+    void failed() {
+      failedAt = System.currentTimeMillis();
+    }
+
+
+    boolean isAvailable(long now) {
+      return now - failedAt > RETRY_INTERVAL;
+    }
+
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+
+}
@@ -0,0 +1,279 @@
+package coyote.kestrel.transport.peer;
+
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.PriorityMessageBuffer;
+import coyote.loader.log.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue which merges messages arriving directly from peers with those
+ * arriving through the broker.
+ *
+ * <p>Peer messages are placed in a local queue by the selector thread and
+ * take precedence over broker messages. They are marked with the
+ * {@link PeerTransport#PEER_DELIVERY_FIELD} so acknowledgements can be
+ * routed correctly; there is no broker to acknowledge, so peer messages are
+ * simply dropped on acknowledgement and placed back in the local queue on
+ * negative acknowledgement.</p>
+ *
+ * <p>The local queue holds no more peer messages than the buffer size given
+ * to {@link #consume(int)}, or {@link #DEFAULT_CAPACITY} for a polling
+ * consumer. While it is full the peer transport stops reading from the
+ * connection the next message arrived on, so TCP flow control holds the
+ * sending peer back, and it resumes reading once a message is taken.</p>
+ */
+public class PeerQueue implements MessageQueue {
+
+  /**
+   * How long to wait on peer messages before checking the broker again
+   */
+  private static final long POLL_SLICE = 10;
+
+  /**
+   * Peer messages held for a consumer which does not set a buffer size,
+   * the same as the default service buffer size
+   */
+  static final int DEFAULT_CAPACITY = 64;
+
+  private final MessageQueue delegate;
+  private final Runnable drained;
+  private final PriorityMessageBuffer local = new PriorityMessageBuffer(DEFAULT_CAPACITY);
+  private final List<Thread> dispatchers = new CopyOnWriteArrayList<>();
+  private volatile boolean consuming = false;
+  private volatile boolean open = true;
+  private volatile boolean full = false;
+
+
+  public PeerQueue(MessageQueue delegate) {
+    this(delegate, null);
+  }
+
+
+  /**
+   * @param delegate the broker queue
+   * @param drained  called when a message is taken from the full local queue, may be null
+   */
+  PeerQueue(MessageQueue delegate, Runnable drained) {
+    this.delegate = delegate;
+    this.drained = drained;
+  }
+
+
+  /**
+   * Place a message received from a peer in this queue.
+   *
+   * @param message the message received from the peer
+   * @return false if the queue is full and the message was not accepted
+   */
+  boolean deliver(Message message) {
+    message.put(PeerTransport.PEER_DELIVERY_FIELD, true);
+    if (local.offer(message)) {
+      return true;
+    }
+    full = true;
+    if (local.offer(message)) {
+      // a consumer made room before it could see the queue was full
+      return true;
+    }
+    message.remove(PeerTransport.PEER_DELIVERY_FIELD);
+    return false;
+  }
+
+
+  /**
+   * Tell the transport there is room again after a message was taken from
+   * the local queue while it was full.
+   */
+  private Message taken(Message message) {
+    if (message != null && full) {
+      full = false;
+      if (drained != null) {
+        drained.run();
+      }
+    }
+    return message;
+  }
+
+
+  @Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+
+  @Override
+  public void setName(String name) {
+    delegate.setName(name);
+  }
+
+
+  @Override
+  public Message getNextMessage() {
+    Message retval = taken(local.poll());
+    if (retval == null) {
+      retval = delegate.getNextMessage();
+    }
+    return retval;
+  }
+
+
+  /**
+   * Wait for the next message from either a peer or the broker.
+   *
+   * <p>When the underlying queue is consuming, its buffer is checked between
+   * short waits on the peer queue. Otherwise the broker is polled once and
+   * the remainder of the time is spent waiting on peers, so an idle service
+   * does not flood the broker with requests.</p>
+   */
+  @Override
+  public Message getNextMessage(long timeout) {
+    Message retval = getNextMessage();
+    if (retval == null && timeout > 0) {
+      try {
+        if (consuming) {
+          long deadline = System.currentTimeMillis() + timeout;
+          long remaining = timeout;
+          while (retval == null && remaining > 0) {
+            retval = taken(local.poll(Math.min(remaining, POLL_SLICE), TimeUnit.MILLISECONDS));
+            if (retval == null) {
+              retval = delegate.getNextMessage();
+            }
+            remaining = deadline - System.currentTimeMillis();
+          }
+        } else {
+          retval = taken(local.poll(timeout, TimeUnit.MILLISECONDS));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return retval;
+  }
+
+
+  @Override
+  public void consume(int capacity) {
+    delegate.consume(capacity);
+    if (capacity > 0) {
+      local.setCapacity(capacity);
+    }
+    consuming = true;
+  }
+
+
+  @Override
+  public void setPrefetch(int count) {
+    delegate.setPrefetch(count);
+  }
+
+
+  @Override
+  public void setAckBatch(int size, long delay) {
+    delegate.setAckBatch(size, delay);
+  }
+
+
+  @Override
+  public Message peek() {
+    Message retval = local.peek();
+    return retval != null ? retval : delegate.peek();
+  }
+
+
+  @Override
+  public Message peek(long timeout) {
+    Message retval = local.peek();
+    return retval != null ? retval : delegate.peek(timeout);
+  }
+
+
+  /**
+   * Attach the listener to the broker queue and start a daemon thread
+   * delivering peer messages to it.
+   */
+  @Override
+  public void attach(MessageListener listener) {
+    if (listener != null) {
+      delegate.attach(listener);
+      Thread dispatcher = new Thread(() -> dispatch(listener), "PeerQueue-" + getName());
+      dispatcher.setDaemon(true);
+      dispatchers.add(dispatcher);
+      dispatcher.start();
+    }
+  }
+
+
+  @Override
+  public void ackDelivery(Message message) {
+    if (!message.contains(PeerTransport.PEER_DELIVERY_FIELD)) {
+      delegate.ackDelivery(message);
+    }
+  }
+
+
+  @Override
+  public void nakDelivery(Message message) {
+    if (message.contains(PeerTransport.PEER_DELIVERY_FIELD)) {
+      requeue(message);
+    } else {
+      delegate.nakDelivery(message);
+    }
+  }
+
+
+  @Override
+  public void send(Message message) throws IOException {
+    delegate.send(message);
+  }
+
+
+  /**
+   * Stop the peer dispatch threads.
+   */
+  void close() {
+    open = false;
+    for (Thread dispatcher : dispatchers) {
+      dispatcher.interrupt();
+    }
+    dispatchers.clear();
+  }
+
+
+  /**
+   * Put a peer message back in the local queue, or send it to the group
+   * through the broker if the local queue has filled up in the meantime.
+   */
+  private void requeue(Message message) {
+    if (!local.offer(message)) {
+      message.remove(PeerTransport.PEER_DELIVERY_FIELD);
+      try {
+        delegate.send(message);
+      } catch (IOException e) {
+        Log.error("Could not requeue peer message for " + message.getGroup() + " - Reason: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+
+  private void dispatch(MessageListener listener) {
+    while (open && !Thread.currentThread().isInterrupted()) {
+      try {
+        Message message = taken(local.take());
+        try {
+          listener.onMessage(message);
+        } catch (Exception e) {
+          requeue(message);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,798 @@
+package coyote.kestrel.transport.peer;
+
+import coyote.commons.StringUtil;
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.i13n.StatBoard;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.BufferPool;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.kestrel.transport.Transport;
+import coyote.loader.log.Log;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A transport which sends requests and responses directly between Kestrel
+ * nodes over TCP, bypassing the broker.
+ *
+ * <p>This decorates another transport (usually AMQP) which is still used for
+ * topics, for discovery and whenever no peer is available. Each peer
+ * transport listens on a TCP port and stamps that port into the service
+ * heartbeats it broadcasts. Other peer transports learn from those
+ * heartbeats which nodes serve which groups and send direct messages for
+ * those groups straight to one of them, removing the broker hops from both
+ * the request and the response.</p>
+ *
+ * <p>When a connection is opened, the connecting transport announces its
+ * inboxes so responses addressed to those inboxes are returned over the same
+ * connection. All sockets are non-blocking and serviced by a single selector
+ * thread. Connections to peers are opened by that thread too, so a sender
+ * never waits on an unreachable peer; messages sent while a connection is
+ * being opened are queued on it, and go through the broker instead if it
+ * cannot be opened.</p>
+ *
+ * <p>Every node sharing peer connections must be given the same secret.
+ * Each HELLO frame carries a signature of a fresh nonce and the time made
+ * with that secret, and a connection whose HELLO is missing, stale, replayed
+ * or wrongly signed is closed before any message on it is read. Without a
+ * secret the transport does not listen or connect and everything goes
+ * through the broker. The secret authenticates peers but does not encrypt
+ * the traffic between them. The listening socket is bound to the advertised
+ * host unless a bind address is given. Messages from a peer for a group
+ * this node does not serve are dropped, and a peer may only route replies
+ * for inboxes it announced whose names are inbox identifiers.</p>
+ *
+ * <p>Messages sent to a peer do not pass through a durable broker queue. If
+ * the peer fails before processing a message, that message is lost rather
+ * than redelivered to another instance.</p>
+ */
+public class PeerTransport implements Transport {
+
+  /**
+   * URI parameter enabling the peer transport on the given port, 0 for any free port
+   */
+  public static final String PEER_PORT_PARAM = "peerPort";
+
+  /**
+   * URI parameter setting the address advertised to peers
+   */
+  public static final String PEER_HOST_PARAM = "peerHost";
+
+  /**
+   * URI parameter setting the address on which to accept peer connections,
+   * the advertised host if not given
+   */
+  public static final String PEER_BIND_PARAM = "peerBind";
+
+  /**
+   * URI parameter setting the secret shared by all peers
+   */
+  public static final String PEER_SECRET_PARAM = "peerSecret";
+
+  /**
+   * URI parameter setting how long (ms) a peer is used after its last heartbeat
+   */
+  public static final String PEER_EXPIRY_PARAM = "peerExpiry";
+
+  public static final long DEFAULT_PEER_EXPIRY = 180000;
+
+  /**
+   * Marks messages which arrived directly from a peer rather than the broker
+   */
+  public static final String PEER_DELIVERY_FIELD = "P2P_DLVRY";
+
+  static final String PEER_PORT_FIELD = "PeerPort";
+  static final String PEER_HOST_FIELD = "PeerHost";
+  static final String PEER_NODE_FIELD = "PeerNode";
+
+  private static final String INBOX_FIELD = "Inbox";
+  private static final String NONCE_FIELD = "Nonce";
+  private static final String TIME_FIELD = "Time";
+  private static final String SIGNATURE_FIELD = "Signature";
+  private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+  /**
+   * How far (ms) the time in a HELLO may be from ours; its nonce is
+   * remembered for twice as long so it cannot be replayed
+   */
+  private static final long HELLO_WINDOW = 300000;
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int CONNECT_CHECK_INTERVAL = 500;
+  private static final String SENT_COUNTER = "Peer.Sent";
+  private static final String RECEIVED_COUNTER = "Peer.Received";
+  private static final String FALLBACK_COUNTER = "Peer.Fallback";
+  private static final String DROPPED_COUNTER = "Peer.Dropped";
+  private static final String REJECTED_COUNTER = "Peer.Rejected";
+
+  private final Transport delegate;
+  private final String nodeId = UUID.randomUUID().toString();
+  private final Map<String, PeerQueue> queues = new ConcurrentHashMap<>();
+  private final Map<String, PeerQueue> inboxes = new ConcurrentHashMap<>();
+  private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+  private final Map<String, PeerConnection> replyRoutes = new ConcurrentHashMap<>();
+  private final Map<PeerConnection, PeerDirectory.PeerAddress> connecting = new ConcurrentHashMap<>();
+  private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+  private final Set<PeerConnection> paused = new HashSet<>();
+  private final BufferPool buffers = new BufferPool(true, BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT_POOL_SIZE);
+  private final Map<String, Long> nonces = new HashMap<>();
+  private int port;
+  private String advertisedHost = null;
+  private String bindHost = null;
+  private SecretKeySpec secret = null;
+  private long peerExpiry = DEFAULT_PEER_EXPIRY;
+  private StatBoard stats = null;
+  private EncodingOptions encoding = EncodingOptions.DEFAULT;
+  private PeerDirectory directory = null;
+  private Selector selector = null;
+  private ServerSocketChannel server = null;
+  private volatile boolean running = false;
+
+
+  /**
+   * @param delegate the transport used for topics, discovery and fall-back
+   * @param port     the port on which to accept peer connections, 0 for any free port
+   */
+  public PeerTransport(Transport delegate, int port) {
+    this.delegate = delegate;
+    this.port = port;
+  }
+
+
+  public Transport getDelegate() {
+    return delegate;
+  }
+
+
+  /**
+   * @return the port on which peer connections are accepted; the actual port once opened
+   */
+  public int getPort() {
+    return port;
+  }
+
+
+  /**
+   * Set the host name or address other peers should use to connect to us.
+   *
+   * <p>If not set, the IpAddress in the heartbeat is used.</p>
+   *
+   * @param host the advertised host
+   */
+  public void setAdvertisedHost(String host) {
+    advertisedHost = host;
+  }
+
+
+  /**
+   * Set the address on which to accept peer connections.
+   *
+   * <p>If not set, the advertised host is used, or the address of the local
+   * host if no host is advertised. Use 0.0.0.0 to accept connections on
+   * every interface.</p>
+   *
+   * @param host the address to bind
+   */
+  public void setBindHost(String host) {
+    bindHost = host;
+  }
+
+
+  /**
+   * Set the secret with which peers prove they belong to this deployment.
+   *
+   * <p>Every node must use the same secret. Without one the transport sends
+   * and receives everything through the broker.</p>
+   *
+   * @param secret the shared secret
+   */
+  public void setSecret(String secret) {
+    this.secret = StringUtil.isNotBlank(secret) ? new SecretKeySpec(StringUtil.getBytes(secret), SIGNATURE_ALGORITHM) : null;
+  }
+
+
+  public void setPeerExpiry(long millis) {
+    peerExpiry = millis;
+  }
+
+
+  public void setStatBoard(StatBoard stats) {
+    this.stats = stats;
+  }
+
+
+  /**
+   * Set the options with which messages sent directly to peers are
+   * encoded; messages through the broker use those of the delegate.
+   *
+   * @param options the encoding options, null for the defaults
+   */
+  public void setEncoding(EncodingOptions options) {
+    encoding = options != null ? options : EncodingOptions.DEFAULT;
+  }
+
+
+  public EncodingOptions getEncoding() {
+    return encoding;
+  }
+
+
+  @Override
+  public boolean isValid() {
+    return delegate.isValid();
+  }
+
+
+  @Override
+  public MessageQueue createInbox() {
+    PeerQueue retval = null;
+    MessageQueue inbox = delegate.createInbox();
+    if (inbox != null) {
+      retval = new PeerQueue(inbox, this::resume);
+      inboxes.put(retval.getName(), retval);
+      if (running) {
+        byte[] hello = hello();
+        for (PeerConnection connection : connections.values()) {
+          send(connection, PeerConnection.frame(PeerConnection.HELLO_FRAME, hello));
+        }
+      }
+    }
+    return retval;
+  }
+
+
+  @Override
+  public void open() {
+    delegate.open();
+    directory = new PeerDirectory(nodeId, peerExpiry);
+    if (secret == null) {
+      Log.error("No " + PEER_SECRET_PARAM + " given for the peer transport, using broker only");
+      return;
+    }
+    try {
+      String host = StringUtil.isNotBlank(bindHost) ? bindHost : StringUtil.isNotBlank(advertisedHost) ? advertisedHost : InetAddress.getLocalHost().getHostAddress();
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.configureBlocking(false);
+      server.bind(new InetSocketAddress(host, port));
+      port = server.socket().getLocalPort();
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      running = true;
+      Thread thread = new Thread(this::select, "PeerTransport-" + port);
+      thread.setDaemon(true);
+      thread.start();
+      Log.notice("Peer transport listening on " + host + ":" + port);
+    } catch (IOException e) {
+      Log.error("Could not open peer transport on port " + port + ", using broker only - Reason: " + e.getLocalizedMessage());
+    }
+    MessageTopic heartbeats = delegate.getTopic(KestrelProtocol.HEARTBEAT_GROUP);
+    if (heartbeats != null) {
+      heartbeats.attach(directory);
+    }
+  }
+
+
+  @Override
+  public void close() {
+    running = false;
+    for (PeerConnection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+    connecting.clear();
+    replyRoutes.clear();
+    for (PeerQueue queue : queues.values()) {
+      queue.close();
+    }
+    queues.clear();
+    for (PeerQueue queue : inboxes.values()) {
+      queue.close();
+    }
+    inboxes.clear();
+    if (selector != null) {
+      selector.wakeup();
+    }
+    try {
+      if (server != null) {
+        server.close();
+      }
+    } catch (IOException ignore) {
+      // closing anyway
+    }
+    delegate.close();
+  }
+
+
+  @Override
+  public MessageQueue getServiceQueue(String name) {
+    PeerQueue retval = null;
+    MessageQueue queue = delegate.getServiceQueue(name);
+    if (queue != null) {
+      retval = new PeerQueue(queue, this::resume);
+      queues.put(name, retval);
+    }
+    return retval;
+  }
+
+
+  @Override
+  public MessageTopic getTopic(String name) {
+    return delegate.getTopic(name);
+  }
+
+
+  /**
+   * Send the message to a peer if one is known for its group, otherwise
+   * through the broker.
+   *
+   * <p>Responses addressed to an inbox announced on an incoming connection
+   * return on that connection. Requests go to a peer discovered through its
+   * heartbeats.</p>
+   */
+  @Override
+  public void sendDirect(Message message) throws IOException {
+    String group = message.getGroup();
+    if (StringUtil.isNotBlank(group) && running) {
+      PeerConnection connection = replyRoutes.get(group);
+      if (connection == null || !connection.isOpen()) {
+        PeerDirectory.PeerAddress peer = directory.select(group);
+        connection = (peer != null) ? connect(peer) : null;
+      }
+      if (connection != null && send(connection, PeerConnection.frame(message, buffers, encoding))) {
+        increase(SENT_COUNTER);
+        return;
+      }
+      if (connection != null) {
+        increase(FALLBACK_COUNTER);
+      }
+    }
+    delegate.sendDirect(message);
+  }
+
+
+  /**
+   * Broadcast through the broker, adding our peer address to our own service
+   * heartbeats so other nodes can discover us.
+   */
+  @Override
+  public void broadcast(Message message) throws IOException {
+    if (running && KestrelProtocol.HEARTBEAT_GROUP.equals(message.getGroup()) && KestrelProtocol.HEARTBEAT_TYPE.equals(message.getType())) {
+      DataFrame payload = message.getPayload();
+      if (payload.contains(PeerDirectory.GROUP_NAME_FIELD)) {
+        payload.put(PEER_PORT_FIELD, port);
+        payload.put(PEER_NODE_FIELD, nodeId);
+        if (StringUtil.isNotBlank(advertisedHost)) {
+          payload.put(PEER_HOST_FIELD, advertisedHost);
+        }
+        message.setPayload(payload);
+      }
+    }
+    delegate.broadcast(message);
+  }
+
+
+  /**
+   * Retrieve or start opening the connection to the given peer.
+   *
+   * <p>The connection is opened without blocking and finished by the
+   * selector thread. Frames may be sent on it straight away; they are
+   * written once it is established.</p>
+   *
+   * @return the connection or null if the peer could not be reached
+   */
+  private PeerConnection connect(PeerDirectory.PeerAddress peer) {
+    String name = peer.toString();
+    PeerConnection retval = connections.get(name);
+    if (retval == null || !retval.isOpen()) {
+      synchronized (connections) {
+        retval = connections.get(name);
+        if (retval == null || !retval.isOpen()) {
+          retval = null;
+          SocketChannel channel = null;
+          try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(new InetSocketAddress(InetAddress.getByName(peer.getHost()), peer.getPort()));
+            retval = new PeerConnection(channel, name, buffers, connected);
+            // we chose this peer from the heartbeats; it still has to authenticate its own HELLOs
+            retval.setAuthenticated();
+            if (!connected) {
+              connecting.put(retval, peer);
+            }
+            retval.send(PeerConnection.frame(PeerConnection.HELLO_FRAME, hello()));
+            connections.put(name, retval);
+            register(retval, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+          } catch (IOException e) {
+            Log.warn("Could not connect to peer " + name + " - Reason: " + e.getLocalizedMessage());
+            peer.failed();
+            if (retval != null) {
+              connecting.remove(retval);
+              retval.close();
+            } else if (channel != null) {
+              try {
+                channel.close();
+              } catch (IOException ignore) {
+                // already failed
+              }
+            }
+            retval = null;
+          }
+        }
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Called on the selector thread when a connection being opened is ready
+   * to connect.
+   */
+  private void finishConnect(PeerConnection connection) {
+    try {
+      if (connection.finishConnect()) {
+        connecting.remove(connection);
+        Log.debug("Connected to peer " + connection);
+      }
+    } catch (IOException e) {
+      connectFailed(connection, e.getLocalizedMessage());
+    }
+  }
+
+
+  /**
+   * Give up on connections which have not been established in time.
+   */
+  private void expireConnects() {
+    long expired = System.currentTimeMillis() - CONNECT_TIMEOUT;
+    for (PeerConnection connection : connecting.keySet()) {
+      if (connection.getOpened() < expired) {
+        connectFailed(connection, "connect timed out");
+      }
+    }
+  }
+
+
+  /**
+   * Close a connection which could not be established and send the messages
+   * queued on it through the broker instead.
+   */
+  private void connectFailed(PeerConnection connection, String reason) {
+    PeerDirectory.PeerAddress peer = connecting.remove(connection);
+    if (peer != null) {
+      peer.failed();
+    }
+    Log.warn("Could not connect to peer " + connection + " - Reason: " + reason);
+    List<ByteBuffer> unsent = connection.abandon();
+    disconnect(connection);
+    for (ByteBuffer frame : unsent) {
+      if (frame.get(4) == PeerConnection.MESSAGE_FRAME) {
+        byte[] body = new byte[frame.limit() - PeerConnection.HEADER_SIZE];
+        frame.position(PeerConnection.HEADER_SIZE);
+        frame.get(body);
+        Message message = new Message();
+        message.merge(MessageCodec.decode(body));
+        increase(FALLBACK_COUNTER);
+        try {
+          delegate.sendDirect(message);
+        } catch (IOException e) {
+          Log.error("Could not send message for " + message.getGroup() + " to broker - Reason: " + e.getLocalizedMessage());
+        }
+      }
+      buffers.release(frame);
+    }
+  }
+
+
+  /**
+   * @return a signed HELLO frame body listing our inboxes
+   */
+  private byte[] hello() {
+    return hello(inboxes.keySet());
+  }
+
+
+  /**
+   * @param names the inboxes to announce
+   * @return a signed HELLO frame body listing the inboxes
+   */
+  byte[] hello(Collection<String> names) {
+    DataFrame frame = new DataFrame();
+    for (String inbox : names) {
+      frame.add(INBOX_FIELD, inbox);
+    }
+    String nonce = UUID.randomUUID().toString();
+    long time = System.currentTimeMillis();
+    frame.put(NONCE_FIELD, nonce);
+    frame.put(TIME_FIELD, time);
+    frame.put(SIGNATURE_FIELD, sign(nonce, time));
+    return MessageCodec.encode(frame);
+  }
+
+
+  private String sign(String nonce, long time) {
+    try {
+      Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+      mac.init(secret);
+      return Base64.getEncoder().encodeToString(mac.doFinal(StringUtil.getBytes(nonce + ":" + time)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Cannot sign peer HELLO frames", e);
+    }
+  }
+
+
+  /**
+   * Check the signature of a HELLO frame and that it is neither stale nor a
+   * replay of one already seen.
+   *
+   * <p>Called on the selector thread only.</p>
+   */
+  private boolean isAuthentic(DataFrame hello) {
+    String nonce = hello.getAsString(NONCE_FIELD);
+    String signature = hello.getAsString(SIGNATURE_FIELD);
+    long time;
+    try {
+      time = hello.getAsLong(TIME_FIELD);
+    } catch (DataFrameException e) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (nonce == null || signature == null || Math.abs(now - time) > HELLO_WINDOW) {
+      return false;
+    }
+    if (!MessageDigest.isEqual(StringUtil.getBytes(sign(nonce, time)), StringUtil.getBytes(signature))) {
+      return false;
+    }
+    nonces.values().removeIf(seen -> now - seen > HELLO_WINDOW * 2);
+    return nonces.putIfAbsent(nonce, now) == null;
+  }
+
+
+  private boolean send(PeerConnection connection, ByteBuffer frame) {
+    try {
+      connection.send(frame);
+      return true;
+    } catch (IOException e) {
+      Log.warn("Could not send to peer " + connection + " - Reason: " + e.getLocalizedMessage());
+      disconnect(connection);
+      return false;
+    }
+  }
+
+
+  private void register(PeerConnection connection, int ops) {
+    selectorTasks.add(() -> {
+      try {
+        connection.setKey(connection.getChannel().register(selector, ops, connection));
+      } catch (IOException e) {
+        if (connecting.containsKey(connection)) {
+          connectFailed(connection, e.getLocalizedMessage());
+        } else {
+          disconnect(connection);
+        }
+      }
+    });
+    selector.wakeup();
+  }
+
+
+  private void disconnect(PeerConnection connection) {
+    connection.close();
+    paused.remove(connection);
+    connecting.remove(connection);
+    connections.remove(connection.getName(), connection);
+    for (String inbox : connection.getInboxes()) {
+      replyRoutes.remove(inbox, connection);
+    }
+  }
+
+
+  /**
+   * The selector loop accepting and opening connections, reading frames and
+   * finishing writes the sending threads could not complete.
+   */
+  private void select() {
+    while (running) {
+      try {
+        selector.select(connecting.isEmpty() ? 0 : CONNECT_CHECK_INTERVAL);
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+          task.run();
+        }
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            PeerConnection connection = (PeerConnection) key.attachment();
+            if (key.isConnectable()) {
+              finishConnect(connection);
+              continue;
+            }
+            try {
+              if (key.isReadable() && !connection.read(this::onFrame)) {
+                disconnect(connection);
+                continue;
+              }
+              if (connection.isPaused()) {
+                paused.add(connection);
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.flush();
+              }
+            } catch (IOException e) {
+              Log.debug("Peer connection " + connection + " failed - Reason: " + e.getLocalizedMessage());
+              disconnect(connection);
+            }
+          }
+        }
+        if (!connecting.isEmpty()) {
+          expireConnects();
+        }
+      } catch (Exception e) {
+        Log.error("Peer transport selector error: " + e.getLocalizedMessage());
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException ignore) {
+      // shutting down
+    }
+  }
+
+
+  /**
+   * Called by a peer queue when a consumer takes a message from it after it
+   * refused one, so the selector thread resumes reading the connections
+   * which were paused for lack of room.
+   */
+  private void resume() {
+    selectorTasks.add(() -> {
+      for (Iterator<PeerConnection> it = paused.iterator(); it.hasNext(); ) {
+        PeerConnection connection = it.next();
+        try {
+          connection.resume(this::onFrame);
+          if (!connection.isPaused()) {
+            it.remove();
+          }
+        } catch (IOException e) {
+          Log.debug("Peer connection " + connection + " failed - Reason: " + e.getLocalizedMessage());
+          it.remove();
+          disconnect(connection);
+        }
+      }
+    });
+    Selector current = selector;
+    if (current != null) {
+      current.wakeup();
+    }
+  }
+
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      PeerConnection connection = new PeerConnection(channel, String.valueOf(channel.getRemoteAddress()), buffers);
+      connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+    }
+  }
+
+
+  /**
+   * Called on the selector thread for each complete frame received.
+   *
+   * <p>Nothing is accepted from a peer until it has sent an authentic
+   * HELLO, and every later HELLO must be authentic too.</p>
+   *
+   * @return false if the queue for the message is full, pausing the connection until it drains
+   * @throws IOException if the peer failed to authenticate, closing the connection
+   */
+  private boolean onFrame(PeerConnection connection, byte type, byte[] body) throws IOException {
+    if (type == PeerConnection.HELLO_FRAME) {
+      DataFrame frame = MessageCodec.decode(body);
+      if (!isAuthentic(frame)) {
+        increase(REJECTED_COUNTER);
+        Log.warn("Rejected HELLO from peer " + connection);
+        throw new IOException("Peer " + connection + " did not authenticate");
+      }
+      connection.setAuthenticated();
+      for (int x = 0; x < frame.getFieldCount(); x++) {
+        DataField field = frame.getField(x);
+        if (INBOX_FIELD.equals(field.getName()) && field.getObjectValue() != null) {
+          route(connection, field.getObjectValue().toString());
+        }
+      }
+    } else if (!connection.isAuthenticated()) {
+      increase(REJECTED_COUNTER);
+      Log.warn("Rejected frame from unauthenticated peer " + connection);
+      throw new IOException("Peer " + connection + " did not authenticate");
+    } else if (type == PeerConnection.MESSAGE_FRAME) {
+      Message message = new Message();
+      message.merge(MessageCodec.decode(body));
+      String group = message.getGroup();
+      PeerQueue queue = (group != null) ? inboxes.get(group) : null;
+      if (queue == null && group != null) {
+        queue = queues.get(group);
+      }
+      if (queue != null) {
+        if (!queue.deliver(message)) {
+          return false;
+        }
+        increase(RECEIVED_COUNTER);
+      } else {
+        // peers only send what we announced, so this is stale or not from a peer at all
+        increase(RECEIVED_COUNTER);
+        increase(DROPPED_COUNTER);
+        Log.debug("Dropped peer message for " + group + " from " + connection + "; no such group here");
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Return replies for an inbox announced by a peer over its connection.
+   *
+   * <p>Only inbox identifiers are accepted, so a peer cannot capture the
+   * messages sent to a service group, and an inbox already routed over
+   * another open connection keeps its route.</p>
+   */
+  private void route(PeerConnection connection, String inbox) {
+    try {
+      UUID.fromString(inbox);
+    } catch (IllegalArgumentException e) {
+      Log.warn("Ignored inbox " + inbox + " announced by peer " + connection);
+      return;
+    }
+    PeerConnection existing = replyRoutes.putIfAbsent(inbox, connection);
+    if (existing != null && existing != connection) {
+      if (existing.isOpen() || !replyRoutes.replace(inbox, existing, connection)) {
+        Log.warn("Ignored inbox " + inbox + " announced by peer " + connection + "; already routed over " + existing);
+        return;
+      }
+    }
+    connection.getInboxes().add(inbox);
+  }
+
+
+  private void increase(String counter) {
+    if (stats != null) {
+      stats.increase(counter);
+    }
+  }
+
+}
@@ -0,0 +1,276 @@
+package coyote.kestrel.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single-producer, single-consumer ring buffer in a memory-mapped file.
+ *
+ * <p>The producer and consumer may be in different processes. Each only
+ * ever writes its own position in the header; the producer publishes new
+ * records with an ordered write of its tail position after the record is
+ * written, and the consumer releases space with an ordered write of its
+ * head position after the record is read. No locks or system calls are
+ * involved in moving a record from one process to another.</p>
+ *
+ * <p>The consumer closes the ring by setting the top bit of the tail
+ * position. The producer publishes its tail with a compare-and-swap which
+ * fails once that bit is set, so every record is either published before
+ * the ring is closed, and can still be drained by the consumer, or refused
+ * and sent elsewhere by the producer.</p>
+ *
+ * <p>Records are a four byte length followed by the record bytes, aligned
+ * to eight bytes. A record which does not fit before the end of the ring is
+ * preceded by a padding marker and written at the start.</p>
+ *
+ * <p>The file is laid out as follows; head and tail are on separate cache
+ * lines so the producer and consumer do not contend for them:</p>
+ * <pre>
+ *   0  capacity (long)
+ *  64  head (long, written by the consumer)
+ * 128  tail (long, written by the producer, top bit set by the consumer when closed)
+ * 192  records...
+ * </pre>
+ */
+public class MappedRing {
+
+  static final int HEADER_SIZE = 192;
+  private static final int CAPACITY_OFFSET = 0;
+  private static final int HEAD_OFFSET = 64;
+  private static final int TAIL_OFFSET = 128;
+  private static final int LENGTH_SIZE = 4;
+  private static final int PADDING = -1;
+  private static final long CLOSED = Long.MIN_VALUE;
+
+  private final File file;
+  private final MappedByteBuffer buffer; // keeps the mapping alive
+  private final long address;
+  private final long capacity;
+  private final long mask;
+  private long head; // consumer position; only used by the consumer
+  private long tail; // producer position; only used by the producer
+  private long cachedHead; // last head seen by the producer
+  private long cachedTail; // last tail seen by the consumer
+
+
+  private MappedRing(File file, MappedByteBuffer buffer, long capacity) {
+    this.file = file;
+    this.buffer = buffer;
+    this.address = UnsafeAccess.address(buffer);
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.head = UnsafeAccess.getLongVolatile(address + HEAD_OFFSET);
+    this.tail = UnsafeAccess.getLongVolatile(address + TAIL_OFFSET) & ~CLOSED;
+    this.cachedHead = head;
+    this.cachedTail = tail;
+  }
+
+
+  /**
+   * @return true if this runtime allows the direct memory access the ring requires
+   */
+  public static boolean isSupported() {
+    return UnsafeAccess.isSupported();
+  }
+
+
+  /**
+   * Create a new ring file.
+   *
+   * <p>The ring is created under a temporary name and renamed into place
+   * once its header is written so a consumer never sees a partial file.</p>
+   *
+   * @param file     the name of the ring file
+   * @param capacity the number of bytes available for records; rounded up to a power of two
+   * @return the producer's view of the ring
+   * @throws IOException if the file could not be created or mapped
+   */
+  public static MappedRing create(File file, int capacity) throws IOException {
+    if (!isSupported()) {
+      throw new IOException("Direct memory access is not available in this runtime");
+    }
+    long size = Long.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+    File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+    MappedByteBuffer map;
+    try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+      raf.setLength(HEADER_SIZE + size);
+      map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size);
+    }
+    map.putLong(CAPACITY_OFFSET, size);
+    map.force();
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not create ring file " + file);
+    }
+    return new MappedRing(file, map, size);
+  }
+
+
+  /**
+   * Open an existing ring file.
+   *
+   * @param file the ring file
+   * @return the consumer's view of the ring
+   * @throws IOException if the file could not be mapped
+   */
+  public static MappedRing open(File file) throws IOException {
+    if (!isSupported()) {
+      throw new IOException("Direct memory access is not available in this runtime");
+    }
+    MappedByteBuffer map;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+    long size = map.getLong(CAPACITY_OFFSET);
+    if (size <= 0 || Long.bitCount(size) != 1 || size + HEADER_SIZE != map.capacity()) {
+      throw new IOException("Invalid ring file " + file);
+    }
+    return new MappedRing(file, map, size);
+  }
+
+
+  public File getFile() {
+    return file;
+  }
+
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+
+  /**
+   * Write a record to the ring.
+   *
+   * <p>Only one thread may call this at a time.</p>
+   *
+   * @param data the record
+   * @return false if there is not enough free space in the ring or it is closed
+   * @throws IllegalArgumentException if the record can never fit in the ring
+   */
+  public boolean offer(byte[] data) {
+    return offer(data, UnsafeAccess.BYTE_ARRAY_OFFSET, data.length);
+  }
+
+
+  /**
+   * Write the remaining bytes of the buffer to the ring as a record.
+   *
+   * <p>The bytes are copied straight from the buffer to the mapped file; the
+   * position of the buffer is not changed. Only one thread may call this at
+   * a time.</p>
+   *
+   * @param data the buffer holding the record between its position and limit
+   * @return false if there is not enough free space in the ring or it is closed
+   * @throws IllegalArgumentException if the record can never fit in the ring
+   */
+  public boolean offer(ByteBuffer data) {
+    if (data.isDirect()) {
+      return offer(null, UnsafeAccess.address(data) + data.position(), data.remaining());
+    } else {
+      return offer(data.array(), UnsafeAccess.BYTE_ARRAY_OFFSET + data.arrayOffset() + data.position(), data.remaining());
+    }
+  }
+
+
+  private boolean offer(Object base, long offset, int size) {
+    long length = align(LENGTH_SIZE + size);
+    if (length > capacity) {
+      throw new IllegalArgumentException("Record of " + size + " bytes exceeds ring capacity of " + capacity);
+    }
+    long index = tail & mask;
+    long toEnd = capacity - index;
+    long required = (length > toEnd) ? length + toEnd : length;
+    if (tail + required - cachedHead > capacity) {
+      cachedHead = UnsafeAccess.getLongVolatile(address + HEAD_OFFSET);
+      if (tail + required - cachedHead > capacity) {
+        return false;
+      }
+    }
+
+    long position = tail;
+    if (length > toEnd) {
+      UnsafeAccess.putInt(address + HEADER_SIZE + index, PADDING);
+      position += toEnd;
+      index = 0;
+    }
+    UnsafeAccess.putInt(address + HEADER_SIZE + index, size);
+    UnsafeAccess.copyMemory(base, offset, null, address + HEADER_SIZE + index + LENGTH_SIZE, size);
+    // fails if the consumer closed the ring, leaving the record unpublished
+    if (!UnsafeAccess.compareAndSwapLong(address + TAIL_OFFSET, tail, position + length)) {
+      return false;
+    }
+    tail = position + length;
+    return true;
+  }
+
+
+  /**
+   * Read the next record from the ring.
+   *
+   * <p>Only one thread may call this at a time.</p>
+   *
+   * @return the next record or null if the ring is empty
+   */
+  public byte[] poll() {
+    if (head == cachedTail) {
+      cachedTail = UnsafeAccess.getLongVolatile(address + TAIL_OFFSET) & ~CLOSED;
+      if (head == cachedTail) {
+        return null;
+      }
+    }
+
+    long index = head & mask;
+    int length = UnsafeAccess.getInt(address + HEADER_SIZE + index);
+    if (length == PADDING) {
+      head += capacity - index;
+      index = 0;
+      length = UnsafeAccess.getInt(address + HEADER_SIZE);
+    }
+    byte[] retval = new byte[length];
+    UnsafeAccess.copyMemory(null, address + HEADER_SIZE + index + LENGTH_SIZE, retval, UnsafeAccess.BYTE_ARRAY_OFFSET, length);
+    head += align(LENGTH_SIZE + length);
+    UnsafeAccess.putOrderedLong(address + HEAD_OFFSET, head);
+    return retval;
+  }
+
+
+  /**
+   * @return true if the producer has published records not yet read
+   */
+  public boolean isEmpty() {
+    return head == (UnsafeAccess.getLongVolatile(address + TAIL_OFFSET) & ~CLOSED);
+  }
+
+
+  /**
+   * Stop the producer publishing more records.
+   *
+   * <p>Called by the consumer. Records published before the ring was closed
+   * can still be read.</p>
+   */
+  public void close() {
+    long current;
+    do {
+      current = UnsafeAccess.getLongVolatile(address + TAIL_OFFSET);
+    } while ((current & CLOSED) == 0 && !UnsafeAccess.compareAndSwapLong(address + TAIL_OFFSET, current, current | CLOSED));
+  }
+
+
+  /**
+   * @return true if the consumer has closed the ring
+   */
+  public boolean isClosed() {
+    return (UnsafeAccess.getLongVolatile(address + TAIL_OFFSET) & CLOSED) != 0;
+  }
+
+
+  private static long align(long length) {
+    return (length + 7) & ~7L;
+  }
+
+}
@@ -0,0 +1,251 @@
+package coyote.kestrel.transport.shm;
+
+import coyote.loader.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The consumer side of a queue, inbox or topic subscription.
+ *
+ * <p>An endpoint is a directory in which every producer creates its own
+ * ring file, so each ring has exactly one producer and one consumer. The
+ * endpoint reads from all the rings in turn, picking up rings from new
+ * producers as they appear.</p>
+ *
+ * <p>The endpoint touches a marker file while it is in use. Producers stop
+ * sending to endpoints whose marker has not been touched recently, and new
+ * endpoints remove the directories of those which have been abandoned.</p>
+ *
+ * <p>Endpoints are not thread-safe; reads are serialized by the owner.</p>
+ */
+public class ShmEndpoint {
+
+  static final String ALIVE_FILE = "alive";
+  static final String RING_SUFFIX = ".ring";
+
+  /**
+   * How often the marker file is touched
+   */
+  static final long TOUCH_INTERVAL = 1000;
+
+  /**
+   * How long after the last touch an endpoint is considered gone
+   */
+  static final long STALE_INTERVAL = 5000;
+
+  /**
+   * How long after the last touch an abandoned endpoint is removed
+   */
+  private static final long ABANDONED_INTERVAL = 60000;
+
+  /**
+   * How often to look for rings from new producers
+   */
+  private static final long SCAN_INTERVAL = 100;
+
+  private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int SPINS = 100;
+
+  /**
+   * How many times to look for rings created while the endpoint is closing
+   */
+  private static final int CLOSE_ATTEMPTS = 10;
+
+  private final File directory;
+  private final File alive;
+  private final Map<String, MappedRing> rings = new HashMap<>();
+  private List<MappedRing> ringList = new ArrayList<>();
+  private int next = 0;
+  private long lastScan = 0;
+  private long lastTouch = 0;
+
+
+  /**
+   * Create a new endpoint directory.
+   *
+   * @param parent the directory of the queue or topic
+   * @param id     the unique identifier of this endpoint
+   * @throws IOException if the directory could not be created
+   */
+  public ShmEndpoint(File parent, String id) throws IOException {
+    removeAbandoned(parent);
+    directory = new File(parent, id);
+    if (!directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Could not create shared memory endpoint " + directory);
+    }
+    alive = new File(directory, ALIVE_FILE);
+    if (!alive.createNewFile() && !alive.exists()) {
+      throw new IOException("Could not create shared memory endpoint marker " + alive);
+    }
+    touch(System.currentTimeMillis());
+  }
+
+
+  /**
+   * @param directory the endpoint directory
+   * @return true if the endpoint in the directory has been touched recently
+   */
+  static boolean isLive(File directory) {
+    File marker = new File(directory, ALIVE_FILE);
+    return System.currentTimeMillis() - marker.lastModified() < STALE_INTERVAL;
+  }
+
+
+  public File getDirectory() {
+    return directory;
+  }
+
+
+  /**
+   * @return the next record from any producer or null if all rings are empty
+   */
+  public byte[] poll() {
+    long now = System.currentTimeMillis();
+    if (now - lastTouch >= TOUCH_INTERVAL) {
+      touch(now);
+    }
+    if (now - lastScan >= SCAN_INTERVAL) {
+      scan(now);
+    }
+    List<MappedRing> list = ringList;
+    int size = list.size();
+    for (int x = 0; x < size; x++) {
+      MappedRing ring = list.get(next++ % size);
+      byte[] retval = ring.poll();
+      if (retval != null) {
+        return retval;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Wait up to the given time for the next record.
+   *
+   * <p>There is nothing to signal a consumer in another process, so this
+   * spins briefly and then parks for progressively longer periods, up to a
+   * millisecond, between checks.</p>
+   *
+   * @param timeout the number of milliseconds to wait
+   * @return the next record or null if none arrived in time
+   */
+  public byte[] poll(long timeout) {
+    byte[] retval = poll();
+    if (retval == null && timeout > 0) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeout, Long.MAX_VALUE / 1000000));
+      long park = 1000;
+      int spins = 0;
+      while ((retval = poll()) == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+          break;
+        }
+        if (spins < SPINS) {
+          spins++;
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(Math.min(park, remaining));
+          park = Math.min(park << 1, MAX_PARK);
+        }
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * Remove this endpoint so producers stop sending to it.
+   *
+   * <p>Every ring is closed before it is drained, so a producer either
+   * published a record before the ring closed and it is returned here, or
+   * the producer is refused and sends the record elsewhere. Rings which
+   * producers create while the endpoint is closing keep the directory from
+   * being removed and are drained in turn.</p>
+   *
+   * @return the records which were sent to this endpoint but never read
+   */
+  public List<byte[]> close() {
+    List<byte[]> retval = new ArrayList<>();
+    alive.delete();
+    for (int attempt = 0; attempt < CLOSE_ATTEMPTS; attempt++) {
+      scan(System.currentTimeMillis());
+      for (MappedRing ring : ringList) {
+        ring.close();
+        for (byte[] record = ring.poll(); record != null; record = ring.poll()) {
+          retval.add(record);
+        }
+      }
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          // a ring not yet drained is left for the next pass
+          if (!file.getName().endsWith(RING_SUFFIX) || rings.containsKey(file.getName())) {
+            file.delete();
+          }
+        }
+      }
+      if (directory.delete() || !directory.exists()) {
+        break;
+      }
+    }
+    rings.clear();
+    ringList = new ArrayList<>();
+    return retval;
+  }
+
+
+  private void touch(long now) {
+    if (!alive.setLastModified(now)) {
+      Log.debug("Could not touch shared memory endpoint marker " + alive);
+    }
+    lastTouch = now;
+  }
+
+
+  private void scan(long now) {
+    lastScan = now;
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(RING_SUFFIX));
+    if (files != null && files.length != rings.size()) {
+      for (File file : files) {
+        if (!rings.containsKey(file.getName())) {
+          try {
+            rings.put(file.getName(), MappedRing.open(file));
+          } catch (IOException e) {
+            Log.error("Could not open shared memory ring " + file + " - Reason: " + e.getLocalizedMessage());
+          }
+        }
+      }
+      ringList = new ArrayList<>(rings.values());
+    }
+  }
+
+
+  private static void removeAbandoned(File parent) {
+    File[] endpoints = parent.listFiles(File::isDirectory);
+    if (endpoints != null) {
+      long now = System.currentTimeMillis();
+      for (File endpoint : endpoints) {
+        File marker = new File(endpoint, ALIVE_FILE);
+        // the directory time covers endpoints still being created
+        if (now - Math.max(marker.lastModified(), endpoint.lastModified()) > ABANDONED_INTERVAL) {
+          File[] files = endpoint.listFiles();
+          if (files != null) {
+            for (File file : files) {
+              file.delete();
+            }
+          }
+          endpoint.delete();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,249 @@
+package coyote.kestrel.transport.shm;
+
+import coyote.dataframe.DataFrameException;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.loader.log.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A service queue or inbox consumer backed by shared memory rings.
+ *
+ * <p>Every consumer of a service queue has its own endpoint and producers
+ * spread messages across the live endpoints, which gives competing
+ * consumer semantics without the consumers sharing a ring. Messages which
+ * are negatively acknowledged are redelivered from a local queue. When the
+ * queue is closed, messages which were never acknowledged, and those still
+ * waiting in its rings, are sent back to the group so another consumer may
+ * receive them.</p>
+ */
+public class ShmQueue implements MessageQueue {
+
+  private static final long DISPATCH_WAIT = 100;
+
+  private final ShmTransport transport;
+  private final ShmEndpoint endpoint;
+  private final AtomicLong deliverySequence = new AtomicLong();
+  private final Map<Long, Message> unacknowledged = new ConcurrentHashMap<>();
+  private final Queue<Message> redelivery = new ConcurrentLinkedQueue<>();
+  private final List<Thread> dispatchers = new CopyOnWriteArrayList<>();
+  private volatile boolean open = true;
+  private String name;
+
+
+  public ShmQueue(ShmTransport transport, ShmEndpoint endpoint, String name) {
+    this.transport = transport;
+    this.endpoint = endpoint;
+    this.name = name;
+  }
+
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+
+  @Override
+  public void setName(String name) {
+    this.name = name;
+  }
+
+
+  @Override
+  public Message getNextMessage() {
+    Message retval = redelivery.poll();
+    if (retval == null) {
+      byte[] body;
+      synchronized (endpoint) {
+        body = endpoint.poll();
+      }
+      retval = decode(body);
+    }
+    return track(retval);
+  }
+
+
+  @Override
+  public Message getNextMessage(long timeout) {
+    Message retval = redelivery.poll();
+    if (retval == null) {
+      byte[] body;
+      synchronized (endpoint) {
+        body = endpoint.poll(timeout);
+      }
+      retval = decode(body);
+    }
+    return track(retval);
+  }
+
+
+  /**
+   * Consumers of shared memory queues already wait on the arrival of
+   * messages, so there is nothing to start.
+   *
+   * @param capacity ignored
+   */
+  @Override
+  public void consume(int capacity) {
+    // getNextMessage(timeout) already waits on the rings
+  }
+
+
+  /**
+   * Not applicable; producers are limited by the size of their ring.
+   */
+  @Override
+  public void setPrefetch(int count) {
+    // nothing to limit
+  }
+
+
+  /**
+   * Not applicable; there is no broker to acknowledge.
+   */
+  @Override
+  public void setAckBatch(int size, long delay) {
+    // nothing to batch
+  }
+
+
+  @Override
+  public Message peek() {
+    return null;
+  }
+
+
+  @Override
+  public Message peek(long timeout) {
+    return null;
+  }
+
+
+  @Override
+  public void attach(MessageListener listener) {
+    if (listener != null) {
+      Thread dispatcher = new Thread(() -> dispatch(listener), "ShmQueue-" + getName());
+      dispatcher.setDaemon(true);
+      dispatchers.add(dispatcher);
+      dispatcher.start();
+    }
+  }
+
+
+  @Override
+  public void ackDelivery(Message message) {
+    try {
+      unacknowledged.remove(message.getAsLong(ShmTransport.DELIVERY_ID_FIELD));
+    } catch (DataFrameException e) {
+      Log.error("Could not ACK delivery, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  @Override
+  public void nakDelivery(Message message) {
+    try {
+      Message original = unacknowledged.remove(message.getAsLong(ShmTransport.DELIVERY_ID_FIELD));
+      if (original != null) {
+        redelivery.offer(original);
+      }
+    } catch (DataFrameException e) {
+      Log.error("Could not NCK delivery, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  @Override
+  public void send(Message message) throws IOException {
+    message.setGroup(getName());
+    transport.sendDirect(message);
+  }
+
+
+  /**
+   * Stop the dispatch threads, remove the endpoint and return any messages
+   * not yet acknowledged or not yet read to the group.
+   */
+  public void close() {
+    open = false;
+    for (Thread dispatcher : dispatchers) {
+      dispatcher.interrupt();
+    }
+    dispatchers.clear();
+    List<byte[]> unread;
+    synchronized (endpoint) {
+      unread = endpoint.close();
+    }
+    transport.invalidate(ShmTransport.QUEUE_KIND, getName());
+    requeue(unacknowledged.values());
+    unacknowledged.clear();
+    requeue(redelivery);
+    redelivery.clear();
+    List<Message> messages = new ArrayList<>(unread.size());
+    for (byte[] body : unread) {
+      messages.add(decode(body));
+    }
+    requeue(messages);
+  }
+
+
+  private void requeue(Iterable<Message> messages) {
+    for (Message message : messages) {
+      message.remove(ShmTransport.DELIVERY_ID_FIELD);
+      try {
+        transport.sendDirect(message);
+      } catch (IOException e) {
+        Log.error("Could not requeue message for " + getName() + " - Reason: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+
+  private Message decode(byte[] body) {
+    Message retval = null;
+    if (body != null) {
+      retval = new Message();
+      retval.merge(MessageCodec.decode(body));
+      retval.setGroup(getName());
+    }
+    return retval;
+  }
+
+
+  private Message track(Message message) {
+    if (message != null) {
+      long deliveryId = deliverySequence.incrementAndGet();
+      message.put(ShmTransport.DELIVERY_ID_FIELD, deliveryId);
+      unacknowledged.put(deliveryId, message);
+    }
+    return message;
+  }
+
+
+  private void dispatch(MessageListener listener) {
+    while (open && !Thread.currentThread().isInterrupted()) {
+      Message message = getNextMessage(DISPATCH_WAIT);
+      if (message != null) {
+        try {
+          listener.onMessage(message);
+          ackDelivery(message);
+        } catch (Exception e) {
+          nakDelivery(message);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+package coyote.kestrel.transport.shm;
+
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.loader.log.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A topic carried over shared memory rings.
+ *
+ * <p>Each attached listener has its own endpoint under the topic directory
+ * and broadcasts are written to every live endpoint. Like the AMQP topic,
+ * deliveries are acknowledged automatically.</p>
+ */
+public class ShmTopic implements MessageTopic {
+
+  private static final long DISPATCH_WAIT = 100;
+
+  private final ShmTransport transport;
+  private final List<ShmEndpoint> endpoints = new CopyOnWriteArrayList<>();
+  private final List<Thread> dispatchers = new CopyOnWriteArrayList<>();
+  private volatile boolean open = true;
+  private String name;
+
+
+  public ShmTopic(ShmTransport transport, String name) {
+    this.transport = transport;
+    this.name = name;
+  }
+
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+
+  @Override
+  public void setName(String name) {
+    this.name = name;
+  }
+
+
+  @Override
+  public void attach(MessageListener listener) {
+    if (listener != null) {
+      try {
+        ShmEndpoint endpoint = transport.createEndpoint(ShmTransport.TOPIC_KIND, getName());
+        endpoints.add(endpoint);
+        Thread dispatcher = new Thread(() -> dispatch(endpoint, listener), "ShmTopic-" + getName());
+        dispatcher.setDaemon(true);
+        dispatchers.add(dispatcher);
+        dispatcher.start();
+      } catch (IOException e) {
+        Log.error("Problems attaching listener on topic " + getName() + " - Reason: " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+
+  @Override
+  public void ackDelivery(Message message) {
+    // topic deliveries are automatically acknowledged
+  }
+
+
+  @Override
+  public void nakDelivery(Message message) {
+    // topic deliveries are automatically acknowledged
+  }
+
+
+  @Override
+  public void send(Message message) throws IOException {
+    message.setGroup(getName());
+    transport.broadcast(message);
+  }
+
+
+  /**
+   * Stop the dispatch threads and remove the endpoints.
+   */
+  public void close() {
+    open = false;
+    for (Thread dispatcher : dispatchers) {
+      dispatcher.interrupt();
+    }
+    dispatchers.clear();
+    for (ShmEndpoint endpoint : endpoints) {
+      synchronized (endpoint) {
+        endpoint.close(); // broadcasts not yet read end with the subscription
+      }
+    }
+    endpoints.clear();
+  }
+
+
+  private void dispatch(ShmEndpoint endpoint, MessageListener listener) {
+    while (open && !Thread.currentThread().isInterrupted()) {
+      byte[] body;
+      synchronized (endpoint) {
+        body = endpoint.poll(DISPATCH_WAIT);
+      }
+      if (body != null) {
+        Message message = new Message();
+        message.merge(MessageCodec.decode(body));
+        message.setGroup(getName());
+        try {
+          listener.onMessage(message);
+        } catch (Exception e) {
+          Log.error("Message listener threw exception handling message on topic " + getName() + " - Reason: " + e.getLocalizedMessage());
+        }
+      }
+    }
+  }
+
+}
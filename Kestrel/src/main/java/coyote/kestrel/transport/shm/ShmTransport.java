@@ -0,0 +1,399 @@
+package coyote.kestrel.transport.shm;
+
+import coyote.commons.StringUtil;
+import coyote.kestrel.protocol.BufferPool;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.kestrel.transport.Transport;
+import coyote.loader.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transport between processes on the same host using memory-mapped
+ * files as single-producer, single-consumer ring buffers.
+ *
+ * <p>The transport root (by default {@code /dev/shm/kestrel}) holds a
+ * directory for each queue and topic. Each consumer of a queue, inbox or
+ * topic creates an endpoint directory below it and each producer creates
+ * its own ring file in every endpoint it sends to:</p>
+ * <pre>
+ *   &lt;root&gt;/queue/&lt;group&gt;/&lt;consumer&gt;/&lt;producer&gt;.ring
+ *   &lt;root&gt;/topic/&lt;group&gt;/&lt;consumer&gt;/&lt;producer&gt;.ring
+ * </pre>
+ *
+ * <p>Encoded messages are copied straight into the mapped memory of the
+ * ring and read straight out of it by the consumer, so they never pass
+ * through the socket stack. Direct messages are spread across the live
+ * consumers of the group; broadcasts are written to every live subscriber.
+ * Messages sent to a group with no live consumers are dropped, as they are
+ * by a broker exchange with no bound queue.</p>
+ */
+public class ShmTransport implements Transport {
+
+  public static final String DELIVERY_ID_FIELD = "SHM_DLVRY_ID";
+
+  /**
+   * URI parameter setting the size in bytes of each ring
+   */
+  public static final String RING_SIZE_PARAM = "ringSize";
+
+  /**
+   * URI parameter setting the milliseconds a producer waits for room in a full ring
+   */
+  public static final String SEND_TIMEOUT_PARAM = "sendTimeout";
+
+  public static final int DEFAULT_RING_SIZE = 1024 * 1024;
+  public static final long DEFAULT_SEND_TIMEOUT = 10000;
+
+  static final String QUEUE_KIND = "queue";
+  static final String TOPIC_KIND = "topic";
+
+  /**
+   * How often the list of consumers for a group is refreshed
+   */
+  private static final long ROUTE_REFRESH = 1000;
+  private static final long FULL_RING_PARK = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final File root;
+  private final String producerId = UUID.randomUUID().toString();
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+  private final Map<File, MappedRing> rings = new ConcurrentHashMap<>();
+  private final BufferPool buffers = new BufferPool(true, BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.DEFAULT_POOL_SIZE);
+  private final List<ShmQueue> queues = new CopyOnWriteArrayList<>();
+  private final List<ShmTopic> topics = new CopyOnWriteArrayList<>();
+  private int ringSize = DEFAULT_RING_SIZE;
+  private long sendTimeout = DEFAULT_SEND_TIMEOUT;
+  private EncodingOptions encoding = EncodingOptions.DEFAULT;
+  private volatile boolean open = false;
+
+
+  /**
+   * @param root the directory in which rings are created
+   */
+  public ShmTransport(String root) {
+    this.root = new File(StringUtil.isNotBlank(root) ? root : getDefaultRoot());
+  }
+
+
+  /**
+   * @return /dev/shm/kestrel where available, otherwise a directory in the temporary directory
+   */
+  public static String getDefaultRoot() {
+    File shm = new File("/dev/shm");
+    if (shm.isDirectory()) {
+      return new File(shm, "kestrel").getPath();
+    }
+    return new File(System.getProperty("java.io.tmpdir"), "kestrel").getPath();
+  }
+
+
+  public File getRoot() {
+    return root;
+  }
+
+
+  /**
+   * @param size the number of bytes in each ring this transport creates
+   */
+  public void setRingSize(int size) {
+    ringSize = size;
+  }
+
+
+  /**
+   * @param millis how long to wait for a consumer to make room in a full ring
+   */
+  public void setSendTimeout(long millis) {
+    sendTimeout = millis;
+  }
+
+
+  /**
+   * Set the options with which messages sent through this transport are
+   * encoded.
+   *
+   * @param options the encoding options, null for the defaults
+   */
+  public void setEncoding(EncodingOptions options) {
+    encoding = options != null ? options : EncodingOptions.DEFAULT;
+  }
+
+
+  public EncodingOptions getEncoding() {
+    return encoding;
+  }
+
+
+  @Override
+  public boolean isValid() {
+    return open;
+  }
+
+
+  @Override
+  public MessageQueue createInbox() {
+    return createQueue(UUID.randomUUID().toString());
+  }
+
+
+  @Override
+  public void open() {
+    if (!MappedRing.isSupported()) {
+      Log.error("Shared memory transport is not supported in this runtime");
+    } else if (!root.isDirectory() && !root.mkdirs()) {
+      Log.error("Could not create shared memory transport directory " + root);
+    } else {
+      open = true;
+    }
+  }
+
+
+  /**
+   * Close the queues and topics created by this transport.
+   *
+   * <p>Rings this transport produced into are left for their consumers to
+   * drain and remove.</p>
+   */
+  @Override
+  public void close() {
+    for (ShmQueue queue : queues) {
+      queue.close();
+    }
+    queues.clear();
+    for (ShmTopic topic : topics) {
+      topic.close();
+    }
+    topics.clear();
+    open = false;
+    routes.clear();
+    rings.clear();
+  }
+
+
+  @Override
+  public MessageQueue getServiceQueue(String name) {
+    return createQueue(name);
+  }
+
+
+  @Override
+  public MessageTopic getTopic(String name) {
+    ShmTopic retval = null;
+    if (open) {
+      retval = new ShmTopic(this, name);
+      topics.add(retval);
+    }
+    return retval;
+  }
+
+
+  @Override
+  public void sendDirect(Message message) throws IOException {
+    Route route = getRoute(QUEUE_KIND, message);
+    ByteBuffer body = MessageCodec.encode(message, buffers, 0, encoding);
+    try {
+      File[] consumers = route.getConsumers();
+      int start = route.next();
+      for (int x = 0; x < consumers.length; x++) {
+        File consumer = consumers[(start + x) % consumers.length];
+        if (write(consumer, body)) {
+          return;
+        }
+        route.invalidate();
+      }
+    } finally {
+      buffers.release(body);
+    }
+    Log.debug("No consumers for '" + message.getGroup() + "' in " + root + " - message dropped");
+  }
+
+
+  @Override
+  public void broadcast(Message message) throws IOException {
+    Route route = getRoute(TOPIC_KIND, message);
+    ByteBuffer body = MessageCodec.encode(message, buffers, 0, encoding);
+    try {
+      for (File consumer : route.getConsumers()) {
+        if (!write(consumer, body)) {
+          route.invalidate();
+        }
+      }
+    } finally {
+      buffers.release(body);
+    }
+  }
+
+
+  /**
+   * Create a consumer endpoint for the named queue or topic.
+   */
+  ShmEndpoint createEndpoint(String kind, String name) throws IOException {
+    ShmEndpoint retval = new ShmEndpoint(getDirectory(kind, name), UUID.randomUUID().toString());
+    Route route = routes.get(kind + "/" + name);
+    if (route != null) {
+      route.invalidate();
+    }
+    return retval;
+  }
+
+
+  /**
+   * Forget the consumers of the named queue or topic so they are listed
+   * again on the next send.
+   */
+  void invalidate(String kind, String name) {
+    Route route = routes.get(kind + "/" + name);
+    if (route != null) {
+      route.invalidate();
+    }
+  }
+
+
+  private ShmQueue createQueue(String name) {
+    ShmQueue retval = null;
+    if (open) {
+      try {
+        retval = new ShmQueue(this, createEndpoint(QUEUE_KIND, name), name);
+        queues.add(retval);
+      } catch (IOException e) {
+        Log.error("Could not create shared memory queue " + name + " - Reason: " + e.getLocalizedMessage());
+      }
+    }
+    return retval;
+  }
+
+
+  private Route getRoute(String kind, Message message) throws IOException {
+    if (!open) {
+      throw new IOException("Transport is not open");
+    }
+    String group = message.getGroup();
+    if (StringUtil.isBlank(group)) {
+      throw new IOException("No message group name specified in message");
+    }
+    return routes.computeIfAbsent(kind + "/" + group, key -> new Route(getDirectory(kind, group)));
+  }
+
+
+  private File getDirectory(String kind, String name) {
+    return new File(new File(root, kind), name.replace('/', '_').replace('\\', '_'));
+  }
+
+
+  /**
+   * Write the body to our ring in the consumer's endpoint, waiting while
+   * the ring is full.
+   *
+   * @return false if the consumer is gone
+   * @throws IOException if the ring stayed full or the message can never fit
+   */
+  private boolean write(File consumer, ByteBuffer body) throws IOException {
+    File file = new File(consumer, producerId + ShmEndpoint.RING_SUFFIX);
+    MappedRing ring = rings.get(file);
+    if (ring == null) {
+      synchronized (rings) {
+        ring = rings.get(file);
+        if (ring == null) {
+          if (!ShmEndpoint.isLive(consumer)) {
+            return false;
+          }
+          try {
+            ring = MappedRing.create(file, ringSize);
+          } catch (IOException e) {
+            Log.debug("Could not create ring in " + consumer + " - Reason: " + e.getLocalizedMessage());
+            return false;
+          }
+          rings.put(file, ring);
+        }
+      }
+    }
+
+    synchronized (ring) {
+      try {
+        if (!ring.offer(body)) {
+          long deadline = System.currentTimeMillis() + sendTimeout;
+          do {
+            if (ring.isClosed()) {
+              rings.remove(file);
+              return false;
+            }
+            if (System.currentTimeMillis() > deadline) {
+              if (!ShmEndpoint.isLive(consumer)) {
+                rings.remove(file);
+                return false;
+              }
+              throw new IOException("Shared memory ring " + file + " full after " + sendTimeout + "ms");
+            }
+            LockSupport.parkNanos(FULL_RING_PARK);
+          } while (!ring.offer(body));
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * The live consumer endpoints of a queue or topic.
+   */
+  private class Route {
+    private final File directory;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile File[] consumers = new File[0];
+    private volatile long refreshed = 0;
+
+
+    Route(File directory) {
+      this.directory = directory;
+    }
+
+
+    File[] getConsumers() {
+      long now = System.currentTimeMillis();
+      if (now - refreshed >= ROUTE_REFRESH) {
+        List<File> live = new ArrayList<>();
+        File[] endpoints = directory.listFiles(File::isDirectory);
+        if (endpoints != null) {
+          for (File endpoint : endpoints) {
+            if (ShmEndpoint.isLive(endpoint)) {
+              live.add(endpoint);
+            } else {
+              rings.remove(new File(endpoint, producerId + ShmEndpoint.RING_SUFFIX));
+            }
+          }
+        }
+        consumers = live.toArray(new File[0]);
+        refreshed = now;
+      }
+      return consumers;
+    }
+
+
+    int next() {
+      return next.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+
+    void invalidate() {
+      refreshed = 0;
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+package coyote.kestrel.transport.shm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * The direct memory operations the shared memory rings rely on.
+ *
+ * <p>Producers and consumers in different processes coordinate through
+ * ordered and atomic writes to the ring headers. Java 8 offers those on
+ * mapped memory only through {@code sun.misc.Unsafe}, so its use is kept to
+ * this class. Unsafe is found reflectively and its methods are bound to
+ * method handles held in static finals, which the JIT compiles to the same
+ * intrinsics as direct calls without the code referring to the internal
+ * API.</p>
+ */
+final class UnsafeAccess {
+
+  private static final MethodHandle GET_LONG;
+  private static final MethodHandle GET_INT;
+  private static final MethodHandle PUT_INT;
+  private static final MethodHandle GET_LONG_VOLATILE;
+  private static final MethodHandle PUT_ORDERED_LONG;
+  private static final MethodHandle COMPARE_AND_SWAP_LONG;
+  private static final MethodHandle COPY_MEMORY;
+  private static final long BUFFER_ADDRESS_OFFSET;
+
+  /**
+   * The offset of the first element of a byte array, for copying to and from arrays
+   */
+  static final long BYTE_ARRAY_OFFSET;
+
+  static {
+    MethodHandle getLong = null;
+    MethodHandle getInt = null;
+    MethodHandle putInt = null;
+    MethodHandle getLongVolatile = null;
+    MethodHandle putOrderedLong = null;
+    MethodHandle compareAndSwapLong = null;
+    MethodHandle copyMemory = null;
+    long addressOffset = -1;
+    long arrayOffset = 0;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      addressOffset = (long) lookup.findVirtual(type, "objectFieldOffset", methodType(long.class, Field.class)).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+      arrayOffset = (int) lookup.findVirtual(type, "arrayBaseOffset", methodType(int.class, Class.class)).invoke(unsafe, byte[].class);
+      getLong = lookup.findVirtual(type, "getLong", methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+      getInt = lookup.findVirtual(type, "getInt", methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+      putInt = lookup.findVirtual(type, "putInt", methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+      getLongVolatile = lookup.findVirtual(type, "getLongVolatile", methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+      putOrderedLong = lookup.findVirtual(type, "putOrderedLong", methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+      compareAndSwapLong = lookup.findVirtual(type, "compareAndSwapLong", methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+      copyMemory = lookup.findVirtual(type, "copyMemory", methodType(void.class, Object.class, long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+    } catch (Throwable ball) {
+      // not available on this runtime; copyMemory is assigned last, so it is still null
+    }
+    GET_LONG = getLong;
+    GET_INT = getInt;
+    PUT_INT = putInt;
+    GET_LONG_VOLATILE = getLongVolatile;
+    PUT_ORDERED_LONG = putOrderedLong;
+    COMPARE_AND_SWAP_LONG = compareAndSwapLong;
+    COPY_MEMORY = copyMemory;
+    BUFFER_ADDRESS_OFFSET = addressOffset;
+    BYTE_ARRAY_OFFSET = arrayOffset;
+  }
+
+
+  private UnsafeAccess() {
+  }
+
+
+  /**
+   * @return true if this runtime allows direct memory access
+   */
+  static boolean isSupported() {
+    return COPY_MEMORY != null;
+  }
+
+
+  /**
+   * @param buffer a direct buffer
+   * @return the address of the memory of the buffer
+   */
+  static long address(ByteBuffer buffer) {
+    try {
+      return (long) GET_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  static int getInt(long address) {
+    try {
+      return (int) GET_INT.invokeExact((Object) null, address);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  static void putInt(long address, int value) {
+    try {
+      PUT_INT.invokeExact((Object) null, address, value);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  static long getLongVolatile(long address) {
+    try {
+      return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  static void putOrderedLong(long address, long value) {
+    try {
+      PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  static boolean compareAndSwapLong(long address, long expected, long value) {
+    try {
+      return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expected, value);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  /**
+   * Copy bytes between arrays and memory; a null base makes the offset an address.
+   */
+  static void copyMemory(Object sourceBase, long sourceOffset, Object targetBase, long targetOffset, long length) {
+    try {
+      COPY_MEMORY.invokeExact(sourceBase, sourceOffset, targetBase, targetOffset, length);
+    } catch (Throwable ball) {
+      throw propagate(ball);
+    }
+  }
+
+
+  /**
+   * The handles declare Throwable but Unsafe throws nothing checked, so
+   * errors and runtime exceptions are passed on as they are.
+   */
+  private static RuntimeException propagate(Throwable ball) {
+    if (ball instanceof Error) {
+      throw (Error) ball;
+    }
+    if (ball instanceof RuntimeException) {
+      return (RuntimeException) ball;
+    }
+    return new IllegalStateException(ball);
+  }
+
+}
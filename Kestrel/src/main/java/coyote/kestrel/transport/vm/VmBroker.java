@@ -0,0 +1,122 @@
+package coyote.kestrel.transport.vm;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process message broker with a direct and a topic exchange.
+ *
+ * <p>Brokers are named and shared by every transport in the JVM connecting
+ * to the same name, which lets co-located services and proxies exchange
+ * messages without a network broker.</p>
+ *
+ * <p>The direct exchange routes a message to the queue with the same name as
+ * the message group. The topic exchange copies the message to every
+ * subscription bound to the message group. Like an AMQP broker, messages
+ * which cannot be routed are dropped.</p>
+ */
+public class VmBroker {
+
+  private static final Map<String, VmBroker> BROKERS = new ConcurrentHashMap<>();
+
+  private final String name;
+  private final Map<String, VmDestination> queues = new ConcurrentHashMap<>();
+  private final Map<String, List<VmDestination>> topics = new ConcurrentHashMap<>();
+
+
+  private VmBroker(String name) {
+    this.name = name;
+  }
+
+
+  /**
+   * Retrieve the broker with the given name, creating it if necessary.
+   *
+   * @param name the name of the broker
+   * @return the broker shared by everything in this JVM using that name
+   */
+  public static VmBroker getBroker(String name) {
+    return BROKERS.computeIfAbsent(name, VmBroker::new);
+  }
+
+
+  public String getName() {
+    return name;
+  }
+
+
+  /**
+   * Retrieve the queue with the given name, creating it if it does not exist.
+   *
+   * @param queueName the name of the queue
+   * @return the queue destination
+   */
+  public VmDestination declareQueue(String queueName) {
+    return queues.computeIfAbsent(queueName, VmDestination::new);
+  }
+
+
+  public void deleteQueue(String queueName) {
+    queues.remove(queueName);
+  }
+
+
+  /**
+   * Bind the given destination to a topic so it receives a copy of every
+   * message broadcast on it.
+   *
+   * @param topic        the name of the topic
+   * @param subscription the destination to receive messages
+   */
+  public void subscribe(String topic, VmDestination subscription) {
+    topics.computeIfAbsent(topic, key -> new CopyOnWriteArrayList<>()).add(subscription);
+  }
+
+
+  public void unsubscribe(String topic, VmDestination subscription) {
+    List<VmDestination> subscriptions = topics.get(topic);
+    if (subscriptions != null) {
+      subscriptions.remove(subscription);
+    }
+  }
+
+
+  /**
+   * Route the message to the queue named by the group.
+   *
+   * @param group the name of the message group
+   * @param body  the encoded message
+   * @return true if the message was routed, false if no such queue exists
+   */
+  public boolean sendDirect(String group, byte[] body) {
+    VmDestination queue = queues.get(group);
+    if (queue != null) {
+      queue.offer(body);
+      return true;
+    }
+    return false;
+  }
+
+
+  /**
+   * Copy the message to every subscription bound to the group.
+   *
+   * @param group the name of the message group
+   * @param body  the encoded message; shared by all subscriptions and never modified
+   * @return the number of subscriptions which received the message
+   */
+  public int broadcast(String group, byte[] body) {
+    int retval = 0;
+    List<VmDestination> subscriptions = topics.get(group);
+    if (subscriptions != null) {
+      for (VmDestination subscription : subscriptions) {
+        subscription.offer(body);
+        retval++;
+      }
+    }
+    return retval;
+  }
+
+}
@@ -0,0 +1,100 @@
+package coyote.kestrel.transport.vm;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A place in the in-process broker where encoded messages wait for a
+ * consumer.
+ *
+ * <p>Messages are held in a lock-free multi-producer, multi-consumer queue.
+ * Any number of consumers may poll the same destination, and each message is
+ * taken by exactly one of them, which gives service queues their competing
+ * consumer semantics. Consumers which wait for a message park their thread
+ * and producers only pay for waking consumers when someone is actually
+ * waiting.</p>
+ */
+public class VmDestination {
+
+  private final String name;
+  private final ConcurrentLinkedQueue<byte[]> messages = new ConcurrentLinkedQueue<>();
+  private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+
+
+  public VmDestination(String name) {
+    this.name = name;
+  }
+
+
+  public String getName() {
+    return name;
+  }
+
+
+  /**
+   * Place the encoded message in this destination and wake any waiting
+   * consumers.
+   *
+   * @param body the encoded message
+   */
+  public void offer(byte[] body) {
+    messages.offer(body);
+    if (!waiters.isEmpty()) {
+      for (Thread waiter : waiters) {
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+
+
+  /**
+   * @return the next encoded message or null if the destination is empty
+   */
+  public byte[] poll() {
+    return messages.poll();
+  }
+
+
+  /**
+   * Retrieve the next encoded message, waiting up to the given time for one
+   * to arrive.
+   *
+   * @param timeout the number of milliseconds to wait
+   * @return the next encoded message or null if none arrived in time
+   */
+  public byte[] poll(long timeout) {
+    byte[] retval = messages.poll();
+    if (retval == null && timeout > 0) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeout, Long.MAX_VALUE / 1000000));
+      Thread thread = Thread.currentThread();
+      waiters.add(thread);
+      try {
+        // we are registered as a waiter, so anything offered from here on will unpark us
+        while ((retval = messages.poll()) == null) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0 || thread.isInterrupted()) {
+            break;
+          }
+          LockSupport.parkNanos(this, remaining);
+        }
+      } finally {
+        waiters.remove(thread);
+      }
+    }
+    return retval;
+  }
+
+
+  /**
+   * This is not a constant-time operation; use it for monitoring only.
+   *
+   * @return the number of messages waiting in this destination
+   */
+  public int size() {
+    return messages.size();
+  }
+
+}
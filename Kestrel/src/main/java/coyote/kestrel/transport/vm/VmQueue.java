@@ -0,0 +1,232 @@
+package coyote.kestrel.transport.vm;
+
+import coyote.dataframe.DataFrameException;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.loader.log.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A consumer's view of a queue in the in-process broker.
+ *
+ * <p>Many VmQueue instances may share the same destination; each message is
+ * delivered to only one of them. Delivered messages are held by this queue
+ * until they are acknowledged. Messages which are not acknowledged are placed
+ * back in the destination for redelivery when they are negatively
+ * acknowledged or when this queue is closed.</p>
+ */
+public class VmQueue implements MessageQueue {
+
+  /**
+   * How long dispatch threads wait for a message before checking if they should stop
+   */
+  private static final long DISPATCH_WAIT = 100;
+
+  private final VmDestination destination;
+  private final EncodingOptions encoding;
+  private final AtomicLong deliverySequence = new AtomicLong();
+  private final Map<Long, byte[]> unacknowledged = new ConcurrentHashMap<>();
+  private final List<Thread> dispatchers = new CopyOnWriteArrayList<>();
+  private volatile boolean open = true;
+  private String name;
+
+
+  public VmQueue(VmDestination destination) {
+    this(destination, EncodingOptions.DEFAULT);
+  }
+
+
+  /**
+   * @param destination the destination from which messages are delivered
+   * @param encoding    the options with which messages sent on this queue are encoded
+   */
+  public VmQueue(VmDestination destination, EncodingOptions encoding) {
+    this.destination = destination;
+    this.encoding = encoding;
+    this.name = destination.getName();
+  }
+
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+
+  @Override
+  public void setName(String name) {
+    this.name = name;
+  }
+
+
+  @Override
+  public Message getNextMessage() {
+    return deliver(destination.poll());
+  }
+
+
+  @Override
+  public Message getNextMessage(long timeout) {
+    return deliver(destination.poll(timeout));
+  }
+
+
+  /**
+   * Consumers of in-process queues already block on the arrival of messages
+   * and there is no network round trip to avoid, so there is nothing to
+   * start. Messages stay in the shared destination rather than a local
+   * buffer so competing consumers share the load evenly.
+   *
+   * @param capacity ignored
+   */
+  @Override
+  public void consume(int capacity) {
+    // getNextMessage(timeout) already parks on the destination
+  }
+
+
+  /**
+   * Not applicable; messages are only taken from the destination when
+   * requested so there is nothing to limit.
+   */
+  @Override
+  public void setPrefetch(int count) {
+    // nothing to limit
+  }
+
+
+  /**
+   * Not applicable; an acknowledgement is a single map removal.
+   */
+  @Override
+  public void setAckBatch(int size, long delay) {
+    // nothing to batch
+  }
+
+
+  @Override
+  public Message peek() {
+    return null;
+  }
+
+
+  @Override
+  public Message peek(long timeout) {
+    return null;
+  }
+
+
+  /**
+   * Start a daemon thread which delivers messages from this queue to the
+   * listener.
+   *
+   * <p>Messages are acknowledged when the listener returns and requeued if
+   * it throws an exception.</p>
+   *
+   * @param listener the message listener to receive messages from this queue
+   */
+  @Override
+  public void attach(MessageListener listener) {
+    if (listener != null) {
+      Thread dispatcher = new Thread(() -> dispatch(listener), "VmQueue-" + getName());
+      dispatcher.setDaemon(true);
+      dispatchers.add(dispatcher);
+      dispatcher.start();
+    }
+  }
+
+
+  @Override
+  public void ackDelivery(Message message) {
+    try {
+      unacknowledged.remove(message.getAsLong(VmTransport.DELIVERY_ID_FIELD));
+    } catch (DataFrameException e) {
+      Log.error("Could not ACK delivery, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  @Override
+  public void nakDelivery(Message message) {
+    try {
+      byte[] body = unacknowledged.remove(message.getAsLong(VmTransport.DELIVERY_ID_FIELD));
+      if (body != null) {
+        destination.offer(body);
+      }
+    } catch (DataFrameException e) {
+      Log.error("Could not NCK delivery, could not retrieve delivery identifier from message: " + e.getLocalizedMessage());
+    }
+  }
+
+
+  @Override
+  public void send(Message message) throws IOException {
+    destination.offer(MessageCodec.encode(message, encoding));
+  }
+
+
+  /**
+   * Stop any dispatch threads and return all unacknowledged messages to the
+   * destination so other consumers may receive them.
+   */
+  public void close() {
+    open = false;
+    for (Thread dispatcher : dispatchers) {
+      dispatcher.interrupt();
+    }
+    dispatchers.clear();
+    for (Long deliveryId : unacknowledged.keySet()) {
+      byte[] body = unacknowledged.remove(deliveryId);
+      if (body != null) {
+        destination.offer(body);
+      }
+    }
+  }
+
+
+  /**
+   * @return the number of delivered messages waiting on acknowledgement
+   */
+  public int getUnacknowledgedCount() {
+    return unacknowledged.size();
+  }
+
+
+  private Message deliver(byte[] body) {
+    Message retval = null;
+    if (body != null) {
+      long deliveryId = deliverySequence.incrementAndGet();
+      unacknowledged.put(deliveryId, body);
+      retval = new Message();
+      retval.merge(MessageCodec.decode(body));
+      retval.setGroup(getName());
+      retval.put(VmTransport.DELIVERY_ID_FIELD, deliveryId);
+    }
+    return retval;
+  }
+
+
+  private void dispatch(MessageListener listener) {
+    while (open && !Thread.currentThread().isInterrupted()) {
+      Message message = getNextMessage(DISPATCH_WAIT);
+      if (message != null) {
+        try {
+          listener.onMessage(message);
+          ackDelivery(message);
+        } catch (Exception e) {
+          nakDelivery(message);
+        }
+      }
+    }
+  }
+
+}
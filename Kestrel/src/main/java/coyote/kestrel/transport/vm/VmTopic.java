@@ -0,0 +1,127 @@
+package coyote.kestrel.transport.vm;
+
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageListener;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.loader.log.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A topic in the in-process broker.
+ *
+ * <p>Each attached listener receives its own subscription destination and
+ * dispatch thread, so every listener receives a copy of every message
+ * broadcast on the topic. Like the AMQP topic, deliveries are acknowledged
+ * automatically.</p>
+ */
+public class VmTopic implements MessageTopic {
+
+  private static final long DISPATCH_WAIT = 100;
+
+  private final VmBroker broker;
+  private final EncodingOptions encoding;
+  private final List<VmDestination> subscriptions = new CopyOnWriteArrayList<>();
+  private final List<Thread> dispatchers = new CopyOnWriteArrayList<>();
+  private volatile boolean open = true;
+  private String name;
+
+
+  public VmTopic(VmBroker broker, String name) {
+    this(broker, name, EncodingOptions.DEFAULT);
+  }
+
+
+  /**
+   * @param broker   the broker carrying the topic
+   * @param name     the name of the topic
+   * @param encoding the options with which messages sent on this topic are encoded
+   */
+  public VmTopic(VmBroker broker, String name, EncodingOptions encoding) {
+    this.broker = broker;
+    this.encoding = encoding;
+    this.name = name;
+  }
+
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+
+  @Override
+  public void setName(String name) {
+    this.name = name;
+  }
+
+
+  @Override
+  public void attach(MessageListener listener) {
+    if (listener != null) {
+      VmDestination subscription = new VmDestination(getName());
+      subscriptions.add(subscription);
+      broker.subscribe(getName(), subscription);
+      Thread dispatcher = new Thread(() -> dispatch(subscription, listener), "VmTopic-" + getName());
+      dispatcher.setDaemon(true);
+      dispatchers.add(dispatcher);
+      dispatcher.start();
+    }
+  }
+
+
+  @Override
+  public void ackDelivery(Message message) {
+    // topic deliveries are automatically acknowledged
+  }
+
+
+  @Override
+  public void nakDelivery(Message message) {
+    // topic deliveries are automatically acknowledged
+  }
+
+
+  @Override
+  public void send(Message message) throws IOException {
+    broker.broadcast(getName(), MessageCodec.encode(message, encoding));
+  }
+
+
+  /**
+   * Remove all subscriptions from the broker and stop their dispatch threads.
+   */
+  public void close() {
+    open = false;
+    for (VmDestination subscription : subscriptions) {
+      broker.unsubscribe(getName(), subscription);
+    }
+    subscriptions.clear();
+    for (Thread dispatcher : dispatchers) {
+      dispatcher.interrupt();
+    }
+    dispatchers.clear();
+  }
+
+
+  private void dispatch(VmDestination subscription, MessageListener listener) {
+    while (open && !Thread.currentThread().isInterrupted()) {
+      byte[] body = subscription.poll(DISPATCH_WAIT);
+      if (body != null) {
+        Message message = new Message();
+        message.merge(MessageCodec.decode(body));
+        message.setGroup(getName());
+        try {
+          listener.onMessage(message);
+        } catch (Exception e) {
+          Log.error("Message listener threw exception handling message on topic " + getName() + " - Reason: " + e.getLocalizedMessage());
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,189 @@
+package coyote.kestrel.transport.vm;
+
+import coyote.commons.StringUtil;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.kestrel.transport.Transport;
+import coyote.loader.log.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A transport which exchanges messages with other components in the same
+ * JVM without a network broker.
+ *
+ * <p>Transports opened with the same broker name (the host portion of a
+ * {@code vm://} URI) share a {@link VmBroker}. Services and proxies which
+ * are co-located can then exchange messages without a network hop or
+ * broker round trip while keeping the same queue and topic semantics as
+ * the AMQP transport: competing consumers on service queues, fan-out on
+ * topics and redelivery of messages which are not acknowledged.</p>
+ *
+ * <p>Messages are encoded on send and decoded on receipt, so sender and
+ * receiver never share a mutable message instance.</p>
+ */
+public class VmTransport implements Transport {
+
+  public static final String DELIVERY_ID_FIELD = "VM_DLVRY_ID";
+  public static final String DEFAULT_BROKER = "localhost";
+
+  private final String brokerName;
+  private final List<VmQueue> queues = new CopyOnWriteArrayList<>();
+  private final List<String> inboxes = new CopyOnWriteArrayList<>();
+  private final List<VmTopic> topics = new CopyOnWriteArrayList<>();
+  private volatile VmBroker broker = null;
+  private EncodingOptions encoding = EncodingOptions.DEFAULT;
+
+
+  public VmTransport() {
+    this(DEFAULT_BROKER);
+  }
+
+
+  /**
+   * @param brokerName the name of the in-process broker to which this transport connects
+   */
+  public VmTransport(String brokerName) {
+    this.brokerName = StringUtil.isNotBlank(brokerName) ? brokerName : DEFAULT_BROKER;
+  }
+
+
+  public String getBrokerName() {
+    return brokerName;
+  }
+
+
+  /**
+   * Set the options with which messages sent through this transport and its
+   * queues and topics are encoded.
+   *
+   * <p>This must be called before queues and topics are created.</p>
+   *
+   * @param options the encoding options, null for the defaults
+   */
+  public void setEncoding(EncodingOptions options) {
+    encoding = options != null ? options : EncodingOptions.DEFAULT;
+  }
+
+
+  public EncodingOptions getEncoding() {
+    return encoding;
+  }
+
+
+  @Override
+  public boolean isValid() {
+    return broker != null;
+  }
+
+
+  @Override
+  public MessageQueue createInbox() {
+    VmQueue retval = null;
+    VmBroker vm = broker;
+    if (vm != null) {
+      String identifier = UUID.randomUUID().toString();
+      retval = new VmQueue(vm.declareQueue(identifier), encoding);
+      inboxes.add(identifier);
+      queues.add(retval);
+    }
+    return retval;
+  }
+
+
+  @Override
+  public void open() {
+    broker = VmBroker.getBroker(brokerName);
+  }
+
+
+  /**
+   * Close all the queues and topics created by this transport.
+   *
+   * <p>Unacknowledged messages are returned to their queues and inboxes are
+   * removed from the broker. Service queues remain in the broker, like
+   * durable queues on a network broker.</p>
+   */
+  @Override
+  public void close() {
+    VmBroker vm = broker;
+    broker = null;
+    for (VmQueue queue : queues) {
+      queue.close();
+    }
+    queues.clear();
+    for (VmTopic topic : topics) {
+      topic.close();
+    }
+    topics.clear();
+    if (vm != null) {
+      for (String inbox : inboxes) {
+        vm.deleteQueue(inbox);
+      }
+    }
+    inboxes.clear();
+  }
+
+
+  @Override
+  public MessageQueue getServiceQueue(String name) {
+    VmQueue retval = null;
+    VmBroker vm = broker;
+    if (vm != null) {
+      retval = new VmQueue(vm.declareQueue(name), encoding);
+      queues.add(retval);
+    }
+    return retval;
+  }
+
+
+  @Override
+  public MessageTopic getTopic(String name) {
+    VmTopic retval = null;
+    VmBroker vm = broker;
+    if (vm != null) {
+      retval = new VmTopic(vm, name, encoding);
+      topics.add(retval);
+    }
+    return retval;
+  }
+
+
+  @Override
+  public void sendDirect(Message message) throws IOException {
+    VmBroker vm = getBroker();
+    if (!vm.sendDirect(getGroup(message), MessageCodec.encode(message, encoding))) {
+      Log.debug("No queue named '" + message.getGroup() + "' in broker '" + brokerName + "' - message dropped");
+    }
+  }
+
+
+  @Override
+  public void broadcast(Message message) throws IOException {
+    getBroker().broadcast(getGroup(message), MessageCodec.encode(message, encoding));
+  }
+
+
+  private VmBroker getBroker() throws IOException {
+    VmBroker retval = broker;
+    if (retval == null) {
+      throw new IOException("Transport is not open");
+    }
+    return retval;
+  }
+
+
+  private String getGroup(Message message) throws IOException {
+    if (StringUtil.isBlank(message.getGroup())) {
+      throw new IOException("No message group name specified in message");
+    }
+    return message.getGroup();
+  }
+
+}
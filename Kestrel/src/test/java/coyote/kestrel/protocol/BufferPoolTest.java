@@ -0,0 +1,115 @@
+package coyote.kestrel.protocol;
+
+import coyote.commons.StringUtil;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.dataframe.marshal.JSONMarshaler;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+
+
+  private static DataFrame sample() {
+    DataFrame retval = new DataFrame();
+    retval.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.put(KestrelProtocol.GROUP_FIELD, "SVC.PROFILE");
+    retval.put(KestrelProtocol.TYPE_FIELD, "RQS");
+    retval.put(KestrelProtocol.EXPIRY_FIELD, 1546300800L);
+    DataFrame list = new DataFrame();
+    list.add("one");
+    list.add(-2);
+    retval.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("Name", "Quote \" and \\ and \u20ac").set("Count", 12).set("Ratio", 0.5).set("Active", true).set("List", list));
+    return retval;
+  }
+
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] retval = new byte[buffer.remaining()];
+    buffer.get(retval);
+    return retval;
+  }
+
+
+  @DisplayName("Released buffers are reused")
+  @Test
+  void reuse() {
+    BufferPool pool = new BufferPool(false, 16, 2);
+    ByteBuffer buffer = pool.acquire();
+    buffer.put((byte) 1);
+    pool.release(buffer);
+    assertEquals(1, pool.size());
+    ByteBuffer reused = pool.acquire();
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position(), "Reused buffers should be cleared");
+
+    pool.release(ByteBuffer.allocateDirect(16));
+    assertEquals(0, pool.size(), "Buffers of the wrong kind should not be pooled");
+    pool.release(ByteBuffer.allocate(16));
+    pool.release(ByteBuffer.allocate(16));
+    pool.release(ByteBuffer.allocate(16));
+    assertEquals(2, pool.size(), "Pool should not exceed its size");
+  }
+
+
+  @DisplayName("Growing keeps the contents")
+  @Test
+  void grow() {
+    BufferPool pool = new BufferPool(true, 4, 4);
+    ByteBuffer buffer = pool.acquire();
+    buffer.putInt(42);
+    ByteBuffer larger = pool.grow(buffer, 10);
+    assertNotSame(buffer, larger);
+    assertTrue(larger.isDirect());
+    assertEquals(4, larger.position());
+    assertTrue(larger.remaining() >= 10);
+    assertEquals(42, larger.getInt(0));
+    assertEquals(1, pool.size(), "Smaller buffer should be returned to the pool");
+  }
+
+
+  @DisplayName("Pooled JSON matches the marshaler")
+  @Test
+  void json() throws DataFrameException {
+    BufferPool pool = new BufferPool(false, 8, 4);
+    DataFrame frame = sample();
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
+
+    ByteBuffer buffer = MessageCodec.encode(frame, pool, 5);
+    assertEquals(0, buffer.position());
+    buffer.position(5);
+    byte[] pooled = toArray(buffer);
+    assertEquals('{', pooled[0]);
+
+    DataFrame decoded = MessageCodec.decode(pooled);
+    DataFrame expected = MessageCodec.decode(StringUtil.getBytes(JSONMarshaler.marshal(frame)));
+    assertEquals(expected.getAsString(KestrelProtocol.GROUP_FIELD), decoded.getAsString(KestrelProtocol.GROUP_FIELD));
+    assertEquals(1546300800L, decoded.getAsLong(KestrelProtocol.EXPIRY_FIELD));
+    DataFrame payload = decoded.getAsFrame(KestrelProtocol.PAYLOAD_FIELD);
+    assertEquals("Quote \" and \\ and \u20ac", payload.getAsString("Name"));
+    assertEquals(12, payload.getAsInt("Count"));
+    assertEquals(0.5, payload.getAsDouble("Ratio"));
+    assertTrue(payload.getAsBoolean("Active"));
+    DataFrame list = payload.getAsFrame("List");
+    assertEquals(2, list.getFieldCount());
+    assertEquals("one", list.getField(0).getObjectValue());
+    assertEquals(-2, ((Number) list.getField(1).getObjectValue()).intValue());
+    pool.release(buffer);
+  }
+
+
+  @DisplayName("Pooled frames match the array encoding")
+  @Test
+  void frame() {
+    BufferPool pool = new BufferPool();
+    DataFrame frame = sample();
+    ByteBuffer buffer = MessageCodec.encode(frame, pool, 0);
+    assertArrayEquals(MessageCodec.encode(frame), toArray(buffer));
+    pool.release(buffer);
+  }
+
+}
@@ -0,0 +1,112 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompactFormatTest {
+
+  private static final MessageSchema SCHEMA = MessageSchema.register(new MessageSchema("SVC.COMPACT", KestrelProtocol.COMMAND_FIELD, "id", "theme", "logging", "name"));
+
+
+  private static DataFrame sample() {
+    DataFrame retval = new DataFrame();
+    retval.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.put(KestrelProtocol.GROUP_FIELD, "SVC.COMPACT");
+    retval.put(KestrelProtocol.TYPE_FIELD, "ACK");
+    retval.put(KestrelProtocol.REPLY_ID_FIELD, "7c9e6679-7425-40de-944b-e07fc1f90ae7");
+    retval.put(KestrelProtocol.EXPIRY_FIELD, 1546300800L);
+    retval.put(KestrelProtocol.PRIORITY_FIELD, 4);
+    retval.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("id", "123").set("theme", "dark").set("logging", "error,fatal,warn,notice").set("name", "Bob"));
+    return retval;
+  }
+
+
+  @DisplayName("Messages survive the compact encoding")
+  @Test
+  void roundTrip() throws DataFrameException {
+    DataFrame frame = sample();
+    DataFrame list = new DataFrame();
+    list.add("one");
+    list.add(-2L);
+    Date date = new Date(1546300800000L);
+    frame.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).set("Extra", "not in schema").set("List", list).set("Ratio", 0.5).set("Scale", 1.5F).set("Active", false).set("Bytes", new byte[]{1, 2, 3}).set("Nothing", null).set("When", date);
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.COMPACT_ENCODING);
+
+    byte[] body = MessageCodec.encode(frame);
+    assertTrue(CompactFormat.isCompact(body));
+    DataFrame decoded = MessageCodec.decode(body);
+    assertEquals(KestrelProtocol.COMPACT_ENCODING, decoded.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("7c9e6679-7425-40de-944b-e07fc1f90ae7", decoded.getAsString(KestrelProtocol.REPLY_ID_FIELD));
+    assertEquals(1546300800L, decoded.getObject(KestrelProtocol.EXPIRY_FIELD));
+    assertEquals(4, decoded.getObject(KestrelProtocol.PRIORITY_FIELD));
+
+    DataFrame payload = decoded.getAsFrame(KestrelProtocol.PAYLOAD_FIELD);
+    assertEquals("dark", payload.getAsString("theme"));
+    assertEquals("not in schema", payload.getAsString("Extra"));
+    assertEquals(0.5, payload.getObject("Ratio"));
+    assertEquals(1.5F, payload.getObject("Scale"));
+    assertEquals(Boolean.FALSE, payload.getObject("Active"));
+    assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) payload.getObject("Bytes"));
+    assertTrue(payload.contains("Nothing"));
+    assertNull(payload.getObject("Nothing"));
+    assertEquals(date, payload.getObject("When"));
+    DataFrame decodedList = payload.getAsFrame("List");
+    assertNull(decodedList.getField(0).getName());
+    assertEquals("one", decodedList.getField(0).getObjectValue());
+    assertEquals(-2L, decodedList.getField(1).getObjectValue());
+  }
+
+
+  @DisplayName("Compact messages are smaller than binary frames")
+  @Test
+  void size() throws DataFrameException {
+    DataFrame frame = sample();
+    byte[] binary = MessageCodec.encode(frame);
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.COMPACT_ENCODING);
+    assertEquals(MessageCodec.COMPACT_CONTENT_TYPE, MessageCodec.getContentType(frame));
+    byte[] compact = MessageCodec.encode(frame);
+    assertTrue(compact.length < binary.length, compact.length + " should be less than " + binary.length);
+
+    frame.put(KestrelProtocol.GROUP_FIELD, "SVC.UNREGISTERED");
+    byte[] unregistered = MessageCodec.encode(frame);
+    assertTrue(compact.length < unregistered.length, "Schema names should be sent as numbers");
+    assertEquals("dark", MessageCodec.decode(unregistered).getAsFrame(KestrelProtocol.PAYLOAD_FIELD).getAsString("theme"));
+  }
+
+
+  @DisplayName("Unknown schemas and corrupt bodies are unknown data")
+  @Test
+  void unknownSchema() {
+    DataFrame frame = sample();
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.COMPACT_ENCODING);
+    byte[] body = MessageCodec.encode(frame);
+    body[4] ^= 0x55; // the schema identifier follows the marker
+    DataFrame decoded = MessageCodec.decode(body);
+    assertEquals(KestrelProtocol.UNKNOWN_ENCODING, decoded.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertArrayEquals(body, (byte[]) decoded.getObject(KestrelProtocol.GENERIC_DATA_FIELD));
+
+    body = MessageCodec.encode(frame);
+    byte[] truncated = new byte[body.length / 2];
+    System.arraycopy(body, 0, truncated, 0, truncated.length);
+    assertEquals(KestrelProtocol.UNKNOWN_ENCODING, MessageCodec.decode(truncated).getAsString(KestrelProtocol.ENCODING_FIELD));
+  }
+
+
+  @DisplayName("Schema identifiers depend on the names and their order")
+  @Test
+  void schemaId() {
+    assertEquals(SCHEMA.getId(), new MessageSchema("SVC.COMPACT", KestrelProtocol.COMMAND_FIELD, "id", "theme", "logging", "name").getId());
+    assertNotEquals(SCHEMA.getId(), new MessageSchema("SVC.COMPACT", "id", KestrelProtocol.COMMAND_FIELD, "theme", "logging", "name").getId());
+    assertSame(SCHEMA, MessageSchema.forGroup("SVC.COMPACT"));
+    assertSame(SCHEMA, MessageSchema.forId(SCHEMA.getId()));
+    assertEquals(2, SCHEMA.indexOf("theme"));
+    assertEquals(-1, SCHEMA.indexOf("Theme"));
+  }
+
+}
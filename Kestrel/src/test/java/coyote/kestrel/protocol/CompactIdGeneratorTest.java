@@ -0,0 +1,80 @@
+package coyote.kestrel.protocol;
+
+import coyote.kestrel.transport.Message;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompactIdGeneratorTest {
+
+
+  /**
+   * Call the generator from a number of threads started together, adding
+   * each identifier to the set.
+   */
+  private static void generate(IdGenerator generator, int threads, int count, Set<String> ids) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(() -> {
+        try {
+          start.await();
+          for (int x = 0; x < count; x++) {
+            ids.add(generator.nextId());
+          }
+        } catch (InterruptedException ignore) {
+          // finish
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    start.countDown();
+    done.await();
+  }
+
+
+  @DisplayName("Identifiers are unique across threads and generators")
+  @Test
+  void unique() throws InterruptedException {
+    Set<String> ids = ConcurrentHashMap.newKeySet();
+    generate(new CompactIdGenerator(), 8, 20000, ids);
+    assertEquals(160000, ids.size());
+    generate(new CompactIdGenerator(4), 8, 20000, ids);
+    assertEquals(320000, ids.size());
+
+    CompactIdGenerator generator = new CompactIdGenerator();
+    assertNotEquals(generator.getPrefix(), new CompactIdGenerator().getPrefix());
+    String id = generator.nextId();
+    assertTrue(id.startsWith(generator.getPrefix()));
+    assertTrue(id.length() < 16, id + " should be short");
+    assertTrue(id.matches("[A-Za-z0-9_-]+"), id + " should be URL safe");
+  }
+
+
+  @DisplayName("Messages take their identifiers from the configured generator")
+  @Test
+  void configured() {
+    try {
+      KestrelProtocol.setIdGenerator(() -> UUID.randomUUID().toString());
+      assertEquals(36, new Message().generateId().length());
+      KestrelProtocol.setIdGenerator(null);
+      assertTrue(KestrelProtocol.getIdGenerator() instanceof CompactIdGenerator);
+
+      Message request = new Message();
+      request.generateId();
+      Message response = KestrelProtocol.createResponse(request);
+      assertEquals(request.getId(), response.getReplyId());
+      assertNotEquals(request.getId(), response.getId());
+    } finally {
+      KestrelProtocol.setIdGenerator(null);
+    }
+  }
+
+}
@@ -0,0 +1,175 @@
+package coyote.kestrel.protocol;
+
+import coyote.commons.StringUtil;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.kestrel.transport.Message;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCodecTest {
+
+
+  private static DataFrame sample() {
+    DataFrame retval = new DataFrame();
+    retval.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.put(KestrelProtocol.GROUP_FIELD, "SVC.PROFILE");
+    retval.put(KestrelProtocol.TYPE_FIELD, "RQS");
+    retval.put(KestrelProtocol.REPLY_GROUP_FIELD, "INBOX.1234");
+    retval.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("Id", "1234").set("Count", 12));
+    return retval;
+  }
+
+
+  @DisplayName("Binary frames are decoded as frames")
+  @Test
+  void frame() {
+    DataFrame frame = MessageCodec.decode(MessageCodec.encode(sample()));
+    assertEquals(KestrelProtocol.FRAME_ENCODING, frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("SVC.PROFILE", frame.getAsString(KestrelProtocol.GROUP_FIELD));
+  }
+
+
+  @DisplayName("JSON is detected from the leading bytes")
+  @Test
+  void json() {
+    byte[] body = StringUtil.getBytes("  {\"GRP\":\"SVC.PROFILE\",\"TYP\":\"RQS\"}");
+    DataFrame frame = MessageCodec.decode(body);
+    assertEquals(KestrelProtocol.JSON_ENCODING, frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("RQS", frame.getAsString(KestrelProtocol.TYPE_FIELD));
+  }
+
+
+  @DisplayName("Plain text becomes a string field")
+  @Test
+  void string() {
+    DataFrame frame = MessageCodec.decode(StringUtil.getBytes("Hello World"));
+    assertEquals(KestrelProtocol.STRING_ENCODING, frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("Hello World", frame.getAsString(KestrelProtocol.GENERIC_DATA_FIELD));
+
+    frame = MessageCodec.decode(StringUtil.getBytes("{not json"));
+    assertEquals(KestrelProtocol.STRING_ENCODING, frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+  }
+
+
+  @DisplayName("Malformed binary decodes into a message as it does into a frame")
+  @Test
+  void malformed() {
+    byte[] body = {0x0E, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0, 0x01, 0x02, (byte) 0x80, 0x7F};
+    DataFrame frame = MessageCodec.decode(body);
+    Message message = assertDoesNotThrow(() -> MessageCodec.decodeMessage(body, null, null));
+    assertEquals(frame.getAsString(KestrelProtocol.ENCODING_FIELD), message.getEncoding());
+    assertTrue(message.contains(KestrelProtocol.GENERIC_DATA_FIELD));
+  }
+
+
+  @DisplayName("Hints select the parser and wrong hints still decode")
+  @Test
+  void hints() {
+    byte[] json = StringUtil.getBytes("{\"TYP\":\"RQS\"}");
+    assertEquals(KestrelProtocol.JSON_ENCODING, MessageCodec.decode(json, MessageCodec.JSON_CONTENT_TYPE).getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals(KestrelProtocol.JSON_ENCODING, MessageCodec.decode(json, "application/json; charset=ISO-8859-1").getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals(KestrelProtocol.JSON_ENCODING, MessageCodec.decode(json, MessageCodec.FRAME_CONTENT_TYPE).getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals(KestrelProtocol.STRING_ENCODING, MessageCodec.decode(json, MessageCodec.TEXT_CONTENT_TYPE).getAsString(KestrelProtocol.ENCODING_FIELD));
+
+    byte[] frame = MessageCodec.encode(sample());
+    assertEquals(KestrelProtocol.FRAME_ENCODING, MessageCodec.decode(frame, KestrelProtocol.JSON_ENCODING).getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals(KestrelProtocol.FRAME_ENCODING, MessageCodec.decode(frame, "application/octet-stream").getAsString(KestrelProtocol.ENCODING_FIELD));
+  }
+
+
+  @DisplayName("Content type matches the encoding")
+  @Test
+  void contentType() {
+    DataFrame frame = sample();
+    assertEquals(MessageCodec.FRAME_CONTENT_TYPE, MessageCodec.getContentType(frame));
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
+    assertEquals(MessageCodec.JSON_CONTENT_TYPE, MessageCodec.getContentType(frame));
+    assertEquals('{', MessageCodec.encode(frame)[0]);
+  }
+
+
+  @DisplayName("Packed payloads are unpacked when encoded as JSON")
+  @Test
+  void packedJson() throws DataFrameException {
+    EncodingOptions packed = new EncodingOptions(true, false, 0);
+    DataFrame received = MessageCodec.decode(MessageCodec.encode(sample(), packed));
+    assertTrue(received.getObject(KestrelProtocol.PAYLOAD_FIELD) instanceof byte[]);
+    received.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.JSON_ENCODING);
+    DataFrame json = MessageCodec.decode(MessageCodec.encode(received, packed));
+    assertEquals("1234", json.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).getAsString("Id"));
+  }
+
+
+  @DisplayName("Frames above the threshold are compressed and decoded transparently")
+  @Test
+  void compression() throws DataFrameException {
+    DataFrame frame = sample();
+    StringBuilder text = new StringBuilder();
+    for (int x = 0; x < 100; x++) {
+      text.append("Service ").append(x).append(" is running; ");
+    }
+    frame.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).put("Status", text.toString());
+    byte[] plain = MessageCodec.encode(frame);
+    assertFalse(Compression.isCompressed(plain));
+
+    EncodingOptions options = new EncodingOptions(false, false, 512);
+    byte[] small = MessageCodec.encode(sample(), options);
+    assertFalse(Compression.isCompressed(small), "Frames below the threshold should not be compressed");
+
+    byte[] body = MessageCodec.encode(frame, options);
+    assertTrue(Compression.isCompressed(body));
+    assertTrue(body.length < plain.length / 2);
+    DataFrame decoded = MessageCodec.decode(body, MessageCodec.FRAME_CONTENT_TYPE);
+    assertEquals(KestrelProtocol.DEFLATE_ENCODING, decoded.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals(text.toString(), decoded.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).getAsString("Status"));
+    assertTrue(Compression.getRatio("SVC.PROFILE") < 0.5);
+    assertTrue(Compression.getCompressionTime("SVC.PROFILE") > 0);
+
+    BufferPool pool = new BufferPool(false, 64, 2);
+    ByteBuffer buffer = MessageCodec.encode(frame, pool, 0, options);
+    byte[] pooled = new byte[buffer.remaining()];
+    buffer.get(pooled);
+    assertArrayEquals(body, pooled);
+    assertFalse(Compression.isCompressed(MessageCodec.encode(frame)), "Other senders should not be affected");
+  }
+
+
+  @DisplayName("Compression of replies to inboxes is tracked under one group")
+  @Test
+  void inboxCompression() {
+    byte[] data = new byte[4096];
+    long before = Compression.getCompressionTime(Compression.INBOX_GROUP);
+    Compression.compress(data, UUID.randomUUID().toString());
+    Compression.compress(data, UUID.randomUUID().toString());
+    assertTrue(Compression.getCompressionTime(Compression.INBOX_GROUP) > before);
+    assertTrue(Compression.getRatio(Compression.INBOX_GROUP) < 0.5);
+    assertEquals(Compression.getCompressionTime(Compression.INBOX_GROUP), Compression.getCompressionTime(UUID.randomUUID().toString()));
+    assertEquals(0, Compression.getCompressionTime("SVC.NEVER.COMPRESSED"));
+  }
+
+
+  @DisplayName("The deflate encoding compresses without a threshold and corrupt bodies still decode")
+  @Test
+  void deflateEncoding() throws DataFrameException {
+    DataFrame frame = sample();
+    frame.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).put("Text", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+    frame.put(KestrelProtocol.ENCODING_FIELD, KestrelProtocol.DEFLATE_ENCODING);
+    assertEquals(MessageCodec.FRAME_CONTENT_TYPE, MessageCodec.getContentType(frame));
+    byte[] body = MessageCodec.encode(frame);
+    assertTrue(Compression.isCompressed(body));
+    DataFrame decoded = MessageCodec.decode(body);
+    assertEquals(KestrelProtocol.DEFLATE_ENCODING, decoded.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("INBOX.1234", decoded.getAsString(KestrelProtocol.REPLY_GROUP_FIELD));
+
+    body[body.length - 1] ^= 0x55;
+    body[Compression.HEADER_SIZE] ^= 0x55;
+    assertNotNull(MessageCodec.decode(body), "Corrupt bodies should fall back to the other decoders");
+  }
+
+}
@@ -0,0 +1,117 @@
+package coyote.kestrel.protocol;
+
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessagePackCodecTest {
+
+
+  private static DataFrame sample() {
+    DataFrame retval = new DataFrame();
+    retval.put(KestrelProtocol.IDENTIFIER_FIELD, "0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.put(KestrelProtocol.GROUP_FIELD, "SVC.PROFILE");
+    retval.put(KestrelProtocol.TYPE_FIELD, "ACK");
+    retval.put(KestrelProtocol.EXPIRY_FIELD, 1546300800L);
+    retval.put(KestrelProtocol.ENCODING_FIELD, MessagePackCodec.ENCODING);
+    retval.put(KestrelProtocol.PAYLOAD_FIELD, new DataFrame().set("id", "123").set("theme", "dark").set("logging", "error,fatal,warn,notice").set("name", "Bob"));
+    return retval;
+  }
+
+
+  @DisplayName("The codec is found by the service loader")
+  @Test
+  void registered() {
+    assertTrue(MessageCodec.getCodec(MessagePackCodec.ENCODING) instanceof MessagePackCodec);
+    assertTrue(MessageCodec.getCodec("msgp") instanceof MessagePackCodec);
+    assertTrue(MessageCodec.getCodec("application/msgpack; charset=binary") instanceof MessagePackCodec);
+    assertEquals(MessagePackCodec.CONTENT_TYPE, MessageCodec.getContentType(sample()));
+    assertThrows(IllegalArgumentException.class, () -> MessageCodec.register(new MessagePackCodec() {
+      @Override
+      public String getEncoding() {
+        return KestrelProtocol.JSON_ENCODING;
+      }
+    }));
+  }
+
+
+  @DisplayName("Messages survive MessagePack")
+  @Test
+  void roundTrip() throws DataFrameException {
+    DataFrame frame = sample();
+    DataFrame list = new DataFrame();
+    list.add("one");
+    list.add(-2);
+    list.add(300000);
+    Date date = new Date(1546300800123L);
+    UUID uuid = UUID.randomUUID();
+    StringBuilder text = new StringBuilder();
+    for (int x = 0; x < 100; x++) {
+      text.append("text \u20ac ");
+    }
+    frame.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).set("List", list).set("Ratio", 0.5).set("Scale", 1.5F).set("Active", true).set("Bytes", new byte[300]).set("Nothing", null).set("When", date).set("Uuid", uuid).set("Text", text.toString()).set("Min", Long.MIN_VALUE).set("Empty", new DataFrame());
+
+    byte[] body = MessageCodec.encode(frame);
+    DataFrame decoded = MessageCodec.decode(body);
+    assertEquals(MessagePackCodec.ENCODING, decoded.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("SVC.PROFILE", decoded.getAsString(KestrelProtocol.GROUP_FIELD));
+    assertEquals(1546300800L, decoded.getAsLong(KestrelProtocol.EXPIRY_FIELD));
+
+    DataFrame payload = decoded.getAsFrame(KestrelProtocol.PAYLOAD_FIELD);
+    assertEquals("dark", payload.getAsString("theme"));
+    assertEquals(0.5, payload.getObject("Ratio"));
+    assertEquals(1.5F, payload.getObject("Scale"));
+    assertEquals(Boolean.TRUE, payload.getObject("Active"));
+    assertArrayEquals(new byte[300], (byte[]) payload.getObject("Bytes"));
+    assertTrue(payload.contains("Nothing"));
+    assertEquals(date, payload.getObject("When"));
+    assertEquals(uuid, payload.getObject("Uuid"));
+    assertEquals(text.toString(), payload.getAsString("Text"));
+    assertEquals(Long.MIN_VALUE, payload.getObject("Min"));
+    assertEquals(0, payload.getAsFrame("Empty").getFieldCount());
+    DataFrame decodedList = payload.getAsFrame("List");
+    assertEquals(3, decodedList.getFieldCount());
+    assertEquals(-2, decodedList.getField(1).getObjectValue());
+    assertEquals(300000, decodedList.getField(2).getObjectValue());
+
+    BufferPool pool = new BufferPool(true, 16, 2);
+    ByteBuffer buffer = MessageCodec.encode(frame, pool, 0);
+    byte[] pooled = new byte[buffer.remaining()];
+    buffer.get(pooled);
+    assertArrayEquals(body, pooled);
+  }
+
+
+  @DisplayName("Plain MessagePack from other clients decodes with a content type hint")
+  @Test
+  void foreign() throws DataFrameException {
+    // {"TYP":"RQS","PLD":{"CMD":"GET","ID":123}} as written by any MessagePack library
+    byte[] body = {(byte) 0x82, (byte) 0xa3, 'T', 'Y', 'P', (byte) 0xa3, 'R', 'Q', 'S', (byte) 0xa3, 'P', 'L', 'D', (byte) 0x82, (byte) 0xa3, 'C', 'M', 'D', (byte) 0xa3, 'G', 'E', 'T', (byte) 0xa2, 'I', 'D', 0x7b};
+    DataFrame frame = MessageCodec.decode(body, MessagePackCodec.CONTENT_TYPE);
+    assertEquals(MessagePackCodec.ENCODING, frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+    assertEquals("RQS", frame.getAsString(KestrelProtocol.TYPE_FIELD));
+    assertEquals(123, frame.getAsFrame(KestrelProtocol.PAYLOAD_FIELD).getAsInt("ID"));
+
+    byte[] truncated = new byte[body.length - 1];
+    System.arraycopy(body, 0, truncated, 0, truncated.length);
+    assertNull(new MessagePackCodec().decode(truncated, 0, truncated.length));
+  }
+
+
+  @DisplayName("Bodies from unregistered codecs are unknown data")
+  @Test
+  void unregistered() {
+    byte[] body = MessageCodec.encode(sample());
+    body[5] = 'X'; // first character of the encoding name after the marker and its length
+    DataFrame frame = MessageCodec.decode(body);
+    assertEquals(KestrelProtocol.UNKNOWN_ENCODING, frame.getAsString(KestrelProtocol.ENCODING_FIELD));
+  }
+
+}
@@ -0,0 +1,91 @@
+package coyote.kestrel.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveLimitTest {
+
+  private static final long FAST = 1000000L;
+  private static final long SLOW = 10000000L;
+
+
+  /**
+   * Record samples with the limit fully in use.
+   */
+  private static void record(AdaptiveLimit limit, long nanos, int count) {
+    for (int x = 0; x < count; x++) {
+      limit.record(nanos, limit.getLimit(), false);
+    }
+  }
+
+
+  @DisplayName("The limit grows while processing stays fast and shrinks when it slows")
+  @Test
+  void adapts() {
+    AdaptiveLimit limit = new AdaptiveLimit(2, 16);
+    assertEquals(2, limit.getLimit());
+    record(limit, FAST, 200);
+    assertEquals(16, limit.getLimit(), "Fast processing should raise the limit to its maximum");
+
+    record(limit, SLOW, 100);
+    int slowed = limit.getLimit();
+    assertTrue(slowed < 16, "Slow processing should cut the limit");
+    record(limit, SLOW, 200);
+    assertTrue(limit.getLimit() <= slowed);
+    assertTrue(limit.getLimit() >= 2, "The limit should not fall below its minimum");
+
+    record(limit, FAST, 400);
+    assertTrue(limit.getLimit() > slowed, "The limit should recover once processing is fast again");
+  }
+
+
+  @DisplayName("Widely spread processing times without load do not hold the limit down")
+  @Test
+  void noisy() {
+    AdaptiveLimit limit = new AdaptiveLimit(1, 16);
+    Random random = new Random(42);
+    int lowest = Integer.MAX_VALUE;
+    long total = 0;
+    for (int x = 0; x < 5000; x++) {
+      // cache hits next to database reads, neither affected by the load
+      long nanos = random.nextInt(10) < 7 ? FAST : 20 * FAST;
+      limit.record(nanos + random.nextInt(1000000), limit.getLimit(), false);
+      if (x >= 1000) {
+        lowest = Math.min(lowest, limit.getLimit());
+        total += limit.getLimit();
+      }
+    }
+    assertTrue(lowest >= 8, "A run of slow requests should only briefly cut the limit but it fell to " + lowest);
+    assertTrue(total / 4000.0 >= 14, "The limit should stay near its maximum but averaged " + total / 4000.0);
+  }
+
+
+  @DisplayName("The limit only grows when it is in use")
+  @Test
+  void unused() {
+    AdaptiveLimit limit = new AdaptiveLimit(4, 16);
+    for (int x = 0; x < 200; x++) {
+      limit.record(FAST, 1, false);
+    }
+    assertEquals(4, limit.getLimit());
+  }
+
+
+  @DisplayName("Failures cut the limit once per burst")
+  @Test
+  void failures() {
+    AdaptiveLimit limit = new AdaptiveLimit(1, 100);
+    record(limit, FAST, 2000);
+    int before = limit.getLimit();
+    assertTrue(before > 20);
+    for (int x = 0; x < 5; x++) {
+      limit.record(FAST, before, true);
+    }
+    assertEquals((int) (before * 0.9), limit.getLimit(), "A burst of failures should only cut the limit once");
+  }
+
+}
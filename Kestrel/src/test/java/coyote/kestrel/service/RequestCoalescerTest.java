@@ -0,0 +1,117 @@
+package coyote.kestrel.service;
+
+import coyote.dataframe.DataFrame;
+import coyote.kestrel.protocol.KestrelProtocol;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestCoalescerTest {
+
+
+  /**
+   * Process a request on a new thread.
+   */
+  private static Thread start(RequestCoalescer coalescer, String key, Runnable processing, CompletableFuture<List<RequestCoalescer.Response>> result) {
+    Thread retval = new Thread(() -> {
+      try {
+        result.complete(coalescer.process(key, processing));
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    retval.start();
+    return retval;
+  }
+
+
+  /**
+   * Wait for a thread to block waiting on an identical request.
+   */
+  private static void awaitWaiting(Thread thread) throws InterruptedException {
+    for (int x = 0; x < 5000 && thread.getState() != Thread.State.WAITING; x++) {
+      Thread.sleep(1);
+    }
+    assertEquals(Thread.State.WAITING, thread.getState());
+  }
+
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException ignore) {
+      // finish
+    }
+  }
+
+
+  @DisplayName("Identical requests in flight share one execution and its responses")
+  @Test
+  void shared() throws Exception {
+    RequestCoalescer coalescer = new RequestCoalescer();
+    AtomicInteger executions = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    DataFrame profile = new DataFrame().set("id", "123");
+
+    CompletableFuture<List<RequestCoalescer.Response>> leader = new CompletableFuture<>();
+    start(coalescer, "GET:123", () -> {
+      executions.incrementAndGet();
+      started.countDown();
+      await(release);
+      coalescer.record(KestrelProtocol.ACK_TYPE, profile, null, -1);
+    }, leader);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    CompletableFuture<List<RequestCoalescer.Response>> follower = new CompletableFuture<>();
+    awaitWaiting(start(coalescer, "GET:123", executions::incrementAndGet, follower));
+    assertNull(coalescer.process("GET:456", executions::incrementAndGet), "Different keys should be processed separately");
+    release.countDown();
+
+    assertNull(leader.get(5, TimeUnit.SECONDS), "The first request should be processed");
+    List<RequestCoalescer.Response> responses = follower.get(5, TimeUnit.SECONDS);
+    assertEquals(2, executions.get(), "The identical request should not be processed again");
+    assertEquals(1, responses.size());
+    assertEquals(KestrelProtocol.ACK_TYPE, responses.get(0).getType());
+    assertSame(profile, responses.get(0).getPayload());
+    assertEquals(0, coalescer.size());
+
+    assertNull(coalescer.process("GET:123", executions::incrementAndGet), "Later requests should be processed again");
+    assertEquals(3, executions.get());
+  }
+
+
+  @DisplayName("Requests waiting on a failed request fail")
+  @Test
+  void failure() throws Exception {
+    RequestCoalescer coalescer = new RequestCoalescer();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    CompletableFuture<List<RequestCoalescer.Response>> leader = new CompletableFuture<>();
+    start(coalescer, "GET:123", () -> {
+      started.countDown();
+      await(release);
+      throw new IllegalArgumentException("lookup failed");
+    }, leader);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    CompletableFuture<List<RequestCoalescer.Response>> follower = new CompletableFuture<>();
+    awaitWaiting(start(coalescer, "GET:123", () -> {
+    }, follower));
+    release.countDown();
+
+    ExecutionException leaderFailure = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+    assertTrue(leaderFailure.getCause() instanceof IllegalArgumentException);
+    ExecutionException followerFailure = assertThrows(ExecutionException.class, () -> follower.get(5, TimeUnit.SECONDS));
+    assertTrue(followerFailure.getCause() instanceof IllegalStateException);
+  }
+
+}
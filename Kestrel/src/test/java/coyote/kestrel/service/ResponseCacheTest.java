@@ -0,0 +1,110 @@
+package coyote.kestrel.service;
+
+import coyote.dataframe.DataFrame;
+import coyote.kestrel.protocol.KestrelProtocol;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCacheTest {
+
+  private static final String GROUP = "SVC.PROFILE";
+
+
+  private static String key(String command, String id) {
+    return ResponseCache.key(GROUP, command, new DataFrame().set(KestrelProtocol.COMMAND_FIELD, command).set(KestrelProtocol.ID_FIELD, id), KestrelProtocol.ID_FIELD);
+  }
+
+
+  private static List<RequestCoalescer.Response> ack(String name) {
+    return Collections.singletonList(new RequestCoalescer.Response(KestrelProtocol.ACK_TYPE, new DataFrame().set("name", name), null, -1));
+  }
+
+
+  @DisplayName("Cached responses are copies of the payloads")
+  @Test
+  void copies() {
+    ResponseCache cache = new ResponseCache(10, 60000);
+    List<RequestCoalescer.Response> responses = ack("Bob");
+    cache.put(key("GET", "123"), responses);
+    responses.get(0).getPayload().put("name", "Changed");
+
+    assertNull(cache.get(key("GET", "456")));
+    List<RequestCoalescer.Response> cached = cache.get(key("GET", "123"));
+    assertEquals(1, cached.size());
+    assertEquals(KestrelProtocol.ACK_TYPE, cached.get(0).getType());
+    assertEquals(-1, cached.get(0).getResultCode());
+    assertEquals("Bob", cached.get(0).getPayload().getAsString("name"));
+    assertNotSame(cached.get(0).getPayload(), cache.get(key("GET", "123")).get(0).getPayload());
+  }
+
+
+  @DisplayName("The least recently used entry is evicted and expired entries are not used")
+  @Test
+  void eviction() throws InterruptedException {
+    ResponseCache cache = new ResponseCache(2, 60000);
+    cache.put(key("GET", "1"), ack("One"));
+    cache.put(key("GET", "2"), ack("Two"));
+    assertNotNull(cache.get(key("GET", "1")));
+    cache.put(key("GET", "3"), ack("Three"));
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.get(key("GET", "2")), "The least recently used entry should be evicted");
+    assertNotNull(cache.get(key("GET", "1")));
+
+    ResponseCache expiring = new ResponseCache(2, 10);
+    expiring.put(key("GET", "1"), ack("One"));
+    Thread.sleep(20);
+    assertNull(expiring.get(key("GET", "1")));
+    assertEquals(0, expiring.size());
+  }
+
+
+  @DisplayName("Entries are invalidated by key, by command and by group")
+  @Test
+  void invalidate() {
+    ResponseCache cache = new ResponseCache(10, 60000);
+    cache.put(key("GET", "1"), ack("One"));
+    cache.put(key("GET", "12"), ack("Twelve"));
+    cache.put(key("LIST", "1"), ack("List"));
+
+    assertEquals(1, cache.invalidate(key("GET", "1")), "A key should not match keys it is a prefix of");
+    assertNotNull(cache.get(key("GET", "12")));
+    assertEquals(1, cache.invalidate(ResponseCache.prefix(GROUP, "GET")));
+    assertEquals(1, cache.size());
+    assertEquals(0, cache.invalidate(ResponseCache.prefix("SVC.OTHER", null)));
+    assertEquals(1, cache.invalidate(ResponseCache.prefix(GROUP, null)));
+
+    DataFrame invalidation = ResponseCache.createInvalidation(key("GET", "1"));
+    assertEquals(key("GET", "1"), ResponseCache.getInvalidation(invalidation));
+    assertNull(ResponseCache.getInvalidation(new DataFrame().set(KestrelProtocol.COMMAND_FIELD, "GET")));
+  }
+
+
+  @DisplayName("Commands are not case sensitive")
+  @Test
+  void commandCase() {
+    ResponseCache cache = new ResponseCache(10, 60000);
+    cache.put(key("get", "1"), ack("One"));
+    assertNotNull(cache.get(key("GET", "1")));
+    assertEquals(1, cache.invalidate(ResponseCache.prefix(GROUP, "Get")));
+  }
+
+
+  @DisplayName("Responses produced across an invalidation are not cached")
+  @Test
+  void staleResponses() {
+    ResponseCache cache = new ResponseCache(10, 60000);
+    long generation = cache.getGeneration();
+    cache.invalidate(key("GET", "1")); // arrives while the request is processed
+    assertFalse(cache.put(key("GET", "1"), ack("Stale"), generation));
+    assertNull(cache.get(key("GET", "1")));
+    assertTrue(cache.put(key("GET", "1"), ack("Fresh"), cache.getGeneration()));
+    assertNotNull(cache.get(key("GET", "1")));
+  }
+
+}
@@ -0,0 +1,162 @@
+package coyote.kestrel.service;
+
+import coyote.kestrel.transport.Message;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WorkerPoolTest {
+
+  /**
+   * Records the deliveries which were acknowledged
+   */
+  private static class RecordingGroup extends ServiceGroup {
+    final List<String> acked = new CopyOnWriteArrayList<>();
+    final List<String> naked = new CopyOnWriteArrayList<>();
+
+    RecordingGroup() {
+      super("SVC.TEST");
+    }
+
+    @Override
+    public void ackDelivery(Message message) {
+      acked.add(message.getId());
+    }
+
+    @Override
+    public void nakDelivery(Message message) {
+      naked.add(message.getId());
+    }
+  }
+
+
+  private static Message message(String id) {
+    Message retval = new Message();
+    retval.setId(id);
+    return retval;
+  }
+
+
+  private static void completeAll(WorkerPool pool, RecordingGroup group, int count) throws InterruptedException {
+    long expiry = System.currentTimeMillis() + 5000;
+    while (group.acked.size() + group.naked.size() < count && System.currentTimeMillis() < expiry) {
+      pool.complete(group);
+      Thread.sleep(1);
+    }
+  }
+
+
+  @DisplayName("A slow message does not hold up the others")
+  @Test
+  void concurrent() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch fast = new CountDownLatch(3);
+    WorkerPool pool = new WorkerPool("test", 2, false, message -> {
+      if ("slow".equals(message.getId())) {
+        try {
+          release.await();
+        } catch (InterruptedException ignore) {
+          // finish
+        }
+      } else {
+        fast.countDown();
+      }
+    });
+    RecordingGroup group = new RecordingGroup();
+
+    for (String id : new String[]{"slow", "1", "2", "3"}) {
+      assertTrue(pool.reserve(1000));
+      pool.submit(message(id));
+    }
+    assertTrue(fast.await(5, TimeUnit.SECONDS), "Other messages should be processed while one is slow");
+    completeAll(pool, group, 3);
+    assertEquals(3, group.acked.size());
+    assertEquals(1, pool.getActive());
+    assertFalse(group.acked.contains("slow"));
+
+    release.countDown();
+    completeAll(pool, group, 4);
+    assertTrue(group.acked.contains("slow"));
+    assertTrue(group.naked.isEmpty());
+    assertTrue(pool.shutdown(1000));
+  }
+
+
+  @DisplayName("Slots limit the messages held and failures are negatively acknowledged")
+  @Test
+  void slots() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    WorkerPool pool = new WorkerPool("test", 1, false, message -> {
+      try {
+        release.await();
+      } catch (InterruptedException ignore) {
+        // finish
+      }
+      if ("bad".equals(message.getId())) {
+        throw new IllegalStateException("bad message");
+      }
+    });
+    RecordingGroup group = new RecordingGroup();
+
+    assertTrue(pool.reserve(100));
+    pool.submit(message("bad"));
+    assertTrue(pool.reserve(100));
+    pool.submit(message("good"));
+    assertFalse(pool.reserve(10), "One worker and its backlog should be full");
+    for (int x = 0; x < 500 && pool.getActive() == 0; x++) {
+      Thread.sleep(1);
+    }
+    assertEquals(1, pool.getActive());
+    assertEquals(1, pool.getQueued());
+
+    release.countDown();
+    completeAll(pool, group, 2);
+    assertEquals("bad", group.naked.get(0));
+    assertEquals("good", group.acked.get(0));
+    assertTrue(pool.reserve(100));
+    pool.cancel();
+    assertTrue(pool.shutdown(1000));
+  }
+
+
+  @DisplayName("Virtual threads fall back to platform threads")
+  @Test
+  void virtualThreads() {
+    WorkerPool pool = new WorkerPool("test", 4, true, message -> {
+    });
+    assertEquals(4, pool.getWorkers());
+    boolean supported = true;
+    try {
+      java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      supported = false;
+    }
+    assertEquals(supported, pool.isVirtual());
+    assertTrue(pool.shutdown(1000));
+  }
+
+
+  @DisplayName("An adaptive limit sets the number of slots")
+  @Test
+  void adaptive() throws InterruptedException {
+    AdaptiveLimit limit = new AdaptiveLimit(1, 4);
+    WorkerPool pool = new WorkerPool("test", 4, false, limit, message -> {
+    });
+    RecordingGroup group = new RecordingGroup();
+    assertEquals(1, pool.getCapacity());
+    assertTrue(pool.reserve(100));
+    assertFalse(pool.reserve(10), "Only one message should be held at the minimum limit");
+    pool.submit(message("1"));
+    completeAll(pool, group, 1);
+    assertTrue(pool.reserve(1000), "The slot should be free once the message is processed");
+    pool.cancel();
+    assertTrue(pool.shutdown(1000));
+  }
+
+}
@@ -0,0 +1,86 @@
+package coyote.kestrel.transport;
+
+import coyote.commons.StringUtil;
+import coyote.dataframe.DataFrame;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageCodec;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessagePoolTest {
+
+
+  private static Message sample() {
+    Message retval = new Message();
+    retval.setId("0f8fad5b-d9cb-469f-a165-70867728950e");
+    retval.setGroup("SVC.PROFILE");
+    retval.setType(KestrelProtocol.REQUEST_TYPE);
+    retval.setPayload(new DataFrame().set("Id", "1234"));
+    return retval;
+  }
+
+
+  @DisplayName("Released messages are cleared and reused")
+  @Test
+  void reuse() {
+    MessagePool pool = new MessagePool(1);
+    Message message = pool.acquire();
+    message.setGroup("SVC.PROFILE");
+    message.setType(KestrelProtocol.REQUEST_TYPE);
+    pool.release(message);
+    assertEquals(1, pool.size());
+
+    Message reused = pool.acquire();
+    assertSame(message, reused);
+    assertEquals(0, reused.getFieldCount());
+    assertNull(reused.getGroup(), "Cached group should be cleared");
+    assertNull(reused.getType(), "Cached type should be cleared");
+
+    pool.release(new Message());
+    pool.release(new Message());
+    assertEquals(1, pool.size(), "Pool should not exceed its size");
+  }
+
+
+  @DisplayName("Bodies decode straight into messages")
+  @Test
+  void decodeMessage() {
+    byte[] body = MessageCodec.encode(sample());
+    Message message = MessageCodec.decodeMessage(body, MessageCodec.FRAME_CONTENT_TYPE, null);
+    assertEquals("SVC.PROFILE", message.getGroup());
+    assertEquals(KestrelProtocol.FRAME_ENCODING, message.getEncoding());
+    assertEquals("1234", message.getPayload().getAsString("Id"));
+
+    // binary frames are decoded by the data frame library into a new message
+    Message target = new Message();
+    assertFalse(MessageCodec.decodesInPlace(body));
+    message = MessageCodec.decodeMessage(body, null, target);
+    assertNotSame(target, message);
+    assertEquals(KestrelProtocol.REQUEST_TYPE, message.getType());
+    assertEquals(0, target.getFieldCount());
+
+    Message compact = sample();
+    compact.setEncoding(KestrelProtocol.COMPACT_ENCODING);
+    byte[] compactBody = MessageCodec.encode(compact);
+    assertTrue(MessageCodec.decodesInPlace(compactBody));
+    assertSame(target, MessageCodec.decodeMessage(compactBody, null, target));
+    assertEquals(KestrelProtocol.COMPACT_ENCODING, target.getEncoding());
+    assertEquals("1234", target.getPayload().getAsString("Id"));
+
+    message = MessageCodec.decodeMessage(StringUtil.getBytes("{\"GRP\":\"SVC.PROFILE\"}"), null, null);
+    assertEquals(KestrelProtocol.JSON_ENCODING, message.getEncoding());
+    assertEquals("SVC.PROFILE", message.getGroup());
+  }
+
+
+  @DisplayName("Listeners retain messages unless they say otherwise")
+  @Test
+  void retainsMessages() {
+    MessageListener listener = message -> {
+    };
+    assertTrue(listener.retainsMessages());
+  }
+
+}
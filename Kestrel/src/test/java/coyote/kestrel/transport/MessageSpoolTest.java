@@ -0,0 +1,111 @@
+package coyote.kestrel.transport;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageSpoolTest {
+
+  private File file;
+
+
+  @BeforeEach
+  void setUp() throws Exception {
+    file = Files.createTempFile("kestrel", ".spool").toFile();
+    file.delete();
+  }
+
+
+  @AfterEach
+  void tearDown() {
+    file.delete();
+  }
+
+
+  @DisplayName("Messages drain in the order they were spooled")
+  @Test
+  void order() throws Exception {
+    MessageSpool spool = new MessageSpool(file, 4096);
+    assertTrue(spool.isEmpty());
+    assertTrue(spool.append(MessageSpool.DIRECT, "SVC.ONE", "first".getBytes()));
+    assertTrue(spool.append(MessageSpool.BROADCAST, "OAM.SERVICES", "second".getBytes()));
+    assertEquals(2, spool.getDepth());
+    assertTrue(spool.getAge() >= 0);
+
+    MessageSpool.Entry entry = spool.peek();
+    assertEquals("SVC.ONE", entry.getGroup());
+    assertFalse(entry.isBroadcast());
+    assertEquals("first", new String(entry.getBody()));
+    assertEquals("first", new String(spool.peek().getBody()), "Peek should not remove the entry");
+    spool.remove();
+
+    entry = spool.peek();
+    assertTrue(entry.isBroadcast());
+    assertEquals("second", new String(entry.getBody()));
+    spool.remove();
+    assertTrue(spool.isEmpty());
+    assertNull(spool.peek());
+    assertEquals(0, spool.getSize());
+  }
+
+
+  @DisplayName("Spool is bounded and reuses space freed by draining")
+  @Test
+  void bounded() throws Exception {
+    MessageSpool spool = new MessageSpool(file, 1024);
+    byte[] body = new byte[100];
+    int count = 0;
+    while (spool.append(MessageSpool.DIRECT, "SVC", body)) {
+      count++;
+    }
+    assertTrue(count > 0);
+    assertEquals(count, spool.getDepth());
+
+    spool.remove();
+    assertTrue(spool.append(MessageSpool.DIRECT, "SVC", body), "Space at the front should be reclaimed");
+    assertFalse(spool.append(MessageSpool.DIRECT, "SVC", body));
+    assertEquals(count, spool.getDepth());
+  }
+
+
+  @DisplayName("Spooled messages survive reopening the spool")
+  @Test
+  void persistence() throws Exception {
+    MessageSpool spool = new MessageSpool(file, 4096);
+    spool.append(MessageSpool.DIRECT, "SVC.ONE", "first".getBytes());
+    spool.append(MessageSpool.DIRECT, "SVC.TWO", "second".getBytes());
+    spool.remove();
+    spool.force();
+
+    MessageSpool reopened = new MessageSpool(file, 4096);
+    assertEquals(1, reopened.getDepth());
+    assertEquals("SVC.TWO", reopened.peek().getGroup());
+  }
+
+
+  @DisplayName("Closing releases the spool and keeps its entries in the file")
+  @Test
+  void close() throws Exception {
+    MessageSpool spool = new MessageSpool(file, 4096);
+    spool.append(MessageSpool.DIRECT, "SVC.ONE", "first".getBytes());
+    spool.close();
+    assertTrue(spool.isClosed());
+    assertTrue(spool.isEmpty());
+    assertNull(spool.peek());
+    assertFalse(spool.append(MessageSpool.DIRECT, "SVC.TWO", "second".getBytes()), "A closed spool should accept nothing");
+    spool.remove();
+    spool.close();
+
+    MessageSpool reopened = new MessageSpool(file, 4096);
+    assertEquals(1, reopened.getDepth());
+    assertEquals("first", new String(reopened.peek().getBody()));
+    reopened.close();
+  }
+
+}
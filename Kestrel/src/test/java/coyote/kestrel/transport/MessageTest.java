@@ -1,6 +1,9 @@
 package coyote.kestrel.transport;
 
 import coyote.dataframe.DataFrame;
+import coyote.kestrel.protocol.EncodingOptions;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageCodec;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
@@ -46,4 +49,93 @@ public class MessageTest {
     assertTrue(message.isExpired());
   }
 
+
+  @DisplayName("Packed payload is decoded on first access")
+  @Test
+  void packedPayload() {
+    EncodingOptions packed = new EncodingOptions(true, false, 0);
+    Message original = new Message();
+    original.setGroup("Service.Queue");
+    original.setReplyId("123");
+    original.setPayload(new DataFrame().set("Name", "Value"));
+
+    Message message = new Message();
+    message.merge(MessageCodec.decode(MessageCodec.encode(original, packed)));
+    assertEquals("123", message.getReplyId());
+    assertTrue(message.getObject(KestrelProtocol.PAYLOAD_FIELD) instanceof byte[], "Payload should remain packed until requested");
+
+    byte[] forwarded = MessageCodec.encode(message, packed);
+    assertTrue(message.getObject(KestrelProtocol.PAYLOAD_FIELD) instanceof byte[], "Forwarding should not decode the payload");
+
+    assertEquals("Value", message.getPayload().getAsString("Name"));
+    assertTrue(message.getObject(KestrelProtocol.PAYLOAD_FIELD) instanceof DataFrame);
+
+    Message copy = new Message();
+    copy.merge(MessageCodec.decode(MessageCodec.encode(MessageCodec.decode(forwarded))));
+    assertTrue(copy.getObject(KestrelProtocol.PAYLOAD_FIELD) instanceof DataFrame, "Payloads should be unpacked when packing is disabled");
+    assertEquals("Value", copy.getPayload().getAsString("Name"));
+  }
+
+
+  @DisplayName("Header slots follow changes to the envelope fields")
+  @Test
+  void headerSlots() {
+    Message message = new Message();
+    message.setId("123");
+    message.setPriority(12);
+    assertEquals("123", message.getId());
+    assertEquals(Message.MAX_PRIORITY, message.getPriority());
+    assertEquals(Message.DEFAULT_PRIORITY, new Message().getPriority());
+
+    message.put(KestrelProtocol.EXPIRY_FIELD, "1546300800");
+    assertEquals(1546300800L, message.getExpiry());
+    message.set(KestrelProtocol.RESULT_CODE_FIELD, 404);
+    assertEquals(404, message.getResultCode());
+    message.add(KestrelProtocol.IDENTIFIER_FIELD, "456");
+    assertEquals("123", message.getId(), "Only the first field of a name is a header");
+
+    message.remove(KestrelProtocol.IDENTIFIER_FIELD);
+    assertEquals("456", message.getId());
+    message.remove(KestrelProtocol.IDENTIFIER_FIELD);
+    assertNull(message.getId());
+
+    DataFrame frame = new DataFrame();
+    frame.put(KestrelProtocol.REPLY_GROUP_FIELD, "My.Inbox");
+    frame.put(KestrelProtocol.PRIORITY_FIELD, -1);
+    message.merge(frame);
+    assertEquals("My.Inbox", message.getReplyGroup());
+    assertEquals(0, message.getPriority());
+
+    message.clear();
+    assertNull(message.getReplyGroup());
+    assertEquals(0L, message.getExpiry());
+    assertEquals(0, message.getResultCode());
+  }
+
+
+  @DisplayName("Decoded messages load their header slots on first access")
+  @Test
+  void decodedHeaders() {
+    Message original = new Message();
+    original.setId("123");
+    original.setReplyId("456");
+    original.setGroup("Service.Queue");
+    original.setType(KestrelProtocol.ACK_TYPE);
+    original.setExpiry(System.currentTimeMillis() / 1000 - 10);
+    original.setPriority(7);
+    original.setResultCode(200);
+    original.setMessage("OK");
+
+    Message message = MessageCodec.decodeMessage(MessageCodec.encode(original), null, null);
+    assertEquals("123", message.getId());
+    assertEquals("456", message.getReplyId());
+    assertEquals("Service.Queue", message.getGroup());
+    assertEquals(KestrelProtocol.ACK_TYPE, message.getType());
+    assertEquals(KestrelProtocol.FRAME_ENCODING, message.getEncoding());
+    assertTrue(message.isExpired());
+    assertEquals(7, message.getPriority());
+    assertEquals(200, message.getResultCode());
+    assertEquals("OK", message.getMessage());
+  }
+
 }
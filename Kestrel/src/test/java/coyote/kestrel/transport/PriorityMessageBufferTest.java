@@ -0,0 +1,76 @@
+package coyote.kestrel.transport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PriorityMessageBufferTest {
+
+
+  private static Message message(String id, int priority) {
+    Message retval = new Message();
+    retval.setId(id);
+    retval.setPriority(priority);
+    return retval;
+  }
+
+
+  @DisplayName("Highest priority first, arrival order within a priority")
+  @Test
+  void ordering() {
+    PriorityMessageBuffer buffer = new PriorityMessageBuffer(10);
+    buffer.offer(message("bulk1", 1));
+    buffer.offer(message("normal", Message.DEFAULT_PRIORITY));
+    buffer.offer(message("bulk2", 1));
+    buffer.offer(message("interactive", 8));
+    buffer.offer(new Message());
+
+    assertEquals(5, buffer.size());
+    assertEquals("interactive", buffer.peek().getId());
+    assertEquals("interactive", buffer.poll().getId());
+    assertEquals("normal", buffer.poll().getId());
+    assertNull(buffer.poll().getId(), "Messages without a priority use the default");
+    assertEquals("bulk1", buffer.poll().getId());
+    assertEquals("bulk2", buffer.poll().getId());
+    assertNull(buffer.poll());
+  }
+
+
+  @DisplayName("Full buffer refuses messages until one is taken")
+  @Test
+  void bounded() throws InterruptedException {
+    PriorityMessageBuffer buffer = new PriorityMessageBuffer(2);
+    assertTrue(buffer.offer(message("a", 1)));
+    assertTrue(buffer.offer(message("b", 1)));
+    assertFalse(buffer.offer(message("c", 9)));
+    assertFalse(buffer.offer(message("c", 9), 10, TimeUnit.MILLISECONDS));
+    assertEquals(0, buffer.remainingCapacity());
+
+    Thread producer = new Thread(() -> {
+      try {
+        buffer.put(message("c", 9));
+      } catch (InterruptedException ignore) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    producer.start();
+    assertEquals("a", buffer.take().getId());
+    producer.join(1000);
+    assertEquals("c", buffer.poll(1, TimeUnit.SECONDS).getId());
+    assertEquals("b", buffer.poll(1, TimeUnit.SECONDS).getId());
+    assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+
+  @DisplayName("Priorities are clamped to the supported range")
+  @Test
+  void clamped() {
+    assertEquals(Message.MAX_PRIORITY, message("high", 42).getPriority());
+    assertEquals(0, message("low", -3).getPriority());
+    assertEquals(Message.DEFAULT_PRIORITY, new Message().getPriority());
+  }
+
+}
@@ -0,0 +1,73 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AmqpAcknowledgerTest {
+
+  /**
+   * The arguments of each basicAck call as "tag:multiple"
+   */
+  private final List<String> acks = new CopyOnWriteArrayList<>();
+
+
+  private Channel channel() {
+    return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class}, (proxy, method, args) -> {
+      if ("basicAck".equals(method.getName())) {
+        acks.add(args[0] + ":" + args[1]);
+      }
+      return null;
+    });
+  }
+
+
+  @DisplayName("A batch of deliveries is acknowledged with one multiple-ack")
+  @Test
+  void batch() throws IOException {
+    AmqpAcknowledger acknowledger = new AmqpAcknowledger(channel(), 32, 1000000);
+    for (long tag = 1; tag <= 6; tag++) {
+      acknowledger.delivered(tag);
+    }
+    acknowledger.ack(new long[]{1, 2, 3});
+    assertEquals(1, acks.size());
+    assertEquals("3:true", acks.get(0));
+
+    acknowledger.ack(new long[]{5, 6});
+    assertEquals(1, acks.size(), "Delivery 4 is still outstanding");
+    acknowledger.ack(new long[]{4});
+    assertEquals("6:true", acks.get(1));
+    acknowledger.reset();
+  }
+
+
+  @DisplayName("Held acknowledgements are sent by the polling thread once due")
+  @Test
+  void due() throws Exception {
+    AmqpAcknowledger acknowledger = new AmqpAcknowledger(channel(), 32, 1000);
+    assertEquals(-1, acknowledger.getWait());
+    acknowledger.delivered(1);
+    acknowledger.delivered(2);
+    acknowledger.ack(1);
+    acknowledger.acknowledged(2);
+    assertTrue(acknowledger.getWait() >= 0);
+    Thread.sleep(20);
+    assertTrue(acks.isEmpty(), "Nothing is sent until the channel is polled");
+    assertEquals(0, acknowledger.getWait());
+
+    acknowledger.flushIfDue();
+    assertEquals(1, acks.size());
+    assertEquals("2:true", acks.get(0));
+    assertEquals(-1, acknowledger.getWait());
+    acknowledger.flushIfDue();
+    assertEquals(1, acks.size());
+  }
+
+}
@@ -0,0 +1,89 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.AMQP;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AmqpEnvelopeTest {
+
+
+  @DisplayName("Envelope fields are mapped to properties")
+  @Test
+  void toProperties() {
+    Message message = new Message();
+    message.setId("123");
+    message.setReplyId("456");
+    message.setType("RQS");
+    message.setReplyGroup("inbox");
+    message.setPriority(8);
+    message.setExpiry(System.currentTimeMillis() / 1000 + 60);
+
+    AMQP.BasicProperties props = AmqpEnvelope.toProperties(message);
+    assertEquals("123", props.getMessageId());
+    assertEquals("456", props.getCorrelationId());
+    assertEquals("RQS", props.getType());
+    assertEquals("inbox", props.getReplyTo());
+    assertEquals(Integer.valueOf(8), props.getPriority());
+    long ttl = Long.parseLong(props.getExpiration());
+    assertTrue(ttl > 55000 && ttl <= 60000, "TTL should be relative to now: " + ttl);
+    assertFalse(AmqpEnvelope.isExpired(props));
+  }
+
+
+  @DisplayName("Properties carry the content type of the body")
+  @Test
+  void contentType() {
+    Message message = new Message();
+    message.put("Data", "value");
+    AMQP.BasicProperties props = AmqpEnvelope.toProperties(message);
+    assertEquals(MessageCodec.FRAME_CONTENT_TYPE, props.getContentType());
+    assertNull(props.getMessageId());
+    assertNull(props.getExpiration());
+    assertFalse(AmqpEnvelope.isExpired(props));
+    assertFalse(AmqpEnvelope.isExpired(null));
+
+    message.setEncoding(KestrelProtocol.JSON_ENCODING);
+    assertEquals(MessageCodec.JSON_CONTENT_TYPE, AmqpEnvelope.toProperties(message).getContentType());
+  }
+
+
+  @DisplayName("Expired messages are detected from the headers")
+  @Test
+  void expired() {
+    Message message = new Message();
+    message.setExpiry(System.currentTimeMillis() / 1000 - 10);
+    AMQP.BasicProperties props = AmqpEnvelope.toProperties(message);
+    assertEquals("0", props.getExpiration());
+    assertTrue(AmqpEnvelope.isExpired(props));
+  }
+
+
+  @DisplayName("Properties fill in fields missing from the body")
+  @Test
+  void apply() {
+    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
+            .messageId("abc")
+            .correlationId("def")
+            .type("RSP")
+            .replyTo("replies")
+            .headers(Collections.singletonMap(AmqpEnvelope.EXPIRY_HEADER, (Object) 42L))
+            .build();
+
+    Message message = new Message();
+    message.setType("EVT");
+    AmqpEnvelope.apply(props, message);
+    assertEquals("abc", message.getId());
+    assertEquals("def", message.getReplyId());
+    assertEquals("EVT", message.getType(), "Fields in the body take precedence");
+    assertEquals("replies", message.getReplyGroup());
+    assertEquals(42L, message.getExpiry());
+  }
+
+}
@@ -0,0 +1,139 @@
+package coyote.kestrel.transport.amqp;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.ConnectionFactory;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BrokerResolverTest {
+
+  private static BrokerResolver resolver() {
+    return new BrokerResolver(Arrays.asList(URI.create("amqp://127.0.0.1:5672"), URI.create("amqp://127.0.0.2:5673"), URI.create("amqps://127.0.0.3")));
+  }
+
+
+  /**
+   * @return true if a client connected to the server since it was last checked
+   */
+  private static boolean attempted(ServerSocket server) throws IOException {
+    server.setSoTimeout(500);
+    try (Socket socket = server.accept()) {
+      return true;
+    } catch (SocketTimeoutException e) {
+      return false;
+    }
+  }
+
+
+  @DisplayName("Untried brokers are offered one at a time in configured order")
+  @Test
+  void configuredOrder() {
+    BrokerResolver resolver = resolver();
+    List<Address> addresses = resolver.getAddresses();
+    assertEquals(1, addresses.size());
+    assertEquals("127.0.0.1", addresses.get(0).getHost());
+    assertEquals(5673, resolver.getAddresses().get(0).getPort());
+    assertEquals(5671, resolver.getAddresses().get(0).getPort(), "AMQPS brokers default to the TLS port");
+  }
+
+
+  @DisplayName("Asking again without connecting fails only the broker offered")
+  @Test
+  void failover() {
+    BrokerResolver resolver = resolver();
+    resolver.getAddresses();
+    resolver.getAddresses();
+    assertEquals(1, resolver.connected());
+    assertEquals(1, resolver.getFailureCount());
+    assertEquals(BrokerResolver.UNKNOWN_LATENCY, resolver.getScore(2));
+    assertEquals(Arrays.asList(1, 2, 0), resolver.getPreferredOrder());
+  }
+
+
+  @DisplayName("A failed attempt penalizes only the broker offered")
+  @Test
+  void failed() {
+    BrokerResolver resolver = resolver();
+    resolver.getAddresses();
+    resolver.failed();
+    assertEquals(1, resolver.getFailureCount());
+    assertTrue(resolver.getScore(0) > BrokerResolver.FAILURE_PENALTY);
+    assertEquals(BrokerResolver.UNKNOWN_LATENCY, resolver.getScore(1));
+    resolver.failed();
+    assertEquals(1, resolver.getFailureCount(), "An outcome is only recorded once");
+    assertEquals("127.0.0.2", resolver.getAddresses().get(0).getHost());
+  }
+
+
+  @DisplayName("A healthy known broker is preferred over an untried one")
+  @Test
+  void preferHealthy() {
+    BrokerResolver resolver = resolver();
+    resolver.getAddresses();
+    assertEquals(0, resolver.connected());
+    assertEquals(Integer.valueOf(0), resolver.getPreferredOrder().get(0));
+    assertTrue(resolver.getScore(0) < BrokerResolver.UNKNOWN_LATENCY);
+  }
+
+
+  @DisplayName("A connection made without our addresses records no outcome")
+  @Test
+  void unoffered() {
+    BrokerResolver resolver = resolver();
+    assertEquals(-1, resolver.connected());
+    assertEquals(0, resolver.getFailureCount());
+    assertEquals(BrokerResolver.UNKNOWN_LATENCY, resolver.getScore(0));
+  }
+
+
+  @DisplayName("Recovery moves away from the broker which dropped the connection")
+  @Test
+  void lost() {
+    BrokerResolver resolver = resolver();
+    resolver.getAddresses();
+    resolver.connected();
+    resolver.lost();
+    assertEquals(1, resolver.getFailureCount());
+    assertEquals("127.0.0.2", resolver.getAddresses().get(0).getHost());
+  }
+
+
+  @DisplayName("The connection factory tries only the broker offered")
+  @Test
+  void connectionFactory() throws Exception {
+    InetAddress loopback = InetAddress.getByName("127.0.0.1");
+    try (ServerSocket first = new ServerSocket(0, 10, loopback); ServerSocket second = new ServerSocket(0, 10, loopback)) {
+      BrokerResolver resolver = new BrokerResolver(Arrays.asList(URI.create("amqp://127.0.0.1:" + first.getLocalPort()), URI.create("amqp://127.0.0.1:" + second.getLocalPort())));
+      ConnectionFactory factory = new ConnectionFactory();
+      factory.setAutomaticRecoveryEnabled(true);
+      factory.setConnectionTimeout(1000);
+      factory.setHandshakeTimeout(250);
+
+      assertThrows(Exception.class, () -> factory.newConnection(resolver));
+      assertTrue(attempted(first));
+      assertFalse(attempted(second), "Only the healthiest broker should be tried");
+      assertEquals(0, resolver.getFailureCount());
+
+      assertThrows(Exception.class, () -> factory.newConnection(resolver));
+      assertFalse(attempted(first));
+      assertTrue(attempted(second));
+      assertEquals(1, resolver.getFailureCount());
+      assertEquals(BrokerResolver.UNKNOWN_LATENCY, resolver.getScore(1), "The broker being tried has not failed yet");
+
+      resolver.failed();
+      assertEquals(2, resolver.getFailureCount());
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+package coyote.kestrel.transport.amqp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConfirmWindowTest {
+
+
+  @DisplayName("Multiple confirms complete all earlier sequences")
+  @Test
+  void multipleConfirm() throws InterruptedException {
+    ConfirmWindow window = new ConfirmWindow(8);
+    for (long seq = 1; seq <= 5; seq++) {
+      assertTrue(window.reserve(10));
+      window.add(seq, new CompletableFuture<>());
+    }
+    assertEquals(5, window.size());
+
+    List<CompletableFuture<Void>> confirmed = window.remove(3, true);
+    assertEquals(3, confirmed.size());
+    assertEquals(2, window.size());
+  }
+
+
+  @DisplayName("Single confirms only reclaim slots from the head")
+  @Test
+  void singleConfirm() throws InterruptedException {
+    ConfirmWindow window = new ConfirmWindow(4);
+    for (long seq = 1; seq <= 4; seq++) {
+      assertTrue(window.reserve(10));
+      window.add(seq, new CompletableFuture<>());
+    }
+
+    assertEquals(1, window.remove(3, false).size());
+    assertEquals(4, window.size(), "Slot should not be reclaimed until earlier sequences are confirmed");
+    assertTrue(window.remove(3, false).isEmpty(), "Sequence should only be confirmed once");
+
+    assertEquals(1, window.remove(1, false).size());
+    assertEquals(3, window.size());
+    assertEquals(1, window.remove(2, false).size());
+    assertEquals(1, window.size(), "Already confirmed sequence 3 should be reclaimed with 2");
+  }
+
+
+  @DisplayName("Full window applies backpressure")
+  @Test
+  void backpressure() throws InterruptedException {
+    ConfirmWindow window = new ConfirmWindow(2);
+    assertTrue(window.reserve(10));
+    window.add(1, new CompletableFuture<>());
+    assertTrue(window.reserve(10));
+    assertFalse(window.reserve(10), "Reserved slots count against the window");
+    window.cancel();
+    assertTrue(window.reserve(10));
+    window.add(2, new CompletableFuture<>());
+    assertFalse(window.reserve(10));
+
+    window.remove(1, false);
+    assertTrue(window.reserve(10));
+  }
+
+
+  @DisplayName("Wrapping the ring keeps sequences ordered")
+  @Test
+  void wrapAround() throws InterruptedException {
+    ConfirmWindow window = new ConfirmWindow(3);
+    for (long seq = 1; seq <= 30; seq++) {
+      assertTrue(window.reserve(10));
+      window.add(seq, new CompletableFuture<>());
+      if (seq % 2 == 0) {
+        assertEquals(1, window.remove(seq, false).size());
+        assertEquals(1, window.remove(seq - 1, false).size());
+      }
+    }
+    assertEquals(0, window.size());
+    assertEquals(0, window.clear().size());
+  }
+
+}
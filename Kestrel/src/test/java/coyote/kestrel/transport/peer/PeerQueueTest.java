@@ -0,0 +1,64 @@
+package coyote.kestrel.transport.peer;
+
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.vm.VmDestination;
+import coyote.kestrel.transport.vm.VmQueue;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerQueueTest {
+
+  private static final String GROUP = "SVC.PEERQUEUE.TEST";
+
+
+  private static Message message(String id) {
+    Message retval = new Message();
+    retval.setId(id);
+    retval.setGroup(GROUP);
+    return retval;
+  }
+
+
+  @DisplayName("A full queue refuses peer messages until one is taken")
+  @Test
+  void bounded() {
+    AtomicInteger drained = new AtomicInteger();
+    PeerQueue queue = new PeerQueue(new VmQueue(new VmDestination(GROUP)), drained::incrementAndGet);
+    for (int x = 0; x < PeerQueue.DEFAULT_CAPACITY; x++) {
+      assertTrue(queue.deliver(message("m" + x)));
+    }
+    Message refused = message("refused");
+    assertFalse(queue.deliver(refused));
+    assertFalse(refused.contains(PeerTransport.PEER_DELIVERY_FIELD), "A refused message is left as it arrived");
+    assertEquals(0, drained.get());
+
+    assertEquals("m0", queue.getNextMessage().getId());
+    assertEquals(1, drained.get());
+    assertTrue(queue.deliver(refused));
+    queue.getNextMessage();
+    assertEquals(1, drained.get(), "Only a take from a full queue signals room");
+  }
+
+
+  @DisplayName("The consumer buffer size bounds the peer messages held")
+  @Test
+  void consumeCapacity() {
+    VmDestination destination = new VmDestination(GROUP);
+    PeerQueue queue = new PeerQueue(new VmQueue(destination));
+    queue.consume(2);
+    assertTrue(queue.deliver(message("a")));
+    assertTrue(queue.deliver(message("b")));
+    assertFalse(queue.deliver(message("c")));
+
+    Message held = queue.getNextMessage(10);
+    assertTrue(queue.deliver(message("c")));
+    queue.nakDelivery(held);
+    assertEquals(1, destination.size(), "A message which no longer fits goes back through the broker");
+    queue.close();
+  }
+
+}
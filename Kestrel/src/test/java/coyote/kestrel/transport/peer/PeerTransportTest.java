@@ -0,0 +1,299 @@
+package coyote.kestrel.transport.peer;
+
+import coyote.dataframe.DataFrame;
+import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageCodec;
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.Transport;
+import coyote.kestrel.transport.TransportBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two peer transports layered over the in-process transport so discovery
+ * heartbeats flow without a broker.
+ */
+public class PeerTransportTest {
+  private static final String URI = "vm://PeerTransportTest?peerPort=0&peerHost=127.0.0.1&peerSecret=test";
+  private static final String GROUP = "P2P.TEST";
+
+  private Transport service;
+  private Transport client;
+
+
+  @BeforeEach
+  void setUp() {
+    service = new TransportBuilder().setURI(URI).build();
+    client = new TransportBuilder().setURI(URI).build();
+    service.open();
+    client.open();
+  }
+
+
+  @AfterEach
+  void tearDown() {
+    client.close();
+    service.close();
+  }
+
+
+  private static Message heartbeat(String group, String instanceId) {
+    Message retval = new Message();
+    retval.setType(KestrelProtocol.HEARTBEAT_TYPE);
+    retval.setGroup(KestrelProtocol.HEARTBEAT_GROUP);
+    retval.setPayload(new DataFrame().set("GroupName", group).set("InstanceId", instanceId));
+    return retval;
+  }
+
+
+  private static Socket connect(Transport transport) throws IOException {
+    Socket retval = new Socket("127.0.0.1", ((PeerTransport) transport).getPort());
+    retval.setSoTimeout(1000);
+    return retval;
+  }
+
+
+  private static void write(Socket socket, byte type, byte[] body) throws IOException {
+    ByteBuffer frame = PeerConnection.frame(type, body);
+    socket.getOutputStream().write(frame.array(), 0, frame.limit());
+    socket.getOutputStream().flush();
+  }
+
+
+  /**
+   * @return true if the remote end closed the connection
+   */
+  private static boolean closed(Socket socket) throws IOException {
+    try {
+      return socket.getInputStream().read() < 0;
+    } catch (SocketTimeoutException e) {
+      return false;
+    } catch (SocketException e) {
+      return true;
+    }
+  }
+
+
+  /**
+   * @return true if the connection is still open and nothing was sent on it
+   */
+  private static boolean silent(Socket socket) throws IOException {
+    try {
+      socket.getInputStream().read();
+      return false;
+    } catch (SocketTimeoutException e) {
+      return true;
+    }
+  }
+
+
+  @DisplayName("Builder decorates the transport when a peer port is given")
+  @Test
+  void builder() {
+    assertTrue(service instanceof PeerTransport);
+    assertTrue(((PeerTransport) service).getPort() > 0);
+  }
+
+
+  @DisplayName("Requests and responses bypass the broker once a peer is discovered")
+  @Test
+  void requestResponse() throws Exception {
+    MessageQueue serviceQueue = service.getServiceQueue(GROUP);
+    MessageQueue inbox = client.createInbox();
+    CountDownLatch responded = new CountDownLatch(1);
+    AtomicReference<Message> response = new AtomicReference<>();
+    inbox.attach(message -> {
+      response.set(message);
+      responded.countDown();
+    });
+
+    // without a heartbeat, the request goes through the delegate
+    Message request = new Message();
+    request.setGroup(GROUP);
+    request.setReplyGroup(inbox.getName());
+    request.setId("1");
+    client.sendDirect(request);
+    Message received = serviceQueue.getNextMessage(5000);
+    assertNotNull(received);
+    assertFalse(received.contains(PeerTransport.PEER_DELIVERY_FIELD));
+    serviceQueue.ackDelivery(received);
+
+    // the service advertises itself and the next request goes direct
+    service.broadcast(heartbeat(GROUP, "service-1"));
+    Thread.sleep(200);
+    request.setId("2");
+    client.sendDirect(request);
+    received = serviceQueue.getNextMessage(5000);
+    assertNotNull(received);
+    assertTrue(received.contains(PeerTransport.PEER_DELIVERY_FIELD), "Request should arrive from the peer");
+    assertEquals("2", received.getId());
+    serviceQueue.ackDelivery(received);
+
+    Message reply = new Message();
+    reply.setGroup(received.getReplyGroup());
+    reply.setReplyId(received.getId());
+    service.sendDirect(reply);
+    assertTrue(responded.await(5, TimeUnit.SECONDS));
+    assertEquals("2", response.get().getReplyId());
+    assertTrue(response.get().contains(PeerTransport.PEER_DELIVERY_FIELD), "Response should return over the peer connection");
+  }
+
+
+  @DisplayName("Messages for an unreachable peer go through the broker without blocking the sender")
+  @Test
+  void unreachable() throws Exception {
+    String group = GROUP + ".DOWN";
+    // a bound socket which is not listening refuses connections and keeps other tests off the port
+    Socket blocker = new Socket();
+    blocker.bind(new InetSocketAddress("127.0.0.1", 0));
+    int port = blocker.getLocalPort();
+    MessageQueue serviceQueue = service.getServiceQueue(group);
+    Message beat = heartbeat(group, "service-2");
+    DataFrame payload = beat.getPayload();
+    payload.put(PeerTransport.PEER_PORT_FIELD, port);
+    payload.put(PeerTransport.PEER_HOST_FIELD, "127.0.0.1");
+    payload.put(PeerTransport.PEER_NODE_FIELD, "unreachable");
+    beat.setPayload(payload);
+    ((PeerTransport) service).getDelegate().broadcast(beat);
+    Thread.sleep(200);
+
+    Message request = new Message();
+    request.setGroup(group);
+    request.setId("3");
+    long started = System.currentTimeMillis();
+    client.sendDirect(request);
+    assertTrue(System.currentTimeMillis() - started < 1000, "Sending should not wait for the connection");
+    // the broker is only polled at the start of each wait, as a service loop would
+    Message received = null;
+    long deadline = System.currentTimeMillis() + 5000;
+    while (received == null && System.currentTimeMillis() < deadline) {
+      received = serviceQueue.getNextMessage(50);
+    }
+    assertNotNull(received, "The message should be sent through the broker once the connection fails");
+    assertEquals("3", received.getId());
+    assertFalse(received.contains(PeerTransport.PEER_DELIVERY_FIELD));
+    blocker.close();
+  }
+
+
+  @DisplayName("Terminating services are no longer used")
+  @Test
+  void terminating() throws Exception {
+    MessageQueue serviceQueue = service.getServiceQueue(GROUP);
+    service.broadcast(heartbeat(GROUP, "service-1"));
+    Thread.sleep(200);
+    Message exit = heartbeat(GROUP, "service-1");
+    exit.setPayload(new DataFrame().set("Event", "Terminating").set("InstanceId", "service-1"));
+    service.broadcast(exit);
+    Thread.sleep(200);
+
+    Message request = new Message();
+    request.setGroup(GROUP);
+    client.sendDirect(request);
+    Message received = serviceQueue.getNextMessage(5000);
+    assertNotNull(received);
+    assertFalse(received.contains(PeerTransport.PEER_DELIVERY_FIELD));
+  }
+
+
+
+  @DisplayName("Connections which do not authenticate are closed before anything is delivered")
+  @Test
+  void unauthenticated() throws Exception {
+    MessageQueue serviceQueue = service.getServiceQueue(GROUP);
+    Message request = new Message();
+    request.setGroup(GROUP);
+    try (Socket socket = connect(service)) {
+      write(socket, PeerConnection.MESSAGE_FRAME, MessageCodec.encode(request));
+      assertTrue(closed(socket));
+    }
+
+    PeerTransport stranger = new PeerTransport(null, 0);
+    stranger.setSecret("wrong");
+    try (Socket socket = connect(service)) {
+      write(socket, PeerConnection.HELLO_FRAME, stranger.hello(Collections.emptyList()));
+      write(socket, PeerConnection.MESSAGE_FRAME, MessageCodec.encode(request));
+      assertTrue(closed(socket));
+    }
+
+    byte[] hello = ((PeerTransport) client).hello(Collections.emptyList());
+    try (Socket socket = connect(service)) {
+      write(socket, PeerConnection.HELLO_FRAME, hello);
+      assertTrue(silent(socket), "An authentic HELLO should be accepted");
+    }
+    try (Socket socket = connect(service)) {
+      write(socket, PeerConnection.HELLO_FRAME, hello);
+      assertTrue(closed(socket), "A replayed HELLO should be rejected");
+    }
+    assertNull(serviceQueue.getNextMessage(200));
+  }
+
+
+  @DisplayName("Peers cannot capture service groups or deliver to groups not served here")
+  @Test
+  void routing() throws Exception {
+    String group = GROUP + ".ROUTE";
+    MessageQueue serviceQueue = service.getServiceQueue(group);
+    String elsewhere = GROUP + ".ELSEWHERE";
+    MessageQueue brokerQueue = ((PeerTransport) service).getDelegate().getServiceQueue(elsewhere);
+    try (Socket socket = connect(service)) {
+      write(socket, PeerConnection.HELLO_FRAME, ((PeerTransport) client).hello(Collections.singletonList(group)));
+      Message stray = new Message();
+      stray.setGroup(elsewhere);
+      write(socket, PeerConnection.MESSAGE_FRAME, MessageCodec.encode(stray));
+      assertTrue(silent(socket));
+      assertNull(brokerQueue.getNextMessage(200), "Messages for groups not served here should be dropped");
+
+      Message request = new Message();
+      request.setGroup(group);
+      request.setId("4");
+      service.sendDirect(request);
+      assertTrue(silent(socket), "The request should not be routed to the peer announcing the group");
+      Message received = serviceQueue.getNextMessage(5000);
+      assertNotNull(received);
+      assertEquals("4", received.getId());
+    }
+  }
+
+
+  @DisplayName("A peer sending faster than the service consumes is held back without losing messages")
+  @Test
+  void backpressure() throws Exception {
+    String group = GROUP + ".FULL";
+    MessageQueue serviceQueue = service.getServiceQueue(group);
+    int count = PeerQueue.DEFAULT_CAPACITY * 3;
+    try (Socket socket = connect(service)) {
+      write(socket, PeerConnection.HELLO_FRAME, ((PeerTransport) client).hello(Collections.<String>emptyList()));
+      for (int x = 0; x < count; x++) {
+        Message message = new Message();
+        message.setGroup(group);
+        message.setId(String.valueOf(x));
+        write(socket, PeerConnection.MESSAGE_FRAME, MessageCodec.encode(message));
+      }
+      for (int x = 0; x < count; x++) {
+        Message received = serviceQueue.getNextMessage(5000);
+        assertNotNull(received, "Message " + x + " was lost");
+        assertEquals(String.valueOf(x), received.getId());
+        assertTrue(received.contains(PeerTransport.PEER_DELIVERY_FIELD));
+      }
+      assertNull(serviceQueue.getNextMessage(100));
+    }
+  }
+
+}
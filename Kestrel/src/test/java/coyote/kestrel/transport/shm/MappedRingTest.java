@@ -0,0 +1,123 @@
+package coyote.kestrel.transport.shm;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedRingTest {
+
+  private File directory;
+
+
+  @BeforeEach
+  void setUp() throws Exception {
+    directory = Files.createTempDirectory("ring").toFile();
+  }
+
+
+  @AfterEach
+  void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+
+  @DisplayName("Records written by the producer are read in order by the consumer")
+  @Test
+  void producerConsumer() throws Exception {
+    File file = new File(directory, "test.ring");
+    MappedRing producer = MappedRing.create(file, 1024);
+    MappedRing consumer = MappedRing.open(file);
+    assertEquals(1024, consumer.getCapacity());
+    assertNull(consumer.poll());
+
+    assertTrue(producer.offer("one".getBytes()));
+    assertTrue(producer.offer(new byte[0]));
+    assertTrue(producer.offer("three".getBytes()));
+    assertEquals("one", new String(consumer.poll()));
+    assertEquals(0, consumer.poll().length);
+    assertEquals("three", new String(consumer.poll()));
+    assertNull(consumer.poll());
+  }
+
+
+  @DisplayName("Closed rings refuse records and keep those already published")
+  @Test
+  void closed() throws Exception {
+    File file = new File(directory, "closed.ring");
+    MappedRing producer = MappedRing.create(file, 1024);
+    MappedRing consumer = MappedRing.open(file);
+    assertTrue(producer.offer("one".getBytes()));
+    consumer.close();
+    assertTrue(producer.isClosed());
+    assertFalse(producer.offer("two".getBytes()));
+    assertEquals("one", new String(consumer.poll()));
+    assertNull(consumer.poll());
+    assertTrue(consumer.isEmpty());
+  }
+
+
+  @DisplayName("Full rings refuse records until the consumer makes room")
+  @Test
+  void full() throws Exception {
+    File file = new File(directory, "full.ring");
+    MappedRing producer = MappedRing.create(file, 1024);
+    MappedRing consumer = MappedRing.open(file);
+    byte[] record = new byte[100]; // 104 bytes with its length
+    int count = 0;
+    while (producer.offer(record)) {
+      count++;
+    }
+    assertEquals(9, count);
+    assertNotNull(consumer.poll());
+    assertTrue(producer.offer(record));
+    assertThrows(IllegalArgumentException.class, () -> producer.offer(new byte[2048]));
+  }
+
+
+  @DisplayName("Records wrap around the end of the ring intact")
+  @Test
+  void wrapAround() throws Exception {
+    File file = new File(directory, "wrap.ring");
+    MappedRing producer = MappedRing.create(file, 1024);
+    MappedRing consumer = MappedRing.open(file);
+    for (int x = 0; x < 1000; x++) {
+      byte[] record = new byte[x % 300];
+      for (int y = 0; y < record.length; y++) {
+        record[y] = (byte) (x + y);
+      }
+      assertTrue(producer.offer(record));
+      byte[] read = consumer.poll();
+      assertArrayEquals(record, read);
+    }
+  }
+
+
+  @DisplayName("Records are copied from heap and direct buffers")
+  @Test
+  void buffers() throws Exception {
+    File file = new File(directory, "buffers.ring");
+    MappedRing producer = MappedRing.create(file, 1024);
+    MappedRing consumer = MappedRing.open(file);
+    for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(16), ByteBuffer.allocateDirect(16)}) {
+      buffer.putInt(7).putInt(42).flip();
+      buffer.getInt(); // skip the first int
+      assertTrue(producer.offer(buffer));
+      assertEquals(4, buffer.position(), "Offering should not move the buffer");
+      assertArrayEquals(new byte[]{0, 0, 0, 42}, consumer.poll());
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+package coyote.kestrel.transport.shm;
+
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.kestrel.transport.Transport;
+import coyote.kestrel.transport.TransportBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two transports in this JVM stand in for two processes on the same host.
+ */
+public class ShmTransportTest {
+
+  private File root;
+  private Transport producer;
+  private Transport consumer;
+
+
+  @BeforeEach
+  void setUp() throws Exception {
+    root = Files.createTempDirectory("kestrel").toFile();
+    String uri = "shm://" + root.toURI().getPath() + "?ringSize=4096";
+    producer = new TransportBuilder().setURI(uri).build();
+    consumer = new TransportBuilder().setURI(uri).build();
+    producer.open();
+    consumer.open();
+  }
+
+
+  @AfterEach
+  void tearDown() {
+    producer.close();
+    consumer.close();
+    delete(root);
+  }
+
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+
+  private static Message message(String group, int sequence) {
+    Message retval = new Message();
+    retval.setGroup(group);
+    retval.put("SEQ", sequence);
+    return retval;
+  }
+
+
+  @DisplayName("Builder creates a shared memory transport in the URI path")
+  @Test
+  void builder() {
+    assertTrue(producer instanceof ShmTransport);
+    assertEquals(root.getAbsoluteFile(), ((ShmTransport) producer).getRoot().getAbsoluteFile());
+    assertTrue(producer.isValid());
+  }
+
+
+  @DisplayName("Messages are spread across competing consumers")
+  @Test
+  void competingConsumers() throws Exception {
+    MessageQueue first = consumer.getServiceQueue("SHM.COMPETE");
+    MessageQueue second = consumer.getServiceQueue("SHM.COMPETE");
+    for (int x = 0; x < 10; x++) {
+      producer.sendDirect(message("SHM.COMPETE", x));
+    }
+
+    Set<String> received = new HashSet<>();
+    Message msg;
+    while ((msg = first.getNextMessage(100)) != null) {
+      assertTrue(received.add(msg.getAsString("SEQ")));
+      first.ackDelivery(msg);
+    }
+    int fromFirst = received.size();
+    while ((msg = second.getNextMessage(100)) != null) {
+      assertTrue(received.add(msg.getAsString("SEQ")));
+      second.ackDelivery(msg);
+    }
+    assertEquals(10, received.size());
+    assertEquals(5, fromFirst);
+  }
+
+
+  @DisplayName("Negatively acknowledged messages are redelivered")
+  @Test
+  void redelivery() throws Exception {
+    MessageQueue queue = consumer.getServiceQueue("SHM.REDELIVER");
+    producer.sendDirect(message("SHM.REDELIVER", 1));
+    Message msg = queue.getNextMessage(1000);
+    assertNotNull(msg);
+    queue.nakDelivery(msg);
+    msg = queue.getNextMessage();
+    assertNotNull(msg);
+    assertEquals("1", msg.getAsString("SEQ"));
+    queue.ackDelivery(msg);
+    assertNull(queue.getNextMessage(50));
+  }
+
+
+  @DisplayName("Messages not yet read are returned to the group when a consumer closes")
+  @Test
+  void closeRequeues() throws Exception {
+    MessageQueue first = consumer.getServiceQueue("SHM.CLOSE");
+    MessageQueue second = consumer.getServiceQueue("SHM.CLOSE");
+    for (int x = 0; x < 10; x++) {
+      producer.sendDirect(message("SHM.CLOSE", x));
+    }
+    ((ShmQueue) first).close();
+
+    Set<String> received = new HashSet<>();
+    Message msg;
+    while ((msg = second.getNextMessage(100)) != null) {
+      assertTrue(received.add(msg.getAsString("SEQ")));
+      second.ackDelivery(msg);
+    }
+    assertEquals(10, received.size());
+  }
+
+
+  @DisplayName("Producers wait for room in a full ring")
+  @Test
+  void backpressure() throws Exception {
+    MessageQueue queue = consumer.getServiceQueue("SHM.FULL");
+    Thread reader = new Thread(() -> {
+      for (int x = 0; x < 500; x++) {
+        Message msg = queue.getNextMessage(5000);
+        if (msg != null) {
+          queue.ackDelivery(msg);
+        }
+      }
+    });
+    reader.start();
+    for (int x = 0; x < 500; x++) {
+      producer.sendDirect(message("SHM.FULL", x));
+    }
+    reader.join(10000);
+    assertFalse(reader.isAlive());
+  }
+
+
+  @DisplayName("Broadcasts reach every subscriber and inbox listeners receive messages")
+  @Test
+  void topicAndInbox() throws Exception {
+    MessageTopic topic = consumer.getTopic("SHM.TOPIC");
+    CountDownLatch latch = new CountDownLatch(3);
+    topic.attach(message -> latch.countDown());
+    topic.attach(message -> latch.countDown());
+    MessageQueue inbox = consumer.createInbox();
+    inbox.attach(message -> latch.countDown());
+
+    producer.broadcast(message("SHM.TOPIC", 1));
+    producer.sendDirect(message(inbox.getName(), 2));
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+
+}
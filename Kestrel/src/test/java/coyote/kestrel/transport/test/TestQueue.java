@@ -12,6 +12,26 @@ public class TestQueue implements MessageQueue {
     return null;
   }
 
+  @Override
+  public Message getNextMessage(long timeout) {
+    return null;
+  }
+
+  @Override
+  public void consume(int capacity) {
+
+  }
+
+  @Override
+  public void setPrefetch(int count) {
+
+  }
+
+  @Override
+  public void setAckBatch(int size, long delay) {
+
+  }
+
   @Override
   public Message peek() {
     return null;
@@ -0,0 +1,152 @@
+package coyote.kestrel.transport.vm;
+
+import coyote.kestrel.transport.Message;
+import coyote.kestrel.transport.MessageQueue;
+import coyote.kestrel.transport.MessageTopic;
+import coyote.kestrel.transport.Transport;
+import coyote.kestrel.transport.TransportBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VmTransportTest {
+
+  private Transport transport;
+
+
+  @BeforeEach
+  void setUp() {
+    transport = new TransportBuilder().setURI("vm://" + getClass().getSimpleName()).build();
+    transport.open();
+  }
+
+
+  @AfterEach
+  void tearDown() {
+    transport.close();
+  }
+
+
+  private static Message message(String group, int sequence) {
+    Message retval = new Message();
+    retval.setGroup(group);
+    retval.put("SEQ", sequence);
+    return retval;
+  }
+
+
+  @DisplayName("Builder creates an in-process transport")
+  @Test
+  void builder() {
+    assertTrue(transport instanceof VmTransport);
+    assertTrue(transport.isValid());
+  }
+
+
+  @DisplayName("Competing consumers each receive a message exactly once")
+  @Test
+  void competingConsumers() throws Exception {
+    MessageQueue first = transport.getServiceQueue("VM.COMPETE");
+    MessageQueue second = transport.getServiceQueue("VM.COMPETE");
+    for (int x = 0; x < 10; x++) {
+      transport.sendDirect(message("VM.COMPETE", x));
+    }
+
+    Set<String> received = new HashSet<>();
+    int fromFirst = 0;
+    int fromSecond = 0;
+    for (int x = 0; x < 5; x++) {
+      Message msg = first.getNextMessage();
+      assertNotNull(msg);
+      assertTrue(received.add(msg.getAsString("SEQ")));
+      first.ackDelivery(msg);
+      fromFirst++;
+
+      msg = second.getNextMessage();
+      assertNotNull(msg);
+      assertTrue(received.add(msg.getAsString("SEQ")));
+      second.ackDelivery(msg);
+      fromSecond++;
+    }
+    assertNull(first.getNextMessage());
+    assertNull(second.getNextMessage());
+    assertEquals(10, received.size());
+    assertEquals(fromFirst, fromSecond);
+  }
+
+
+  @DisplayName("Unacknowledged messages are redelivered")
+  @Test
+  void redelivery() throws Exception {
+    MessageQueue queue = transport.getServiceQueue("VM.REDELIVER");
+    transport.sendDirect(message("VM.REDELIVER", 1));
+
+    Message msg = queue.getNextMessage();
+    assertNotNull(msg);
+    assertNull(queue.getNextMessage());
+    queue.nakDelivery(msg);
+
+    msg = queue.getNextMessage(100);
+    assertNotNull(msg, "Negatively acknowledged message should be redelivered");
+    assertEquals(1, msg.getAsInt("SEQ"));
+    queue.ackDelivery(msg);
+    queue.nakDelivery(msg);
+    assertNull(queue.getNextMessage(), "Acknowledged message should not be redelivered");
+  }
+
+
+  @DisplayName("Waiting consumers are released when a message arrives")
+  @Test
+  void blockingReceive() throws Exception {
+    MessageQueue queue = transport.getServiceQueue("VM.BLOCK");
+    Thread sender = new Thread(() -> {
+      try {
+        Thread.sleep(50);
+        transport.sendDirect(message("VM.BLOCK", 1));
+      } catch (Exception ignore) {
+      }
+    });
+    sender.start();
+    long start = System.currentTimeMillis();
+    assertNotNull(queue.getNextMessage(5000));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+
+  @DisplayName("Topics deliver a copy to every listener")
+  @Test
+  void topicFanOut() throws Exception {
+    MessageTopic topic = transport.getTopic("VM.TOPIC");
+    CountDownLatch latch = new CountDownLatch(2);
+    topic.attach(message -> latch.countDown());
+    topic.attach(message -> latch.countDown());
+    transport.broadcast(message("VM.TOPIC", 1));
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+
+
+  @DisplayName("Inbox listeners receive direct messages")
+  @Test
+  void inbox() throws Exception {
+    MessageQueue inbox = transport.createInbox();
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicInteger sequence = new AtomicInteger();
+    inbox.attach(message -> {
+      sequence.set(Integer.parseInt(message.getAsString("SEQ")));
+      latch.countDown();
+    });
+    transport.sendDirect(message(inbox.getName(), 42));
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(42, sequence.get());
+  }
+
+}
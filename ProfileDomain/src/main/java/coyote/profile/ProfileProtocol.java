@@ -1,6 +1,7 @@
 package coyote.profile;
 
 import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageSchema;
 
 /**
  * This is a static class that contains all the details relating to how the profile service operates.
@@ -25,4 +26,14 @@ public class ProfileProtocol {
      */
     public static final String ID_FIELD = KestrelProtocol.ID_FIELD; // same as used in other parts of the protocol
 
+    /**
+     * The payload field names of profile requests and responses.
+     *
+     * <p>Messages in the compact encoding send these names as numbers. Both
+     * the proxy and the service register it. Changing the names changes the
+     * identifier of the schema, so proxies and services must all use the
+     * same version before compact messages are sent.</p>
+     */
+    public static final MessageSchema SCHEMA = new MessageSchema(PROFILE_GROUP, KestrelProtocol.COMMAND_FIELD, ID_FIELD, "id", "theme", "logging", "name");
+
 }
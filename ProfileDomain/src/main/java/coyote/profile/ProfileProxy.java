@@ -2,6 +2,7 @@ package coyote.profile;
 
 import coyote.dataframe.DataFrame;
 import coyote.kestrel.protocol.KestrelProtocol;
+import coyote.kestrel.protocol.MessageSchema;
 import coyote.kestrel.protocol.ResponseFuture;
 import coyote.kestrel.proxy.AbstractProxy;
 import coyote.kestrel.transport.Message;
@@ -29,6 +30,10 @@ import java.util.List;
  */
 public class ProfileProxy extends AbstractProxy implements ProfileClient {
 
+  static {
+    MessageSchema.register(ProfileProtocol.SCHEMA);
+  }
+
 
   /**
    * Retrieve the profile with the given identifier.
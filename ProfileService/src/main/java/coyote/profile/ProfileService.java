@@ -3,6 +3,7 @@ package coyote.profile;
 
 import coyote.dataframe.DataFrame;
 import coyote.dataframe.marshal.JSONMarshaler;
+import coyote.kestrel.protocol.MessageSchema;
 import coyote.kestrel.service.AbstractService;
 import coyote.kestrel.service.ServiceUtil;
 import coyote.kestrel.transport.Message;
@@ -13,6 +14,10 @@ public class ProfileService extends AbstractService {
 
   private static final String GROUP_NAME = ProfileProtocol.PROFILE_GROUP;
 
+  static {
+    MessageSchema.register(ProfileProtocol.SCHEMA);
+  }
+
 
   /**
    * This is where we specify what channel this service listens for request messages.
@@ -62,6 +67,32 @@ public class ProfileService extends AbstractService {
   }
 
 
+  /**
+   * Identical requests for the same profile share one lookup when they
+   * arrive together.
+   *
+   * @param request the payload of the request
+   * @return the identifier of the requested profile
+   */
+  @Override
+  protected String getCoalescingKey(DataFrame request) {
+    return ServiceUtil.getIdentifier(request);
+  }
+
+
+  /**
+   * Profiles are cached by identifier when the service is configured with a
+   * cache size.
+   *
+   * @param command the command of the request
+   * @return the identifier field for GET requests, null for anything else
+   */
+  @Override
+  protected String[] getCacheKeyFields(String command) {
+    return ProfileProtocol.GET_CMD.equalsIgnoreCase(command) ? new String[]{ProfileProtocol.ID_FIELD} : null;
+  }
+
+
   /**
    * This only returns one profile, ID=123.
    *